@@ -19,43 +19,121 @@
  */
 package com.statnlp.commons;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.statnlp.hybridnetworks.FeatureArray;
 
 
 /**
+ * Interns feature arrays, so that equal feature arrays share one instance.<br>
+ * This can be used concurrently by several threads, and keeps the statistics of the lookups.
  * @author wei_lu
  *
  */
 public class FeatureArrayCache {
 	
-	private HashMap<FeatureArray, FeatureArray> _map;
-	private int _numFAs;
+	/** The estimated size of a FeatureArray object without its features, in bytes */
+	private static final int OBJECT_BYTES = 32;
+	/** The estimated size of an int array without its elements, in bytes */
+	private static final int ARRAY_BYTES = 16;
+	
+	private ConcurrentHashMap<FeatureArray, FeatureArray> _map;
+	private AtomicLong _numFAs;
+	private AtomicLong _numHits;
+	private AtomicLong _numBytesSaved;
 	private boolean _cache_enabled = true;
 	
 	public FeatureArrayCache(){
-		this._map = new HashMap<FeatureArray, FeatureArray>();
-		this._numFAs = 0;
+		this._map = new ConcurrentHashMap<FeatureArray, FeatureArray>();
+		this._numFAs = new AtomicLong();
+		this._numHits = new AtomicLong();
+		this._numBytesSaved = new AtomicLong();
 	}
 	
-	public synchronized FeatureArray toFeatureArray(FeatureArray fa){
-		this._numFAs ++;
-		if(!_cache_enabled)
+	/**
+	 * Returns the instance equal to the specified feature array which was first given to this cache
+	 * @param fa
+	 * @return
+	 */
+	public FeatureArray toFeatureArray(FeatureArray fa){
+		this._numFAs.incrementAndGet();
+		if(!_cache_enabled || fa == FeatureArray.NEGATIVE_INFINITY)
+			return fa;
+		FeatureArray existing = this._map.putIfAbsent(fa, fa);
+		if(existing == null){
 			return fa;
-		if(this._map.containsKey(fa)){
-			return this._map.get(fa);
 		}
-		this._map.put(fa, fa);
-		return fa;
+		this._numHits.incrementAndGet();
+		this._numBytesSaved.addAndGet(estimateBytes(fa));
+		return existing;
+	}
+	
+	/**
+	 * Returns the estimated memory used by the feature array, including all its segments
+	 * @param fa
+	 * @return
+	 */
+	private static long estimateBytes(FeatureArray fa){
+		long bytes = 0;
+		for(FeatureArray segment = fa; segment != null; segment = segment.getNext()){
+			bytes += OBJECT_BYTES + ARRAY_BYTES + 4L*segment.getCurrent().length;
+		}
+		return bytes;
+	}
+	
+	public void setEnabled(boolean enabled){
+		this._cache_enabled = enabled;
 	}
 	
+	/**
+	 * Forget the interned feature arrays, keeping the statistics.<br>
+	 * Once the features are in the {@link com.statnlp.hybridnetworks.FeatureArena} of each thread,
+	 * the interned instances are no longer needed.
+	 */
+	public void clear(){
+		this._map.clear();
+	}
+	
+	/**
+	 * The number of distinct feature arrays
+	 * @return
+	 */
 	public int size(){
 		return this._map.size();
 	}
 	
+	/**
+	 * The number of lookups
+	 * @return
+	 */
 	public int numFAs(){
-		return this._numFAs;
+		return (int)this._numFAs.get();
+	}
+	
+	/**
+	 * The number of lookups which returned an existing instance
+	 * @return
+	 */
+	public long numHits(){
+		return this._numHits.get();
+	}
+	
+	/**
+	 * The fraction of lookups which returned an existing instance
+	 * @return
+	 */
+	public double hitRate(){
+		long numFAs = this._numFAs.get();
+		return numFAs == 0 ? 0.0 : (double)this._numHits.get()/numFAs;
+	}
+	
+	/**
+	 * The estimated memory saved by returning the existing instances, in bytes
+	 * @return
+	 */
+	public long bytesSaved(){
+		return this._numBytesSaved.get();
 	}
 	
-}
\ No newline at end of file
+}
@@ -64,6 +64,14 @@ public class MathsVector implements Serializable{
 		return this._v.length;
 	}
 
+	//the L1 norm.
+	public static double absSum(double[] x){
+		double v = 0.0;
+		for(int k = 0; k<x.length; k++)
+			v += Math.abs(x[k]);
+		return v;
+	}
+
 	public static double dotProd(double[] v1, double[] v2){
 		assert v1.length == v2.length;
 		double v = 0.0;
@@ -0,0 +1,261 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.commons.ml.opt;
+
+/**
+ * The Orthant-Wise Limited-memory Quasi-Newton optimizer (Andrew and Gao, 2007,
+ * http://research.microsoft.com/apps/pubs/default.aspx?id=78900), which minimizes
+ * f(x) + l1*|x|<sub>1</sub> for a differentiable f.<br>
+ * The objective passed to {@link #setObjective(double)} should already include the L1 term,
+ * while the gradients passed to {@link #setGradients(double[])} should be those of f only,
+ * since the L1 term is not differentiable at zero.<br>
+ * Like {@link LBFGSOptimizer}, each call to {@link #optimize()} sets the next variables to be evaluated,
+ * except when it returns true, in which case the variables are set to the best solution found.
+ * Many of the variables end up being exactly zero, so the features with zero weight can be removed
+ * after training (see {@link com.statnlp.hybridnetworks.GlobalNetworkParam#compact(double)}).
+ */
+public class OWLQNOptimizer implements Optimizer{
+
+	/** The sufficient decrease constant of the backtracking line search */
+	private static final double ARMIJO_CONSTANT = 1e-4;
+	/** The maximum number of times the step is halved in one line search */
+	private static final int MAX_BACKTRACKS = 50;
+
+	private int _n;
+	private int _m = 4;
+	private double _eps = 10e-10;
+	private double _l1;
+	private double _f;
+	private double[] _x;
+	private double[] _g;
+
+	/** Whether the variables last set by {@link #optimize()} are a point in a line search */
+	private boolean _inLineSearch;
+	private int _iter;
+	private int _numBacktracks;
+	private double _step;
+	/** The last accepted variables, objective, and gradients */
+	private double[] _bestX;
+	private double _bestF;
+	private double[] _bestG;
+	/** The pseudo-gradient of the objective with the L1 term at the last accepted variables */
+	private double[] _pg;
+	private double[] _dir;
+	/** The last {@link #_m} variable changes and gradient changes, with the latest at {@link #_point}-1 */
+	private double[][] _s;
+	private double[][] _y;
+	private double[] _rho;
+	private double[] _alpha;
+	private int _point;
+	private int _bound;
+
+	public OWLQNOptimizer(double l1){
+		this._l1 = l1;
+	}
+
+	@Override
+	public void setObjective(double f){
+		this._f = f;
+	}
+
+	@Override
+	public void setVariables(double[] x){
+		this._x = x;
+		this._n = x.length;
+		if(this._bestX == null){
+			this._bestX = new double[this._n];
+			this._bestG = new double[this._n];
+			this._pg = new double[this._n];
+			this._dir = new double[this._n];
+			this._s = new double[this._m][this._n];
+			this._y = new double[this._m][this._n];
+			this._rho = new double[this._m];
+			this._alpha = new double[this._m];
+		}
+	}
+
+	@Override
+	public void setGradients(double[] g){
+		this._g = g;
+	}
+
+	@Override
+	public double getObjective() {
+		return _f;
+	}
+
+	@Override
+	public double[] getVariables() {
+		return _x;
+	}
+
+	@Override
+	public double[] getGradients() {
+		return _g;
+	}
+
+	public double getL1(){
+		return this._l1;
+	}
+
+	/**
+	 * Set the variables back to the best solution found, to be used when the training is stopped
+	 * before this optimizer deems the optimization finished.
+	 */
+	public void restoreBestVariables(){
+		if(this._inLineSearch){
+			System.arraycopy(this._bestX, 0, this._x, 0, this._n);
+		}
+	}
+
+	//return true if it should stop.
+	@Override
+	public boolean optimize(){
+		if(!this._inLineSearch){
+			this.accept();
+			return this.startLineSearch();
+		}
+		double decrease = 0.0;
+		for(int i=0; i<this._n; i++){
+			decrease += this._pg[i]*(this._x[i]-this._bestX[i]);
+		}
+		if(this._f <= this._bestF + ARMIJO_CONSTANT*decrease){
+			for(int i=0; i<this._n; i++){
+				this._s[this._point][i] = this._x[i]-this._bestX[i];
+				this._y[this._point][i] = this._g[i]-this._bestG[i];
+			}
+			double ys = MathsVector.dotProd(this._s[this._point], this._y[this._point]);
+			// Skip the update if the curvature is not positive, to keep the inverse Hessian positive definite
+			if(ys > 0){
+				this._rho[this._point] = 1.0/ys;
+				this._point = (this._point+1) % this._m;
+				this._bound = Math.min(this._bound+1, this._m);
+			}
+			this.accept();
+			this._iter++;
+			return this.startLineSearch();
+		}
+		this._numBacktracks++;
+		if(this._numBacktracks > MAX_BACKTRACKS){
+			// The objective cannot be decreased along this direction anymore
+			this.restoreBestVariables();
+			this._inLineSearch = false;
+			return true;
+		}
+		this._step /= 2;
+		this.takeStep();
+		return false;
+	}
+
+	/**
+	 * Make the current variables the last accepted ones, and compute their pseudo-gradient
+	 */
+	private void accept(){
+		System.arraycopy(this._x, 0, this._bestX, 0, this._n);
+		System.arraycopy(this._g, 0, this._bestG, 0, this._n);
+		this._bestF = this._f;
+		for(int i=0; i<this._n; i++){
+			double x = this._x[i];
+			double g = this._g[i];
+			if(x > 0){
+				this._pg[i] = g + this._l1;
+			} else if(x < 0){
+				this._pg[i] = g - this._l1;
+			} else if(g + this._l1 < 0){
+				this._pg[i] = g + this._l1;
+			} else if(g - this._l1 > 0){
+				this._pg[i] = g - this._l1;
+			} else {
+				this._pg[i] = 0.0;
+			}
+		}
+	}
+
+	/**
+	 * Compute the search direction from the accepted variables and set the first point to be evaluated
+	 * @return true if the accepted variables are already optimal
+	 */
+	private boolean startLineSearch(){
+		double pgNorm = MathsVector.norm(this._pg);
+		double xNorm = Math.max(1.0, MathsVector.norm(this._x));
+		if(pgNorm / xNorm <= this._eps){
+			this._inLineSearch = false;
+			return true;
+		}
+
+		// The two-loop recursion of L-BFGS, on the pseudo-gradient
+		double[] q = this._dir;
+		for(int i=0; i<this._n; i++){
+			q[i] = -this._pg[i];
+		}
+		int cp = this._point;
+		for(int k=0; k<this._bound; k++){
+			cp = (cp+this._m-1) % this._m;
+			this._alpha[cp] = this._rho[cp]*MathsVector.dotProd(this._s[cp], q);
+			addScaled(q, -this._alpha[cp], this._y[cp]);
+		}
+		if(this._bound > 0){
+			int last = (this._point+this._m-1) % this._m;
+			double gamma = 1.0/(this._rho[last]*MathsVector.dotProd(this._y[last], this._y[last]));
+			for(int i=0; i<this._n; i++){
+				q[i] *= gamma;
+			}
+		}
+		for(int k=0; k<this._bound; k++){
+			double beta = this._rho[cp]*MathsVector.dotProd(this._y[cp], q);
+			addScaled(q, this._alpha[cp]-beta, this._s[cp]);
+			cp = (cp+1) % this._m;
+		}
+
+		// Keep only the directions that agree with the steepest descent direction
+		for(int i=0; i<this._n; i++){
+			if(this._dir[i]*this._pg[i] >= 0){
+				this._dir[i] = 0.0;
+			}
+		}
+
+		this._step = this._iter == 0 ? Math.min(1.0, 1.0/pgNorm) : 1.0;
+		this._numBacktracks = 0;
+		this._inLineSearch = true;
+		this.takeStep();
+		return false;
+	}
+
+	/**
+	 * Set the variables to the accepted ones moved by the current step along the search direction,
+	 * projected onto the orthant of the accepted variables
+	 */
+	private void takeStep(){
+		for(int i=0; i<this._n; i++){
+			double x = this._bestX[i];
+			double orthant = x != 0 ? x : -this._pg[i];
+			double next = x + this._step*this._dir[i];
+			this._x[i] = next*orthant > 0 ? next : 0.0;
+		}
+	}
+
+	private static void addScaled(double[] x, double coef, double[] v){
+		for(int i=0; i<x.length; i++){
+			x[i] += coef*v[i];
+		}
+	}
+
+	public String name(){
+		return "OWL-QN Optimizer";
+	}
+
+}
@@ -0,0 +1,42 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.commons.ml.opt;
+
+/**
+ * The factory class to construct the OWL-QN optimizer with the specified L1 regularization parameter weight
+ * @see OWLQNOptimizer
+ */
+public class OWLQNOptimizerFactory extends OptimizerFactory {
+	
+	private static final long serialVersionUID = -2704316429734532861L;
+	private double l1;
+
+	OWLQNOptimizerFactory(double l1){
+		this.l1 = l1;
+	}
+	
+	@Override
+	public OWLQNOptimizer create(int numWeights){
+		return new OWLQNOptimizer(l1);
+	}
+	
+	@Override
+	public double getL1RegularizationConstant(){
+		return l1;
+	}
+
+}
@@ -17,9 +17,9 @@
 package com.statnlp.commons.ml.opt;
 
 import java.io.Serializable;
-import java.util.HashMap;
 
 import com.statnlp.commons.ml.opt.GradientDescentOptimizer.AdaptiveStrategy;
+import com.statnlp.hybridnetworks.FeatureIndex;
 
 public abstract class OptimizerFactory implements Serializable {
 	
@@ -41,6 +41,18 @@ public abstract class OptimizerFactory implements Serializable {
 		return factory;
 	}
 	
+	/**
+	 * Return the factory object to create an OWL-QN optimizer, which trains with L1 regularization.<br>
+	 * L1 regularization drives many weights to exactly zero, so the trained model has far fewer active features.<br>
+	 * This can be combined with the L2 regularization of {@link com.statnlp.hybridnetworks.NetworkConfig#L2_REGULARIZATION_CONSTANT}
+	 * for elastic-net regularization.
+	 * @param l1 The L1 regularization parameter weight
+	 * @return
+	 */
+	public static OWLQNOptimizerFactory getOWLQNFactory(double l1){
+		return new OWLQNOptimizerFactory(l1);
+	}
+	
 	/**
 	 * Return the factory object to create a gradient descent optimizer.<br>
 	 * The returned factory will create instances of GradientDescentOptimizer with normal (S)GD procedure.<br>
@@ -336,7 +348,16 @@ public abstract class OptimizerFactory implements Serializable {
 	
 	public abstract Optimizer create(int numWeights);
 	
-	public Optimizer create(int numWeights, HashMap<String, HashMap<String, HashMap<String, Integer>>> featureIntMap){
+	/**
+	 * Return the L1 regularization parameter weight handled by the created optimizers,
+	 * which should only be added to the objective, not to the gradient. Default to 0.0.
+	 * @return
+	 */
+	public double getL1RegularizationConstant(){
+		return 0.0;
+	}
+	
+	public Optimizer create(int numWeights, FeatureIndex featureIndex){
 		return create(numWeights);
 	}
 
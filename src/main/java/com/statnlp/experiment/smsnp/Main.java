@@ -14,13 +14,11 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.Set;
 
 import com.statnlp.commons.ml.opt.OptimizerFactory;
 import com.statnlp.commons.types.Instance;
@@ -35,12 +33,18 @@ import com.statnlp.experiment.smsnp.weak_semi_crf.CharWeakSemiCRFFeatureManager;
 import com.statnlp.experiment.smsnp.weak_semi_crf.CharWeakSemiCRFNetworkCompiler;
 import com.statnlp.experiment.smsnp.weak_semi_crf.WordWeakSemiCRFFeatureManager;
 import com.statnlp.experiment.smsnp.weak_semi_crf.WordWeakSemiCRFNetworkCompiler;
+import com.statnlp.hybridnetworks.BinaryModelFile;
 import com.statnlp.hybridnetworks.DiscriminativeNetworkModel;
+import com.statnlp.hybridnetworks.FeatureIndex;
 import com.statnlp.hybridnetworks.FeatureManager;
 import com.statnlp.hybridnetworks.GenerativeNetworkModel;
 import com.statnlp.hybridnetworks.GlobalNetworkParam;
+import com.statnlp.hybridnetworks.LocalNetworkParam;
+import com.statnlp.hybridnetworks.Network;
 import com.statnlp.hybridnetworks.NetworkCompiler;
 import com.statnlp.hybridnetworks.NetworkConfig;
+import com.statnlp.hybridnetworks.NetworkConfig.DecodeMode;
+import com.statnlp.hybridnetworks.NetworkConfig.ExpMode;
 import com.statnlp.hybridnetworks.NetworkConfig.ModelType;
 import com.statnlp.hybridnetworks.NetworkModel;
 
@@ -54,24 +58,35 @@ import com.statnlp.hybridnetworks.NetworkModel;
 public class Main {
 	
 	public enum Algorithm {
-		LINEAR_CRF(true),
-		CHAR_SEMI_CRF(false),
-		CHAR_WEAK_SEMI_CRF(false),
-		WORD_SEMI_CRF(true),
-		WORD_WEAK_SEMI_CRF(true),
-		TOKENIZED_GOLD(true),
+		LINEAR_CRF(true, true),
+		CHAR_SEMI_CRF(false, false),
+		CHAR_WEAK_SEMI_CRF(false, false),
+		WORD_SEMI_CRF(true, true),
+		WORD_WEAK_SEMI_CRF(true, true),
+		TOKENIZED_GOLD(true, false),
 		;
 		
 		private boolean requireTokenized = false;
+		private boolean supportDenseLattice = false;
 		
-		private Algorithm(boolean requireTokenized){
+		private Algorithm(boolean requireTokenized, boolean supportDenseLattice){
 			this.requireTokenized = requireTokenized;
+			this.supportDenseLattice = supportDenseLattice;
 		}
 		
 		public boolean requireTokenized(){
 			return requireTokenized;
 		}
 		
+		/**
+		 * Returns whether the unlabeled networks of this algorithm can use the dense lattice (see -denseLattice),
+		 * which also provides the heuristic for A* decoding
+		 * @return
+		 */
+		public boolean supportDenseLattice(){
+			return supportDenseLattice;
+		}
+		
 		public static String helpString(){
 			return "Please specify the algorithm from the following choices:\n"
 					+ "\t-LINEAR_CRF\n"
@@ -105,7 +120,7 @@ public class Main {
 		boolean writeModelText = false;
 		NetworkConfig._numThreads = 4;
 		NetworkConfig.L2_REGULARIZATION_CONSTANT = 0.125;
-		NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION = true;
+		NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION = false;
 		NetworkConfig._BUILD_FEATURES_FROM_LABELED_ONLY = false;
 		NetworkConfig.MODEL_TYPE = ModelType.CRF;
 		NetworkConfig.USE_BATCH_SGD = false;
@@ -121,7 +136,15 @@ public class Main {
 		
 		int numExamplesPrinted = 10;
 		
+		DecodeMode decodeMode = DecodeMode.EXACT;
+		boolean benchmarkDecoding = false;
+		boolean checkDenseLattice = false;
+		int numBest = 1;
+		
 		boolean fixModel = false;
+		String compactModelPath = null;
+		double compactEpsilon = 0.0;
+		String binaryModelPath = null;
 		
 		int argIndex = 0;
 		String[] moreArgs = new String[0];
@@ -172,6 +195,10 @@ public class Main {
 					NetworkConfig.L2_REGULARIZATION_CONSTANT = Double.parseDouble(args[argIndex+1]);
 					argIndex += 2;
 					break;
+				case "l1":
+					NetworkConfig.L1_REGULARIZATION_CONSTANT = Double.parseDouble(args[argIndex+1]);
+					argIndex += 2;
+					break;
 				case "weightInit":
 					weightInit = args[argIndex+1];
 					if(weightInit.equals("random")){
@@ -237,14 +264,109 @@ public class Main {
 					fixModel = true;
 					argIndex += 1;
 					break;
+				case "compactModel":
+					compactModelPath = args[argIndex+1];
+					argIndex += 2;
+					break;
+				case "compactEpsilon":
+					compactEpsilon = Double.parseDouble(args[argIndex+1]);
+					argIndex += 2;
+					break;
+				case "binaryModel":
+					binaryModelPath = args[argIndex+1];
+					argIndex += 2;
+					break;
 				case "parallelTouch":
 					NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION = false;
 					argIndex += 1;
 					break;
+				case "sequentialTouch":
+					NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION = true;
+					argIndex += 1;
+					break;
 				case "reduceFeatures":
 					NetworkConfig._BUILD_FEATURES_FROM_LABELED_ONLY = true;
 					argIndex += 1;
 					break;
+				case "compressNetworks":
+					NetworkConfig.USE_COMPRESSED_NETWORK_LAYOUT = true;
+					argIndex += 1;
+					break;
+				case "pruneAfter":
+					NetworkConfig.PRUNE_AFTER_ITERATION = Integer.parseInt(args[argIndex+1]);
+					argIndex += 2;
+					break;
+				case "pruneThreshold":
+					NetworkConfig.PRUNE_THRESHOLD = Double.parseDouble(args[argIndex+1]);
+					argIndex += 2;
+					break;
+				case "pruneMinLength":
+					NetworkConfig.PRUNE_MIN_LENGTH = Integer.parseInt(args[argIndex+1]);
+					argIndex += 2;
+					break;
+				case "denseLattice":
+					NetworkConfig.USE_DENSE_LATTICE = true;
+					argIndex += 1;
+					break;
+				case "wavefrontThreads":
+					NetworkConfig.WAVEFRONT_PARALLELISM = Integer.parseInt(args[argIndex+1]);
+					argIndex += 2;
+					break;
+				case "wavefrontMinNodes":
+					NetworkConfig.WAVEFRONT_MIN_NODES = Integer.parseInt(args[argIndex+1]);
+					argIndex += 2;
+					break;
+				case "featureCacheHeapBudget":
+					NetworkConfig.FEATURE_CACHE_HEAP_BUDGET = (long)(Double.parseDouble(args[argIndex+1])*1024*1024);
+					argIndex += 2;
+					break;
+				case "featureCacheDir":
+					NetworkConfig.FEATURE_CACHE_DIR = args[argIndex+1];
+					argIndex += 2;
+					break;
+				case "featureHashBits":
+					NetworkConfig.FEATURE_HASH_BITS = Integer.parseInt(args[argIndex+1]);
+					argIndex += 2;
+					break;
+				case "featureMinCount":
+					for(String minCount: args[argIndex+1].split(",")){
+						int equalIndex = minCount.indexOf('=');
+						if(equalIndex < 0){
+							NetworkConfig.FEATURE_MIN_COUNT = Integer.parseInt(minCount);
+						} else {
+							NetworkConfig.FEATURE_MIN_COUNT_BY_TEMPLATE.put(minCount.substring(0, equalIndex).toUpperCase(), Integer.parseInt(minCount.substring(equalIndex+1)));
+						}
+					}
+					argIndex += 2;
+					break;
+				case "decodeMode":
+					decodeMode = DecodeMode.valueOf(args[argIndex+1].toUpperCase());
+					argIndex += 2;
+					break;
+				case "beamSize":
+					NetworkConfig.BEAM_SIZE = Integer.parseInt(args[argIndex+1]);
+					argIndex += 2;
+					break;
+				case "benchmarkDecoding":
+					benchmarkDecoding = true;
+					argIndex += 1;
+					break;
+				case "checkDenseLattice":
+					checkDenseLattice = true;
+					argIndex += 1;
+					break;
+				case "kBest":
+					numBest = Integer.parseInt(args[argIndex+1]);
+					argIndex += 2;
+					break;
+				case "logSpaceInference":
+					NetworkConfig.USE_SCALED_INFERENCE = false;
+					argIndex += 1;
+					break;
+				case "expMode":
+					NetworkConfig.EXP_MODE = ExpMode.valueOf(args[argIndex+1].toUpperCase());
+					argIndex += 2;
+					break;
 				case "h":
 				case "help":
 					printHelp();
@@ -279,6 +401,10 @@ public class Main {
 		if(logPath != null){
 			outstream = new PrintStream(logPath, "UTF-8");
 		}
+		if(decodeMode == DecodeMode.ASTAR && !(algo.supportDenseLattice() && NetworkConfig.USE_DENSE_LATTICE)){
+			print("WARNING: A* decoding requires -denseLattice and one of LINEAR_CRF, WORD_SEMI_CRF, and WORD_WEAK_SEMI_CRF,"
+					+ " the exact max will be calculated instead", true, outstream, System.err);
+		}
 
 		FeatureManager fm = null;
 		NetworkCompiler compiler = null;
@@ -397,6 +523,8 @@ public class Main {
 				GlobalNetworkParam gParam;
 				if(NetworkConfig.MODEL_TYPE == ModelType.SSVM){
 					gParam = new GlobalNetworkParam(OptimizerFactory.getGradientDescentFactoryUsingAdaDelta());
+				} else if(NetworkConfig.L1_REGULARIZATION_CONSTANT > 0){
+					gParam = new GlobalNetworkParam(OptimizerFactory.getOWLQNFactory(NetworkConfig.L1_REGULARIZATION_CONSTANT));
 				} else {
 					gParam = new GlobalNetworkParam(OptimizerFactory.getLBFGSFactory());
 				}
@@ -446,9 +574,13 @@ public class Main {
 			} else {
 				print("Reading object...", false, outstream, System.out);
 				long startTime = System.currentTimeMillis();
-				ObjectInputStream ois = new ObjectInputStream(new FileInputStream(modelPath));
-				model = (NetworkModel)ois.readObject();
-				ois.close();
+				if(BinaryModelFile.isBinaryModel(modelPath)){
+					model = BinaryModelFile.read(modelPath);
+				} else {
+					ObjectInputStream ois = new ObjectInputStream(new FileInputStream(modelPath));
+					model = (NetworkModel)ois.readObject();
+					ois.close();
+				}
 				Field _fm = NetworkModel.class.getDeclaredField("_fm");
 				_fm.setAccessible(true);
 				fm = (FeatureManager)_fm.get(model);
@@ -486,6 +618,35 @@ public class Main {
 //					}
 //				}
 //			}
+			if(compactModelPath != null){
+				GlobalNetworkParam paramG = fm.getParam_G();
+				int numFeatures = paramG.countFeatures();
+				print("Compacting model...", false, outstream, System.out);
+				long startTime = System.currentTimeMillis();
+				int numRemoved = model.compact(compactEpsilon);
+				ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(compactModelPath));
+				oos.writeObject(model);
+				oos.close();
+				long endTime = System.currentTimeMillis();
+				print(String.format("Done in %.3fs", (endTime-startTime)/1000.0), true, outstream, System.out);
+				print(String.format("Compacted model: %d of %d features removed (|weight| <= %s), %d features left",
+						numRemoved, numFeatures, compactEpsilon, paramG.countFeatures()), true, outstream, System.out);
+				long modelSize = new File(modelPath).length();
+				long compactModelSize = new File(compactModelPath).length();
+				if(modelSize > 0){
+					print(String.format("Compacted model size: %.1fKB (%.1fKB before, %.2f%% smaller)", compactModelSize/1024.0,
+							modelSize/1024.0, 100.0*(modelSize-compactModelSize)/modelSize), true, outstream, System.out);
+				} else {
+					print(String.format("Compacted model size: %.1fKB", compactModelSize/1024.0), true, outstream, System.out);
+				}
+			}
+			if(binaryModelPath != null){
+				print("Writing binary model...", false, outstream, System.out);
+				long startTime = System.currentTimeMillis();
+				BinaryModelFile.write(model, binaryModelPath);
+				long endTime = System.currentTimeMillis();
+				print(String.format("Done in %.3fs", (endTime-startTime)/1000.0), true, outstream, System.out);
+			}
 			if(writeModelText){
 				PrintStream modelTextWriter = new PrintStream(modelPath+".txt");
 				modelTextWriter.println("Algorithm: "+algo);
@@ -498,6 +659,7 @@ public class Main {
 				modelTextWriter.println("Max span: "+maxSegmentLength);
 				modelTextWriter.println("#Threads: "+NetworkConfig._numThreads);
 				modelTextWriter.println("L2 param: "+NetworkConfig.L2_REGULARIZATION_CONSTANT);
+				modelTextWriter.println("L1 param: "+NetworkConfig.L1_REGULARIZATION_CONSTANT);
 				modelTextWriter.println("Weight init: "+weightInit);
 				modelTextWriter.println("objtol: "+NetworkConfig.objtol);
 				modelTextWriter.println("Max iter: "+maxNumIterations);
@@ -530,19 +692,30 @@ public class Main {
 				}
 				GlobalNetworkParam paramG = fm.getParam_G();
 				modelTextWriter.println("Num features: "+paramG.countFeatures());
+				if(paramG.isFeatureHashing()){
+					modelTextWriter.println("The features are hashed, so there is no feature dictionary");
+				}
 				modelTextWriter.println("Features:");
-				HashMap<String, HashMap<String, HashMap<String, Integer>>> featureIntMap = paramG.getFeatureIntMap();
-				for(String featureType: sorted(featureIntMap.keySet())){
-					modelTextWriter.println(featureType);
-					HashMap<String, HashMap<String, Integer>> outputInputMap = featureIntMap.get(featureType);
-					for(String output: sorted(outputInputMap.keySet())){
+				List<FeatureIndex.Feature> featureList = new ArrayList<FeatureIndex.Feature>();
+				for(FeatureIndex.Feature feature: paramG.getFeatureIndex()){
+					featureList.add(feature);
+				}
+				featureList.sort(Comparator.comparing((FeatureIndex.Feature feature) -> feature.type)
+						.thenComparing(feature -> feature.output)
+						.thenComparing(feature -> feature.input));
+				String featureType = null;
+				String output = null;
+				for(FeatureIndex.Feature feature: featureList){
+					if(!feature.type.equals(featureType)){
+						featureType = feature.type;
+						output = null;
+						modelTextWriter.println(featureType);
+					}
+					if(!feature.output.equals(output)){
+						output = feature.output;
 						modelTextWriter.println("\t"+output);
-						HashMap<String, Integer> inputMap = outputInputMap.get(output);
-						for(String input: sorted(inputMap.keySet())){
-							int featureId = inputMap.get(input);
-							modelTextWriter.println("\t\t"+input+" "+featureId+" "+fm.getParam_G().getWeight(featureId));
-						}
 					}
+					modelTextWriter.println("\t\t"+feature.input+" "+feature.id+" "+paramG.getWeight(feature.id));
 				}
 				modelTextWriter.close();
 			}
@@ -562,7 +735,7 @@ public class Main {
 			}
 			Instance[] predictions = null;
 			if(algo != Algorithm.TOKENIZED_GOLD){
-				predictions = model.decode(testInstances);
+				predictions = model.decode(testInstances, false, decodeMode);
 				List<SMSNPInstance> predictionsList = new ArrayList<SMSNPInstance>();
 				for(Instance instance: predictions){
 					predictionsList.add((SMSNPInstance)instance);
@@ -589,13 +762,168 @@ public class Main {
 				predictions = testInstances;
 			}
 			SMSNPEvaluator.evaluate(predictions, outstream, numExamplesPrinted);
+			if(benchmarkDecoding && algo != Algorithm.TOKENIZED_GOLD){
+				benchmarkDecoding(model, testInstances, outstream);
+			}
+			if(numBest > 1 && algo != Algorithm.TOKENIZED_GOLD){
+				writeKBest(model, testInstances, numBest, result_filename+".kbest", algo.requireTokenized(), outstream);
+			}
+			if(checkDenseLattice && algo != Algorithm.TOKENIZED_GOLD){
+				checkDenseLattice(fm, compiler, testInstances, outstream);
+			}
+		}
+	}
+	
+	/**
+	 * Decode the test instances with each decoding mode, and print the decoding time, the F1 score, and
+	 * the number of predictions identical to the exact decoding
+	 * @param model
+	 * @param testInstances
+	 * @param outstream
+	 * @throws InterruptedException
+	 */
+	private static void benchmarkDecoding(NetworkModel model, SMSNPInstance[] testInstances, PrintStream outstream) throws InterruptedException{
+		print("### Decoding benchmark ###", true, outstream, System.out);
+		int originalBeamSize = NetworkConfig.BEAM_SIZE;
+		int[] beamSizes = new int[]{1, 2, 4, 8, 16};
+		Instance[] exactPredictions = null;
+		for(int i=-1; i<=beamSizes.length; i++){
+			DecodeMode mode = DecodeMode.EXACT;
+			String name = "EXACT";
+			if(i == beamSizes.length){
+				mode = DecodeMode.ASTAR;
+				name = "ASTAR";
+			} else if(i >= 0){
+				mode = DecodeMode.BEAM;
+				NetworkConfig.BEAM_SIZE = beamSizes[i];
+				name = "BEAM-"+beamSizes[i];
+			}
+			long startTime = System.currentTimeMillis();
+			Instance[] predictions = model.decode(testInstances, false, mode);
+			long endTime = System.currentTimeMillis();
+			Arrays.sort(predictions, Comparator.comparing(Instance::getInstanceId));
+			if(exactPredictions == null){
+				exactPredictions = predictions;
+			}
+			int numSame = 0;
+			for(int j=0; j<predictions.length; j++){
+				List<Span> prediction = ((SMSNPInstance)predictions[j]).getPrediction();
+				if(prediction.equals(((SMSNPInstance)exactPredictions[j]).getPrediction())){
+					numSame++;
+				}
+			}
+			print(String.format("%-8s Time: %.3fs F1: %5.2f%% Same as exact: %d/%d", name, (endTime-startTime)/1000.0,
+					100*SMSNPEvaluator.getF1(predictions, false), numSame, predictions.length), true, outstream, System.out);
+		}
+		NetworkConfig.BEAM_SIZE = originalBeamSize;
+	}
+	
+	/**
+	 * Check that the dense lattice gives the same log partition function, max score, and prediction as the
+	 * generic network on each test instance, and print the maximum differences.<br>
+	 * This throws an exception if any of them differs.
+	 * @param fm
+	 * @param compiler
+	 * @param testInstances
+	 * @param outstream
+	 */
+	private static void checkDenseLattice(FeatureManager fm, NetworkCompiler compiler, SMSNPInstance[] testInstances, PrintStream outstream){
+		print("### Dense lattice check ###", true, outstream, System.out);
+		boolean useDenseLattice = NetworkConfig.USE_DENSE_LATTICE;
+		LocalNetworkParam param = new LocalNetworkParam(0, fm, testInstances.length);
+		fm.setLocalNetworkParams(0, param);
+		param.setGlobalMode();
+		int numChecked = 0;
+		int numDifferentPredictions = 0;
+		double maxInsideError = 0.0;
+		double maxMaxError = 0.0;
+		try{
+			for(int networkId=0; networkId<testInstances.length; networkId++){
+				SMSNPInstance instance = testInstances[networkId];
+				NetworkConfig.USE_DENSE_LATTICE = true;
+				Network latticeNetwork = compiler.compile(networkId, instance, param);
+				if(!(latticeNetwork instanceof SMSNPLatticeNetwork) || !((SMSNPLatticeNetwork)latticeNetwork).isLatticeEnabled()){
+					continue;
+				}
+				NetworkConfig.USE_DENSE_LATTICE = false;
+				Network network = compiler.compile(networkId, instance, param);
+				
+				// The networks of the same thread share their arrays, so each result is read before the next inference
+				double inside = network.sum();
+				network.max();
+				double max = network.getMax();
+				List<Span> prediction = ((SMSNPInstance)compiler.decompile(network)).getPrediction();
+				double latticeInside = latticeNetwork.sum();
+				latticeNetwork.max();
+				double latticeMax = latticeNetwork.getMax();
+				List<Span> latticePrediction = ((SMSNPInstance)compiler.decompile(latticeNetwork)).getPrediction();
+				
+				maxInsideError = Math.max(maxInsideError, Math.abs(inside-latticeInside)/Math.max(1.0, Math.abs(inside)));
+				maxMaxError = Math.max(maxMaxError, Math.abs(max-latticeMax)/Math.max(1.0, Math.abs(max)));
+				if(!prediction.equals(latticePrediction)){
+					numDifferentPredictions++;
+				}
+				numChecked++;
+			}
+		} finally {
+			NetworkConfig.USE_DENSE_LATTICE = useDenseLattice;
+		}
+		if(numChecked == 0){
+			print("The dense lattice is not used by this model", true, outstream, System.out);
+			return;
+		}
+		print(String.format("Checked: %d/%d Max relative error of inside: %.3e max: %.3e Different predictions: %d",
+				numChecked, testInstances.length, maxInsideError, maxMaxError, numDifferentPredictions), true, outstream, System.out);
+		if(maxInsideError > 1e-9 || maxMaxError > 1e-9 || numDifferentPredictions > 0){
+			throw new RuntimeException("The dense lattice does not match the generic network");
 		}
 	}
 	
-	private static List<String> sorted(Set<String> coll){
-		List<String> result = new ArrayList<String>(coll);
-		Collections.sort(result);
-		return result;
+	/**
+	 * Decode the k best predictions of the test instances and write them, best first, to the specified file.<br>
+	 * Also print the number of instances whose gold output is among its k best predictions (the oracle).
+	 * @param model
+	 * @param testInstances
+	 * @param numBest
+	 * @param kBestFilename
+	 * @param printCoNLL
+	 * @param outstream
+	 * @throws InterruptedException
+	 * @throws FileNotFoundException
+	 */
+	private static void writeKBest(NetworkModel model, SMSNPInstance[] testInstances, int numBest, String kBestFilename,
+			boolean printCoNLL, PrintStream outstream) throws InterruptedException, FileNotFoundException{
+		Instance[][] kBest = model.decodeKBest(testInstances, numBest);
+		// The rows are in the order of the test instances, which might have no prediction
+		Integer[] order = new Integer[testInstances.length];
+		for(int i=0; i<order.length; i++){
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparing(i -> testInstances[i].getInstanceId()));
+		PrintStream result = new PrintStream(kBestFilename);
+		int numOracle = 0;
+		for(int index: order){
+			Instance[] predictions = kBest[index];
+			if(predictions.length == 0){
+				result.println("# No prediction for instance "+testInstances[index].getInstanceId());
+				result.println();
+				continue;
+			}
+			boolean found = false;
+			for(int rank=0; rank<predictions.length; rank++){
+				SMSNPInstance instance = (SMSNPInstance)predictions[rank];
+				result.println("# Rank "+(rank+1));
+				result.println(printCoNLL ? instance.toCoNLLString() : instance.toString());
+				if(instance.getPrediction().equals(instance.getOutput())){
+					found = true;
+				}
+			}
+			if(found){
+				numOracle++;
+			}
+		}
+		result.close();
+		print(String.format("Gold output in the %d-best predictions: %d/%d", numBest, numOracle, kBest.length), true, outstream, System.out);
 	}
 	
 	private static void printHelp(){
@@ -620,8 +948,15 @@ public class Main {
 				+ "\tSet the maximum segment length to <n>. Default to maximum in training set\n"
 				+ "-nThreads <n>\n"
 				+ "\tSet the number of threads to <n>. Default to 4\n"
+				+ "-sequentialTouch\n"
+				+ "\tExtract the features of the first touch with one thread at a time. By default all threads\n"
+				+ "\textract them at the same time, and the feature IDs are the same for any number of threads, including one\n"
 				+ "-l2 <value>\n"
 				+ "\tSet the L2 regularization parameter weight to <value>. Default to 0.01\n"
+				+ "-l1 <value>\n"
+				+ "\tSet the L1 regularization parameter weight to <value>. Default to 0.0\n"
+				+ "\tIf positive, CRF models are trained with OWL-QN instead of LBFGS, and most weights become\n"
+				+ "\texactly zero, to be removed with -compactModel. Use with -l2 for elastic-net regularization\n"
 				+ "-weightInit <\"random\" or value>\n"
 				+ "\tWeight initialization. If \"random\", the weights will be randomly assigned values between\n"
 				+ "\t-0.05 to 0.05 (uniform distribution). Otherwise, it will be set to the value provided.\n"
@@ -650,6 +985,70 @@ public class Main {
 				+ "\tThe features to be used. The available features depend on the algorithm used.\n"
 				+ "-numExamplesPrinted\n"
 				+ "\tSpecify the number of examples printed during evaluation. Default to 10\n"
+				+ "-compressNetworks\n"
+				+ "\tStore the network edges in flat arrays (compressed sparse layout) instead of\n"
+				+ "\tone array per node and per edge. This reduces memory usage for long inputs\n"
+				+ "-pruneAfter <n>\n"
+				+ "\tAfter training iteration <n>, remove the hyperedges of unlabeled networks with posterior below\n"
+				+ "\tthe prune threshold, to speed up later iterations. The gold hyperedges are always kept. Default to -1 (no pruning)\n"
+				+ "-pruneThreshold <p>\n"
+				+ "\tThe minimum posterior probability of the hyperedges kept when pruning. Default to 1E-6\n"
+				+ "-pruneMinLength <n>\n"
+				+ "\tOnly prune the networks of instances with at least <n> tokens (or characters). Default to 0\n"
+				+ "-denseLattice\n"
+				+ "\tUse the dense lattice engine for the unlabeled networks, which works on the segment (or emission) and\n"
+				+ "\ttransition scores directly. Only supported for LINEAR_CRF, WORD_SEMI_CRF, and WORD_WEAK_SEMI_CRF,\n"
+				+ "\tignored otherwise\n"
+				+ "-wavefrontThreads <n>\n"
+				+ "\tCalculate the inside-outside of each large network with <n> workers, processing the nodes\n"
+				+ "\tthat do not depend on each other in parallel. Useful for very long inputs. Default to 1 (disabled)\n"
+				+ "-wavefrontMinNodes <n>\n"
+				+ "\tThe minimum number of nodes in a network to use the workers from -wavefrontThreads. Default to 20000\n"
+				+ "-featureCacheHeapBudget <MB>\n"
+				+ "\tThe memory in MB for the cached features of the networks in each thread. The features of the networks\n"
+				+ "\tbeyond this are moved to a memory-mapped file after the first touch. Default to no limit\n"
+				+ "-featureCacheDir <dir>\n"
+				+ "\tThe directory for the memory-mapped files of -featureCacheHeapBudget. Default to the temporary directory\n"
+				+ "-featureHashBits <b>\n"
+				+ "\tHash the features into 2^b weights instead of keeping a feature dictionary, for very large data.\n"
+				+ "\tNot compatible with -reduceFeatures. Default to no hashing\n"
+				+ "-featureMinCount <n>[,<TEMPLATE>=<n>]...\n"
+				+ "\tRemove the features occurring less than <n> times in the training networks before training, and print\n"
+				+ "\tthe number of removed features of each template (e.g., WORDS for WORDS:1). The minimum count can be set\n"
+				+ "\tfor specific templates, e.g., 2,BIGRAM=1. Not compatible with -featureHashBits. Default to 1 (keep all)\n"
+				+ "-decodeMode <mode>\n"
+				+ "\tThe decoding algorithm: exact, beam (keeps the best <beamSize> nodes at each position, not exact),\n"
+				+ "\tor astar (exact, requires -denseLattice with LINEAR_CRF, WORD_SEMI_CRF, or WORD_WEAK_SEMI_CRF,\n"
+				+ "\tand is the same as exact otherwise, with a warning). Default to exact\n"
+				+ "-beamSize <n>\n"
+				+ "\tThe beam size for -decodeMode beam. Default to 8\n"
+				+ "-benchmarkDecoding\n"
+				+ "\tAfter decoding the test data, decode it again with each decoding mode and several beam sizes,\n"
+				+ "\tand print the time, F1 score, and number of predictions same as the exact decoding\n"
+				+ "-checkDenseLattice\n"
+				+ "\tAfter decoding the test data, check that the dense lattice gives the same inside score, max score,\n"
+				+ "\tand prediction as the generic network for each test instance, and fail otherwise\n"
+				+ "-kBest <k>\n"
+				+ "\tAfter decoding the test data, also write the <k> best predictions of each instance to <resultPath>.kbest,\n"
+				+ "\tand print the number of instances whose gold output is among them. Default to 1 (disabled)\n"
+				+ "-logSpaceInference\n"
+				+ "\tAlways do the inside-outside computation in log space. By default, networks layered by position\n"
+				+ "\tare computed in probability space with per-position scaling, which is faster\n"
+				+ "-expMode\n"
+				+ "\tThe exponential function used in the inside-outside computation: exact, table, or polynomial.\n"
+				+ "\tThe approximations are faster but less precise. Default to exact\n"
+				+ "-compactModel <path>\n"
+				+ "\tAfter training or reading the model, remove the features whose absolute weight is at most <compactEpsilon>,\n"
+				+ "\tand write the smaller model to <path>, which can only be used for decoding. The test data, if any,\n"
+				+ "\tis decoded with the compacted model\n"
+				+ "-compactEpsilon <value>\n"
+				+ "\tThe largest absolute weight of the features removed by -compactModel. Default to 0, which removes\n"
+				+ "\tonly the features with zero weight, so the predictions do not change\n"
+				+ "-binaryModel <path>\n"
+				+ "\tAfter training, reading, or compacting the model, also write it to <path> in the binary model format,\n"
+				+ "\twhich is mapped into memory instead of being deserialized, so it is much faster to load.\n"
+				+ "\t-modelPath accepts models in either format. Use com.statnlp.hybridnetworks.BinaryModelFile\n"
+				+ "\tto convert existing models between the two formats\n"
 				+ "-fixModel\n"
 				+ "\tA flag to tell the code to fix models created by older version of this software\n"
 				+ "\tNote that this was only used once, but is kept for historical reasons."
@@ -238,6 +238,16 @@ public class SMSNPEvaluator {
 		printDetailedScore(scores, outstream, System.out);
 	}
 	
+	/**
+	 * Returns the overall F1 score of the predictions
+	 * @param predictions
+	 * @param wordBased
+	 * @return
+	 */
+	public static double getF1(Instance[] predictions, boolean wordBased){
+		return sum(getScore(predictions, wordBased)).calculateF1();
+	}
+	
 	private static Statistics sum(Statistics[] scores){
 		Statistics result = new Statistics();
 		for(Statistics score: scores){
@@ -0,0 +1,600 @@
+package com.statnlp.experiment.smsnp;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.statnlp.commons.types.Instance;
+import com.statnlp.hybridnetworks.DenseLattice;
+import com.statnlp.hybridnetworks.FeatureArena;
+import com.statnlp.hybridnetworks.FeatureArray;
+import com.statnlp.hybridnetworks.FeatureManager;
+import com.statnlp.hybridnetworks.LocalNetworkParam;
+import com.statnlp.hybridnetworks.NetworkCompiler;
+import com.statnlp.hybridnetworks.NetworkConfig;
+import com.statnlp.hybridnetworks.NetworkConfig.ModelType;
+
+/**
+ * The base class of the unlabeled networks which do the inference with {@link DenseLattice} on the scores
+ * of each segment (start, length, label) and the label transition scores, instead of going through each
+ * hyperedge of the generic network.<br>
+ * The segments are represented in the network by the node at the end of each segment, and optionally also
+ * by the node at the beginning of each segment (see {@link #hasBeginNodes()}).
+ * The linear-chain CRF is the case where the maximum segment length is 1.<br>
+ * The segment and transition features are extracted from the feature manager and cached in this network,
+ * so this should be used with network caching enabled.<br>
+ * The generic network is still used for feature extraction (touch), when the features cannot be decomposed
+ * (see {@link #isDecomposable()}), and when the cost is required (softmax-margin and structured SVM training).
+ */
+public abstract class SMSNPLatticeNetwork extends SMSNPNetwork {
+
+	private static final long serialVersionUID = -2709535232404941378L;
+
+	/** The engine for each thread */
+	private static DenseLattice[] latticeSharedArray = new DenseLattice[NetworkConfig._numThreads];
+
+	/** The number of tokens */
+	protected transient int _size;
+	/** The number of labels, excluding the root */
+	protected transient int _numLabels;
+	/** The maximum segment length */
+	protected transient int _maxLength;
+	/** The index of the leaf node */
+	protected transient int _leafIndex;
+	/** The index of the node at the end of the segments ending at each position with each label */
+	protected transient int[][] _endNodeIndex;
+	/** The index of the node at the beginning of the segments starting at each position with each label */
+	protected transient int[][] _beginNodeIndex;
+	/** The features of each segment, indexed by [start][length-1][label] */
+	protected transient FeatureArray[][][] _segmentFeatures;
+	/** The features shared by all segments starting at each position with each label, when there are begin nodes */
+	protected transient FeatureArray[][] _boundaryFeatures;
+	/**
+	 * The transition features, indexed by [prevLabel+1][label], where prevLabel -1 is the leaf
+	 * and label _numLabels is the root
+	 */
+	protected transient FeatureArray[][] _transitionFeatures;
+	/** The features of the root */
+	protected transient FeatureArray _rootFeatures;
+	/** The value of {@link LocalNetworkParam#getFeatureRenumberingCount()} when the features above were extracted */
+	private transient int _featureRenumberingCount;
+	/** Whether the last inside pass was done using the lattice */
+	private transient boolean _useLattice;
+	/** The log partition function, when the last inside pass was done using the lattice */
+	private transient double _latticeLogZ;
+
+	public SMSNPLatticeNetwork(int networkId, Instance inst, long[] nodes, int[][][] children, LocalNetworkParam param, int numNodes, NetworkCompiler compiler) {
+		super(networkId, inst, nodes, children, param, numNodes, compiler);
+		this._size = -1;
+	}
+
+	public SMSNPLatticeNetwork(int networkId, Instance inst, long[] nodes, int[] nodeOffsets, int[] edgeOffsets, int[] childIndices, LocalNetworkParam param, int numNodes, NetworkCompiler compiler) {
+		super(networkId, inst, nodes, nodeOffsets, edgeOffsets, childIndices, param, numNodes, compiler);
+		this._size = -1;
+	}
+
+	/**
+	 * Returns whether the features of each hyperedge can be decomposed into the segment, boundary,
+	 * transition, and root features
+	 * @return
+	 */
+	protected abstract boolean isDecomposable();
+
+	/**
+	 * Returns the number of labels, excluding the root
+	 * @return
+	 */
+	protected abstract int getNumLabels();
+
+	/**
+	 * Returns the maximum segment length of the network
+	 * @return
+	 */
+	protected abstract int getMaxSegmentLength();
+
+	/**
+	 * Returns whether each segment is also represented by the node at its beginning, whose hyperedge
+	 * from the end of the previous segment has the boundary and transition features.<br>
+	 * Otherwise the hyperedge of the node at the end of each segment has all the features.
+	 * @return
+	 */
+	protected boolean hasBeginNodes(){
+		return false;
+	}
+
+	/**
+	 * Add the node with the specified index and node array to the node index of the lattice,
+	 * using {@link #setLeafNode(int)}, {@link #setEndNode(int, int, int)}, and {@link #setBeginNode(int, int, int)}.
+	 * Other nodes (e.g., the roots for shorter inputs) can be ignored.<br>
+	 * Returns false if the node does not fit in the lattice.
+	 * @param k
+	 * @param nodeArray
+	 * @return
+	 */
+	protected abstract boolean indexNode(int k, int[] nodeArray);
+
+	/**
+	 * Extract the features of the segment, excluding the boundary and transition features
+	 * @param start
+	 * @param length
+	 * @param label
+	 * @return
+	 */
+	protected abstract FeatureArray extractSegment(int start, int length, int label);
+
+	/**
+	 * Extract the features shared by all segments starting at the position with the label,
+	 * excluding the transition feature. Only used when there are begin nodes.
+	 * @param start
+	 * @param label
+	 * @return
+	 */
+	protected FeatureArray extractBoundary(int start, int label){
+		return FeatureArray.EMPTY;
+	}
+
+	/**
+	 * Extract the transition features from prevLabel to label, where prevLabel -1 is the leaf
+	 * and label {@link #getNumLabels()} is the root
+	 * @param prevLabel
+	 * @param label
+	 * @return
+	 */
+	protected abstract FeatureArray extractTransition(int prevLabel, int label);
+
+	/**
+	 * Extract the features of the root, excluding the transition features
+	 * @return
+	 */
+	protected abstract FeatureArray extractRoot();
+
+	protected boolean setLeafNode(int k){
+		this._leafIndex = k;
+		return true;
+	}
+
+	protected boolean setEndNode(int k, int pos, int label){
+		if(pos < 0 || pos >= this._size || label < 0 || label >= this._numLabels){
+			return false;
+		}
+		this._endNodeIndex[pos][label] = k;
+		return true;
+	}
+
+	protected boolean setBeginNode(int k, int pos, int label){
+		if(this._beginNodeIndex == null || pos < 0 || pos >= this._size || label < 0 || label >= this._numLabels){
+			return false;
+		}
+		this._beginNodeIndex[pos][label] = k;
+		return true;
+	}
+
+	private DenseLattice getLattice(){
+		if(latticeSharedArray[this._threadId] == null){
+			latticeSharedArray[this._threadId] = new DenseLattice();
+		}
+		return latticeSharedArray[this._threadId];
+	}
+
+	/**
+	 * Map each segment end (and begin) to its node index, and returns whether all nodes are found.
+	 * @return
+	 */
+	private boolean buildNodeIndex(){
+		if(this._size >= 0){
+			return this._endNodeIndex != null;
+		}
+		this._size = ((SMSNPInstance)this.getInstance()).getInputTokenized().length;
+		this._numLabels = this.getNumLabels();
+		this._maxLength = Math.max(1, Math.min(this.getMaxSegmentLength(), this._size));
+		this._endNodeIndex = new int[this._size][this._numLabels];
+		this._beginNodeIndex = this.hasBeginNodes() ? new int[this._size][this._numLabels] : null;
+		for(int[] nodeIndex: this._endNodeIndex){
+			Arrays.fill(nodeIndex, -1);
+		}
+		if(this._beginNodeIndex != null){
+			for(int[] nodeIndex: this._beginNodeIndex){
+				Arrays.fill(nodeIndex, -1);
+			}
+		}
+		this._leafIndex = -1;
+		boolean isComplete = true;
+		for(int k=0; k<this.countNodes() && isComplete; k++){
+			isComplete = this.indexNode(k, this.getNodeArray(k));
+		}
+		isComplete = isComplete && this._leafIndex >= 0 && isFilled(this._endNodeIndex)
+				&& (this._beginNodeIndex == null || isFilled(this._beginNodeIndex));
+		if(!isComplete){
+			this._endNodeIndex = null;
+			this._beginNodeIndex = null;
+		}
+		return this._endNodeIndex != null;
+	}
+
+	private static boolean isFilled(int[][] nodeIndex){
+		for(int[] indices: nodeIndex){
+			for(int k: indices){
+				if(k < 0){
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean canUseLattice(){
+		return this.isDecomposable() && this.buildNodeIndex() && this._size > 0;
+	}
+
+	/**
+	 * Returns whether the inference in this network is done using the lattice, except when the cost is required
+	 * @return
+	 */
+	public boolean isLatticeEnabled(){
+		return this.canUseLattice() && this.canCacheFeatures();
+	}
+
+	private FeatureArray toLocal(FeatureArray fa){
+		if(!this._param.isGlobalMode()){
+			fa = fa.toLocal(this._param);
+		}
+		return this.intern(fa);
+	}
+
+	/**
+	 * Returns the instance equal to the specified feature array shared by all networks, since the transition
+	 * features, and the segment features of the same words, are the same in many networks
+	 * @param fa
+	 * @return
+	 */
+	private FeatureArray intern(FeatureArray fa){
+		return this._param.getFeatureManager().getFeatureArrayCache().toFeatureArray(fa);
+	}
+
+	/**
+	 * Extract the segment, boundary, transition, and root features, if they are not cached yet.<br>
+	 * The cached features are renumbered when the features were renumbered or removed since they were extracted
+	 * (see {@link FeatureManager#finishParallelTouch()} and {@link FeatureManager#pruneFeatures()}),
+	 * like the features in the {@link FeatureArena} of the param.<br>
+	 * This should only be called when {@link #canCacheFeatures()} is true.
+	 */
+	protected void extractFeatures(){
+		if(this._segmentFeatures != null){
+			if(this._featureRenumberingCount != this._param.getFeatureRenumberingCount()){
+				this.mapRenumberedFeatures();
+			}
+			return;
+		}
+		int size = this._size;
+		int numLabels = this._numLabels;
+		FeatureArray[][][] segmentFeatures = new FeatureArray[size][][];
+		for(int start=0; start<size; start++){
+			segmentFeatures[start] = new FeatureArray[Math.min(this._maxLength, size-start)][numLabels];
+			for(int length=1; length<=segmentFeatures[start].length; length++){
+				for(int label=0; label<numLabels; label++){
+					segmentFeatures[start][length-1][label] = this.toLocal(this.extractSegment(start, length, label));
+				}
+			}
+		}
+		FeatureArray[][] boundaryFeatures = null;
+		if(this._beginNodeIndex != null){
+			boundaryFeatures = new FeatureArray[size][numLabels];
+			for(int start=0; start<size; start++){
+				for(int label=0; label<numLabels; label++){
+					boundaryFeatures[start][label] = this.toLocal(this.extractBoundary(start, label));
+				}
+			}
+		}
+		FeatureArray[][] transitionFeatures = new FeatureArray[numLabels+1][numLabels+1];
+		for(int prevLabel=-1; prevLabel<numLabels; prevLabel++){
+			// The leaf is not connected to the root
+			int maxLabel = prevLabel == -1 ? numLabels-1 : numLabels;
+			for(int label=0; label<=maxLabel; label++){
+				transitionFeatures[prevLabel+1][label] = this.toLocal(this.extractTransition(prevLabel, label));
+			}
+		}
+		FeatureArray rootFeatures = this.toLocal(this.extractRoot());
+		this._segmentFeatures = segmentFeatures;
+		this._boundaryFeatures = boundaryFeatures;
+		this._transitionFeatures = transitionFeatures;
+		this._rootFeatures = rootFeatures;
+		this._featureRenumberingCount = this._param.getFeatureRenumberingCount();
+	}
+
+	private void mapRenumberedFeatures(){
+		for(FeatureArray[][] features: this._segmentFeatures){
+			for(FeatureArray[] segment: features){
+				this.mapRenumberedFeatures(segment);
+			}
+		}
+		if(this._boundaryFeatures != null){
+			for(FeatureArray[] features: this._boundaryFeatures){
+				this.mapRenumberedFeatures(features);
+			}
+		}
+		for(FeatureArray[] features: this._transitionFeatures){
+			this.mapRenumberedFeatures(features);
+		}
+		this._rootFeatures = this.intern(this._param.mapRenumberedFeatures(this._rootFeatures, this._featureRenumberingCount));
+		this._featureRenumberingCount = this._param.getFeatureRenumberingCount();
+	}
+
+	private void mapRenumberedFeatures(FeatureArray[] features){
+		for(int i=0; i<features.length; i++){
+			if(features[i] != null){
+				features[i] = this.intern(this._param.mapRenumberedFeatures(features[i], this._featureRenumberingCount));
+			}
+		}
+	}
+
+	/**
+	 * Returns the score of the segment in the lattice, which includes the boundary features, and the transition
+	 * features from the leaf for the segments at the start
+	 * @param start
+	 * @param length
+	 * @param label
+	 * @return
+	 */
+	private double getSegmentScore(int start, int length, int label){
+		double score = this._segmentFeatures[start][length-1][label].getScore(this._param);
+		if(this._boundaryFeatures != null){
+			score += this._boundaryFeatures[start][label].getScore(this._param);
+		}
+		if(start == 0){
+			score += this._transitionFeatures[0][label].getScore(this._param);
+		}
+		return score;
+	}
+
+	/**
+	 * Put the current scores of the features into the lattice
+	 * @return
+	 */
+	private DenseLattice fillLattice(){
+		this.extractFeatures();
+		DenseLattice lattice = this.getLattice();
+		lattice.reset(this._size, this._numLabels, this._maxLength);
+		for(int start=0; start<this._size; start++){
+			for(int length=1; length<=this._segmentFeatures[start].length; length++){
+				for(int label=0; label<this._numLabels; label++){
+					lattice.setSegmentScore(start, length, label, this.getSegmentScore(start, length, label));
+				}
+			}
+		}
+		double rootScore = this._rootFeatures.getScore(this._param);
+		for(int prevLabel=0; prevLabel<this._numLabels; prevLabel++){
+			for(int label=0; label<this._numLabels; label++){
+				lattice.setTransitionScore(prevLabel, label, this._transitionFeatures[prevLabel+1][label].getScore(this._param));
+			}
+			lattice.setEndScore(prevLabel, rootScore + this._transitionFeatures[prevLabel+1][this._numLabels].getScore(this._param));
+		}
+		return lattice;
+	}
+
+	/**
+	 * Gather the features of the generic network, and also extract the features for the lattice,
+	 * since the local feature indices cannot be created after touching.
+	 */
+	@Override
+	public synchronized void touch(){
+		super.touch();
+		if(this.canUseLattice() && this._param.shouldCache()){
+			this.extractFeatures();
+		}
+	}
+
+	@Override
+	protected void inside(){
+		this._useLattice = NetworkConfig.MODEL_TYPE == ModelType.CRF && this.isLatticeEnabled();
+		if(!this._useLattice){
+			super.inside();
+			return;
+		}
+		this._latticeLogZ = this.fillLattice().forwardBackward();
+		if(this._latticeLogZ == Double.NEGATIVE_INFINITY){
+			throw new RuntimeException("Error: network (ID="+_networkId+") has zero inside score");
+		}
+	}
+
+	@Override
+	public double getInside(){
+		if(this._useLattice){
+			return this._latticeLogZ;
+		}
+		return super.getInside();
+	}
+
+	@Override
+	protected void outside(){
+		if(!this._useLattice){
+			super.outside();
+		}
+		// Otherwise the backward pass is already done together with the forward pass
+	}
+
+	@Override
+	protected void updateGradient(){
+		if(!this._useLattice){
+			super.updateGradient();
+			return;
+		}
+		DenseLattice lattice = this.getLattice();
+		double weight = this._weight;
+		int numLabels = this._numLabels;
+		double[][] boundaryCounts = this._boundaryFeatures == null ? null : new double[this._size][numLabels];
+		double[] startCounts = new double[numLabels];
+		for(int start=0; start<this._size; start++){
+			for(int length=1; length<=this._segmentFeatures[start].length; length++){
+				for(int label=0; label<numLabels; label++){
+					double count = lattice.getSegmentMarginal(start, length, label);
+					this._segmentFeatures[start][length-1][label].update(this._param, count*weight);
+					if(boundaryCounts != null){
+						boundaryCounts[start][label] += count;
+					}
+					if(start == 0){
+						startCounts[label] += count;
+					}
+				}
+			}
+		}
+		if(boundaryCounts != null){
+			for(int start=0; start<this._size; start++){
+				for(int label=0; label<numLabels; label++){
+					this._boundaryFeatures[start][label].update(this._param, boundaryCounts[start][label]*weight);
+				}
+			}
+		}
+		for(int label=0; label<numLabels; label++){
+			this._transitionFeatures[0][label].update(this._param, startCounts[label]*weight);
+		}
+		for(int prevLabel=0; prevLabel<numLabels; prevLabel++){
+			for(int label=0; label<numLabels; label++){
+				double count = 0.0;
+				for(int start=1; start<this._size; start++){
+					count += lattice.getTransitionMarginal(start, prevLabel, label);
+				}
+				this._transitionFeatures[prevLabel+1][label].update(this._param, count*weight);
+			}
+		}
+		double rootCount = 0.0;
+		for(int prevLabel=0; prevLabel<numLabels; prevLabel++){
+			double count = lattice.getEndMarginal(prevLabel);
+			this._transitionFeatures[prevLabel+1][numLabels].update(this._param, count*weight);
+			rootCount += count;
+		}
+		this._rootFeatures.update(this._param, rootCount*weight);
+	}
+
+	/**
+	 * The lattice does not support removing hyperedges, so no pruning is done when the lattice is used
+	 */
+	@Override
+	public int prune(double threshold){
+		if(this._useLattice){
+			return 0;
+		}
+		return super.prune(threshold);
+	}
+
+	/**
+	 * Calculate the best path using the Viterbi algorithm in the lattice, when no cost is involved.<br>
+	 * Only the max score of the root and the max paths along the best path are stored.
+	 */
+	@Override
+	public void max(){
+		boolean hasCost = this.getInstance().getInstanceId() < 0;
+		if(hasCost || !this.isLatticeEnabled()){
+			super.max();
+			return;
+		}
+		DenseLattice lattice = this.fillLattice();
+		List<int[]> segments = lattice.viterbi();
+		this._max = this.getMaxSharedArray();
+		this._max_paths = this.getMaxPathSharedArray();
+		this._maxEdges = this.getMaxEdgesSharedArray();
+		int rootIdx = this.countNodes()-1;
+		this._max[rootIdx] = lattice.getMaxScore();
+		int prev_k = this._leafIndex;
+		this._maxEdges[prev_k] = -1;
+		for(int[] segment: segments){
+			int start = segment[0];
+			int label = segment[2];
+			if(this._beginNodeIndex != null){
+				int begin_k = this._beginNodeIndex[start][label];
+				this._max_paths[begin_k] = new int[]{prev_k};
+				this._maxEdges[begin_k] = -1;
+				prev_k = begin_k;
+			}
+			int node_k = this._endNodeIndex[start+segment[1]-1][label];
+			this._max_paths[node_k] = new int[]{prev_k};
+			this._maxEdges[node_k] = -1;
+			prev_k = node_k;
+		}
+		this._max_paths[rootIdx] = new int[]{prev_k};
+		this._maxEdges[rootIdx] = -1;
+	}
+
+	/**
+	 * The heuristic for A* decoding on the generic network, computed from the segment, transition, and root scores
+	 * without going through the hyperedges.<br>
+	 * The bound for the end node of a segment is the best transition from its label, plus the best score from the
+	 * next position onwards, where each later segment is bounded in the same way, and the last segment ends with
+	 * its root score. The bound for the begin node of a segment is the best of its segment score plus the bound
+	 * of its end node over the possible lengths.<br>
+	 * This is consistent since each term is at least its counterpart in any path.
+	 */
+	@Override
+	protected double[] getMaxHeuristic(){
+		if(!this.isLatticeEnabled()){
+			return null;
+		}
+		this.extractFeatures();
+		int size = this._size;
+		int numLabels = this._numLabels;
+		double rootScore = this._rootFeatures.getScore(this._param);
+		double[] maxTransitionFrom = new double[numLabels];
+		for(int prevLabel=0; prevLabel<numLabels; prevLabel++){
+			maxTransitionFrom[prevLabel] = Double.NEGATIVE_INFINITY;
+			for(int label=0; label<numLabels; label++){
+				maxTransitionFrom[prevLabel] = Math.max(maxTransitionFrom[prevLabel], this._transitionFeatures[prevLabel+1][label].getScore(this._param));
+			}
+		}
+		// The bounds from the end node and from the begin node of the segments, and the bound from each position,
+		// which excludes the transition into the segment starting at that position
+		double[][] endBound = new double[size][numLabels];
+		double[][] beginBound = new double[size][numLabels];
+		double[] positionBound = new double[size+1];
+		for(int start=size-1; start>=0; start--){
+			for(int label=0; label<numLabels; label++){
+				if(start == size-1){
+					endBound[start][label] = rootScore + this._transitionFeatures[label+1][numLabels].getScore(this._param);
+				} else {
+					endBound[start][label] = maxTransitionFrom[label] + positionBound[start+1];
+				}
+			}
+			positionBound[start] = Double.NEGATIVE_INFINITY;
+			for(int label=0; label<numLabels; label++){
+				beginBound[start][label] = Double.NEGATIVE_INFINITY;
+				for(int length=1; length<=this._segmentFeatures[start].length; length++){
+					double bound = this._segmentFeatures[start][length-1][label].getScore(this._param) + endBound[start+length-1][label];
+					beginBound[start][label] = Math.max(beginBound[start][label], bound);
+				}
+				double bound = beginBound[start][label];
+				if(this._boundaryFeatures != null){
+					bound += this._boundaryFeatures[start][label].getScore(this._param);
+				}
+				positionBound[start] = Math.max(positionBound[start], bound);
+			}
+		}
+
+		double[] heuristic = new double[this.countNodes()];
+		Arrays.fill(heuristic, Double.POSITIVE_INFINITY);
+		heuristic[this.countNodes()-1] = 0.0;
+		double leafBound = Double.NEGATIVE_INFINITY;
+		for(int label=0; label<numLabels; label++){
+			double bound = this._transitionFeatures[0][label].getScore(this._param) + beginBound[0][label];
+			if(this._boundaryFeatures != null){
+				bound += this._boundaryFeatures[0][label].getScore(this._param);
+			}
+			leafBound = Math.max(leafBound, bound);
+		}
+		heuristic[this._leafIndex] = leafBound;
+		for(int pos=0; pos<size; pos++){
+			for(int label=0; label<numLabels; label++){
+				heuristic[this._endNodeIndex[pos][label]] = endBound[pos][label];
+				if(this._beginNodeIndex != null){
+					heuristic[this._beginNodeIndex[pos][label]] = beginBound[pos][label];
+				}
+			}
+		}
+		return heuristic;
+	}
+
+	/**
+	 * The lattice keeps its own feature cache, which is only valid once the local features are fixed
+	 * @return
+	 */
+	private boolean canCacheFeatures(){
+		return this._segmentFeatures != null || this._param.shouldCache();
+	}
+
+}
@@ -28,6 +28,11 @@ public class SMSNPNetwork extends TableLookupNetwork {
 		super(networkId, inst, nodes, children, param, compiler);
 		this.numNodes = numNodes;
 	}
+
+	public SMSNPNetwork(int networkId, Instance inst, long[] nodes, int[] nodeOffsets, int[] edgeOffsets, int[] childIndices, LocalNetworkParam param, int numNodes, NetworkCompiler compiler) {
+		super(networkId, inst, nodes, nodeOffsets, edgeOffsets, childIndices, param, compiler);
+		this.numNodes = numNodes;
+	}
 	
 	public int countNodes(){
 		if(numNodes < 0){
@@ -36,6 +41,18 @@ public class SMSNPNetwork extends TableLookupNetwork {
 		return numNodes;
 	}
 	
+	/**
+	 * In all the network compilers for this problem, the first element of the node array is the position
+	 */
+	@Override
+	protected int[] getNodePositions(){
+		int[] positions = new int[this.countNodes()];
+		for(int k=0; k<positions.length; k++){
+			positions[k] = this.getNodeArray(k)[0];
+		}
+		return positions;
+	}
+	
 	public void remove(int k){}
 	
 	public boolean isRemoved(int k){
@@ -0,0 +1,27 @@
+package com.statnlp.experiment.smsnp;
+
+import com.statnlp.hybridnetworks.GlobalNetworkParam;
+
+/**
+ * The input IDs (see {@link GlobalNetworkParam#toInputId(String)}) of the normalized words, word shapes,
+ * and brown clusters of the tokens of one instance, computed once per instance by the feature managers.<br>
+ * Each array also has the ID of the empty word before the first token and after the last token,
+ * so the ID of the token at position i is at index i+1.
+ */
+public class TokenInputIds {
+
+	public final SMSNPInstance instance;
+	public final int[] words;
+	/** The IDs of the word shapes, or null if not used */
+	public final int[] shapes;
+	/** The IDs of the brown clusters, or null if not used */
+	public final int[] clusters;
+
+	public TokenInputIds(SMSNPInstance instance, int[] words, int[] shapes, int[] clusters){
+		this.instance = instance;
+		this.words = words;
+		this.shapes = shapes;
+		this.clusters = clusters;
+	}
+
+}
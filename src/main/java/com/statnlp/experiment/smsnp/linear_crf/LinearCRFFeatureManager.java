@@ -223,9 +223,49 @@ public class LinearCRFFeatureManager extends FeatureManager{
 			return new FeatureArray(new int[]{cheatFeature});
 		}
 
+		FeatureArray features = this.extractEmission(net, pos, tag_id, nodeType == NodeType.ROOT.ordinal());
+		
+		// Label transition feature
+		if(FeatureType.TRANSITION.enabled()){
+			if(child_tag_id == -1){
+				
+			} else {
+				int transitionFeature = this.transitionFeature(net, child_tag_id, tag_id);
+				features = new FeatureArray(new int[]{transitionFeature}, features);
+			}
+		}
+		
+		return features;
+	}
+	
+	/**
+	 * Returns whether the features of each hyperedge can be decomposed into the emission features of the
+	 * parent, which depend only on its position and tag, and the transition feature between the tags,
+	 * so that {@link LinearCRFLatticeNetwork} can be used.
+	 * @return
+	 */
+	public boolean isDecomposable(){
+		return !FeatureType.CHEAT.enabled();
+	}
+	
+	/**
+	 * Extract the features of the specified tag at the specified position, excluding the transition feature.<br>
+	 * The root is represented as a tag after the last position, with tag_id equal to the number of labels.
+	 * @param network
+	 * @param pos
+	 * @param tag_id
+	 * @param isRoot
+	 * @return
+	 */
+	public FeatureArray extractEmission(Network network, int pos, int tag_id, boolean isRoot){
+		SMSNPInstance instance = (SMSNPInstance)network.getInstance();
+		String[] words = instance.getInputTokenized();
+		int size = words.length;
+		GlobalNetworkParam param_g = this._param_g;
+		
 		FeatureArray features = new FeatureArray(new int[0]);
 		// Word window features
-		if(FeatureType.WORD.enabled() && nodeType != NodeType.ROOT.ordinal()){
+		if(FeatureType.WORD.enabled() && !isRoot){
 			int wordWindowSize = wordHalfWindowSize*2+1;
 			if(wordWindowSize < 0){
 				wordWindowSize = 0;
@@ -240,9 +280,9 @@ public class LinearCRFFeatureManager extends FeatureManager{
 					word = words[idx];
 				}
 				if(wordOnlyLeftWindow && idx > pos) continue;
-				wordWindowFeatures[i] = param_g.toFeature(net, FeatureType.WORD+":"+relIdx, tag_id+"", word);
+				wordWindowFeatures[i] = param_g.toFeature(network, FeatureType.WORD+":"+relIdx, tag_id+"", word);
 				if(FeatureType.WORD_SHAPE.enabled()){
-					wordShapeWindowFeatures[i] = param_g.toFeature(net, FeatureType.WORD_SHAPE+":"+relIdx, tag_id+"", wordShape(word));
+					wordShapeWindowFeatures[i] = param_g.toFeature(network, FeatureType.WORD_SHAPE+":"+relIdx, tag_id+"", wordShape(word));
 				}
 			}
 			FeatureArray wordFeatures = new FeatureArray(wordWindowFeatures, features);
@@ -253,7 +293,7 @@ public class LinearCRFFeatureManager extends FeatureManager{
 		}
 		
 		if(FeatureType.BROWN_CLUSTER.enabled()){
-			int brownClusterFeature = param_g.toFeature(net, FeatureType.BROWN_CLUSTER.name(), tag_id+"", getBrownCluster(words[pos]));
+			int brownClusterFeature = param_g.toFeature(network, FeatureType.BROWN_CLUSTER.name(), tag_id+"", getBrownCluster(words[pos]));
 			features = new FeatureArray(new int[]{brownClusterFeature}, features);
 		}
 		
@@ -273,7 +313,7 @@ public class LinearCRFFeatureManager extends FeatureManager{
 						bigram += " ";
 					}
 				}
-				bigramFeatures[i] = param_g.toFeature(net, FeatureType.WORD_BIGRAM+":"+i, tag_id+"", bigram);
+				bigramFeatures[i] = param_g.toFeature(network, FeatureType.WORD_BIGRAM+":"+i, tag_id+"", bigram);
 			}
 			features = new FeatureArray(bigramFeatures, features);
 		}
@@ -283,7 +323,7 @@ public class LinearCRFFeatureManager extends FeatureManager{
 			int[] prefixFeatures = new int[3];
 			for(int i=0; i<prefixLength; i++){
 				String prefix = curWord.substring(0, Math.min(curWord.length(), i+1));
-				prefixFeatures[i] = param_g.toFeature(net, FeatureType.PREFIX+"", tag_id+"", prefix);
+				prefixFeatures[i] = param_g.toFeature(network, FeatureType.PREFIX+"", tag_id+"", prefix);
 			}
 			features = new FeatureArray(prefixFeatures, features);
 		}
@@ -293,24 +333,32 @@ public class LinearCRFFeatureManager extends FeatureManager{
 			int[] suffixFeatures = new int[3];
 			for(int i=0; i<suffixLength; i++){
 				String suffix = curWord.substring(Math.max(0, curWord.length()-i-1), curWord.length());
-				suffixFeatures[i] = param_g.toFeature(net, FeatureType.SUFFIX+"", tag_id+"", suffix);
+				suffixFeatures[i] = param_g.toFeature(network, FeatureType.SUFFIX+"", tag_id+"", suffix);
 			}
 			features = new FeatureArray(suffixFeatures, features);
 		}
 		
-		// Label transition feature
-		if(FeatureType.TRANSITION.enabled()){
-			if(child_tag_id == -1){
-				
-			} else {
-				int transitionFeature = param_g.toFeature(net, FeatureType.TRANSITION.name(), child_tag_id+"-"+tag_id, "");
-				features = new FeatureArray(new int[]{transitionFeature}, features);
-			}
-		}
-		
 		return features;
 	}
 	
+	/**
+	 * Extract the transition feature from the tag child_tag_id to the tag tag_id.
+	 * @param network
+	 * @param child_tag_id
+	 * @param tag_id
+	 * @return
+	 */
+	public FeatureArray extractTransition(Network network, int child_tag_id, int tag_id){
+		if(!FeatureType.TRANSITION.enabled()){
+			return FeatureArray.EMPTY;
+		}
+		return new FeatureArray(new int[]{this.transitionFeature(network, child_tag_id, tag_id)});
+	}
+	
+	private int transitionFeature(Network network, int child_tag_id, int tag_id){
+		return this._param_g.toFeature(network, FeatureType.TRANSITION.name(), child_tag_id+"-"+tag_id, "");
+	}
+	
 	private static String wordShape(String word){
 		if(word.length() == 0){
 			return word;
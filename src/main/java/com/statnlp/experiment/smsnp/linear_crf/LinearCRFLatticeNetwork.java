@@ -0,0 +1,78 @@
+package com.statnlp.experiment.smsnp.linear_crf;
+
+import com.statnlp.commons.types.Instance;
+import com.statnlp.experiment.smsnp.SMSNPLatticeNetwork;
+import com.statnlp.experiment.smsnp.linear_crf.LinearCRFNetworkCompiler.NodeType;
+import com.statnlp.hybridnetworks.DenseLattice;
+import com.statnlp.hybridnetworks.FeatureArray;
+import com.statnlp.hybridnetworks.LocalNetworkParam;
+
+/**
+ * The unlabeled network of the linear-chain CRF, which does the inference with {@link DenseLattice}
+ * on the emission scores of each (position, tag) and the tag transition scores, instead of going
+ * through each hyperedge of the generic network.<br>
+ * The emission features are the features of the segments of length 1 in {@link SMSNPLatticeNetwork}.
+ */
+public class LinearCRFLatticeNetwork extends SMSNPLatticeNetwork {
+
+	private static final long serialVersionUID = 3427012599046384582L;
+
+	public LinearCRFLatticeNetwork(int networkId, Instance inst, long[] nodes, int[][][] children, LocalNetworkParam param, int numNodes, LinearCRFNetworkCompiler compiler) {
+		super(networkId, inst, nodes, children, param, numNodes, compiler);
+	}
+
+	public LinearCRFLatticeNetwork(int networkId, Instance inst, long[] nodes, int[] nodeOffsets, int[] edgeOffsets, int[] childIndices, LocalNetworkParam param, int numNodes, LinearCRFNetworkCompiler compiler) {
+		super(networkId, inst, nodes, nodeOffsets, edgeOffsets, childIndices, param, numNodes, compiler);
+	}
+
+	private LinearCRFFeatureManager getFeatureManager(){
+		return (LinearCRFFeatureManager)this._param.getFeatureManager();
+	}
+
+	@Override
+	protected boolean isDecomposable(){
+		return this.getFeatureManager().isDecomposable();
+	}
+
+	@Override
+	protected int getNumLabels(){
+		return ((LinearCRFNetworkCompiler)this.getCompiler())._labels.length;
+	}
+
+	@Override
+	protected int getMaxSegmentLength(){
+		return 1;
+	}
+
+	@Override
+	protected boolean indexNode(int k, int[] nodeArray){
+		if(nodeArray[4] == NodeType.LEAF.ordinal()){
+			return this.setLeafNode(k);
+		} else if(nodeArray[4] == NodeType.NODE.ordinal()){
+			return this.setEndNode(k, nodeArray[0]-1, nodeArray[1]-1);
+		}
+		return true;
+	}
+
+	@Override
+	protected FeatureArray extractSegment(int start, int length, int label){
+		return this.getFeatureManager().extractEmission(this, start, label, false);
+	}
+
+	/**
+	 * There is no transition feature from the leaf
+	 */
+	@Override
+	protected FeatureArray extractTransition(int prevLabel, int label){
+		if(prevLabel == -1){
+			return FeatureArray.EMPTY;
+		}
+		return this.getFeatureManager().extractTransition(this, prevLabel, label);
+	}
+
+	@Override
+	protected FeatureArray extractRoot(){
+		return this.getFeatureManager().extractEmission(this, this._size-1, this._numLabels, true);
+	}
+
+}
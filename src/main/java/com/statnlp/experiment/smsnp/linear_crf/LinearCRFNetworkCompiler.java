@@ -31,6 +31,7 @@ import com.statnlp.experiment.smsnp.WordLabel;
 import com.statnlp.hybridnetworks.LocalNetworkParam;
 import com.statnlp.hybridnetworks.Network;
 import com.statnlp.hybridnetworks.NetworkCompiler;
+import com.statnlp.hybridnetworks.NetworkConfig;
 import com.statnlp.hybridnetworks.NetworkIDMapper;
 
 /**
@@ -51,6 +52,9 @@ public class LinearCRFNetworkCompiler extends NetworkCompiler{
 	
 	private transient long[] _allNodes;
 	private transient int[][][] _allChildren;
+	private transient int[] _allNodeOffsets;
+	private transient int[] _allEdgeOffsets;
+	private transient int[] _allChildIndices;
 	
 	private TokenizerMethod tokenizerMethod;
 	
@@ -120,6 +124,15 @@ public class LinearCRFNetworkCompiler extends NetworkCompiler{
 		int numNodes = pos+1; // Num nodes should equals to (instanceSize * (numLabels+1)) + 1
 //		System.out.println(String.format("Instance size: %d, Labels size: %d, numNodes: %d", size, _labels.size(), numNodes));
 		
+		if(NetworkConfig.USE_DENSE_LATTICE){
+			if(this._allChildren == null){
+				return new LinearCRFLatticeNetwork(networkId, inst, this._allNodes, this._allNodeOffsets, this._allEdgeOffsets, this._allChildIndices, param, numNodes, this);
+			}
+			return new LinearCRFLatticeNetwork(networkId, inst, this._allNodes, this._allChildren, param, numNodes, this);
+		}
+		if(this._allChildren == null){
+			return new SMSNPNetwork(networkId, inst, this._allNodes, this._allNodeOffsets, this._allEdgeOffsets, this._allChildIndices, param, numNodes, this);
+		}
 		return new SMSNPNetwork(networkId, inst, this._allNodes, this._allChildren, param, numNodes, this);
 		
 	}
@@ -158,6 +171,9 @@ public class LinearCRFNetworkCompiler extends NetworkCompiler{
 		
 		this._allNodes = network.getAllNodes();
 		this._allChildren = network.getAllChildren();
+		this._allNodeOffsets = network.getAllNodeOffsets();
+		this._allEdgeOffsets = network.getAllEdgeOffsets();
+		this._allChildIndices = network.getAllChildIndices();
 		
 	}
 	
@@ -34,6 +34,9 @@ public class CharSemiCRFNetworkCompiler extends NetworkCompiler {
 	public int maxSegmentLength = 20;
 	public transient long[] allNodes;
 	public transient int[][][] allChildren;
+	public transient int[] allNodeOffsets;
+	public transient int[] allEdgeOffsets;
+	public transient int[] allChildIndices;
 	
 	public enum NodeType {
 		LEAF,
@@ -107,6 +110,9 @@ public class CharSemiCRFNetworkCompiler extends NetworkCompiler {
 		long root = toNode_root(size-1);
 		int root_k = Arrays.binarySearch(allNodes, root);
 		int numNodes = root_k + 1;
+		if(allChildren == null){
+			return new SMSNPNetwork(networkId, instance, allNodes, allNodeOffsets, allEdgeOffsets, allChildIndices, param, numNodes, this);
+		}
 		return new SMSNPNetwork(networkId, instance, allNodes, allChildren, param, numNodes, this);
 	}
 	
@@ -145,6 +151,9 @@ public class CharSemiCRFNetworkCompiler extends NetworkCompiler {
 		network.finalizeNetwork();
 		allNodes = network.getAllNodes();
 		allChildren = network.getAllChildren();
+		allNodeOffsets = network.getAllNodeOffsets();
+		allEdgeOffsets = network.getAllEdgeOffsets();
+		allChildIndices = network.getAllChildIndices();
 	}
 	
 	private long toNode_leaf(){
@@ -15,6 +15,7 @@ import com.statnlp.experiment.smsnp.SMSNPInstance;
 import com.statnlp.experiment.smsnp.SMSNPNetwork;
 import com.statnlp.experiment.smsnp.SMSNPTokenizer.TokenizerMethod;
 import com.statnlp.experiment.smsnp.SMSNPUtil;
+import com.statnlp.experiment.smsnp.TokenInputIds;
 import com.statnlp.experiment.smsnp.semi_crf.WordSemiCRFNetworkCompiler.NodeType;
 import com.statnlp.hybridnetworks.FeatureArray;
 import com.statnlp.hybridnetworks.FeatureManager;
@@ -150,6 +151,10 @@ public class WordSemiCRFFeatureManager extends FeatureManager {
 	
 	public TokenizerMethod tokenizerMethod;
 	public Map<String, String> brownMap;
+	/** The template ordinal of each feature type, see {@link GlobalNetworkParam#toTemplateId(String)} */
+	private transient int[] templateIds;
+	/** The input IDs of the tokens of the last instance seen by each thread */
+	private transient ThreadLocal<TokenInputIds> tokenInputIds;
 	
 	public WordSemiCRFFeatureManager(GlobalNetworkParam param_g, String[] features){
 		this(param_g, TokenizerMethod.REGEX, null, features);
@@ -160,6 +165,7 @@ public class WordSemiCRFFeatureManager extends FeatureManager {
 		this.tokenizerMethod = tokenizerMethod;
 		this.brownMap = brownMap;
 		setupFeatures(FeatureType.class, features);
+		initInputIds();
 		int argIndex = 0;
 		while(argIndex < args.length){
 			String arg = args[argIndex];
@@ -213,48 +219,83 @@ public class WordSemiCRFFeatureManager extends FeatureManager {
 			return new FeatureArray(new int[]{cheatFeature});
 		}
 		
-		List<Integer> commonFeatures = new ArrayList<Integer>();
+		FeatureArray features = this.extractSegment(network, childPos, parentPos, parentLabelId, parentType == NodeType.ROOT);
+		return new FeatureArray(this.transitionFeatures(network, childLabelId, parentLabelId), features);
+	}
+	
+	/**
+	 * Returns whether the features of each hyperedge can be decomposed into the features of the segment,
+	 * which depend only on its boundaries and label, and the transition features between the labels,
+	 * so that {@link WordSemiCRFLatticeNetwork} can be used.
+	 * @return
+	 */
+	public boolean isDecomposable(){
+		return !FeatureType.CHEAT.enabled();
+	}
+	
+	/**
+	 * Extract the features of the segment after childPos until parentPos (inclusive) with the specified label,
+	 * excluding the transition features.<br>
+	 * The root is represented as an empty segment after the last position, with parentLabelId -1.
+	 * @param network
+	 * @param childPos
+	 * @param parentPos
+	 * @param parentLabelId
+	 * @param isRoot
+	 * @return
+	 */
+	public FeatureArray extractSegment(Network network, int childPos, int parentPos, int parentLabelId, boolean isRoot){
+		SMSNPInstance instance = (SMSNPInstance)network.getInstance();
+		String[] inputTokenized = instance.getInputTokenized();
+		int length = inputTokenized.length;
+		GlobalNetworkParam param_g = this._param_g;
+		
+		// The features at the start boundary and at the end boundary are separate factors,
+		// since each is shared by all hyperedges with the same boundary and label
+		List<Integer> prevWordFeatures = new ArrayList<Integer>();
+		List<Integer> nextWordFeatures = new ArrayList<Integer>();
 		
-		String[] wordsBefore = Arrays.copyOfRange(inputTokenized, 0, childPos+1);
 		String[] wordsInside = Arrays.copyOfRange(inputTokenized, childPos+1, Math.min(parentPos+1, length));
-		String[] wordsAfter = Arrays.copyOfRange(inputTokenized, Math.min(parentPos+1, length), length);
-		int numWordsBefore = wordsBefore.length;
 		int numWordsInside = wordsInside.length;
-		int numWordsAfter = wordsAfter.length;
 		String segment = StringUtils.join(wordsInside, " ");
 		
-		String prevWord = numWordsBefore > 0 ? wordsBefore[numWordsBefore-1] : "";
-		String nextWord = numWordsAfter > 0 ? wordsAfter[0] : "";
+		// The positions (in the input IDs) of the previous word, the next word, and the first and last words inside,
+		// where the empty word is at both ends
+		TokenInputIds inputIds = getTokenInputIds(instance);
+		int prevWordIdx = childPos+1;
+		int nextWordIdx = Math.min(parentPos+1, length)+1;
+		int firstWordIdx = numWordsInside > 0 ? childPos+2 : 0;
+		int lastWordIdx = numWordsInside > 0 ? nextWordIdx-1 : 0;
 		
 		if(FeatureType.PREV_WORD.enabled()){
-			int prevWordFeature = param_g.toFeature(network, FeatureType.PREV_WORD.name(), parentLabelId+"", normalizeWord(prevWord));
-			commonFeatures.add(prevWordFeature);
+			int prevWordFeature = param_g.toFeature(network, templateIds[FeatureType.PREV_WORD.ordinal()], parentLabelId, inputIds.words[prevWordIdx]);
+			prevWordFeatures.add(prevWordFeature);
 		}
 		if(FeatureType.PREV_WORD_SHAPE.enabled()){
-			int prevWordShapeFeature = param_g.toFeature(network, FeatureType.PREV_WORD_SHAPE.name(), parentLabelId+"", wordShape(prevWord));
-			commonFeatures.add(prevWordShapeFeature);
+			int prevWordShapeFeature = param_g.toFeature(network, templateIds[FeatureType.PREV_WORD_SHAPE.ordinal()], parentLabelId, inputIds.shapes[prevWordIdx]);
+			prevWordFeatures.add(prevWordShapeFeature);
 		}
 		if(FeatureType.PREV_WORD_CLUSTER.enabled()){
-			int prevWordClusterFeature = param_g.toFeature(network, FeatureType.PREV_WORD_CLUSTER.name(), parentLabelId+"", getBrownCluster(prevWord));
-			commonFeatures.add(prevWordClusterFeature);
+			int prevWordClusterFeature = param_g.toFeature(network, templateIds[FeatureType.PREV_WORD_CLUSTER.ordinal()], parentLabelId, inputIds.clusters[prevWordIdx]);
+			prevWordFeatures.add(prevWordClusterFeature);
 		}
 		if(FeatureType.NEXT_WORD.enabled()){
-			int nextWordFeature = param_g.toFeature(network, FeatureType.NEXT_WORD.name(), parentLabelId+"", normalizeWord(nextWord));
-			commonFeatures.add(nextWordFeature);
+			int nextWordFeature = param_g.toFeature(network, templateIds[FeatureType.NEXT_WORD.ordinal()], parentLabelId, inputIds.words[nextWordIdx]);
+			nextWordFeatures.add(nextWordFeature);
 		}
 		if(FeatureType.NEXT_WORD_SHAPE.enabled()){
-			int nextWordShapeFeature = param_g.toFeature(network, FeatureType.NEXT_WORD_SHAPE.name(), parentLabelId+"", wordShape(nextWord));
-			commonFeatures.add(nextWordShapeFeature);
+			int nextWordShapeFeature = param_g.toFeature(network, templateIds[FeatureType.NEXT_WORD_SHAPE.ordinal()], parentLabelId, inputIds.shapes[nextWordIdx]);
+			nextWordFeatures.add(nextWordShapeFeature);
 		}
 		if(FeatureType.NEXT_WORD_CLUSTER.enabled()){
-			int nextWordClusterFeature = param_g.toFeature(network, FeatureType.NEXT_WORD_CLUSTER.name(), parentLabelId+"", getBrownCluster(nextWord));
-			commonFeatures.add(nextWordClusterFeature);
+			int nextWordClusterFeature = param_g.toFeature(network, templateIds[FeatureType.NEXT_WORD_CLUSTER.ordinal()], parentLabelId, inputIds.clusters[nextWordIdx]);
+			nextWordFeatures.add(nextWordClusterFeature);
 		}
 
-		FeatureArray features = new FeatureArray(SMSNPUtil.listToArray(commonFeatures));
+		FeatureArray features = createFeatureArray(SMSNPUtil.listToArray(prevWordFeatures), SMSNPUtil.listToArray(nextWordFeatures));
 		
 		// Segment features
-		if(parentType != NodeType.ROOT){
+		if(!isRoot){
 			List<Integer> segmentFeatures = new ArrayList<Integer>();
 	
 			if(FeatureType.SEGMENT.enabled()){
@@ -284,19 +325,19 @@ public class WordSemiCRFFeatureManager extends FeatureManager {
 			}
 			
 			if(FeatureType.FIRST_WORD.enabled()){
-				segmentFeatures.add(param_g.toFeature(network, FeatureType.FIRST_WORD.name(), parentLabelId+"", numWordsInside > 0 ? normalizeWord(wordsInside[0]) : ""));
+				segmentFeatures.add(param_g.toFeature(network, templateIds[FeatureType.FIRST_WORD.ordinal()], parentLabelId, inputIds.words[firstWordIdx]));
 			}
 			
 			if(FeatureType.FIRST_WORD_CLUSTER.enabled()){
-				segmentFeatures.add(param_g.toFeature(network, FeatureType.FIRST_WORD_CLUSTER.name(), parentLabelId+"", getBrownCluster(numWordsInside > 0 ? wordsInside[0] : "")));
+				segmentFeatures.add(param_g.toFeature(network, templateIds[FeatureType.FIRST_WORD_CLUSTER.ordinal()], parentLabelId, inputIds.clusters[firstWordIdx]));
 			}
 			
 			if(FeatureType.LAST_WORD.enabled()){
-				segmentFeatures.add(param_g.toFeature(network, FeatureType.LAST_WORD.name(), parentLabelId+"", numWordsInside > 0 ? normalizeWord(wordsInside[numWordsInside-1]) : ""));
+				segmentFeatures.add(param_g.toFeature(network, templateIds[FeatureType.LAST_WORD.ordinal()], parentLabelId, inputIds.words[lastWordIdx]));
 			}
 			
 			if(FeatureType.LAST_WORD_CLUSTER.enabled()){
-				segmentFeatures.add(param_g.toFeature(network, FeatureType.LAST_WORD_CLUSTER.name(), parentLabelId+"", getBrownCluster(numWordsInside > 0 ? wordsInside[numWordsInside-1] : "")));
+				segmentFeatures.add(param_g.toFeature(network, templateIds[FeatureType.LAST_WORD_CLUSTER.ordinal()], parentLabelId, inputIds.clusters[lastWordIdx]));
 			}
 	
 			if(FeatureType.WORDS.enabled()){
@@ -323,16 +364,71 @@ public class WordSemiCRFFeatureManager extends FeatureManager {
 			features = new FeatureArray(SMSNPUtil.listToArray(segmentFeatures), features);
 		}
 		
-		// Transition features
+		return features;
+	}
+	
+	/**
+	 * Extract the transition features from the label childLabelId to the label parentLabelId,
+	 * where the leaf and the root have label -1.
+	 * @param network
+	 * @param childLabelId
+	 * @param parentLabelId
+	 * @return
+	 */
+	public FeatureArray extractTransition(Network network, int childLabelId, int parentLabelId){
+		return new FeatureArray(this.transitionFeatures(network, childLabelId, parentLabelId));
+	}
+	
+	private int[] transitionFeatures(Network network, int childLabelId, int parentLabelId){
 		List<Integer> transitionFeatures = new ArrayList<Integer>();
 		if(FeatureType.BIGRAM.enabled()){
-			int bigramFeature = param_g.toFeature(network, FeatureType.BIGRAM.name(), childLabelId+"-"+parentLabelId, "");
+			int bigramFeature = this._param_g.toFeature(network, FeatureType.BIGRAM.name(), childLabelId+"-"+parentLabelId, "");
 			transitionFeatures.add(bigramFeature);
 		}
-		features = new FeatureArray(SMSNPUtil.listToArray(transitionFeatures), features);
-
-		return features;
-		
+		return SMSNPUtil.listToArray(transitionFeatures);
+	}
+	
+	/**
+	 * Returns the input IDs of the tokens of the specified instance, which are computed
+	 * once per instance in each thread
+	 * @param instance
+	 * @return
+	 */
+	private TokenInputIds getTokenInputIds(SMSNPInstance instance){
+		TokenInputIds inputIds = tokenInputIds.get();
+		if(inputIds != null && inputIds.instance == instance){
+			return inputIds;
+		}
+		GlobalNetworkParam param_g = this._param_g;
+		String[] inputTokenized = instance.getInputTokenized();
+		int length = inputTokenized.length;
+		boolean useShapes = FeatureType.PREV_WORD_SHAPE.enabled() || FeatureType.NEXT_WORD_SHAPE.enabled();
+		boolean useClusters = FeatureType.PREV_WORD_CLUSTER.enabled() || FeatureType.NEXT_WORD_CLUSTER.enabled()
+				|| FeatureType.FIRST_WORD_CLUSTER.enabled() || FeatureType.LAST_WORD_CLUSTER.enabled();
+		int[] words = new int[length+2];
+		int[] shapes = useShapes ? new int[length+2] : null;
+		int[] clusters = useClusters ? new int[length+2] : null;
+		for(int i=-1; i<=length; i++){
+			String word = (i >= 0 && i < length) ? inputTokenized[i] : "";
+			words[i+1] = param_g.toInputId(normalizeWord(word));
+			if(useShapes){
+				shapes[i+1] = param_g.toInputId(wordShape(word));
+			}
+			if(useClusters){
+				clusters[i+1] = param_g.toInputId(getBrownCluster(word));
+			}
+		}
+		inputIds = new TokenInputIds(instance, words, shapes, clusters);
+		tokenInputIds.set(inputIds);
+		return inputIds;
+	}
+	
+	private void initInputIds(){
+		templateIds = new int[FeatureType.values().length];
+		for(FeatureType featureType: FeatureType.values()){
+			templateIds[featureType.ordinal()] = this._param_g.toTemplateId(featureType.name());
+		}
+		tokenInputIds = new ThreadLocal<TokenInputIds>();
 	}
 	
 	private static String normalizeWord(String word){
@@ -399,6 +495,7 @@ public class WordSemiCRFFeatureManager extends FeatureManager {
 		} catch (Exception e){
 			
 		}
+		initInputIds();
 	}
 
 }
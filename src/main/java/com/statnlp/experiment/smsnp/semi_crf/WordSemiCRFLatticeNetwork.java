@@ -0,0 +1,76 @@
+package com.statnlp.experiment.smsnp.semi_crf;
+
+import com.statnlp.commons.types.Instance;
+import com.statnlp.experiment.smsnp.SMSNPLatticeNetwork;
+import com.statnlp.experiment.smsnp.semi_crf.WordSemiCRFNetworkCompiler.NodeType;
+import com.statnlp.hybridnetworks.DenseLattice;
+import com.statnlp.hybridnetworks.FeatureArray;
+import com.statnlp.hybridnetworks.LocalNetworkParam;
+
+/**
+ * The unlabeled network of the word-based semi-CRF, which does the inference with {@link DenseLattice}
+ * on the scores of each segment and the label transition scores, instead of going through each
+ * hyperedge of the generic network.<br>
+ * Each segment is represented by the node at its last word, whose hyperedge from the node at the end
+ * of the previous segment has the segment features and the transition feature.
+ */
+public class WordSemiCRFLatticeNetwork extends SMSNPLatticeNetwork {
+
+	private static final long serialVersionUID = 6211496424437386416L;
+
+	public WordSemiCRFLatticeNetwork(int networkId, Instance inst, long[] nodes, int[][][] children, LocalNetworkParam param, int numNodes, WordSemiCRFNetworkCompiler compiler) {
+		super(networkId, inst, nodes, children, param, numNodes, compiler);
+	}
+
+	public WordSemiCRFLatticeNetwork(int networkId, Instance inst, long[] nodes, int[] nodeOffsets, int[] edgeOffsets, int[] childIndices, LocalNetworkParam param, int numNodes, WordSemiCRFNetworkCompiler compiler) {
+		super(networkId, inst, nodes, nodeOffsets, edgeOffsets, childIndices, param, numNodes, compiler);
+	}
+
+	private WordSemiCRFFeatureManager getFeatureManager(){
+		return (WordSemiCRFFeatureManager)this._param.getFeatureManager();
+	}
+
+	@Override
+	protected boolean isDecomposable(){
+		return this.getFeatureManager().isDecomposable();
+	}
+
+	@Override
+	protected int getNumLabels(){
+		return ((WordSemiCRFNetworkCompiler)this.getCompiler()).labels.length;
+	}
+
+	@Override
+	protected int getMaxSegmentLength(){
+		return ((WordSemiCRFNetworkCompiler)this.getCompiler()).maxSegmentLength;
+	}
+
+	@Override
+	protected boolean indexNode(int k, int[] nodeArray){
+		if(nodeArray[1] == NodeType.LEAF.ordinal()){
+			return this.setLeafNode(k);
+		} else if(nodeArray[1] == NodeType.INNER.ordinal()){
+			return this.setEndNode(k, nodeArray[0]-1, nodeArray[2]-1);
+		}
+		return true;
+	}
+
+	@Override
+	protected FeatureArray extractSegment(int start, int length, int label){
+		return this.getFeatureManager().extractSegment(this, start-1, start+length-1, label, false);
+	}
+
+	@Override
+	protected FeatureArray extractTransition(int prevLabel, int label){
+		if(label == this._numLabels){
+			label = -1;
+		}
+		return this.getFeatureManager().extractTransition(this, prevLabel, label);
+	}
+
+	@Override
+	protected FeatureArray extractRoot(){
+		return this.getFeatureManager().extractSegment(this, this._size-1, this._size, -1, true);
+	}
+
+}
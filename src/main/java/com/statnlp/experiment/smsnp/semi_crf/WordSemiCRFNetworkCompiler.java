@@ -12,6 +12,7 @@ import com.statnlp.experiment.smsnp.WordLabel;
 import com.statnlp.hybridnetworks.LocalNetworkParam;
 import com.statnlp.hybridnetworks.Network;
 import com.statnlp.hybridnetworks.NetworkCompiler;
+import com.statnlp.hybridnetworks.NetworkConfig;
 import com.statnlp.hybridnetworks.NetworkException;
 import com.statnlp.hybridnetworks.NetworkIDMapper;
 
@@ -33,6 +34,9 @@ public class WordSemiCRFNetworkCompiler extends NetworkCompiler {
 	public int maxSegmentLength = 1;
 	public transient long[] allNodes;
 	public transient int[][][] allChildren;
+	public transient int[] allNodeOffsets;
+	public transient int[] allEdgeOffsets;
+	public transient int[] allChildIndices;
 	
 	public enum NodeType {
 		LEAF,
@@ -127,6 +131,15 @@ public class WordSemiCRFNetworkCompiler extends NetworkCompiler {
 		long root = toNode_root(size);
 		int root_k = Arrays.binarySearch(allNodes, root);
 		int numNodes = root_k + 1;
+		if(NetworkConfig.USE_DENSE_LATTICE){
+			if(allChildren == null){
+				return new WordSemiCRFLatticeNetwork(networkId, instance, allNodes, allNodeOffsets, allEdgeOffsets, allChildIndices, param, numNodes, this);
+			}
+			return new WordSemiCRFLatticeNetwork(networkId, instance, allNodes, allChildren, param, numNodes, this);
+		}
+		if(allChildren == null){
+			return new SMSNPNetwork(networkId, instance, allNodes, allNodeOffsets, allEdgeOffsets, allChildIndices, param, numNodes, this);
+		}
 		return new SMSNPNetwork(networkId, instance, allNodes, allChildren, param, numNodes, this);
 	}
 	
@@ -165,6 +178,9 @@ public class WordSemiCRFNetworkCompiler extends NetworkCompiler {
 		network.finalizeNetwork();
 		allNodes = network.getAllNodes();
 		allChildren = network.getAllChildren();
+		allNodeOffsets = network.getAllNodeOffsets();
+		allEdgeOffsets = network.getAllEdgeOffsets();
+		allChildIndices = network.getAllChildIndices();
 	}
 	
 	private long toNode_leaf(){
@@ -15,6 +15,7 @@ import com.statnlp.experiment.smsnp.IFeatureType;
 import com.statnlp.experiment.smsnp.SMSNPInstance;
 import com.statnlp.experiment.smsnp.SMSNPNetwork;
 import com.statnlp.experiment.smsnp.SMSNPTokenizer.TokenizerMethod;
+import com.statnlp.experiment.smsnp.TokenInputIds;
 import com.statnlp.experiment.smsnp.weak_semi_crf.WordWeakSemiCRFNetworkCompiler.NodeType;
 import com.statnlp.hybridnetworks.FeatureArray;
 import com.statnlp.hybridnetworks.FeatureManager;
@@ -153,6 +154,10 @@ public class WordWeakSemiCRFFeatureManager extends FeatureManager {
 	
 	public TokenizerMethod tokenizerMethod;
 	public Map<String, String> brownMap;
+	/** The template ordinal of each feature type, see {@link GlobalNetworkParam#toTemplateId(String)} */
+	private transient int[] templateIds;
+	/** The input IDs of the tokens of the last instance seen by each thread */
+	private transient ThreadLocal<TokenInputIds> tokenInputIds;
 	
 	public WordWeakSemiCRFFeatureManager(GlobalNetworkParam param_g, String[] features){
 		this(param_g, TokenizerMethod.REGEX, null, features);
@@ -163,6 +168,7 @@ public class WordWeakSemiCRFFeatureManager extends FeatureManager {
 		this.tokenizerMethod = tokenizerMethod;
 		this.brownMap = brownMap;
 		setupFeatures(FeatureType.class, features);
+		initInputIds();
 		int argIndex = 0;
 		while(argIndex < args.length){
 			String arg = args[argIndex];
@@ -216,48 +222,91 @@ public class WordWeakSemiCRFFeatureManager extends FeatureManager {
 			return new FeatureArray(new int[]{cheatFeature});
 		}
 		
-		List<Integer> commonFeatures = new ArrayList<Integer>();
+		int insideStart = childType == NodeType.BEGIN ? childPos : childPos+1;
+		int insideEnd = parentType == NodeType.END ? parentPos+1 : parentPos;
+		FeatureArray features = this.extractSegment(network, insideStart, insideEnd, parentLabelId, parentType == NodeType.END);
 		
-		String[] wordsBefore = Arrays.copyOfRange(inputTokenized, 0, childType == NodeType.BEGIN ? childPos : childPos+1);
-		String[] wordsInside = Arrays.copyOfRange(inputTokenized, childType == NodeType.BEGIN ? childPos : childPos+1, parentType == NodeType.END ? parentPos+1 : parentPos);
-		String[] wordsAfter = Arrays.copyOfRange(inputTokenized, parentType == NodeType.END ? parentPos+1 : parentPos, length);
-		int numWordsBefore = wordsBefore.length;
+		// End to Begin features (transition features)
+		if(parentType == NodeType.BEGIN || childType == NodeType.END){
+			features = new FeatureArray(this.transitionFeatures(network, childLabelId, parentLabelId), features);
+		}
+		
+		return features;
+	}
+	
+	/**
+	 * Returns whether the features of each hyperedge can be decomposed into the features of the segment,
+	 * which depend only on its boundaries and label, the features at the beginning of the segment,
+	 * and the transition features between the labels, so that {@link WordWeakSemiCRFLatticeNetwork} can be used.
+	 * @return
+	 */
+	public boolean isDecomposable(){
+		return !FeatureType.CHEAT.enabled();
+	}
+	
+	/**
+	 * Extract the features of the words from insideStart until insideEnd (exclusive) with the specified label,
+	 * excluding the transition features.<br>
+	 * When isSegment is false, only the features of the words around the boundary are extracted, which is the
+	 * case for the beginning of a segment (with insideStart equal to insideEnd), and for the root
+	 * (with parentLabelId -1).
+	 * @param network
+	 * @param insideStart
+	 * @param insideEnd
+	 * @param parentLabelId
+	 * @param isSegment
+	 * @return
+	 */
+	public FeatureArray extractSegment(Network network, int insideStart, int insideEnd, int parentLabelId, boolean isSegment){
+		SMSNPInstance instance = (SMSNPInstance)network.getInstance();
+		String[] inputTokenized = instance.getInputTokenized();
+		GlobalNetworkParam param_g = this._param_g;
+		
+		// The features at the start boundary and at the end boundary are separate factors,
+		// since each is shared by all hyperedges with the same boundary and label
+		List<Integer> prevWordFeatures = new ArrayList<Integer>();
+		List<Integer> nextWordFeatures = new ArrayList<Integer>();
+		
+		String[] wordsInside = Arrays.copyOfRange(inputTokenized, insideStart, insideEnd);
 		int numWordsInside = wordsInside.length;
-		int numWordsAfter = wordsAfter.length;
 		String segment = StringUtils.join(wordsInside, " ");
 		
-		String prevWord = numWordsBefore > 0 ? wordsBefore[numWordsBefore-1] : "";
-		String nextWord = numWordsAfter > 0 ? wordsAfter[0] : "";
+		// The positions (in the input IDs) of the previous word, the next word, and the first word inside,
+		// where the empty word is at both ends
+		TokenInputIds inputIds = getTokenInputIds(instance);
+		int prevWordIdx = insideStart;
+		int nextWordIdx = insideEnd+1;
+		int firstWordIdx = numWordsInside > 0 ? insideStart+1 : 0;
 		
 		if(FeatureType.PREV_WORD.enabled()){
-			int prevWordFeature = param_g.toFeature(network, FeatureType.PREV_WORD.name(), parentLabelId+"", normalizeWord(prevWord));
-			commonFeatures.add(prevWordFeature);
+			int prevWordFeature = param_g.toFeature(network, templateIds[FeatureType.PREV_WORD.ordinal()], parentLabelId, inputIds.words[prevWordIdx]);
+			prevWordFeatures.add(prevWordFeature);
 		}
 		if(FeatureType.PREV_WORD_SHAPE.enabled()){
-			int prevWordShapeFeature = param_g.toFeature(network, FeatureType.PREV_WORD_SHAPE.name(), parentLabelId+"", wordShape(prevWord));
-			commonFeatures.add(prevWordShapeFeature);
+			int prevWordShapeFeature = param_g.toFeature(network, templateIds[FeatureType.PREV_WORD_SHAPE.ordinal()], parentLabelId, inputIds.shapes[prevWordIdx]);
+			prevWordFeatures.add(prevWordShapeFeature);
 		}
 		if(FeatureType.PREV_WORD_CLUSTER.enabled()){
-			int prevWordClusterFeature = param_g.toFeature(network, FeatureType.PREV_WORD_CLUSTER.name(), parentLabelId+"", getBrownCluster(prevWord));
-			commonFeatures.add(prevWordClusterFeature);
+			int prevWordClusterFeature = param_g.toFeature(network, templateIds[FeatureType.PREV_WORD_CLUSTER.ordinal()], parentLabelId, inputIds.clusters[prevWordIdx]);
+			prevWordFeatures.add(prevWordClusterFeature);
 		}
 		if(FeatureType.NEXT_WORD.enabled()){
-			int nextWordFeature = param_g.toFeature(network, FeatureType.NEXT_WORD.name(), parentLabelId+"", normalizeWord(nextWord));
-			commonFeatures.add(nextWordFeature);
+			int nextWordFeature = param_g.toFeature(network, templateIds[FeatureType.NEXT_WORD.ordinal()], parentLabelId, inputIds.words[nextWordIdx]);
+			nextWordFeatures.add(nextWordFeature);
 		}
 		if(FeatureType.NEXT_WORD_SHAPE.enabled()){
-			int nextWordShapeFeature = param_g.toFeature(network, FeatureType.NEXT_WORD_SHAPE.name(), parentLabelId+"", wordShape(nextWord));
-			commonFeatures.add(nextWordShapeFeature);
+			int nextWordShapeFeature = param_g.toFeature(network, templateIds[FeatureType.NEXT_WORD_SHAPE.ordinal()], parentLabelId, inputIds.shapes[nextWordIdx]);
+			nextWordFeatures.add(nextWordShapeFeature);
 		}
 		if(FeatureType.NEXT_WORD_CLUSTER.enabled()){
-			int nextWordClusterFeature = param_g.toFeature(network, FeatureType.NEXT_WORD_CLUSTER.name(), parentLabelId+"", getBrownCluster(nextWord));
-			commonFeatures.add(nextWordClusterFeature);
+			int nextWordClusterFeature = param_g.toFeature(network, templateIds[FeatureType.NEXT_WORD_CLUSTER.ordinal()], parentLabelId, inputIds.clusters[nextWordIdx]);
+			nextWordFeatures.add(nextWordClusterFeature);
 		}
 
-		FeatureArray features = new FeatureArray(listToArray(commonFeatures));
+		FeatureArray features = createFeatureArray(listToArray(prevWordFeatures), listToArray(nextWordFeatures));
 		
 		// Begin to End features (segment features)
-		if(parentType == NodeType.END){
+		if(isSegment){
 			List<Integer> segmentFeatures = new ArrayList<Integer>();
 			
 			if(FeatureType.SEGMENT.enabled()){
@@ -287,15 +336,15 @@ public class WordWeakSemiCRFFeatureManager extends FeatureManager {
 			}
 			
 			if(FeatureType.FIRST_WORD.enabled()){
-				segmentFeatures.add(param_g.toFeature(network, FeatureType.FIRST_WORD.name(), parentLabelId+"", numWordsInside > 0 ? normalizeWord(wordsInside[0]) : ""));
+				segmentFeatures.add(param_g.toFeature(network, templateIds[FeatureType.FIRST_WORD.ordinal()], parentLabelId, inputIds.words[firstWordIdx]));
 			}
 			
 			if(FeatureType.FIRST_WORD_SHAPE.enabled()){
-				segmentFeatures.add(param_g.toFeature(network, FeatureType.FIRST_WORD_SHAPE.name(), parentLabelId+"", wordShape(numWordsInside > 0 ? wordsInside[0] : "")));
+				segmentFeatures.add(param_g.toFeature(network, templateIds[FeatureType.FIRST_WORD_SHAPE.ordinal()], parentLabelId, inputIds.shapes[firstWordIdx]));
 			}
 			
 			if(FeatureType.FIRST_WORD_CLUSTER.enabled()){
-				segmentFeatures.add(param_g.toFeature(network, FeatureType.FIRST_WORD_CLUSTER.name(), parentLabelId+"", getBrownCluster(numWordsInside > 0 ? wordsInside[0] : "")));
+				segmentFeatures.add(param_g.toFeature(network, templateIds[FeatureType.FIRST_WORD_CLUSTER.ordinal()], parentLabelId, inputIds.clusters[firstWordIdx]));
 			}
 			
 			if(FeatureType.WORDS.enabled()){
@@ -322,20 +371,72 @@ public class WordWeakSemiCRFFeatureManager extends FeatureManager {
 			features = new FeatureArray(listToArray(segmentFeatures), features);
 		}
 		
-		// End to Begin features (transition features)
-		if(parentType == NodeType.BEGIN || childType == NodeType.END){
-			List<Integer> transitionFeatures = new ArrayList<Integer>();
-			
-			if(FeatureType.BIGRAM.enabled()){
-				int bigramFeature = param_g.toFeature(network, FeatureType.BIGRAM.name(), childLabelId+"-"+parentLabelId, "");
-				transitionFeatures.add(bigramFeature);
+		return features;
+	}
+	
+	/**
+	 * Extract the transition features from the label childLabelId to the label parentLabelId,
+	 * where the leaf and the root have label -1.
+	 * @param network
+	 * @param childLabelId
+	 * @param parentLabelId
+	 * @return
+	 */
+	public FeatureArray extractTransition(Network network, int childLabelId, int parentLabelId){
+		return new FeatureArray(this.transitionFeatures(network, childLabelId, parentLabelId));
+	}
+	
+	private int[] transitionFeatures(Network network, int childLabelId, int parentLabelId){
+		List<Integer> transitionFeatures = new ArrayList<Integer>();
+		if(FeatureType.BIGRAM.enabled()){
+			int bigramFeature = this._param_g.toFeature(network, FeatureType.BIGRAM.name(), childLabelId+"-"+parentLabelId, "");
+			transitionFeatures.add(bigramFeature);
+		}
+		return listToArray(transitionFeatures);
+	}
+	
+	/**
+	 * Returns the input IDs of the tokens of the specified instance, which are computed
+	 * once per instance in each thread
+	 * @param instance
+	 * @return
+	 */
+	private TokenInputIds getTokenInputIds(SMSNPInstance instance){
+		TokenInputIds inputIds = tokenInputIds.get();
+		if(inputIds != null && inputIds.instance == instance){
+			return inputIds;
+		}
+		GlobalNetworkParam param_g = this._param_g;
+		String[] inputTokenized = instance.getInputTokenized();
+		int length = inputTokenized.length;
+		boolean useShapes = FeatureType.PREV_WORD_SHAPE.enabled() || FeatureType.NEXT_WORD_SHAPE.enabled()
+				|| FeatureType.FIRST_WORD_SHAPE.enabled();
+		boolean useClusters = FeatureType.PREV_WORD_CLUSTER.enabled() || FeatureType.NEXT_WORD_CLUSTER.enabled()
+				|| FeatureType.FIRST_WORD_CLUSTER.enabled();
+		int[] words = new int[length+2];
+		int[] shapes = useShapes ? new int[length+2] : null;
+		int[] clusters = useClusters ? new int[length+2] : null;
+		for(int i=-1; i<=length; i++){
+			String word = (i >= 0 && i < length) ? inputTokenized[i] : "";
+			words[i+1] = param_g.toInputId(normalizeWord(word));
+			if(useShapes){
+				shapes[i+1] = param_g.toInputId(wordShape(word));
+			}
+			if(useClusters){
+				clusters[i+1] = param_g.toInputId(getBrownCluster(word));
 			}
-			
-			features = new FeatureArray(listToArray(transitionFeatures), features);
 		}
-		
-		return features;
-		
+		inputIds = new TokenInputIds(instance, words, shapes, clusters);
+		tokenInputIds.set(inputIds);
+		return inputIds;
+	}
+	
+	private void initInputIds(){
+		templateIds = new int[FeatureType.values().length];
+		for(FeatureType featureType: FeatureType.values()){
+			templateIds[featureType.ordinal()] = this._param_g.toTemplateId(featureType.name());
+		}
+		tokenInputIds = new ThreadLocal<TokenInputIds>();
 	}
 	
 	private static String normalizeWord(String word){
@@ -402,6 +503,7 @@ public class WordWeakSemiCRFFeatureManager extends FeatureManager {
 		} catch (Exception e){
 			
 		}
+		initInputIds();
 	}
 	
 	public static void main(String[] args){
@@ -0,0 +1,89 @@
+package com.statnlp.experiment.smsnp.weak_semi_crf;
+
+import com.statnlp.commons.types.Instance;
+import com.statnlp.experiment.smsnp.SMSNPLatticeNetwork;
+import com.statnlp.experiment.smsnp.weak_semi_crf.WordWeakSemiCRFNetworkCompiler.NodeType;
+import com.statnlp.hybridnetworks.DenseLattice;
+import com.statnlp.hybridnetworks.FeatureArray;
+import com.statnlp.hybridnetworks.LocalNetworkParam;
+
+/**
+ * The unlabeled network of the word-based weak semi-CRF, which does the inference with {@link DenseLattice}
+ * on the scores of each segment and the label transition scores, instead of going through each
+ * hyperedge of the generic network.<br>
+ * Each segment is represented by the node at its first word and the node at its last word.
+ * The hyperedge between them has the segment features, and the hyperedge from the end of the previous
+ * segment to the beginning of the segment has the boundary features and the transition feature.
+ */
+public class WordWeakSemiCRFLatticeNetwork extends SMSNPLatticeNetwork {
+
+	private static final long serialVersionUID = -5127390642841165093L;
+
+	public WordWeakSemiCRFLatticeNetwork(int networkId, Instance inst, long[] nodes, int[][][] children, LocalNetworkParam param, int numNodes, WordWeakSemiCRFNetworkCompiler compiler) {
+		super(networkId, inst, nodes, children, param, numNodes, compiler);
+	}
+
+	public WordWeakSemiCRFLatticeNetwork(int networkId, Instance inst, long[] nodes, int[] nodeOffsets, int[] edgeOffsets, int[] childIndices, LocalNetworkParam param, int numNodes, WordWeakSemiCRFNetworkCompiler compiler) {
+		super(networkId, inst, nodes, nodeOffsets, edgeOffsets, childIndices, param, numNodes, compiler);
+	}
+
+	private WordWeakSemiCRFFeatureManager getFeatureManager(){
+		return (WordWeakSemiCRFFeatureManager)this._param.getFeatureManager();
+	}
+
+	@Override
+	protected boolean isDecomposable(){
+		return this.getFeatureManager().isDecomposable();
+	}
+
+	@Override
+	protected int getNumLabels(){
+		return ((WordWeakSemiCRFNetworkCompiler)this.getCompiler()).labels.length;
+	}
+
+	@Override
+	protected int getMaxSegmentLength(){
+		return ((WordWeakSemiCRFNetworkCompiler)this.getCompiler()).maxSegmentLength;
+	}
+
+	@Override
+	protected boolean hasBeginNodes(){
+		return true;
+	}
+
+	@Override
+	protected boolean indexNode(int k, int[] nodeArray){
+		if(nodeArray[1] == NodeType.LEAF.ordinal()){
+			return this.setLeafNode(k);
+		} else if(nodeArray[1] == NodeType.BEGIN.ordinal()){
+			return this.setBeginNode(k, nodeArray[0]-1, nodeArray[2]-1);
+		} else if(nodeArray[1] == NodeType.END.ordinal()){
+			return this.setEndNode(k, nodeArray[0]-1, nodeArray[2]-1);
+		}
+		return true;
+	}
+
+	@Override
+	protected FeatureArray extractSegment(int start, int length, int label){
+		return this.getFeatureManager().extractSegment(this, start, start+length, label, true);
+	}
+
+	@Override
+	protected FeatureArray extractBoundary(int start, int label){
+		return this.getFeatureManager().extractSegment(this, start, start, label, false);
+	}
+
+	@Override
+	protected FeatureArray extractTransition(int prevLabel, int label){
+		if(label == this._numLabels){
+			label = -1;
+		}
+		return this.getFeatureManager().extractTransition(this, prevLabel, label);
+	}
+
+	@Override
+	protected FeatureArray extractRoot(){
+		return this.getFeatureManager().extractSegment(this, this._size, this._size, -1, false);
+	}
+
+}
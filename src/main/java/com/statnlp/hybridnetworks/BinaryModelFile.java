@@ -0,0 +1,217 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.hybridnetworks;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The binary model format, which is read through memory-mapped buffers instead of Java serialization,
+ * so that a large model is ready for decoding almost as soon as it is opened.<br>
+ * The file is made of:
+ * <ol>
+ * <li>The magic number {@link #MAGIC}, the format version {@link #VERSION}, and the flags</li>
+ * <li>The {@link NetworkModel} without its feature dictionary and weights, in Java serialization,
+ * 	   which is small (e.g., the network compiler and the configuration of the feature manager)</li>
+ * <li>The feature dictionary, looked up lazily in the file (see {@link MappedFeatureIndex})</li>
+ * <li>The weights, as doubles, so that the predictions are the same as with the serialized model</li>
+ * </ol>
+ * Each section after the first is preceded by its length in bytes.<br>
+ * The String representation of the features ({@link GlobalNetworkParam#getFeatureRep(int)}) is not written, but rebuilt
+ * from the dictionary when it is needed. The feature dictionary is read fully only when needed
+ * (see {@link GlobalNetworkParam#getFeatureIndex()}), for example to continue the training.<br>
+ * Use {@link #main(String[])} to convert models between this format and the serialized format.
+ */
+public class BinaryModelFile {
+
+	/** "SNLP" */
+	public static final int MAGIC = 0x534E4C50;
+	public static final int VERSION = 1;
+
+	/** Whether the model had the String representation of its features */
+	private static final int FLAG_FEATURE_REP = 1;
+
+	/**
+	 * Returns whether the specified file is in this binary model format
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isBinaryModel(String path) throws IOException{
+		try(DataInputStream in = new DataInputStream(new FileInputStream(path))){
+			return in.readInt() == MAGIC;
+		} catch (EOFException e){
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the specified trained model to the specified path, in the binary model format
+	 * @param model
+	 * @param path
+	 * @throws IOException
+	 */
+	public static void write(NetworkModel model, String path) throws IOException{
+		GlobalNetworkParam param = model._fm.getParam_G();
+		if(!param.isLocked()){
+			throw new NetworkException("Only trained models can be written in the binary model format.");
+		}
+		FeatureIndex featureIndex = param.getFeatureIndex();
+		String[][] feature2rep = param._feature2rep;
+		double[] weights = param._weights;
+
+		// The model is serialized without the dictionary and the weights, which are written in their own sections
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		param._featureIndex = null;
+		param._feature2rep = null;
+		param._weights = null;
+		try(ObjectOutputStream oos = new ObjectOutputStream(header)){
+			oos.writeObject(model);
+		} finally {
+			param._featureIndex = featureIndex;
+			param._feature2rep = feature2rep;
+			param._weights = weights;
+		}
+
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16))){
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(feature2rep != null ? FLAG_FEATURE_REP : 0);
+			out.writeLong(header.size());
+			header.writeTo(out);
+			MappedFeatureIndex.write(out, featureIndex);
+			out.writeLong(8L*weights.length);
+			for(double weight: weights){
+				out.writeDouble(weight);
+			}
+		}
+	}
+
+	/**
+	 * Reads the model in the binary model format at the specified path.<br>
+	 * The feature dictionary stays in the file, which is kept mapped as long as the model is used.
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static NetworkModel read(String path) throws IOException, ClassNotFoundException{
+		try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)){
+			long[] position = {0};
+			ByteBuffer start = map(channel, position, 12);
+			if(start.getInt(0) != MAGIC){
+				throw new NetworkException(path+" is not a binary model.");
+			}
+			int version = start.getInt(4);
+			if(version != VERSION){
+				throw new NetworkException("Unsupported binary model version "+version+", expected "+VERSION);
+			}
+			int flags = start.getInt(8);
+
+			NetworkModel model;
+			ByteBuffer header = mapSection(channel, position);
+			byte[] headerBytes = new byte[header.remaining()];
+			header.get(headerBytes);
+			try(ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(headerBytes))){
+				model = (NetworkModel)ois.readObject();
+			}
+
+			ByteBuffer strings = mapSection(channel, position);
+			ByteBuffer typeOutputs = mapSection(channel, position);
+			ByteBuffer features = mapSection(channel, position);
+			MappedFeatureIndex featureIndex = new MappedFeatureIndex(strings, typeOutputs, features);
+
+			ByteBuffer weightBytes = mapSection(channel, position);
+			double[] weights = new double[weightBytes.remaining()/8];
+			weightBytes.asDoubleBuffer().get(weights);
+
+			model._fm.getParam_G().setMappedFeatureIndex(featureIndex, weights, (flags & FLAG_FEATURE_REP) != 0);
+			return model;
+		}
+	}
+
+	/**
+	 * Maps the section at the specified position, after its length, and moves the position after the section
+	 * @param channel
+	 * @param position
+	 * @return
+	 * @throws IOException
+	 */
+	private static ByteBuffer mapSection(FileChannel channel, long[] position) throws IOException{
+		long length = map(channel, position, 8).getLong(0);
+		if(length > Integer.MAX_VALUE){
+			throw new NetworkException("A section of the binary model is larger than 2GB, which cannot be mapped.");
+		}
+		return map(channel, position, length);
+	}
+
+	private static ByteBuffer map(FileChannel channel, long[] position, long length) throws IOException{
+		if(position[0]+length > channel.size()){
+			throw new NetworkException("The binary model is truncated.");
+		}
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position[0], length);
+		position[0] += length;
+		return buffer;
+	}
+
+	/**
+	 * Converts a model between the serialized format and the binary model format.<br>
+	 * Usage: <code>BinaryModelFile toBinary &lt;model&gt; &lt;binaryModel&gt;</code>
+	 * or <code>BinaryModelFile toModel &lt;binaryModel&gt; &lt;model&gt;</code>
+	 * @param args
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static void main(String[] args) throws IOException, ClassNotFoundException{
+		if(args.length != 3 || !(args[0].equals("toBinary") || args[0].equals("toModel"))){
+			System.err.println("Usage: BinaryModelFile toBinary <model> <binaryModel>");
+			System.err.println("       BinaryModelFile toModel <binaryModel> <model>");
+			return;
+		}
+		long startTime = System.currentTimeMillis();
+		if(args[0].equals("toBinary")){
+			NetworkModel model;
+			try(ObjectInputStream ois = new ObjectInputStream(new FileInputStream(args[1]))){
+				model = (NetworkModel)ois.readObject();
+			}
+			write(model, args[2]);
+		} else {
+			NetworkModel model = read(args[1]);
+			// Read the whole dictionary from the file, as the serialized format contains it
+			model._fm.getParam_G().getFeatureIndex();
+			try(ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(args[2]))){
+				oos.writeObject(model);
+			}
+		}
+		long endTime = System.currentTimeMillis();
+		System.err.println(String.format("Converted %s to %s in %.3fs", args[1], args[2], (endTime-startTime)/1000.0));
+	}
+
+}
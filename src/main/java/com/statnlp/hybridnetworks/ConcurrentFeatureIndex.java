@@ -0,0 +1,137 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.hybridnetworks;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The feature dictionary filled by all threads at the same time in parallel touch
+ * (see {@link NetworkConfig#_SEQUENTIAL_FEATURE_EXTRACTION}).<br>
+ * The features are split by their hash into shards, each a {@link FeatureIndex} with its own lock, and get
+ * temporary IDs in the order they are added. After the touch, {@link #toFeatureIndex(int[])} assigns the final IDs
+ * in the order of the type, output, and input of the features, so that the final IDs do not depend on the number
+ * of threads nor on the order in which the threads add the features.
+ * @see GlobalNetworkParam#finishParallelTouch()
+ */
+class ConcurrentFeatureIndex {
+
+	/** The order of the final IDs */
+	private static final Comparator<FeatureIndex.Feature> FEATURE_ORDER = (f1, f2) -> {
+		int result = f1.type.compareTo(f2.type);
+		if(result == 0){
+			result = f1.output.compareTo(f2.output);
+		}
+		if(result == 0){
+			result = f1.input.compareTo(f2.input);
+		}
+		return result;
+	};
+
+	private final FeatureIndex[] _shards;
+	/** The number of features, which is also the next temporary ID */
+	private final AtomicInteger _size;
+
+	/**
+	 * Creates an empty dictionary, with enough shards for the specified number of threads to rarely wait for each other
+	 * @param numThreads
+	 */
+	public ConcurrentFeatureIndex(int numThreads){
+		int numShards = 1;
+		while(numShards < 16*numThreads){
+			numShards <<= 1;
+		}
+		this._shards = new FeatureIndex[numShards];
+		for(int i=0; i<numShards; i++){
+			this._shards[i] = new FeatureIndex();
+		}
+		this._size = new AtomicInteger();
+	}
+
+	/**
+	 * Returns the temporary ID of the specified feature, or -1 if it is not in the dictionary
+	 * @param type
+	 * @param output
+	 * @param input
+	 * @return
+	 */
+	public int get(String type, String output, String input){
+		FeatureIndex shard = this.shard(type, output, input);
+		synchronized(shard){
+			return shard.get(type, output, input);
+		}
+	}
+
+	/**
+	 * Returns the temporary ID of the specified feature, after adding it if it is not in the dictionary
+	 * @param type
+	 * @param output
+	 * @param input
+	 * @return
+	 */
+	public int getOrPut(String type, String output, String input){
+		FeatureIndex shard = this.shard(type, output, input);
+		synchronized(shard){
+			int featureId = shard.get(type, output, input);
+			if(featureId < 0){
+				featureId = shard.getOrPut(type, output, input, this._size.getAndIncrement());
+			}
+			return featureId;
+		}
+	}
+
+	/**
+	 * Returns the number of features
+	 * @return
+	 */
+	public int size(){
+		return this._size.get();
+	}
+
+	private FeatureIndex shard(String type, String output, String input){
+		int hash = (type.hashCode()*31 + output.hashCode())*31 + input.hashCode();
+		return this._shards[FeatureKeyTable.hash(hash) & (this._shards.length-1)];
+	}
+
+	/**
+	 * Returns the features in one {@link FeatureIndex}, with their final IDs, which follow the order of their type,
+	 * output, and input.<br>
+	 * This should be called when no thread is adding features anymore.
+	 * @param newIds The array to be filled with the final ID of each feature, indexed by its temporary ID,
+	 * 				 of length {@link #size()}
+	 * @return
+	 */
+	public FeatureIndex toFeatureIndex(int[] newIds){
+		FeatureIndex.Feature[] features = new FeatureIndex.Feature[this.size()];
+		int k = 0;
+		for(FeatureIndex shard: this._shards){
+			for(FeatureIndex.Feature feature: shard){
+				features[k++] = feature;
+			}
+		}
+		Arrays.parallelSort(features, FEATURE_ORDER);
+		FeatureIndex featureIndex = new FeatureIndex();
+		for(int featureId=0; featureId<features.length; featureId++){
+			FeatureIndex.Feature feature = features[featureId];
+			featureIndex.getOrPut(feature.type, feature.output, feature.input, featureId);
+			newIds[feature.id] = featureId;
+		}
+		return featureIndex;
+	}
+
+}
@@ -0,0 +1,500 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.hybridnetworks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The inference engine for linear-chain and semi-Markov CRFs, working on dense score arrays
+ * instead of a generic hypergraph.<br>
+ * The score of a labeled segmentation of an input of the given size is the sum of:
+ * <ol>
+ * <li>the segment score of each segment, indexed by [start][length-1][label]</li>
+ * <li>the transition score between the labels of each pair of consecutive segments, indexed by [prevLabel][label]</li>
+ * <li>the end score of the label of the last segment</li>
+ * </ol>
+ * A linear-chain CRF is the special case where the maximum segment length is 1, in which case the
+ * segment scores are the emission scores indexed by [position][label].<br>
+ * The forward-backward algorithm is done in log space, and the expected counts (marginals) of the segments,
+ * transitions, and end labels are then available for the gradient computation.
+ * The arrays are reused when the engine is reset to a smaller or equal size, so one engine should be
+ * kept per thread, similar to the shared arrays in {@link Network}.
+ */
+public class DenseLattice {
+
+	private int _size;
+	private int _numLabels;
+	private int _maxLength;
+
+	/** The segment scores, indexed by [start][length-1][label] */
+	private double[][][] _segmentScores;
+	/** The transition scores, indexed by [prevLabel][label] */
+	private double[][] _transitionScores;
+	/** The score of the label of the last segment */
+	private double[] _endScores;
+
+	/** The forward scores of the segments ending at the position (exclusive), indexed by [end][label] */
+	private double[][] _alpha;
+	/** The forward scores of the segments starting at the position, before adding the segment score */
+	private double[][] _alphaIn;
+	/** The backward scores after the segments ending at the position (exclusive), indexed by [end][label] */
+	private double[][] _beta;
+	/** The backward scores of the segments starting at the position, including the segment score */
+	private double[][] _betaIn;
+	/** The log partition function */
+	private double _logZ;
+
+	/** The best previous label of the segments starting at the position */
+	private int[][] _bestPrevLabel;
+	/** The length of the best segment ending at the position (exclusive) */
+	private int[][] _bestLength;
+
+	/** The working array for log-sum-exp */
+	private double[] _scores;
+
+	/**
+	 * Create an empty engine. Call {@link #reset(int, int, int)} before setting the scores.
+	 */
+	public DenseLattice(){}
+
+	/**
+	 * Prepare the engine for an input of the specified size, number of labels, and maximum segment length.
+	 * The arrays are only reallocated when they are too small.<br>
+	 * All scores are reset to 0.0.
+	 * @param size
+	 * @param numLabels
+	 * @param maxLength
+	 */
+	public void reset(int size, int numLabels, int maxLength){
+		if(this._segmentScores == null || size > this._segmentScores.length-1
+				|| numLabels > this._endScores.length || maxLength > this._segmentScores[0].length){
+			int capacity = size;
+			int labelCapacity = numLabels;
+			int lengthCapacity = maxLength;
+			if(this._segmentScores != null){
+				capacity = Math.max(capacity, this._segmentScores.length-1);
+				labelCapacity = Math.max(labelCapacity, this._endScores.length);
+				lengthCapacity = Math.max(lengthCapacity, this._segmentScores[0].length);
+			}
+			this._segmentScores = new double[capacity+1][lengthCapacity][labelCapacity];
+			this._transitionScores = new double[labelCapacity][labelCapacity];
+			this._endScores = new double[labelCapacity];
+			this._alpha = new double[capacity+1][labelCapacity];
+			this._alphaIn = new double[capacity+1][labelCapacity];
+			this._beta = new double[capacity+1][labelCapacity];
+			this._betaIn = new double[capacity+1][labelCapacity];
+			this._bestPrevLabel = new int[capacity+1][labelCapacity];
+			this._bestLength = new int[capacity+1][labelCapacity];
+			this._scores = new double[Math.max(labelCapacity, lengthCapacity)];
+		}
+		this._size = size;
+		this._numLabels = numLabels;
+		this._maxLength = maxLength;
+		for(int start=0; start<size; start++){
+			for(int length=0; length<maxLength; length++){
+				Arrays.fill(this._segmentScores[start][length], 0, numLabels, 0.0);
+			}
+		}
+		for(int label=0; label<numLabels; label++){
+			Arrays.fill(this._transitionScores[label], 0, numLabels, 0.0);
+		}
+		Arrays.fill(this._endScores, 0, numLabels, 0.0);
+	}
+
+	public int getSize(){
+		return this._size;
+	}
+
+	public int getNumLabels(){
+		return this._numLabels;
+	}
+
+	public int getMaxLength(){
+		return this._maxLength;
+	}
+
+	public void setSegmentScore(int start, int length, int label, double score){
+		this._segmentScores[start][length-1][label] = score;
+	}
+
+	/**
+	 * Set the emission score of a linear-chain CRF, which is the segment score of length 1
+	 * @param pos
+	 * @param label
+	 * @param score
+	 */
+	public void setEmissionScore(int pos, int label, double score){
+		this._segmentScores[pos][0][label] = score;
+	}
+
+	public void setTransitionScore(int prevLabel, int label, double score){
+		this._transitionScores[prevLabel][label] = score;
+	}
+
+	public void setEndScore(int label, double score){
+		this._endScores[label] = score;
+	}
+
+	/**
+	 * Run the forward-backward algorithm, and return the log partition function
+	 * @return
+	 */
+	public double forwardBackward(){
+		int size = this._size;
+		int numLabels = this._numLabels;
+		double[] scores = this._scores;
+
+		// Forward
+		for(int end=1; end<=size; end++){
+			Arrays.fill(this._alpha[end], 0, numLabels, Double.NEGATIVE_INFINITY);
+		}
+		for(int start=0; start<size; start++){
+			for(int label=0; label<numLabels; label++){
+				if(start == 0){
+					this._alphaIn[start][label] = 0.0;
+					continue;
+				}
+				for(int prevLabel=0; prevLabel<numLabels; prevLabel++){
+					scores[prevLabel] = this._alpha[start][prevLabel] + this._transitionScores[prevLabel][label];
+				}
+				this._alphaIn[start][label] = logSumExp(scores, numLabels);
+			}
+			for(int label=0; label<numLabels; label++){
+				for(int end=start+1; end<=size && end-start<=this._maxLength; end++){
+					double score = this._alphaIn[start][label] + this._segmentScores[start][end-start-1][label];
+					this._alpha[end][label] = logAdd(this._alpha[end][label], score);
+				}
+			}
+		}
+		for(int label=0; label<numLabels; label++){
+			scores[label] = this._alpha[size][label] + this._endScores[label];
+		}
+		this._logZ = logSumExp(scores, numLabels);
+
+		// Backward
+		for(int label=0; label<numLabels; label++){
+			this._beta[size][label] = this._endScores[label];
+		}
+		for(int start=size-1; start>=0; start--){
+			for(int label=0; label<numLabels; label++){
+				int numScores = 0;
+				for(int end=start+1; end<=size && end-start<=this._maxLength; end++){
+					scores[numScores++] = this._segmentScores[start][end-start-1][label] + this._beta[end][label];
+				}
+				this._betaIn[start][label] = logSumExp(scores, numScores);
+			}
+			if(start == 0){
+				break;
+			}
+			for(int prevLabel=0; prevLabel<numLabels; prevLabel++){
+				for(int label=0; label<numLabels; label++){
+					scores[label] = this._transitionScores[prevLabel][label] + this._betaIn[start][label];
+				}
+				this._beta[start][prevLabel] = logSumExp(scores, numLabels);
+			}
+		}
+		return this._logZ;
+	}
+
+	/**
+	 * Returns the log partition function calculated in the last {@link #forwardBackward()}
+	 * @return
+	 */
+	public double getLogZ(){
+		return this._logZ;
+	}
+
+	/**
+	 * Returns the marginal probability of the segment, after {@link #forwardBackward()}
+	 * @param start
+	 * @param length
+	 * @param label
+	 * @return
+	 */
+	public double getSegmentMarginal(int start, int length, int label){
+		double score = this._alphaIn[start][label] + this._segmentScores[start][length-1][label] + this._beta[start+length][label];
+		return Math.exp(score - this._logZ);
+	}
+
+	/**
+	 * Returns the marginal probability of the label at the position in a linear-chain CRF,
+	 * after {@link #forwardBackward()}
+	 * @param pos
+	 * @param label
+	 * @return
+	 */
+	public double getEmissionMarginal(int pos, int label){
+		return this.getSegmentMarginal(pos, 1, label);
+	}
+
+	/**
+	 * Returns the marginal probability of the transition from prevLabel to a segment with the specified
+	 * label starting at the position (which should be at least 1), after {@link #forwardBackward()}
+	 * @param start
+	 * @param prevLabel
+	 * @param label
+	 * @return
+	 */
+	public double getTransitionMarginal(int start, int prevLabel, int label){
+		double score = this._alpha[start][prevLabel] + this._transitionScores[prevLabel][label] + this._betaIn[start][label];
+		return Math.exp(score - this._logZ);
+	}
+
+	/**
+	 * Returns the marginal probability that the last segment has the specified label,
+	 * after {@link #forwardBackward()}
+	 * @param label
+	 * @return
+	 */
+	public double getEndMarginal(int label){
+		return Math.exp(this._alpha[this._size][label] + this._endScores[label] - this._logZ);
+	}
+
+	/**
+	 * Run the Viterbi algorithm, and return the best segments as arrays of {start, length, label},
+	 * in order of their positions.
+	 * @return
+	 */
+	public List<int[]> viterbi(){
+		int size = this._size;
+		int numLabels = this._numLabels;
+
+		for(int end=1; end<=size; end++){
+			Arrays.fill(this._alpha[end], 0, numLabels, Double.NEGATIVE_INFINITY);
+		}
+		for(int start=0; start<size; start++){
+			for(int label=0; label<numLabels; label++){
+				if(start == 0){
+					this._alphaIn[start][label] = 0.0;
+					this._bestPrevLabel[start][label] = -1;
+					continue;
+				}
+				double best = Double.NEGATIVE_INFINITY;
+				int bestPrevLabel = -1;
+				for(int prevLabel=0; prevLabel<numLabels; prevLabel++){
+					double score = this._alpha[start][prevLabel] + this._transitionScores[prevLabel][label];
+					if(score > best || bestPrevLabel == -1){
+						best = score;
+						bestPrevLabel = prevLabel;
+					}
+				}
+				this._alphaIn[start][label] = best;
+				this._bestPrevLabel[start][label] = bestPrevLabel;
+			}
+			for(int label=0; label<numLabels; label++){
+				for(int end=start+1; end<=size && end-start<=this._maxLength; end++){
+					double score = this._alphaIn[start][label] + this._segmentScores[start][end-start-1][label];
+					if(score > this._alpha[end][label]){
+						this._alpha[end][label] = score;
+						this._bestLength[end][label] = end-start;
+					}
+				}
+			}
+		}
+		double best = Double.NEGATIVE_INFINITY;
+		int bestLabel = 0;
+		for(int label=0; label<numLabels; label++){
+			double score = this._alpha[size][label] + this._endScores[label];
+			if(score > best){
+				best = score;
+				bestLabel = label;
+			}
+		}
+		this._logZ = best;
+
+		List<int[]> segments = new ArrayList<int[]>();
+		int end = size;
+		int label = bestLabel;
+		while(end > 0){
+			int length = this._bestLength[end][label];
+			int start = end-length;
+			segments.add(0, new int[]{start, length, label});
+			label = this._bestPrevLabel[start][label];
+			end = start;
+		}
+		return segments;
+	}
+
+	/**
+	 * Returns the score of the best segmentation, after {@link #viterbi()}
+	 * @return
+	 */
+	public double getMaxScore(){
+		return this._logZ;
+	}
+
+	private static double logAdd(double a, double b){
+		if(a == Double.NEGATIVE_INFINITY){
+			return b;
+		}
+		if(b == Double.NEGATIVE_INFINITY){
+			return a;
+		}
+		if(a > b){
+			return a + Math.log1p(FastExp.exp(b-a));
+		}
+		return b + Math.log1p(FastExp.exp(a-b));
+	}
+
+	private static double logSumExp(double[] scores, int numScores){
+		double max = Double.NEGATIVE_INFINITY;
+		for(int i=0; i<numScores; i++){
+			if(scores[i] > max){
+				max = scores[i];
+			}
+		}
+		if(Double.isInfinite(max)){
+			return max;
+		}
+		double sum = 0.0;
+		for(int i=0; i<numScores; i++){
+			sum += FastExp.exp(scores[i]-max);
+		}
+		return max + Math.log(sum);
+	}
+
+	/**
+	 * Check the forward-backward, marginals, and Viterbi of this engine against the brute-force
+	 * enumeration of all labeled segmentations, for random scores
+	 * @param args
+	 */
+	public static void main(String[] args){
+		Random random = new Random(17);
+		DenseLattice lattice = new DenseLattice();
+		for(int maxLength: new int[]{1, 3}){
+			for(int size=1; size<=5; size++){
+				int numLabels = 3;
+				lattice.reset(size, numLabels, maxLength);
+				for(int start=0; start<size; start++){
+					for(int length=1; length<=maxLength && start+length<=size; length++){
+						for(int label=0; label<numLabels; label++){
+							lattice.setSegmentScore(start, length, label, random.nextGaussian()*3);
+						}
+					}
+				}
+				for(int label=0; label<numLabels; label++){
+					lattice.setEndScore(label, random.nextGaussian());
+					for(int prevLabel=0; prevLabel<numLabels; prevLabel++){
+						lattice.setTransitionScore(prevLabel, label, random.nextGaussian()*3);
+					}
+				}
+				double logZ = lattice.forwardBackward();
+				double[][][] segmentMarginals = new double[size][maxLength][numLabels];
+				for(int start=0; start<size; start++){
+					for(int length=1; length<=maxLength && start+length<=size; length++){
+						for(int label=0; label<numLabels; label++){
+							segmentMarginals[start][length-1][label] = lattice.getSegmentMarginal(start, length, label);
+						}
+					}
+				}
+				double[][][] transitionMarginals = new double[size][numLabels][numLabels];
+				for(int start=1; start<size; start++){
+					for(int prevLabel=0; prevLabel<numLabels; prevLabel++){
+						for(int label=0; label<numLabels; label++){
+							transitionMarginals[start][prevLabel][label] = lattice.getTransitionMarginal(start, prevLabel, label);
+						}
+					}
+				}
+				double[] endMarginals = new double[numLabels];
+				for(int label=0; label<numLabels; label++){
+					endMarginals[label] = lattice.getEndMarginal(label);
+				}
+				List<int[]> best = lattice.viterbi();
+
+				// Brute force
+				List<List<int[]>> allSegmentations = new ArrayList<List<int[]>>();
+				enumerate(0, size, numLabels, maxLength, new ArrayList<int[]>(), allSegmentations);
+				double[] scores = new double[allSegmentations.size()];
+				double bruteMax = Double.NEGATIVE_INFINITY;
+				for(int i=0; i<scores.length; i++){
+					scores[i] = lattice.score(allSegmentations.get(i));
+					bruteMax = Math.max(bruteMax, scores[i]);
+				}
+				double bruteLogZ = logSumExp(scores, scores.length);
+				double[][][] bruteSegment = new double[size][maxLength][numLabels];
+				double[][][] bruteTransition = new double[size][numLabels][numLabels];
+				double[] bruteEnd = new double[numLabels];
+				for(int i=0; i<scores.length; i++){
+					double prob = Math.exp(scores[i]-bruteLogZ);
+					int[] prev = null;
+					for(int[] segment: allSegmentations.get(i)){
+						bruteSegment[segment[0]][segment[1]-1][segment[2]] += prob;
+						if(prev != null){
+							bruteTransition[segment[0]][prev[2]][segment[2]] += prob;
+						}
+						prev = segment;
+					}
+					bruteEnd[prev[2]] += prob;
+				}
+
+				double maxError = Math.abs(logZ-bruteLogZ);
+				maxError = Math.max(maxError, Math.abs(lattice.score(best)-bruteMax));
+				maxError = Math.max(maxError, Math.abs(lattice.getMaxScore()-bruteMax));
+				for(int start=0; start<size; start++){
+					for(int length=1; length<=maxLength && start+length<=size; length++){
+						for(int label=0; label<numLabels; label++){
+							maxError = Math.max(maxError, Math.abs(segmentMarginals[start][length-1][label]-bruteSegment[start][length-1][label]));
+						}
+					}
+					for(int prevLabel=0; prevLabel<numLabels; prevLabel++){
+						for(int label=0; label<numLabels; label++){
+							maxError = Math.max(maxError, Math.abs(transitionMarginals[start][prevLabel][label]-bruteTransition[start][prevLabel][label]));
+						}
+					}
+				}
+				for(int label=0; label<numLabels; label++){
+					maxError = Math.max(maxError, Math.abs(endMarginals[label]-bruteEnd[label]));
+				}
+				System.out.println(String.format("size=%d maxLength=%d #segmentations=%d max error=%.3e", size, maxLength, scores.length, maxError));
+				if(maxError > 1e-9){
+					throw new RuntimeException("The dense lattice does not match the brute-force enumeration");
+				}
+			}
+		}
+	}
+
+	private double score(List<int[]> segments){
+		double score = 0.0;
+		int[] prev = null;
+		for(int[] segment: segments){
+			score += this._segmentScores[segment[0]][segment[1]-1][segment[2]];
+			if(prev != null){
+				score += this._transitionScores[prev[2]][segment[2]];
+			}
+			prev = segment;
+		}
+		return score + this._endScores[prev[2]];
+	}
+
+	private static void enumerate(int start, int size, int numLabels, int maxLength, List<int[]> current, List<List<int[]>> result){
+		if(start == size){
+			result.add(new ArrayList<int[]>(current));
+			return;
+		}
+		for(int length=1; length<=maxLength && start+length<=size; length++){
+			for(int label=0; label<numLabels; label++){
+				current.add(new int[]{start, length, label});
+				enumerate(start+length, size, numLabels, maxLength, current, result);
+				current.remove(current.size()-1);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.hybridnetworks;
+
+import com.statnlp.hybridnetworks.NetworkConfig.ExpMode;
+
+/**
+ * The exponential function used when summing scores in log space, as selected by {@link NetworkConfig#EXP_MODE}.<br>
+ * The approximations are only meant for non-positive arguments (which is the case in log-sum-exp,
+ * where the maximum is subtracted first), and return 0.0 for arguments below {@link #MIN_EXPONENT},
+ * which is negligible compared to the maximum term.
+ */
+public class FastExp {
+
+	/** Below this value the exponential is considered to be zero */
+	public static final double MIN_EXPONENT = -40.0;
+
+	/** The number of table entries per unit in the table approximation */
+	private static final int TABLE_RESOLUTION = 256;
+	/** exp(-i/TABLE_RESOLUTION) for i from 0 to -MIN_EXPONENT*TABLE_RESOLUTION (inclusive) */
+	private static final double[] TABLE;
+
+	private static final double LN2 = Math.log(2.0);
+	private static final double INV_LN2 = 1.0/LN2;
+
+	static {
+		TABLE = new double[(int)(-MIN_EXPONENT*TABLE_RESOLUTION)+2];
+		for(int i=0; i<TABLE.length; i++){
+			TABLE[i] = Math.exp(-(double)i/TABLE_RESOLUTION);
+		}
+	}
+
+	/**
+	 * Returns the exponential of x, using the method specified in {@link NetworkConfig#EXP_MODE}
+	 * @param x
+	 * @return
+	 */
+	public static double exp(double x){
+		switch(NetworkConfig.EXP_MODE){
+		case TABLE:
+			return tableExp(x);
+		case POLYNOMIAL:
+			return polynomialExp(x);
+		default:
+			return Math.exp(x);
+		}
+	}
+
+	/**
+	 * Returns the exponential of non-positive x using linear interpolation of a precomputed table.<br>
+	 * The relative error is at most 2E-6.
+	 * @param x
+	 * @return
+	 */
+	public static double tableExp(double x){
+		if(x > 0 || Double.isNaN(x)){
+			return Math.exp(x);
+		}
+		if(x < MIN_EXPONENT){
+			return 0.0;
+		}
+		double pos = -x*TABLE_RESOLUTION;
+		int idx = (int)pos;
+		double frac = pos-idx;
+		return TABLE[idx] + (TABLE[idx+1]-TABLE[idx])*frac;
+	}
+
+	/**
+	 * Returns the exponential of non-positive x by reducing it into x = n*ln(2) + r with |r| <= ln(2)/2,
+	 * and evaluating exp(r) with a polynomial of degree 7.<br>
+	 * The relative error is at most 1E-8.
+	 * @param x
+	 * @return
+	 */
+	public static double polynomialExp(double x){
+		if(x > 0 || Double.isNaN(x)){
+			return Math.exp(x);
+		}
+		if(x < MIN_EXPONENT){
+			return 0.0;
+		}
+		int n = (int)Math.floor(x*INV_LN2+0.5);
+		double r = x-n*LN2;
+		double p = 1.0+r*(1.0+r*(1.0/2+r*(1.0/6+r*(1.0/24+r*(1.0/120+r*(1.0/720+r*(1.0/5040)))))));
+		return p*Double.longBitsToDouble((long)(n+1023) << 52);
+	}
+
+	/**
+	 * Check the maximum relative error of each approximation against {@link Math#exp(double)}
+	 * @param args
+	 */
+	public static void main(String[] args){
+		double[] bounds = new double[]{0.0, 2e-6, 1e-8};
+		for(ExpMode mode: ExpMode.values()){
+			NetworkConfig.EXP_MODE = mode;
+			double maxError = 0.0;
+			for(double x=0.0; x>=MIN_EXPONENT; x-=1e-4){
+				double exact = Math.exp(x);
+				double error = Math.abs(exp(x)-exact)/exact;
+				maxError = Math.max(maxError, error);
+			}
+			System.out.println(String.format("%s: max relative error = %.3e", mode, maxError));
+			if(maxError > bounds[mode.ordinal()]){
+				throw new RuntimeException("The error of "+mode+" exceeds the bound "+bounds[mode.ordinal()]);
+			}
+		}
+		NetworkConfig.EXP_MODE = ExpMode.EXACT;
+	}
+
+}
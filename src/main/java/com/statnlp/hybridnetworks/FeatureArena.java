@@ -0,0 +1,709 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.hybridnetworks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The cache of the features of each hyperedge of the networks in one thread, packed into arrays.<br>
+ * Each segment of the {@link FeatureArray} of a hyperedge is a factor, whose features are stored contiguously
+ * in a single int array shared by all networks. The factors are interned by their features, so a factor
+ * appearing in many hyperedges (e.g., the transition features of a label pair, or the features of a segment
+ * shared by several hyperedges) is stored once. Each hyperedge is then the list of its factors, located by
+ * the start and end offsets of the hyperedge, indexed by the network ID and the edge ID
+ * (see {@link Network#getEdgeId(int, int)}).<br>
+ * The score of each factor is computed once for each version of the weights (see {@link GlobalNetworkParam#getVersion()}),
+ * and the score of a hyperedge is the sum of the scores of its factors. If {@link NetworkConfig#CACHE_FEATURE_SCORES}
+ * is true, the score of each hyperedge is also kept until the weights change, so that repeated calls in the same
+ * iteration (e.g., max, k-best, and beam decoding of the same network) do not sum the factors again.<br>
+ * When the hyperedge data of the networks kept in memory exceeds {@link NetworkConfig#FEATURE_CACHE_HEAP_BUDGET},
+ * the data of each further network is moved to a memory-mapped file once all its hyperedges are cached
+ * (see {@link #finish(int)}), and read from there directly. The factors themselves always stay in memory.
+ * The memory-mapped data is not serialized.
+ */
+public class FeatureArena implements Serializable{
+
+	private static final long serialVersionUID = 2947152735540212868L;
+
+	/** The start offset of a hyperedge whose features are not in the arena */
+	private static final int ABSENT = -1;
+	/** The start offset of a hyperedge whose features are {@link FeatureArray#NEGATIVE_INFINITY} */
+	private static final int DISABLED = -2;
+
+	/** The features of all factors */
+	private int[] _features;
+	/** The number of features used in {@link #_features} */
+	private int _size;
+	/** The start offset of the features of each factor */
+	private int[] _factorStarts;
+	/** The end offset (exclusive) of the features of each factor */
+	private int[] _factorEnds;
+	/** The number of distinct factors */
+	private int _numFactors;
+	/** The open-addressing hash table of the factors, keyed by their features, storing the factor IDs, or -1 */
+	private int[] _factorTable;
+	
+	/** The factors of all hyperedges in each network */
+	private int[][] _edgeFactors;
+	/** The number of factors used in {@link #_edgeFactors} for each network */
+	private int[] _edgeSizes;
+	/** The start offset of the factors of each hyperedge in each network */
+	private int[][] _starts;
+	/** The end offset (exclusive) of the factors of each hyperedge in each network */
+	private int[][] _ends;
+	/** The memory used by {@link #_edgeFactors}, {@link #_starts}, and {@link #_ends}, in bytes */
+	private long _heapBytes;
+	
+	/** The number of ints in each memory-mapped chunk of the file */
+	private static final int CHUNK_INTS = 1 << 24;
+	/** The file storing the data of the networks moved out of memory */
+	private transient FileChannel _spillChannel;
+	/** The size of the file, in bytes */
+	private transient long _spillFileSize;
+	/** The memory-mapped chunks of the file */
+	private transient List<IntBuffer> _chunks;
+	/** The chunk containing the data of each network moved to the file, or null for the networks in memory */
+	private transient IntBuffer[] _spilledChunks;
+	/**
+	 * The offset of the data of each network moved to the file in its chunk.<br>
+	 * The data is the start offsets of the hyperedges, followed by their end offsets, then the factors,
+	 * where the offsets are relative to the start of the factors.
+	 */
+	private transient int[] _spilledOffsets;
+	/** The number of edge IDs of each network moved to the file */
+	private transient int[] _spilledNumEdges;
+	/** The number of networks moved to the file */
+	private int _numSpilled;
+	
+	/** The score of each factor, or NaN if not computed yet for the current version of the weights */
+	private transient double[] _factorScores;
+	/**
+	 * The score of each hyperedge in each network, or NaN if not computed yet for the current version of the weights.<br>
+	 * Only for the networks in memory, when {@link NetworkConfig#CACHE_FEATURE_SCORES} is true.
+	 */
+	private transient double[][] _edgeScores;
+	/** The version of the weights of the scores in {@link #_factorScores} and {@link #_edgeScores} */
+	private transient volatile int _scoreVersion = Integer.MIN_VALUE;
+	
+	/** The number of hyperedges stored */
+	private long _numHyperedges;
+	/** The number of factors stored, including the repeated ones */
+	private long _numSegments;
+	/** The number of factors stored which were already in the arena */
+	private long _numShared;
+	/** The number of features not stored because of the sharing */
+	private long _numSavedFeatures;
+
+	public FeatureArena(int numNetworks){
+		this._features = new int[1024];
+		this._size = 0;
+		this._factorStarts = new int[256];
+		this._factorEnds = new int[256];
+		this._numFactors = 0;
+		this._factorTable = new int[512];
+		Arrays.fill(this._factorTable, -1);
+		this._edgeFactors = new int[numNetworks][];
+		this._edgeSizes = new int[numNetworks];
+		this._starts = new int[numNetworks][];
+		this._ends = new int[numNetworks][];
+	}
+
+	/**
+	 * Returns whether the features of the specified hyperedge are in the arena
+	 * @param networkId
+	 * @param edgeId
+	 * @return
+	 */
+	public boolean contains(int networkId, int edgeId){
+		int[] starts = this._starts[networkId];
+		if(starts == null){
+			return this.isSpilled(networkId) && this.spilledStart(networkId, edgeId) != ABSENT;
+		}
+		return starts[edgeId] != ABSENT;
+	}
+
+	/**
+	 * Store the features of the specified hyperedge, one factor for each non-empty segment of the feature array
+	 * @param networkId
+	 * @param numEdges The number of edge IDs in the network
+	 * @param edgeId
+	 * @param fa
+	 */
+	public void put(int networkId, int numEdges, int edgeId, FeatureArray fa){
+		if(this.isSpilled(networkId)){
+			// The network is not expected to have new hyperedges, these are simply not cached
+			return;
+		}
+		if(this._starts[networkId] == null){
+			this._starts[networkId] = new int[numEdges];
+			this._ends[networkId] = new int[numEdges];
+			this._edgeFactors[networkId] = new int[Math.max(numEdges, 4)];
+			Arrays.fill(this._starts[networkId], ABSENT);
+			this._heapBytes += 4L*(2*numEdges + this._edgeFactors[networkId].length);
+			if(NetworkConfig.CACHE_FEATURE_SCORES){
+				if(this._edgeScores == null){
+					this._edgeScores = new double[this._starts.length][];
+				}
+				this._edgeScores[networkId] = new double[numEdges];
+				Arrays.fill(this._edgeScores[networkId], Double.NaN);
+				this._heapBytes += 8L*numEdges;
+			}
+		}
+		if(fa == FeatureArray.NEGATIVE_INFINITY){
+			this._starts[networkId][edgeId] = DISABLED;
+			return;
+		}
+		this._numHyperedges++;
+		int[] edgeFactors = this._edgeFactors[networkId];
+		int start = this._edgeSizes[networkId];
+		int size = start;
+		for(FeatureArray segment = fa; segment != null; segment = segment.getNext()){
+			int[] fs = segment.getCurrent();
+			if(fs.length == 0){
+				continue;
+			}
+			int factorId = this.toFactor(fs);
+			if(size == edgeFactors.length){
+				edgeFactors = Arrays.copyOf(edgeFactors, 2*edgeFactors.length);
+				this._heapBytes += 4L*size;
+				this._edgeFactors[networkId] = edgeFactors;
+			}
+			edgeFactors[size++] = factorId;
+		}
+		this._edgeSizes[networkId] = size;
+		this._starts[networkId][edgeId] = start;
+		this._ends[networkId][edgeId] = size;
+	}
+	
+	/**
+	 * Called when all hyperedges of the specified network are in the arena.<br>
+	 * This releases the unused space of the network, and moves its data to the memory-mapped file
+	 * if the data in memory exceeds {@link NetworkConfig#FEATURE_CACHE_HEAP_BUDGET}.
+	 * @param networkId
+	 */
+	public void finish(int networkId){
+		int[] edgeFactors = this._edgeFactors[networkId];
+		if(edgeFactors == null){
+			return;
+		}
+		int size = this._edgeSizes[networkId];
+		if(size < edgeFactors.length){
+			this._edgeFactors[networkId] = Arrays.copyOf(edgeFactors, size);
+			this._heapBytes -= 4L*(edgeFactors.length-size);
+		}
+		if(NetworkConfig.FEATURE_CACHE_HEAP_BUDGET >= 0 && this._heapBytes > NetworkConfig.FEATURE_CACHE_HEAP_BUDGET){
+			this.spill(networkId);
+		}
+	}
+	
+	/**
+	 * Move the data of the specified network to the memory-mapped file
+	 * @param networkId
+	 */
+	private void spill(int networkId){
+		int[] starts = this._starts[networkId];
+		int[] ends = this._ends[networkId];
+		int[] edgeFactors = this._edgeFactors[networkId];
+		int numEdges = starts.length;
+		int size = this._edgeSizes[networkId];
+		int length = 2*numEdges + size;
+		if(this._spilledChunks == null){
+			int numNetworks = this._starts.length;
+			this._spilledChunks = new IntBuffer[numNetworks];
+			this._spilledOffsets = new int[numNetworks];
+			this._spilledNumEdges = new int[numNetworks];
+			this._chunks = new ArrayList<IntBuffer>();
+		}
+		IntBuffer chunk = this._chunks.isEmpty() ? null : this._chunks.get(this._chunks.size()-1);
+		if(chunk == null || chunk.remaining() < length){
+			chunk = this.mapChunk(Math.max(CHUNK_INTS, length));
+		}
+		int offset = chunk.position();
+		for(int edgeId=0; edgeId<numEdges; edgeId++){
+			chunk.put(offset+edgeId, starts[edgeId]);
+			chunk.put(offset+numEdges+edgeId, ends[edgeId]);
+		}
+		for(int i=0; i<size; i++){
+			chunk.put(offset+2*numEdges+i, edgeFactors[i]);
+		}
+		chunk.position(offset+length);
+		this._spilledChunks[networkId] = chunk;
+		this._spilledOffsets[networkId] = offset;
+		this._spilledNumEdges[networkId] = numEdges;
+		this._numSpilled++;
+		this._heapBytes -= 4L*(2*numEdges + edgeFactors.length);
+		if(this._edgeScores != null && this._edgeScores[networkId] != null){
+			this._heapBytes -= 8L*numEdges;
+			this._edgeScores[networkId] = null;
+		}
+		this._starts[networkId] = null;
+		this._ends[networkId] = null;
+		this._edgeFactors[networkId] = null;
+	}
+	
+	/**
+	 * Map a new chunk with the specified number of ints at the end of the file, creating the file if needed
+	 * @param numInts
+	 * @return
+	 */
+	private IntBuffer mapChunk(int numInts){
+		try{
+			if(this._spillChannel == null){
+				File dir = NetworkConfig.FEATURE_CACHE_DIR == null ? null : new File(NetworkConfig.FEATURE_CACHE_DIR);
+				File file = File.createTempFile("features-", ".cache", dir);
+				this._spillChannel = new RandomAccessFile(file, "rw").getChannel();
+				// The mapped chunks stay valid after the file is deleted, where supported
+				if(!file.delete()){
+					file.deleteOnExit();
+				}
+				this._spillFileSize = 0;
+			}
+			long numBytes = 4L*numInts;
+			IntBuffer chunk = this._spillChannel.map(MapMode.READ_WRITE, this._spillFileSize, numBytes)
+					.order(ByteOrder.nativeOrder()).asIntBuffer();
+			this._spillFileSize += numBytes;
+			this._chunks.add(chunk);
+			return chunk;
+		} catch (IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private boolean isSpilled(int networkId){
+		return this._spilledChunks != null && this._spilledChunks[networkId] != null;
+	}
+	
+	private int spilledStart(int networkId, int edgeId){
+		return this._spilledChunks[networkId].get(this._spilledOffsets[networkId]+edgeId);
+	}
+	
+	/**
+	 * Returns the ID of the factor with the specified features, adding it to the arena if it is not there yet
+	 * @param fs
+	 * @return
+	 */
+	private int toFactor(int[] fs){
+		this._numSegments++;
+		int mask = this._factorTable.length-1;
+		int slot = hash(fs) & mask;
+		while(this._factorTable[slot] >= 0){
+			int factorId = this._factorTable[slot];
+			if(this.hasFeatures(factorId, fs)){
+				this._numShared++;
+				this._numSavedFeatures += fs.length;
+				return factorId;
+			}
+			slot = (slot+1) & mask;
+		}
+		if(this._numFactors == this._factorStarts.length){
+			this._factorStarts = Arrays.copyOf(this._factorStarts, 2*this._numFactors);
+			this._factorEnds = Arrays.copyOf(this._factorEnds, 2*this._numFactors);
+		}
+		if(this._size+fs.length > this._features.length){
+			this._features = Arrays.copyOf(this._features, Math.max(this._size+fs.length, 2*this._features.length));
+		}
+		int factorId = this._numFactors++;
+		System.arraycopy(fs, 0, this._features, this._size, fs.length);
+		this._factorStarts[factorId] = this._size;
+		this._size += fs.length;
+		this._factorEnds[factorId] = this._size;
+		this._factorTable[slot] = factorId;
+		if(this._factorScores != null){
+			if(factorId >= this._factorScores.length){
+				int oldLength = this._factorScores.length;
+				this._factorScores = Arrays.copyOf(this._factorScores, Math.max(factorId+1, 2*oldLength));
+				Arrays.fill(this._factorScores, oldLength, this._factorScores.length, Double.NaN);
+			}
+			this._factorScores[factorId] = Double.NaN;
+		}
+		if(2*this._numFactors > this._factorTable.length){
+			this.rehash();
+		}
+		return factorId;
+	}
+	
+	private static int hash(int[] fs){
+		int hash = Arrays.hashCode(fs);
+		return hash ^ (hash >>> 16);
+	}
+	
+	private static int hash(int[] features, int start, int end){
+		int hash = 1;
+		for(int i=start; i<end; i++){
+			hash = 31*hash + features[i];
+		}
+		return hash ^ (hash >>> 16);
+	}
+	
+	private boolean hasFeatures(int factorId, int[] fs){
+		int start = this._factorStarts[factorId];
+		if(this._factorEnds[factorId]-start != fs.length){
+			return false;
+		}
+		for(int i=0; i<fs.length; i++){
+			if(this._features[start+i] != fs[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private void rehash(){
+		this.rebuildFactorTable(2*this._factorTable.length);
+	}
+	
+	private void rebuildFactorTable(int length){
+		this._factorTable = new int[length];
+		Arrays.fill(this._factorTable, -1);
+		int mask = this._factorTable.length-1;
+		for(int factorId=0; factorId<this._numFactors; factorId++){
+			int slot = hash(this._features, this._factorStarts[factorId], this._factorEnds[factorId]) & mask;
+			while(this._factorTable[slot] >= 0){
+				slot = (slot+1) & mask;
+			}
+			this._factorTable[slot] = factorId;
+		}
+	}
+
+	/**
+	 * Change each feature in the arena to the specified new feature, where the features with a new feature of -1
+	 * are removed from their factors.<br>
+	 * The scores of the factors and the hyperedges are computed again afterwards.
+	 * @param newIds The new feature of each feature
+	 * @see LocalNetworkParam#removeFeatures(int[])
+	 */
+	public void mapFeatures(int[] newIds){
+		int[] features = this._features;
+		int size = 0;
+		for(int factorId=0; factorId<this._numFactors; factorId++){
+			int start = this._factorStarts[factorId];
+			int end = this._factorEnds[factorId];
+			this._factorStarts[factorId] = size;
+			for(int i=start; i<end; i++){
+				int f = features[i] < 0 ? -1 : newIds[features[i]];
+				if(f >= 0){
+					features[size++] = f;
+				}
+			}
+			this._factorEnds[factorId] = size;
+		}
+		this._size = size;
+		this.rebuildFactorTable(this._factorTable.length);
+		this._scoreVersion = Integer.MIN_VALUE;
+	}
+
+	/**
+	 * Returns the sum of the weights of the features of the specified hyperedge, which must be in the arena.<br>
+	 * The score of each factor is reused until the weights change.
+	 * @param networkId
+	 * @param edgeId
+	 * @param param
+	 * @return
+	 * @see FeatureArray#getScore(LocalNetworkParam)
+	 */
+	public double getScore(int networkId, int edgeId, LocalNetworkParam param){
+		int[] starts = this._starts[networkId];
+		if(starts == null){
+			return this.getSpilledScore(networkId, edgeId, param);
+		}
+		int start = starts[edgeId];
+		if(start == DISABLED){
+			return FeatureArray.NEGATIVE_INFINITY.getScore(param);
+		}
+		double[] factorScores = this.getFactorScores(param);
+		double[] edgeScores = this._edgeScores == null ? null : this._edgeScores[networkId];
+		if(edgeScores != null){
+			double score = edgeScores[edgeId];
+			if(!Double.isNaN(score)){
+				return score;
+			}
+		}
+		int end = this._ends[networkId][edgeId];
+		int[] edgeFactors = this._edgeFactors[networkId];
+		double score = 0.0;
+		for(int i=start; i<end; i++){
+			score += this.getFactorScore(edgeFactors[i], param, factorScores);
+		}
+		if(edgeScores != null){
+			edgeScores[edgeId] = score;
+		}
+		return score;
+	}
+	
+	private double getSpilledScore(int networkId, int edgeId, LocalNetworkParam param){
+		IntBuffer chunk = this._spilledChunks[networkId];
+		int offset = this._spilledOffsets[networkId];
+		int start = chunk.get(offset+edgeId);
+		if(start == DISABLED){
+			return FeatureArray.NEGATIVE_INFINITY.getScore(param);
+		}
+		double[] factorScores = this.getFactorScores(param);
+		int numEdges = this._spilledNumEdges[networkId];
+		int end = chunk.get(offset+numEdges+edgeId);
+		int factorOffset = offset+2*numEdges;
+		double score = 0.0;
+		for(int i=start; i<end; i++){
+			score += this.getFactorScore(chunk.get(factorOffset+i), param, factorScores);
+		}
+		return score;
+	}
+	
+	/**
+	 * Returns the score of each factor for the current version of the weights, which are NaN if not computed yet.<br>
+	 * This also makes sure that the scores of the hyperedges are for the current version of the weights.
+	 * @param param
+	 * @return
+	 */
+	private double[] getFactorScores(LocalNetworkParam param){
+		int version = param.getVersion();
+		if(version != this._scoreVersion){
+			this.resetScores(version);
+		}
+		return this._factorScores;
+	}
+	
+	private double getFactorScore(int factorId, LocalNetworkParam param, double[] factorScores){
+		double factorScore = factorScores[factorId];
+		if(Double.isNaN(factorScore)){
+			// Several threads might compute the same factor in the parallel inside pass, with the same result
+			factorScore = this.computeScore(factorId, param);
+			factorScores[factorId] = factorScore;
+		}
+		return factorScore;
+	}
+	
+	/**
+	 * Forget the scores of all factors and hyperedges, which were computed with an older version of the weights.<br>
+	 * The new version is set last, so that the threads seeing it also see the forgotten scores.
+	 * @param version
+	 */
+	private synchronized void resetScores(int version){
+		if(version == this._scoreVersion){
+			return;
+		}
+		if(this._factorScores == null || this._factorScores.length < this._numFactors){
+			this._factorScores = new double[Math.max(this._numFactors, this._factorStarts.length)];
+		}
+		Arrays.fill(this._factorScores, Double.NaN);
+		if(this._edgeScores != null){
+			for(double[] edgeScores: this._edgeScores){
+				if(edgeScores != null){
+					Arrays.fill(edgeScores, Double.NaN);
+				}
+			}
+		}
+		this._scoreVersion = version;
+	}
+	
+	private double computeScore(int factorId, LocalNetworkParam param){
+		int[] features = this._features;
+		int end = this._factorEnds[factorId];
+		double score = 0.0;
+		for(int i=this._factorStarts[factorId]; i<end; i++){
+			int f = features[i];
+			if(f != -1){
+				score += param.getWeight(f);
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Add the count to each feature of the specified hyperedge, which must be in the arena
+	 * @param networkId
+	 * @param edgeId
+	 * @param param
+	 * @param count
+	 * @see FeatureArray#update(LocalNetworkParam, double)
+	 */
+	public void update(int networkId, int edgeId, LocalNetworkParam param, double count){
+		int[] starts = this._starts[networkId];
+		if(starts == null){
+			this.updateSpilled(networkId, edgeId, param, count);
+			return;
+		}
+		int start = starts[edgeId];
+		if(start == DISABLED){
+			return;
+		}
+		int end = this._ends[networkId][edgeId];
+		int[] edgeFactors = this._edgeFactors[networkId];
+		for(int i=start; i<end; i++){
+			this.updateFactor(edgeFactors[i], param, count);
+		}
+	}
+	
+	private void updateSpilled(int networkId, int edgeId, LocalNetworkParam param, double count){
+		IntBuffer chunk = this._spilledChunks[networkId];
+		int offset = this._spilledOffsets[networkId];
+		int start = chunk.get(offset+edgeId);
+		if(start == DISABLED){
+			return;
+		}
+		int numEdges = this._spilledNumEdges[networkId];
+		int end = chunk.get(offset+numEdges+edgeId);
+		int factorOffset = offset+2*numEdges;
+		for(int i=start; i<end; i++){
+			this.updateFactor(chunk.get(factorOffset+i), param, count);
+		}
+	}
+	
+	private void updateFactor(int factorId, LocalNetworkParam param, double count){
+		int[] features = this._features;
+		int end = this._factorEnds[factorId];
+		for(int i=this._factorStarts[factorId]; i<end; i++){
+			param.addCount(features[i], count);
+		}
+	}
+
+	/**
+	 * Returns the features of the specified hyperedge, which must be in the arena, as a new FeatureArray
+	 * with one segment for each factor
+	 * @param networkId
+	 * @param edgeId
+	 * @param isLocal Whether the features are local feature indices
+	 * @return
+	 */
+	public FeatureArray get(int networkId, int edgeId, boolean isLocal){
+		int[] factors = this.getFactors(networkId, edgeId);
+		if(factors == null){
+			return FeatureArray.NEGATIVE_INFINITY;
+		}
+		if(factors.length == 0){
+			return new FeatureArray(new int[0], null, isLocal);
+		}
+		FeatureArray result = null;
+		for(int i=factors.length-1; i>=0; i--){
+			int factorId = factors[i];
+			int[] fs = Arrays.copyOfRange(this._features, this._factorStarts[factorId], this._factorEnds[factorId]);
+			result = new FeatureArray(fs, result, isLocal);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the factor IDs of the specified hyperedge, which must be in the arena, or null if it is disabled
+	 * @param networkId
+	 * @param edgeId
+	 * @return
+	 */
+	private int[] getFactors(int networkId, int edgeId){
+		int[] starts = this._starts[networkId];
+		if(starts == null){
+			IntBuffer chunk = this._spilledChunks[networkId];
+			int offset = this._spilledOffsets[networkId];
+			int numEdges = this._spilledNumEdges[networkId];
+			int start = chunk.get(offset+edgeId);
+			if(start == DISABLED){
+				return null;
+			}
+			int[] factors = new int[chunk.get(offset+numEdges+edgeId)-start];
+			for(int i=0; i<factors.length; i++){
+				factors[i] = chunk.get(offset+2*numEdges+start+i);
+			}
+			return factors;
+		}
+		int start = starts[edgeId];
+		if(start == DISABLED){
+			return null;
+		}
+		return Arrays.copyOfRange(this._edgeFactors[networkId], start, this._ends[networkId][edgeId]);
+	}
+	
+	/**
+	 * Returns the number of features stored in the arena
+	 * @return
+	 */
+	public int size(){
+		return this._size;
+	}
+	
+	/**
+	 * Returns the number of distinct factors stored in the arena
+	 * @return
+	 */
+	public int numFactors(){
+		return this._numFactors;
+	}
+	
+	/**
+	 * Returns the number of hyperedges stored in the arena
+	 * @return
+	 */
+	public long numHyperedges(){
+		return this._numHyperedges;
+	}
+	
+	/**
+	 * Returns the number of factors of all hyperedges stored in the arena, including the repeated ones
+	 * @return
+	 */
+	public long numSegments(){
+		return this._numSegments;
+	}
+	
+	/**
+	 * Returns the number of factors of the hyperedges which were already in the arena
+	 * @return
+	 */
+	public long numShared(){
+		return this._numShared;
+	}
+	
+	/**
+	 * Returns the memory used by the hyperedge data of the networks kept in memory, in bytes
+	 * @return
+	 */
+	public long heapBytes(){
+		return this._heapBytes;
+	}
+	
+	/**
+	 * Returns the number of networks whose hyperedge data was moved to the memory-mapped file
+	 * @return
+	 */
+	public int numSpilled(){
+		return this._numSpilled;
+	}
+	
+	/**
+	 * Returns the size of the memory-mapped file, in bytes
+	 * @return
+	 */
+	public long spilledBytes(){
+		return this._spillFileSize;
+	}
+	
+	/**
+	 * Returns the number of bytes saved by sharing the factors
+	 * @return
+	 */
+	public long bytesSaved(){
+		return 4*this._numSavedFeatures;
+	}
+
+}
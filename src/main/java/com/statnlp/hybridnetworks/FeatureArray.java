@@ -23,6 +23,7 @@ public class FeatureArray implements Serializable{
 	
 	private static final long serialVersionUID = 9170537017171193020L;
 	
+	/** The fixed score of a feature array created with {@link #FeatureArray(double)}, such as {@link #NEGATIVE_INFINITY} */
 	private double _score;
 	private int[] _fs;
 	private boolean _isLocal = false;
@@ -50,6 +51,18 @@ public class FeatureArray implements Serializable{
 		this._next = null;
 	}
 	
+	/**
+	 * Construct a feature array segment, already converted to local feature indices if isLocal is true
+	 * @param fs
+	 * @param next
+	 * @param isLocal
+	 */
+	FeatureArray(int[] fs, FeatureArray next, boolean isLocal) {
+		this._fs = fs;
+		this._next = next;
+		this._isLocal = isLocal;
+	}
+	
 	public FeatureArray(double score) {
 		this._score = score;
 	}
@@ -62,8 +75,10 @@ public class FeatureArray implements Serializable{
 			return this;
 		}
 		
+		// The features not found are -1 when extracting only from labeled networks, or after pruning
+		boolean skipMissing = NetworkConfig._BUILD_FEATURES_FROM_LABELED_ONLY || param._hasRemovedFeatures;
 		int length = this._fs.length;
-		if(NetworkConfig._BUILD_FEATURES_FROM_LABELED_ONLY){
+		if(skipMissing){
 			for(int fs: this._fs){
 				if(fs == -1){
 					length--;
@@ -74,15 +89,11 @@ public class FeatureArray implements Serializable{
 		int[] fs_local = new int[length];
 		int localIdx = 0;
 		for(int k = 0; k<this._fs.length; k++, localIdx++){
-			if(this._fs[k] == -1 && NetworkConfig._BUILD_FEATURES_FROM_LABELED_ONLY){
+			if(this._fs[k] == -1 && skipMissing){
 				localIdx--;
 				continue;
 			}
-			if(NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION || NetworkConfig._numThreads == 1 || param._isFinalized){
-				fs_local[localIdx] = param.toLocalFeature(this._fs[k]);
-			} else {
-				fs_local[localIdx] = this._fs[k];
-			}
+			fs_local[localIdx] = param.toLocalFeature(this._fs[k]);
 			if(fs_local[localIdx]==-1){
 				throw new RuntimeException("The local feature got an id of -1 for "+this._fs[k]);
 			}
@@ -98,6 +109,36 @@ public class FeatureArray implements Serializable{
 		return fa;
 	}
 	
+	/**
+	 * Returns a copy of this feature array with the features renumbered by the specified new IDs,
+	 * without the features whose new ID is -1
+	 * @param newIds
+	 * @return
+	 * @see LocalNetworkParam#mapRenumberedFeatures(FeatureArray)
+	 */
+	FeatureArray mapFeatures(int[] newIds){
+		if(this._fs == null){
+			return this;
+		}
+		int length = 0;
+		for(int f: this._fs){
+			if(f == -1 || newIds[f] >= 0){
+				length++;
+			}
+		}
+		int[] fs = new int[length];
+		int idx = 0;
+		for(int f: this._fs){
+			if(f == -1){
+				fs[idx++] = -1;
+			} else if(newIds[f] >= 0){
+				fs[idx++] = newIds[f];
+			}
+		}
+		FeatureArray next = this._next != null ? this._next.mapFeatures(newIds) : null;
+		return new FeatureArray(fs, next, this._isLocal);
+	}
+	
 	public int[] getCurrent(){
 		return this._fs;
 	}
@@ -116,7 +157,9 @@ public class FeatureArray implements Serializable{
 		
 		int[] fs_local = this.getCurrent();
 		for(int f_local : fs_local){
-			param.addCount(f_local, count);
+			if(f_local != -1){
+				param.addCount(f_local, count);
+			}
 		}
 		
 		if(this._next!=null){
@@ -143,13 +186,16 @@ public class FeatureArray implements Serializable{
 			return this._score;
 		}
 		
-		this._score = this.computeScore(param, this.getCurrent());
+		// The score is not stored in this object, since the same feature array may be scored by several
+		// threads concurrently (e.g., in the parallel inside pass, or by decoders in global mode).
+		// The scores are cached per version of the weights in the FeatureArena instead.
+		double score = this.computeScore(param, this.getCurrent());
 		
 		if(this._next!=null){
-			this._score += this._next.getScore(param);
+			score += this._next.getScore(param);
 		}
 		
-		return this._score;
+		return score;
 	}
 	
 	private double computeScore(LocalNetworkParam param, int[] fs){
@@ -190,30 +236,26 @@ public class FeatureArray implements Serializable{
 	
 	@Override
 	public int hashCode(){
-		int code = 0;
-		for(int i = 0; i<this._fs.length; i++){
-			code ^= this._fs[i];
-		}
+		int code = Arrays.hashCode(this._fs);
 		if(this._next != null){
-			code = code ^ this._next.hashCode();
+			code = 31*code + this._next.hashCode();
 		}
-		return code;
+		return this._isLocal ? ~code : code;
 	}
 	
+	/**
+	 * Two feature arrays are equal if they have the same features in the same segments, and both are local
+	 * or both are global.
+	 */
 	@Override
 	public boolean equals(Object o){
 		if(o instanceof FeatureArray){
 			FeatureArray fa = (FeatureArray)o;
-			for(int k = 0; k< this._fs.length; k++){
-				if(this._fs[k]!=fa._fs[k]){
-					return false;
-				}
+			if(this._isLocal != fa._isLocal || !Arrays.equals(this._fs, fa._fs)){
+				return false;
 			}
 			if(this._next == null){
-				if(fa._next!=null){
-					return false;
-				}
-				return true;
+				return fa._next == null;
 			} else {
 				return this._next.equals(fa._next);
 			}
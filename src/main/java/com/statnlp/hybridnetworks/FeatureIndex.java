@@ -0,0 +1,328 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.hybridnetworks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The feature dictionary, which maps each feature (a tuple of feature type, output, and input) to its ID.<br>
+ * The types, the outputs, and the inputs are each interned into int IDs, each pair of type and output into
+ * a type-output ID, and the features are kept in a single open-addressing table keyed on the type-output ID
+ * and the input ID, with primitive values. So there is no boxed value, and no map for each type and output.<br>
+ * Lookups with {@link #get(String, String, String)} can be done concurrently as long as no feature is added.<br>
+ * Only the strings and the used entries of the tables are serialized, and the tables are rebuilt when read.
+ */
+public class FeatureIndex implements Serializable, Iterable<FeatureIndex.Feature>{
+
+	private static final long serialVersionUID = 6043177468958829741L;
+
+	/**
+	 * A feature in the index, as returned by {@link FeatureIndex#iterator()}
+	 */
+	public static class Feature {
+		public final String type;
+		public final String output;
+		public final String input;
+		/** The ID of the type and output of this feature, less than {@link FeatureIndex#countTypeOutputs()} */
+		public final int typeOutputId;
+		public final int id;
+
+		private Feature(String type, String output, String input, int typeOutputId, int id){
+			this.type = type;
+			this.output = output;
+			this.input = input;
+			this.typeOutputId = typeOutputId;
+			this.id = id;
+		}
+	}
+
+	/**
+	 * Interns strings into consecutive IDs, using open addressing
+	 */
+	private static class SymbolTable {
+
+		/** The string of each ID */
+		private String[] _symbols;
+		/** The number of strings */
+		private int _size;
+		/** The ID at each slot, or -1 for empty slots */
+		private int[] _table;
+
+		private SymbolTable(){
+			this._symbols = new String[16];
+			this._table = new int[32];
+			Arrays.fill(this._table, -1);
+		}
+
+		/**
+		 * Returns the ID of the specified string, or -1 if it is not interned
+		 * @param symbol
+		 * @return
+		 */
+		private int get(String symbol){
+			int mask = this._table.length-1;
+			int slot = FeatureKeyTable.hash(symbol.hashCode()) & mask;
+			while(this._table[slot] >= 0){
+				int id = this._table[slot];
+				if(this._symbols[id].equals(symbol)){
+					return id;
+				}
+				slot = (slot+1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the ID of the specified string, interning it if necessary
+		 * @param symbol
+		 * @return
+		 */
+		private int add(String symbol){
+			int id = this.get(symbol);
+			if(id >= 0){
+				return id;
+			}
+			if(this._size == this._symbols.length){
+				this._symbols = Arrays.copyOf(this._symbols, 2*this._size);
+			}
+			if(2*(this._size+1) > this._table.length){
+				this._table = new int[2*this._table.length];
+				Arrays.fill(this._table, -1);
+				for(int i=0; i<this._size; i++){
+					this.insert(i);
+				}
+			}
+			id = this._size++;
+			this._symbols[id] = symbol;
+			this.insert(id);
+			return id;
+		}
+
+		private void insert(int id){
+			int mask = this._table.length-1;
+			int slot = FeatureKeyTable.hash(this._symbols[id].hashCode()) & mask;
+			while(this._table[slot] >= 0){
+				slot = (slot+1) & mask;
+			}
+			this._table[slot] = id;
+		}
+	}
+
+	private SymbolTable _types;
+	private SymbolTable _outputs;
+	private SymbolTable _inputs;
+	/** The type-output IDs, keyed by the type ID and the output ID */
+	private FeatureKeyTable _typeOutputs;
+	/** The type ID of each type-output ID */
+	private int[] _typeOutputTypes;
+	/** The output ID of each type-output ID */
+	private int[] _typeOutputOutputs;
+	/** The feature IDs, keyed by the type-output ID and the input ID */
+	private FeatureKeyTable _features;
+
+	public FeatureIndex(){
+		this._types = new SymbolTable();
+		this._outputs = new SymbolTable();
+		this._inputs = new SymbolTable();
+		this._typeOutputs = new FeatureKeyTable();
+		this._typeOutputTypes = new int[16];
+		this._typeOutputOutputs = new int[16];
+		this._features = new FeatureKeyTable();
+	}
+
+	/**
+	 * Returns the ID of the specified feature, or -1 if it is not in the index
+	 * @param type
+	 * @param output
+	 * @param input
+	 * @return
+	 */
+	public int get(String type, String output, String input){
+		int typeId = this._types.get(type);
+		if(typeId < 0){
+			return -1;
+		}
+		int outputId = this._outputs.get(output);
+		if(outputId < 0){
+			return -1;
+		}
+		int typeOutputId = this._typeOutputs.get(key(typeId, outputId));
+		if(typeOutputId < 0){
+			return -1;
+		}
+		int inputId = this._inputs.get(input);
+		if(inputId < 0){
+			return -1;
+		}
+		return this._features.get(key(typeOutputId, inputId));
+	}
+
+	/**
+	 * Returns the ID of the specified feature, after adding it with the specified ID if it is not in the index.<br>
+	 * So the feature was added if and only if the returned value is the specified ID.
+	 * @param type
+	 * @param output
+	 * @param input
+	 * @param id
+	 * @return
+	 */
+	public int getOrPut(String type, String output, String input, int id){
+		int typeId = this._types.add(type);
+		int outputId = this._outputs.add(output);
+		long typeOutputKey = key(typeId, outputId);
+		int typeOutputId = this._typeOutputs.get(typeOutputKey);
+		if(typeOutputId < 0){
+			typeOutputId = this._typeOutputs.size();
+			if(typeOutputId == this._typeOutputTypes.length){
+				this._typeOutputTypes = Arrays.copyOf(this._typeOutputTypes, 2*typeOutputId);
+				this._typeOutputOutputs = Arrays.copyOf(this._typeOutputOutputs, 2*typeOutputId);
+			}
+			this._typeOutputTypes[typeOutputId] = typeId;
+			this._typeOutputOutputs[typeOutputId] = outputId;
+			this._typeOutputs.put(typeOutputKey, typeOutputId);
+		}
+		long featureKey = key(typeOutputId, this._inputs.add(input));
+		int featureId = this._features.get(featureKey);
+		if(featureId < 0){
+			this._features.put(featureKey, id);
+			featureId = id;
+		}
+		return featureId;
+	}
+
+	/**
+	 * Returns the number of features
+	 * @return
+	 */
+	public int size(){
+		return this._features.size();
+	}
+
+	/**
+	 * Returns the number of distinct pairs of type and output
+	 * @return
+	 */
+	public int countTypeOutputs(){
+		return this._typeOutputs.size();
+	}
+
+	/**
+	 * Returns an iterator over the features, in no particular order, but the same order for the same
+	 * sequence of additions.<br>
+	 * The index should not be modified during the iteration.
+	 */
+	@Override
+	public Iterator<Feature> iterator(){
+		return new Iterator<Feature>(){
+			private int slot = this.advance(0);
+
+			private int advance(int slot){
+				while(slot < _features.capacity() && _features.idAt(slot) < 0){
+					slot++;
+				}
+				return slot;
+			}
+
+			@Override
+			public boolean hasNext(){
+				return this.slot < _features.capacity();
+			}
+
+			@Override
+			public Feature next(){
+				if(!this.hasNext()){
+					throw new NoSuchElementException();
+				}
+				long key = _features.keyAt(this.slot);
+				int typeOutputId = (int)(key >>> 32);
+				String type = _types._symbols[_typeOutputTypes[typeOutputId]];
+				String output = _outputs._symbols[_typeOutputOutputs[typeOutputId]];
+				String input = _inputs._symbols[(int)key];
+				Feature feature = new Feature(type, output, input, typeOutputId, _features.idAt(this.slot));
+				this.slot = this.advance(this.slot+1);
+				return feature;
+			}
+		};
+	}
+
+	private static long key(int high, int low){
+		return ((long)high << 32) | (low & 0xFFFFFFFFL);
+	}
+
+	private static void writeSymbols(ObjectOutputStream out, SymbolTable symbols) throws IOException{
+		out.writeInt(symbols._size);
+		for(int i=0; i<symbols._size; i++){
+			out.writeObject(symbols._symbols[i]);
+		}
+	}
+
+	private static SymbolTable readSymbols(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		SymbolTable symbols = new SymbolTable();
+		int size = in.readInt();
+		for(int i=0; i<size; i++){
+			symbols.add((String)in.readObject());
+		}
+		return symbols;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException{
+		writeSymbols(out, this._types);
+		writeSymbols(out, this._outputs);
+		writeSymbols(out, this._inputs);
+		int numTypeOutputs = this._typeOutputs.size();
+		out.writeInt(numTypeOutputs);
+		for(int i=0; i<numTypeOutputs; i++){
+			out.writeInt(this._typeOutputTypes[i]);
+			out.writeInt(this._typeOutputOutputs[i]);
+		}
+		out.writeInt(this._features.size());
+		for(int slot=0; slot<this._features.capacity(); slot++){
+			if(this._features.idAt(slot) >= 0){
+				out.writeLong(this._features.keyAt(slot));
+				out.writeInt(this._features.idAt(slot));
+			}
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		this._types = readSymbols(in);
+		this._outputs = readSymbols(in);
+		this._inputs = readSymbols(in);
+		int numTypeOutputs = in.readInt();
+		this._typeOutputs = new FeatureKeyTable();
+		this._typeOutputTypes = new int[Math.max(16, numTypeOutputs)];
+		this._typeOutputOutputs = new int[Math.max(16, numTypeOutputs)];
+		for(int i=0; i<numTypeOutputs; i++){
+			this._typeOutputTypes[i] = in.readInt();
+			this._typeOutputOutputs[i] = in.readInt();
+			this._typeOutputs.put(key(this._typeOutputTypes[i], this._typeOutputOutputs[i]), i);
+		}
+		int numFeatures = in.readInt();
+		this._features = new FeatureKeyTable();
+		for(int i=0; i<numFeatures; i++){
+			long key = in.readLong();
+			this._features.put(key, in.readInt());
+		}
+	}
+
+}
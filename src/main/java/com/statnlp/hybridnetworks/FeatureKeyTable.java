@@ -0,0 +1,134 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.hybridnetworks;
+
+import java.util.Arrays;
+
+/**
+ * A map from 64-bit feature keys to feature IDs, using open addressing with linear probing on primitive arrays,
+ * so that lookups do not create any object.<br>
+ * This is not thread-safe for writes, but concurrent lookups are safe when there is no write.
+ * @see GlobalNetworkParam#toFeature(Network, int, int, int)
+ * @see FeatureIndex
+ */
+class FeatureKeyTable {
+
+	/** The keys, valid only where {@link #_ids} is not negative */
+	private long[] _keys;
+	/** The feature ID of each key, or -1 for empty slots */
+	private int[] _ids;
+	/** The number of keys */
+	private int _size;
+
+	public FeatureKeyTable(){
+		this._keys = new long[1024];
+		this._ids = new int[1024];
+		Arrays.fill(this._ids, -1);
+	}
+
+	/**
+	 * Returns the feature ID of the specified key, or -1 if the key is not present
+	 * @param key
+	 * @return
+	 */
+	public int get(long key){
+		int mask = this._ids.length-1;
+		int slot = hash(key) & mask;
+		while(this._ids[slot] >= 0){
+			if(this._keys[slot] == key){
+				return this._ids[slot];
+			}
+			slot = (slot+1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Put the feature ID of the specified key
+	 * @param key
+	 * @param id
+	 */
+	public void put(long key, int id){
+		if(4*(this._size+1) > 3*this._ids.length){
+			this.grow();
+		}
+		int mask = this._ids.length-1;
+		int slot = hash(key) & mask;
+		while(this._ids[slot] >= 0){
+			if(this._keys[slot] == key){
+				this._ids[slot] = id;
+				return;
+			}
+			slot = (slot+1) & mask;
+		}
+		this._keys[slot] = key;
+		this._ids[slot] = id;
+		this._size++;
+	}
+
+	public int size(){
+		return this._size;
+	}
+
+	/**
+	 * Returns the number of slots, to iterate over the keys with {@link #keyAt(int)} and {@link #idAt(int)}
+	 * @return
+	 */
+	public int capacity(){
+		return this._ids.length;
+	}
+
+	public long keyAt(int slot){
+		return this._keys[slot];
+	}
+
+	/**
+	 * Returns the feature ID at the specified slot, or -1 if the slot is empty
+	 * @param slot
+	 * @return
+	 */
+	public int idAt(int slot){
+		return this._ids[slot];
+	}
+
+	private void grow(){
+		long[] keys = this._keys;
+		int[] ids = this._ids;
+		this._keys = new long[2*keys.length];
+		this._ids = new int[2*ids.length];
+		Arrays.fill(this._ids, -1);
+		this._size = 0;
+		for(int slot=0; slot<ids.length; slot++){
+			if(ids[slot] >= 0){
+				this.put(keys[slot], ids[slot]);
+			}
+		}
+	}
+
+	/**
+	 * Mixes all bits of the key, since the packed keys differ mostly in their low and high bits
+	 * @param key
+	 * @return
+	 */
+	static int hash(long key){
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+}
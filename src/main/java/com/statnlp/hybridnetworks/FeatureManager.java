@@ -21,9 +21,14 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+import com.statnlp.commons.FeatureArrayCache;
 
 /**
  * The base class for the feature manager.
@@ -35,14 +40,6 @@ public abstract class FeatureManager implements Serializable{
 	
 	private static final long serialVersionUID = 7999836838043433954L;
 	
-	/** The number of networks. */
-	protected transient int _numNetworks;
-	/**
-	 * The cache that stores the features for each network and each edge (an edge is specified by its parent
-	 * node index and the edge index)
-	 */
-	protected transient FeatureArray[][][] _cache;
-	
 	/**
 	 * The parameters associated with the network.
 	 */
@@ -51,11 +48,25 @@ public abstract class FeatureManager implements Serializable{
 	 * The local feature maps, one for each thread.
 	 */
 	protected transient LocalNetworkParam[] _params_l;
-	/** A flag specifying whether the cache is enabled. */
+	/**
+	 * A flag specifying whether the cache is enabled.<br>
+	 * The features are cached per thread in the {@link FeatureArena} of each {@link LocalNetworkParam},
+	 * so this is kept only for compatibility.
+	 */
 	protected boolean _cacheEnabled = false;
+	/**
+	 * The interner of the extracted feature arrays kept by the networks, shared by all threads.<br>
+	 * The features cached in the {@link FeatureArena} of each thread are not interned, since the arena copies them.
+	 */
+	protected transient FeatureArrayCache _featureArrayCache = new FeatureArrayCache();
 	
 	protected int _numThreads;
 	
+	/** The local features of each thread, sorted by their global feature index, see {@link #sortLocalFeatures(int)} */
+	private transient int[][] _sortedLocalFeatures;
+	/** The local feature array of each thread when {@link #_sortedLocalFeatures} was computed */
+	private transient int[][] _sortedFor;
+	
 	public FeatureManager(GlobalNetworkParam param_g){
 		this._param_g = param_g;
 		this._numThreads = NetworkConfig._numThreads;
@@ -87,16 +98,12 @@ public abstract class FeatureManager implements Serializable{
 		if(NetworkConfig._numThreads!=1){
 			this._param_g.resetCountsAndObj();
 			
+			this.mergeCounts();
 			for(LocalNetworkParam param_l : this._params_l){
-				int[] fs = param_l.getFeatures();
-				for(int f_local = 0; f_local<fs.length; f_local++){
-					int f_global = fs[f_local];
-					double count = param_l.getCount(f_local);
-					this._param_g.addCount(f_global, count);
-				}
-				this._param_g.addObj(param_l.getObj());
+				this._param_g.addObjUnsynchronized(param_l.getObj());
 			}
 		}
+		this._param_g.flush();
 		if(justUpdateObjectiveAndGradient){
 			this._param_g._obj_old = this._param_g._obj;
 			return false;
@@ -114,14 +121,86 @@ public abstract class FeatureManager implements Serializable{
 		return done;
 	}
 	
+	/**
+	 * Add the counts of all threads into the global counts.<br>
+	 * The global features are split into ranges of feature indices, which are merged in parallel,
+	 * each reading the local features of every thread in that range, so that no two workers add to the same feature.
+	 * The counts of each feature are still added in the order of the threads, so the result does not depend
+	 * on the number of workers.
+	 */
+	private void mergeCounts(){
+		int numThreads = this._params_l.length;
+		if(this._sortedLocalFeatures == null || this._sortedLocalFeatures.length != numThreads){
+			this._sortedLocalFeatures = new int[numThreads][];
+			this._sortedFor = new int[numThreads][];
+		}
+		for(int threadId=0; threadId<numThreads; threadId++){
+			if(this._sortedFor[threadId] != this._params_l[threadId].getFeatures()){
+				this.sortLocalFeatures(threadId);
+			}
+		}
+		int numFeatures = this._param_g.size();
+		int numParts = Math.max(1, Math.min(numThreads, numFeatures));
+		IntStream.range(0, numParts).parallel().forEach(part -> {
+			int from = (int)((long)numFeatures*part/numParts);
+			int to = (int)((long)numFeatures*(part+1)/numParts);
+			for(int threadId=0; threadId<numThreads; threadId++){
+				this.mergeCounts(threadId, from, to);
+			}
+		});
+	}
+	
+	/**
+	 * Add the counts of the local features of the specified thread whose global feature index is in [from, to)
+	 * @param threadId
+	 * @param from
+	 * @param to
+	 */
+	private void mergeCounts(int threadId, int from, int to){
+		LocalNetworkParam param_l = this._params_l[threadId];
+		int[] fs = param_l.getFeatures();
+		int[] sorted = this._sortedLocalFeatures[threadId];
+		// Find the first local feature in the range
+		int low = 0;
+		int high = sorted.length;
+		while(low < high){
+			int mid = (low+high) >>> 1;
+			if(fs[sorted[mid]] < from){
+				low = mid+1;
+			} else {
+				high = mid;
+			}
+		}
+		for(int i=low; i<sorted.length && fs[sorted[i]] < to; i++){
+			int f_local = sorted[i];
+			this._param_g.addCountUnsynchronized(fs[f_local], param_l.getCount(f_local));
+		}
+	}
+	
+	/**
+	 * Sort the local features of the specified thread by their global feature index
+	 * @param threadId
+	 */
+	private void sortLocalFeatures(int threadId){
+		int[] fs = this._params_l[threadId].getFeatures();
+		long[] keys = new long[fs.length];
+		for(int f_local=0; f_local<fs.length; f_local++){
+			keys[f_local] = ((long)fs[f_local] << 32) | f_local;
+		}
+		Arrays.sort(keys);
+		int[] sorted = new int[fs.length];
+		for(int i=0; i<keys.length; i++){
+			sorted[i] = (int)keys[i];
+		}
+		this._sortedLocalFeatures[threadId] = sorted;
+		this._sortedFor[threadId] = fs;
+	}
+	
 	public void enableCache(int numNetworks){
-		this._numNetworks = numNetworks;
-		this._cache = new FeatureArray[numNetworks][][];
 		this._cacheEnabled = true;
 	}
 	
 	public void disableCache(){
-		this._cache = null;
 		this._cacheEnabled = false;
 	}
 	
@@ -129,6 +208,14 @@ public abstract class FeatureManager implements Serializable{
 		return this._cacheEnabled;
 	}
 	
+	/**
+	 * Returns the interner of the extracted feature arrays kept by the networks
+	 * @return
+	 */
+	public FeatureArrayCache getFeatureArrayCache(){
+		return this._featureArrayCache;
+	}
+	
 	/**
 	 * Returns the global feature index
 	 * @return
@@ -146,54 +233,101 @@ public abstract class FeatureManager implements Serializable{
 	}
 	
 	/**
-	 * Starts the routine to copy all local feature index into global feature index<br>
+	 * Called after the first touch, this method assigns the final IDs of the features added by all threads
+	 * (see {@link GlobalNetworkParam#finishParallelTouch()}), and changes the features of each thread to the final IDs
+	 * (see {@link LocalNetworkParam#renumberFeatures(int[])}).
 	 */
-	public void mergeSubFeaturesToGlobalFeatures(){
-		HashMap<String, HashMap<String, HashMap<String, Integer>>> globalFeature2IntMap = this._param_g.getFeatureIntMap();
+	public void finishParallelTouch(){
+		int[] newIds = this._param_g.finishParallelTouch();
+		IntStream.range(0, this._params_l.length).parallel().forEach(threadId -> {
+			this._params_l[threadId].renumberFeatures(newIds);
+		});
+	}
 
-		this._param_g._size = 0;
-		for(int t=0;t<this._param_g._subFeatureIntMaps.size();t++){
-			addIntoGlobalFeatures(globalFeature2IntMap, this._param_g._subFeatureIntMaps.get(t), this._params_l[t]._globalFeature2LocalFeature);
-			this._param_g._subFeatureIntMaps.set(t, null);
+	/**
+	 * Returns whether some features will be removed by {@link #pruneFeatures()}, that is, whether
+	 * {@link NetworkConfig#FEATURE_MIN_COUNT} or {@link NetworkConfig#FEATURE_MIN_COUNT_BY_TEMPLATE} has a value above 1
+	 * @return
+	 * @see #hasFeatureMinCount()
+	 */
+	public boolean isPruningFeatures(){
+		return hasFeatureMinCount();
+	}
+	
+	/**
+	 * Returns whether {@link NetworkConfig#FEATURE_MIN_COUNT} or {@link NetworkConfig#FEATURE_MIN_COUNT_BY_TEMPLATE}
+	 * has a value above 1, so that the features will be pruned after the first touch
+	 * @return
+	 */
+	static boolean hasFeatureMinCount(){
+		if(NetworkConfig.FEATURE_MIN_COUNT > 1){
+			return true;
 		}
+		for(int minCount: NetworkConfig.FEATURE_MIN_COUNT_BY_TEMPLATE.values()){
+			if(minCount > 1){
+				return true;
+			}
+		}
+		return false;
 	}
-
+	
 	/**
-	 * Used during parallel touch, this method copies features extracted from each thread into the global feature index.
-	 * @param globalMap The global feature index, storing the features from all thread.
-	 * @param localMap The local feature index, storing the features from one thread.
-	 * @param gf2lf The feature indices mapping from global feature indices to local feature indices.<br>
-	 * 				This is used in each local network param to get the correct local feature indices.
+	 * Returns the template of the features of the specified type, which is used for the minimum count of the features
+	 * in {@link #pruneFeatures()}.<br>
+	 * By default this is the type up to the first character which is not a letter, a digit, or an underscore,
+	 * so that for example the types "WORDS:1" and "WORDS:-1" are of the template "WORDS".
+	 * @param type
+	 * @return
 	 */
-	private void addIntoGlobalFeatures(HashMap<String, HashMap<String, HashMap<String, Integer>>> globalMap, HashMap<String, HashMap<String, HashMap<String, Integer>>> localMap, HashMap<Integer, Integer> gf2lf){
-		Iterator<String> iter1 = localMap.keySet().iterator();
-		while(iter1.hasNext()){
-			String localType = iter1.next();
-			HashMap<String, HashMap<String, Integer>> localOutput2input = localMap.get(localType);
-			if(!globalMap.containsKey(localType)){
-				globalMap.put(localType, new HashMap<String, HashMap<String, Integer>>());
+	public String getFeatureTemplate(String type){
+		for(int i=0; i<type.length(); i++){
+			char c = type.charAt(i);
+			if(!Character.isLetterOrDigit(c) && c != '_'){
+				return type.substring(0, i);
 			}
-			HashMap<String, HashMap<String, Integer>> globalOutput2input = globalMap.get(localType);
-			Iterator<String> iter2 = localOutput2input.keySet().iterator();
-			while(iter2.hasNext()){
-				String localOutput = iter2.next();
-				HashMap<String, Integer> localInput2int = localOutput2input.get(localOutput);
-				if(!globalOutput2input.containsKey(localOutput)){
-					globalOutput2input.put(localOutput, new HashMap<String, Integer>());
-				}
-				HashMap<String, Integer> globalInput2int = globalOutput2input.get(localOutput);
-				Iterator<String> iter3 = localInput2int.keySet().iterator();
-				while(iter3.hasNext()){
-					String localInput = iter3.next();
-					if(!globalInput2int.containsKey(localInput)){
-						globalInput2int.put(localInput, this._param_g._size++);
-					}
-					gf2lf.put(globalInput2int.get(localInput), localInput2int.get(localInput));
-				}
+		}
+		return type;
+	}
+	
+	/**
+	 * Called after the first touch, when all local params are finalized, this method removes the features occurring
+	 * less than the minimum count of their template ({@link NetworkConfig#FEATURE_MIN_COUNT_BY_TEMPLATE}, or
+	 * {@link NetworkConfig#FEATURE_MIN_COUNT}) in the hyperedges of the first touch, which are those of the unlabeled
+	 * networks in discriminative training, and those of the labeled networks in generative training or when extracting
+	 * only from the labeled networks ({@link NetworkConfig#_BUILD_FEATURES_FROM_LABELED_ONLY}). The features already fixed
+	 * (see {@link GlobalNetworkParam#fixCurrentFeatures()}) are kept.<br>
+	 * The remaining features get new consecutive IDs, and the removed features are removed from the cached features,
+	 * or become -1 when extracted again.
+	 * @return The number of features and the number of removed features of each template, sorted by template
+	 */
+	public Map<String, int[]> pruneFeatures(){
+		int[] counts = new int[this._param_g.size()];
+		for(LocalNetworkParam param_l: this._params_l){
+			param_l.addFeatureCounts(counts);
+		}
+		int minCount = NetworkConfig.FEATURE_MIN_COUNT;
+		Map<String, Integer> minCountByTemplate = NetworkConfig.FEATURE_MIN_COUNT_BY_TEMPLATE;
+		Map<String, String> type2template = new HashMap<String, String>();
+		Map<String, int[]> report = new TreeMap<String, int[]>();
+		boolean[] removed = new boolean[counts.length];
+		for(FeatureIndex.Feature feature: this._param_g.getFeatureIndex()){
+			String template = type2template.computeIfAbsent(feature.type, this::getFeatureTemplate);
+			int[] templateReport = report.computeIfAbsent(template, t -> new int[2]);
+			templateReport[0]++;
+			if(!this._param_g.isFixed(feature.id) && counts[feature.id] < minCountByTemplate.getOrDefault(template, minCount)){
+				removed[feature.id] = true;
+				templateReport[1]++;
 			}
 		}
+		int[] newIds = this._param_g.removeFeatures(removed);
+		for(LocalNetworkParam param_l: this._params_l){
+			param_l.removeFeatures(newIds);
+		}
+		// The interned feature arrays have the old IDs
+		this._featureArrayCache.clear();
+		return report;
 	}
-
+	
 	/**
 	 * Used for parallel touch when training from labeled only<br>
 	 * This method copies the features from global feature index into the local feature index specified,
@@ -201,16 +335,9 @@ public abstract class FeatureManager implements Serializable{
 	 * @param globalFeaturesToLocalFeatures The mapping from global feature indices into local feature indices
 	 */
 	public void addIntoLocalFeatures(HashMap<Integer, Integer> globalFeaturesToLocalFeatures){
-		HashMap<String, HashMap<String, HashMap<String, Integer>>> globalMap = this._param_g.getFeatureIntMap();
-		for(String type: globalMap.keySet()){
-			HashMap<String, HashMap<String, Integer>> outputToInputToIndex = globalMap.get(type);
-			for(String output: outputToInputToIndex.keySet()){
-				HashMap<String, Integer> inputToIndex = outputToInputToIndex.get(output);
-				for(Integer featureIndex: inputToIndex.values()){
-					if(!globalFeaturesToLocalFeatures.containsKey(featureIndex)){
-						globalFeaturesToLocalFeatures.put(featureIndex, globalFeaturesToLocalFeatures.size());
-					}
-				}
+		for(FeatureIndex.Feature feature: this._param_g.getFeatureIndex()){
+			if(!globalFeaturesToLocalFeatures.containsKey(feature.id)){
+				globalFeaturesToLocalFeatures.put(feature.id, globalFeaturesToLocalFeatures.size());
 			}
 		}
 	}
@@ -220,40 +347,29 @@ public abstract class FeatureManager implements Serializable{
 	 * the input features
 	 */
 	public void completeType2Int(){
-		HashMap<String, HashMap<String, HashMap<String, Integer>>> globalMap = this._param_g._featureIntMap;
 		HashMap<String, ArrayList<String>> type2Input = this._param_g._type2inputMap;
-		Iterator<String> iterType = globalMap.keySet().iterator();
-		while(iterType.hasNext()){
-			String type = iterType.next();
-			if(!type2Input.containsKey(type)){
-				type2Input.put(type, new ArrayList<String>());
+		for(FeatureIndex.Feature feature: this._param_g.getFeatureIndex()){
+			if(!type2Input.containsKey(feature.type)){
+				type2Input.put(feature.type, new ArrayList<String>());
 			}
-			HashMap<String, HashMap<String, Integer>> output2input  = globalMap.get(type);
-			Iterator<String> iterOutput = output2input.keySet().iterator();
-			while(iterOutput.hasNext()){
-				String output = iterOutput.next();
-				HashMap<String, Integer> input2int = output2input.get(output);
-				Iterator<String> iterInput = input2int.keySet().iterator();
-				while(iterInput.hasNext()){
-					String input = iterInput.next();
-					ArrayList<String> inputs = type2Input.get(type);
-					int index = Collections.binarySearch(inputs, input);
-					if(index<0){
-						inputs.add(-1-index, input);
-					}
-				}
+			ArrayList<String> inputs = type2Input.get(feature.type);
+			int index = Collections.binarySearch(inputs, feature.input);
+			if(index<0){
+				inputs.add(-1-index, feature.input);
 			}
 		}
 	}
 
 	/**
 	 * Extract the features from the specified network at a hyperedge, specified by its parent index
-	 * and child indices, caching if necessary.<br>
+	 * and child indices.<br>
 	 * <code>children_k</code> is the child node indices of the current hyperedge in this network 
 	 * with the parent as the root node (the "tail", following Gallo et al. (1993) notation).<br>
 	 * The <code>children_k_index</code> specifies the index of the child (<code>children_k</code>) 
-	 * in the parent's list of children. This is mainly used for caching purpose.<br>
-	 * Note that nodes with no outgoing hyperedge are still considered here, with empty children_k 
+	 * in the parent's list of children.<br>
+	 * Note that nodes with no outgoing hyperedge are still considered here, with empty children_k.<br>
+	 * The features are not cached here, but in the {@link FeatureArena} of the {@link LocalNetworkParam}
+	 * of each thread, which packs the features of all hyperedges into one array.
 	 * @param network
 	 * @param parent_k
 	 * @param children_k
@@ -261,30 +377,7 @@ public abstract class FeatureManager implements Serializable{
 	 * @return
 	 */
 	public FeatureArray extract(Network network, int parent_k, int[] children_k, int children_k_index){
-		// Do not cache in the first touch when parallel touch and extract only from labeled is enabled,
-		// since the local feature indices will change
-		boolean shouldCache = this.isCacheEnabled() && (NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION
-														|| NetworkConfig._numThreads == 1
-														|| !NetworkConfig._BUILD_FEATURES_FROM_LABELED_ONLY
-														|| this._param_g.isLocked());
-		if(shouldCache){
-			if(this._cache[network.getNetworkId()] == null){
-				this._cache[network.getNetworkId()] = new FeatureArray[network.countNodes()][];
-			}
-			if(this._cache[network.getNetworkId()][parent_k] == null){
-				this._cache[network.getNetworkId()][parent_k] = new FeatureArray[network.getChildren(parent_k).length];
-			}
-			if(this._cache[network.getNetworkId()][parent_k][children_k_index] != null){
-				return this._cache[network.getNetworkId()][parent_k][children_k_index];
-			}
-		}
-		
-		FeatureArray fa = this.extract_helper(network, parent_k, children_k);
-		
-		if(shouldCache){
-			this._cache[network.getNetworkId()][parent_k][children_k_index] = fa;
-		}
-		return fa;
+		return this.extract_helper(network, parent_k, children_k);
 	}
 	
 	/**
@@ -299,6 +392,28 @@ public abstract class FeatureManager implements Serializable{
 	 */
 	protected abstract FeatureArray extract_helper(Network network, int parent_k, int[] children_k);
 	
+	/**
+	 * Create the feature array of a hyperedge from its factors, one segment for each non-empty factor.<br>
+	 * A factor is a group of features which depends only on part of the hyperedge (e.g., only on the label pair,
+	 * or only on the segment), and so appears in many hyperedges. When the features are cached, each distinct
+	 * factor is stored once, keyed by its features, and its score is computed once for each version of the weights
+	 * (see {@link FeatureArena}), so the features should be split into factors shared by as many hyperedges as possible.
+	 * @param factors
+	 * @return
+	 */
+	protected FeatureArray createFeatureArray(int[]... factors){
+		FeatureArray result = null;
+		for(int i=factors.length-1; i>=0; i--){
+			if(factors[i].length > 0){
+				result = new FeatureArray(factors[i], result);
+			}
+		}
+		if(result == null){
+			result = new FeatureArray(new int[0]);
+		}
+		return result;
+	}
+	
 	private void writeObject(ObjectOutputStream oos) throws IOException{
 		oos.writeObject(this._param_g);
 		oos.writeBoolean(this._cacheEnabled);
@@ -310,6 +425,7 @@ public abstract class FeatureManager implements Serializable{
 		this._cacheEnabled = ois.readBoolean();
 		this._numThreads = ois.readInt();
 		this._params_l = new LocalNetworkParam[NetworkConfig._numThreads];
+		this._featureArrayCache = new FeatureArrayCache();
 	}
 	
 }
\ No newline at end of file
@@ -23,17 +23,18 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.statnlp.commons.ml.opt.LBFGS;
 import com.statnlp.commons.ml.opt.LBFGS.ExceptionWithIflag;
 import com.statnlp.commons.ml.opt.MathsVector;
+import com.statnlp.commons.ml.opt.OWLQNOptimizer;
 import com.statnlp.commons.ml.opt.Optimizer;
 import com.statnlp.commons.ml.opt.OptimizerFactory;
 
-//TODO: other optimization and regularization methods. Such as the L1 regularization.
+//TODO: other optimization and regularization methods.
 
 /**
  * The set of parameters (such as weights, training method, optimizer, etc.) in the global scope
@@ -47,6 +48,8 @@ public class GlobalNetworkParam implements Serializable{
 	//these parameters are used for discriminative training using LBFGS.
 	/** The L2 regularization parameter weight */
 	protected transient double _kappa;
+	/** The L1 regularization parameter weight, which gradient is handled by the optimizer (see {@link OWLQNOptimizer}) */
+	protected transient double _lambda;
 	/** The optimizer */
 	protected transient Optimizer _opt;
 	/** The optimizer factory */
@@ -59,17 +62,61 @@ public class GlobalNetworkParam implements Serializable{
 	protected transient double _obj;
 	/** A variable for batch SGD optimization, if applicable */
 	protected transient int _batchSize;
+	/** The accumulator of the values added to {@link #_counts} and {@link #_obj} in global mode */
+	protected transient GradientAccumulator _accumulator;
 	
 	protected transient int _version;
 	
-	/** Map from feature type to [a map from output to [a map from input to feature ID]] */
-	protected HashMap<String, HashMap<String, HashMap<String, Integer>>> _featureIntMap;
+	/** The maximum number of feature templates of {@link #toFeature(Network, int, int, int)} */
+	private static final int MAX_TEMPLATES = 1 << 16;
+	
+	/** The feature dictionary, mapping the feature type, output, and input to the feature ID */
+	protected FeatureIndex _featureIndex;
 	/** Map from feature type to input */
 	protected HashMap<String, ArrayList<String>> _type2inputMap;
-	/** A feature int map (similar to {@link #_featureIntMap}) for each local thread */
-	protected ArrayList<HashMap<String, HashMap<String, HashMap<String, Integer>>>> _subFeatureIntMaps;
-	/** The size of each feature int maps for each local thread */
-	protected int[] _subSize;
+	/**
+	 * The feature dictionary filled by all threads in parallel touch, whose features are moved into
+	 * {@link #_featureIndex} by {@link #finishParallelTouch()}, or null if not in parallel touch
+	 */
+	protected transient ConcurrentFeatureIndex _touchFeatureIndex;
+	/**
+	 * The feature dictionary of a model read from a {@link BinaryModelFile}, looked up in the mapped file,
+	 * or null if the dictionary is in {@link #_featureIndex}.<br>
+	 * This is volatile since {@link #toFeature(Network, String, String, String)} reads it without locking while
+	 * another thread may read the whole dictionary. It is set to null only after {@link #_featureIndex}
+	 * (and {@link #_feature2rep}) are filled, so a thread which sees null also sees them.
+	 */
+	protected transient volatile MappedFeatureIndex _mappedFeatureIndex;
+	/** Whether {@link #_feature2rep} should be rebuilt when {@link #_mappedFeatureIndex} is read fully */
+	protected transient boolean _hasMappedFeatureRep;
+	/**
+	 * The number of bits of the feature hashes if the features are hashed instead of being kept
+	 * in {@link #_featureIndex}, or -1 otherwise
+	 * @see NetworkConfig#FEATURE_HASH_BITS
+	 */
+	protected int _featureHashBits;
+	/** Whether the features with small weights were removed by {@link #compact(double)}, so that the model is only for decoding */
+	protected boolean _isCompacted;
+	
+	/**
+	 * The names of the feature templates of {@link #toFeature(Network, int, int, int)}, by their ordinals.<br>
+	 * A concurrent map, since it is read without lock while {@link #toTemplateId(String)} adds to it
+	 */
+	protected transient ConcurrentHashMap<Integer, String> _templates;
+	/** Map from template name to its ordinal */
+	protected transient HashMap<String, Integer> _templateIds;
+	/**
+	 * The inputs interned by {@link #toInputId(String)}, by their IDs.<br>
+	 * A concurrent map, since it is read without lock while {@link #toInputId(String)} adds to it
+	 */
+	protected transient ConcurrentHashMap<Integer, String> _inputs;
+	/** Map from input to its ID */
+	protected transient ConcurrentHashMap<String, Integer> _inputIds;
+	/**
+	 * The feature IDs already resolved by {@link #toFeature(Network, int, int, int)}, one table per thread,
+	 * and the last one for calls without network
+	 */
+	protected transient FeatureKeyTable[] _featureKeyTables;
 	
 	protected String[][] _feature2rep;//three-dimensional array representation of the feature.
 	/** The weights parameter */
@@ -97,7 +144,9 @@ public class GlobalNetworkParam implements Serializable{
 	protected int totalNumInsts;
 	
 	public GlobalNetworkParam(){
-		this(OptimizerFactory.getLBFGSFactory());
+		this(NetworkConfig.L1_REGULARIZATION_CONSTANT > 0
+				? OptimizerFactory.getOWLQNFactory(NetworkConfig.L1_REGULARIZATION_CONSTANT)
+				: OptimizerFactory.getLBFGSFactory());
 	}
 	
 	public GlobalNetworkParam(OptimizerFactory optimizerFactory){
@@ -111,25 +160,72 @@ public class GlobalNetworkParam implements Serializable{
 		if(this.isDiscriminative()){
 			this._batchSize = NetworkConfig.batchSize;
 			this._kappa = NetworkConfig.L2_REGULARIZATION_CONSTANT;
+			this._lambda = optimizerFactory.getL1RegularizationConstant();
 		}
-		this._featureIntMap = new HashMap<String, HashMap<String, HashMap<String, Integer>>>();
+		this._featureIndex = new FeatureIndex();
 		this._type2inputMap = new HashMap<String, ArrayList<String>>();
 		this._optFactory = optimizerFactory;
-		if (!NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION && NetworkConfig._numThreads > 1){
-			this._subFeatureIntMaps = new ArrayList<HashMap<String, HashMap<String, HashMap<String, Integer>>>>();
-			for (int i = 0; i < NetworkConfig._numThreads; i++){
-				this._subFeatureIntMaps.add(new HashMap<String, HashMap<String, HashMap<String, Integer>>>());
+		this.initFeatureKeys();
+		this._featureHashBits = NetworkConfig.FEATURE_HASH_BITS > 0 ? NetworkConfig.FEATURE_HASH_BITS : -1;
+		if(this.isFeatureHashing()){
+			if(this._featureHashBits > 30){
+				throw new NetworkException("The number of bits of the feature hashes should be at most 30, received "+this._featureHashBits);
+			}
+			if(!this.isDiscriminative()){
+				throw new NetworkException("Feature hashing is not supported for generative models, which normalize the weights by feature type and output.");
+			}
+			if(FeatureManager.hasFeatureMinCount()){
+				throw new NetworkException("Feature hashing is not compatible with a minimum feature count, since there is no feature dictionary to remove the features from.");
 			}
-			this._subSize = new int[NetworkConfig._numThreads];
+			if(NetworkConfig._BUILD_FEATURES_FROM_LABELED_ONLY){
+				throw new NetworkException("Feature hashing does not support building the features from labeled networks only, since all features exist.");
+			}
+			// All features exist from the start
+			this._size = 1 << this._featureHashBits;
+		} else if (!NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION){
+			// Also with one thread, so that the feature IDs do not depend on the number of threads
+			this._touchFeatureIndex = new ConcurrentFeatureIndex(NetworkConfig._numThreads);
 		}
 	}
 	
 	/**
-	 * Get the map from feature type to [a map from output to [a map from input to feature ID]]
+	 * Get the feature dictionary, mapping the feature type, output, and input to the feature ID
 	 * @return
 	 */
-	public HashMap<String, HashMap<String, HashMap<String, Integer>>> getFeatureIntMap(){
-		return this._featureIntMap;
+	public FeatureIndex getFeatureIndex(){
+		if(this._mappedFeatureIndex != null){
+			this.readMappedFeatureIndex();
+		}
+		return this._featureIndex;
+	}
+	
+	/**
+	 * Use the specified feature dictionary and weights of a model read from a {@link BinaryModelFile}
+	 * @param featureIndex
+	 * @param weights
+	 * @param hasFeatureRep Whether the String representation of the features should be available
+	 */
+	void setMappedFeatureIndex(MappedFeatureIndex featureIndex, double[] weights, boolean hasFeatureRep){
+		this._featureIndex = null;
+		this._mappedFeatureIndex = featureIndex;
+		this._hasMappedFeatureRep = hasFeatureRep;
+		this._weights = weights;
+	}
+	
+	/**
+	 * Read the whole feature dictionary from the mapped file, for the uses other than looking up features
+	 */
+	private synchronized void readMappedFeatureIndex(){
+		MappedFeatureIndex mappedFeatureIndex = this._mappedFeatureIndex;
+		if(mappedFeatureIndex == null){
+			return;
+		}
+		this._featureIndex = mappedFeatureIndex.toFeatureIndex();
+		if(this._hasMappedFeatureRep){
+			this.buildFeatureRep();
+		}
+		// Publish the dictionary to the threads reading _mappedFeatureIndex without locking
+		this._mappedFeatureIndex = null;
 	}
 	
 	public double[] getWeights(){
@@ -159,11 +255,18 @@ public class GlobalNetworkParam implements Serializable{
 	}
 	
 	/**
-	 * Return the String[] representation of the feature with the specified index
+	 * Return the String[] representation of the feature with the specified index,
+	 * or null if the features are hashed (see {@link #isFeatureHashing()})
 	 * @param f_global
 	 * @return
 	 */
 	public String[] getFeatureRep(int f_global){
+		if(this._mappedFeatureIndex != null){
+			this.readMappedFeatureIndex();
+		}
+		if(this._feature2rep == null){
+			return null;
+		}
 		return this._feature2rep[f_global];
 	}
 	
@@ -172,7 +275,25 @@ public class GlobalNetworkParam implements Serializable{
 	 * @param feature
 	 * @param count
 	 */
-	public synchronized void addCount(int feature, double count){
+	public void addCount(int feature, double count){
+		if(Double.isNaN(count)){
+			throw new RuntimeException("count is NaN.");
+		}
+		
+		if(this.isFixed(feature))
+			return;
+		//if the model is discriminative model, we will flip the sign for
+		//the counts because we will need to use LBFGS.
+		this.getAccumulator().addCount(feature, this.isDiscriminative() ? -count : count);
+	}
+	
+	/**
+	 * Same as {@link #addCount(int, double)}, but without synchronization, for the parallel merge of the counts
+	 * of the threads in {@link FeatureManager#update(boolean)}, where each feature is updated by one thread only.
+	 * @param feature
+	 * @param count
+	 */
+	void addCountUnsynchronized(int feature, double count){
 		if(Double.isNaN(count)){
 			throw new RuntimeException("count is NaN.");
 		}
@@ -189,10 +310,36 @@ public class GlobalNetworkParam implements Serializable{
 		
 	}
 	
-	public synchronized void addObj(double obj){
+	public void addObj(double obj){
+		this.getAccumulator().addObj(obj);
+	}
+	
+	/**
+	 * Same as {@link #addObj(double)}, but directly to the objective, for the merge of the objectives
+	 * of the threads in {@link FeatureManager#update(boolean)}.
+	 * @param obj
+	 */
+	void addObjUnsynchronized(double obj){
 		this._obj += obj;
 	}
 	
+	private GradientAccumulator getAccumulator(){
+		if(this._accumulator == null){
+			this._accumulator = GradientAccumulator.create(this);
+		}
+		return this._accumulator;
+	}
+	
+	/**
+	 * Make sure that all values given to {@link #addCount(int, double)} and {@link #addObj(double)} are in
+	 * the counts and the objective. This must be called when no thread is adding values.
+	 */
+	public void flush(){
+		if(this._accumulator != null){
+			this._accumulator.flush();
+		}
+	}
+	
 	public double getObj(){
 		return this._obj;
 	}
@@ -221,6 +368,7 @@ public class GlobalNetworkParam implements Serializable{
 	public synchronized void setWeight(int f, double weight){
 		if(this.isFixed(f)) return;
 		this._weights[f] = weight;
+		this._version++;
 	}
 	
 	/**
@@ -231,19 +379,29 @@ public class GlobalNetworkParam implements Serializable{
 	 */
 	public synchronized void overRideWeight(int f, double weight){
 		this._weights[f] = weight;
+		this._version++;
 	}
 	
 	public void unlock(){
 		if(!this.isLocked())
 			throw new RuntimeException("This param is not locked.");
+		if(this.isCompacted())
+			throw new NetworkException("This param is compacted, so it can only be used for decoding.");
+		// New features cannot be added to the mapped dictionary
+		this.getFeatureIndex();
 		this._locked = false;
+		this.resetFeatureKeyTables();
 	}
 	
 	public void unlockForNewFeaturesAndFixCurrentFeatures(){
 		if(!this.isLocked())
 			throw new RuntimeException("This param is not locked.");
+		if(this.isCompacted())
+			throw new NetworkException("This param is compacted, so it can only be used for decoding.");
+		this.getFeatureIndex();
 		this.fixCurrentFeatures();
 		this._locked = false;
+		this.resetFeatureKeyTables();
 	}
 	
 	public void fixCurrentFeatures(){
@@ -264,18 +422,18 @@ public class GlobalNetworkParam implements Serializable{
 		
 		System.err.println("==EXPANDING THE FEATURES===");
 		System.err.println("Before expansion:"+this.size());
-		Iterator<String> types = this._featureIntMap.keySet().iterator();
-		while(types.hasNext()){
-			String type = types.next();
-			HashMap<String, HashMap<String, Integer>> output2input = this._featureIntMap.get(type);
-			ArrayList<String> inputs = this._type2inputMap.get(type);
-			System.err.println("Feature of type "+type+" has "+inputs.size()+" possible inputs.");
-			Iterator<String> outputs = output2input.keySet().iterator();
-			while(outputs.hasNext()){
-				String output = outputs.next();
-				for(String input : inputs){
-					this.toFeature(type, output, input);
-				}
+		// The types and outputs are collected first, since the dictionary cannot be modified while iterating
+		String[][] typeOutputs = new String[this.getFeatureIndex().countTypeOutputs()][];
+		for(FeatureIndex.Feature feature: this.getFeatureIndex()){
+			if(typeOutputs[feature.typeOutputId] == null){
+				typeOutputs[feature.typeOutputId] = new String[]{feature.type, feature.output};
+			}
+		}
+		for(String[] typeOutput: typeOutputs){
+			String type = typeOutput[0];
+			String output = typeOutput[1];
+			for(String input : this._type2inputMap.get(type)){
+				this.toFeature(type, output, input);
 			}
 		}
 		System.err.println("After expansion:"+this.size());
@@ -295,6 +453,7 @@ public class GlobalNetworkParam implements Serializable{
 		
 		double[] weights_new = new double[this._size];
 		this._counts = new double[this._size];
+		this._accumulator = GradientAccumulator.create(this);
 		for(int k = 0; k<this._weights.length; k++){
 			weights_new[k] = this._weights[k];
 		}
@@ -305,31 +464,31 @@ public class GlobalNetworkParam implements Serializable{
 		this._weights = weights_new;
 		this.resetCountsAndObj();
 		
-		this._feature2rep = new String[this._size][];
-		Iterator<String> types = this._featureIntMap.keySet().iterator();
-		while(types.hasNext()){
-			String type = types.next();
-			HashMap<String, HashMap<String, Integer>> output2input = this._featureIntMap.get(type);
-			Iterator<String> outputs = output2input.keySet().iterator();
-			while(outputs.hasNext()){
-				String output = outputs.next();
-				HashMap<String, Integer> input2id = output2input.get(output);
-				Iterator<String> inputs = input2id.keySet().iterator();
-				while(inputs.hasNext()){
-					String input = inputs.next();
-					int id = input2id.get(input);
-					this._feature2rep[id] = new String[]{type, output, input};
-				}
-			}
-		}
+		this.buildFeatureRep();
 		this._version = 0;
-		this._opt = this._optFactory.create(this._weights.length, getFeatureIntMap());
+		this._opt = this._optFactory.create(this._weights.length, getFeatureIndex());
 		this._locked = true;
+		// The features of the threads now have their global IDs
+		this.resetFeatureKeyTables();
 		
 		System.err.println(this._size+" features.");
 		
 	}
 	
+	/**
+	 * Fill {@link #_feature2rep} from the feature dictionary, or leave it null if the features are hashed
+	 */
+	private void buildFeatureRep(){
+		if(this.isFeatureHashing()){
+			this._feature2rep = null;
+			return;
+		}
+		this._feature2rep = new String[this._size][];
+		for(FeatureIndex.Feature feature: this._featureIndex){
+			this._feature2rep[feature.id] = new String[]{feature.type, feature.output, feature.input};
+		}
+	}
+	
 	/**
 	 * Lock current features.
 	 * If this is locked it means no new features will be allowed.
@@ -343,6 +502,7 @@ public class GlobalNetworkParam implements Serializable{
 		
 		double[] weights_new = new double[this._size];
 		this._counts = new double[this._size];
+		this._accumulator = GradientAccumulator.create(this);
 		for(int k = 0; k<this._fixedFeaturesSize; k++){
 			weights_new[k] = this._weights[k];
 		}
@@ -353,26 +513,12 @@ public class GlobalNetworkParam implements Serializable{
 		this._weights = weights_new;
 		this.resetCountsAndObj();
 		
-		this._feature2rep = new String[this._size][];
-		Iterator<String> types = this._featureIntMap.keySet().iterator();
-		while(types.hasNext()){
-			String type = types.next();
-			HashMap<String, HashMap<String, Integer>> output2input = this._featureIntMap.get(type);
-			Iterator<String> outputs = output2input.keySet().iterator();
-			while(outputs.hasNext()){
-				String output = outputs.next();
-				HashMap<String, Integer> input2id = output2input.get(output);
-				Iterator<String> inputs = input2id.keySet().iterator();
-				while(inputs.hasNext()){
-					String input = inputs.next();
-					int id = input2id.get(input);
-					this._feature2rep[id] = new String[]{type, output, input};
-				}
-			}
-		}
+		this.buildFeatureRep();
 		this._version = 0;
-		this._opt = this._optFactory.create(this._weights.length, getFeatureIntMap());
+		this._opt = this._optFactory.create(this._weights.length, getFeatureIndex());
 		this._locked = true;
+		// The features of the threads now have their global IDs
+		this.resetFeatureKeyTables();
 		
 		System.err.println(this._size+" features.");
 		
@@ -386,6 +532,17 @@ public class GlobalNetworkParam implements Serializable{
 		return this._locked;
 	}
 	
+	/**
+	 * Returns whether the features are hashed into a fixed number of weights instead of being kept in
+	 * the feature dictionary ({@link #getFeatureIndex()}).<br>
+	 * In that case the dictionary is empty, and the String representation of the features is not available.
+	 * @return
+	 * @see NetworkConfig#FEATURE_HASH_BITS
+	 */
+	public boolean isFeatureHashing(){
+		return this._featureHashBits > 0;
+	}
+	
 	public int getVersion(){
 		return this._version;
 	}
@@ -403,61 +560,336 @@ public class GlobalNetworkParam implements Serializable{
 	 * 				 you can just as well put the indices, like "0", "1")
 	 * @param input The input (e.g., for emission feature in HMM this might be the word itself) 
 	 * @return
+	 * @see #isFeatureHashing()
 	 */
 	public int toFeature(Network network , String type , String output , String input){ //process later , if threadId = −1, global mode.
-		int threadId = network != null ? network.getThreadId() : -1;
+		if(this.isFeatureHashing()){
+			return this.hashFeature(stringHash(type), stringHash(output), stringHash(input));
+		}
 		boolean shouldNotCreateNewFeature = false;
 		try{
 			shouldNotCreateNewFeature = (NetworkConfig._BUILD_FEATURES_FROM_LABELED_ONLY && network.getInstance().getInstanceId() < 0);
 		} catch (NullPointerException e){
 			throw new NetworkException("Missing network on some toFeature calls while trying to extract only from labeled networks.");
 		}
-		HashMap<String, HashMap<String, HashMap<String, Integer>>> featureIntMap = null;
-		if(NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION || NetworkConfig._numThreads == 1 || this.isLocked()){
-			featureIntMap = this._featureIntMap;
-		} else {
-			if(threadId == -1){
-				throw new NetworkException("Missing network on some toFeature calls while in parallel touch.");
+		
+		if(this._touchFeatureIndex != null && !this.isLocked()){
+			// In parallel touch, the IDs are temporary until finishParallelTouch
+			if(shouldNotCreateNewFeature){
+				return this._touchFeatureIndex.get(type, output, input);
 			}
-			featureIntMap = this._subFeatureIntMaps.get(threadId);
+			return this._touchFeatureIndex.getOrPut(type, output, input);
 		}
 		
 		//if it is locked, then we might return a dummy feature
 		//if the feature does not appear to be present.
 		if(this.isLocked() || shouldNotCreateNewFeature){
-			if(!featureIntMap.containsKey(type)){
-				return -1;
+			MappedFeatureIndex mappedFeatureIndex = this._mappedFeatureIndex;
+			if(mappedFeatureIndex != null){
+				return mappedFeatureIndex.get(type, output, input);
 			}
-			HashMap<String, HashMap<String, Integer>> output2input = featureIntMap.get(type);
-			if(!output2input.containsKey(output)){
-				return -1;
-			}
-			HashMap<String, Integer> input2id = output2input.get(output);
-			if(!input2id.containsKey(input)){
-				return -1;
-			}
-			return input2id.get(input);
+			return this._featureIndex.get(type, output, input);
 		}
 		
-		if(!featureIntMap.containsKey(type)){
-			featureIntMap.put(type, new HashMap<String, HashMap<String, Integer>>());
+		int featureId = this._featureIndex.getOrPut(type, output, input, this._size);
+		if(featureId == this._size){
+			this._size++;
 		}
+		return featureId;
+	}
+	
+	/**
+	 * Moves the features added by all threads in parallel touch into the feature dictionary, with their final IDs
+	 * assigned in the order of their type, output, and input, so that the IDs are the same for any number of threads.
+	 * @return The final ID of each feature, indexed by the temporary ID returned by
+	 * 		   {@link #toFeature(Network, String, String, String)} during the touch
+	 */
+	int[] finishParallelTouch(){
+		int[] newIds = new int[this._touchFeatureIndex.size()];
+		this._featureIndex = this._touchFeatureIndex.toFeatureIndex(newIds);
+		this._size = this._featureIndex.size();
+		this._touchFeatureIndex = null;
+		// The typed toFeature has found the temporary IDs
+		this.resetFeatureKeyTables();
+		return newIds;
+	}
 
-		HashMap<String, HashMap<String, Integer>> outputToInputToIdx = featureIntMap.get(type);
-		if(!outputToInputToIdx.containsKey(output)){
-			outputToInputToIdx.put(output, new HashMap<String, Integer>());
+	/**
+	 * Removes the specified features from the feature dictionary, before the features are locked.<br>
+	 * The remaining features keep their order, with new consecutive IDs.
+	 * @param removed Whether each feature is to be removed
+	 * @return The new ID of each feature, or -1 for the removed features
+	 * @see FeatureManager#pruneFeatures()
+	 */
+	int[] removeFeatures(boolean[] removed){
+		if(this.isLocked()){
+			throw new NetworkException("The features cannot be removed after they are locked.");
 		}
-		
-		HashMap<String, Integer> inputToIdx = outputToInputToIdx.get(output);
-		if(!inputToIdx.containsKey(input)){
-			if(NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION || NetworkConfig._numThreads == 1){
-				inputToIdx.put(input, this._size++);
-			} else {
-				inputToIdx.put(input, this._subSize[threadId]++);
+		return this.renumberFeatures(removed);
+	}
+	
+	/**
+	 * Removes the features whose absolute weight is at most the specified epsilon, after training, so that the model
+	 * is smaller and faster to load. The remaining features keep their order, with new consecutive IDs.<br>
+	 * The removed features are not found anymore by {@link #toFeature(Network, String, String, String)}, which is the same
+	 * as having a weight of 0, so with an epsilon of 0 the predictions do not change.<br>
+	 * The String representation of the features ({@link #getFeatureRep(int)}) is removed too, and the model can only
+	 * be used for decoding afterwards.<br>
+	 * The features cached by the decoders before are not valid anymore, so the decoders must be created again,
+	 * as done by {@link NetworkModel#compact(double)}.
+	 * @param epsilon
+	 * @return The number of removed features
+	 */
+	public int compact(double epsilon){
+		if(!this.isLocked()){
+			throw new NetworkException("Only trained models can be compacted.");
+		}
+		boolean[] removed = new boolean[this._size];
+		int numRemoved = 0;
+		for(int featureId=0; featureId<this._size; featureId++){
+			if(Math.abs(this._weights[featureId]) <= epsilon){
+				removed[featureId] = true;
+				numRemoved++;
 			}
 		}
+		int[] newIds = this.renumberFeatures(removed);
+		double[] weights = new double[this._size];
+		for(int featureId=0; featureId<newIds.length; featureId++){
+			if(newIds[featureId] >= 0){
+				weights[newIds[featureId]] = this._weights[featureId];
+			}
+		}
+		this._weights = weights;
+		this._fixedFeaturesSize = this._size;
+		this._feature2rep = null;
+		this._bestWeight = null;
+		this._counts = null;
+		this._accumulator = null;
+		this._opt = null;
+		this._isCompacted = true;
+		// The scores cached with the old weights are not valid anymore
+		this._version++;
+		return numRemoved;
+	}
+	
+	/**
+	 * Returns whether this model was compacted by {@link #compact(double)}, so that it can only be used for decoding
+	 * @return
+	 */
+	public boolean isCompacted(){
+		return this._isCompacted;
+	}
+	
+	/**
+	 * Keeps only the features which are not removed in the feature dictionary, with new consecutive IDs in the same order
+	 * @param removed Whether each feature is to be removed
+	 * @return The new ID of each feature, or -1 for the removed features
+	 */
+	private int[] renumberFeatures(boolean[] removed){
+		if(this.isFeatureHashing()){
+			throw new NetworkException("The features cannot be removed when they are hashed, since there is no feature dictionary.");
+		}
+		int[] newIds = new int[this._size];
+		int size = 0;
+		for(int featureId=0; featureId<this._size; featureId++){
+			newIds[featureId] = removed[featureId] ? -1 : size++;
+		}
+		FeatureIndex featureIndex = new FeatureIndex();
+		for(FeatureIndex.Feature feature: this.getFeatureIndex()){
+			if(newIds[feature.id] >= 0){
+				featureIndex.getOrPut(feature.type, feature.output, feature.input, newIds[feature.id]);
+			}
+		}
+		this._featureIndex = featureIndex;
+		this._size = size;
+		// The typed toFeature has found the old IDs
+		this.resetFeatureKeyTables();
+		return newIds;
+	}
 
-		return inputToIdx.get(input);
+	/**
+	 * Returns the ordinal of the feature template with the specified name, to be used in
+	 * {@link #toFeature(Network, int, int, int)}. The name is the feature type in {@link #toFeature(Network, String, String, String)}.
+	 * @param type
+	 * @return
+	 */
+	public synchronized int toTemplateId(String type){
+		Integer templateId = this._templateIds.get(type);
+		if(templateId == null){
+			if(this._templates.size() == MAX_TEMPLATES){
+				throw new NetworkException("Too many feature templates, the maximum is "+MAX_TEMPLATES);
+			}
+			templateId = this._templates.size();
+			this._templates.put(templateId, type);
+			this._templateIds.put(type, templateId);
+		}
+		return templateId;
+	}
+	
+	/**
+	 * Returns the ID of the specified input, to be used in {@link #toFeature(Network, int, int, int)}.<br>
+	 * The input IDs can be computed once per instance (e.g., one for each word), instead of once per feature.
+	 * @param input
+	 * @return
+	 */
+	public int toInputId(String input){
+		Integer inputId = this._inputIds.get(input);
+		if(inputId != null){
+			return inputId;
+		}
+		synchronized(this._inputs){
+			inputId = this._inputIds.get(input);
+			if(inputId == null){
+				inputId = this._inputs.size();
+				// The input is added before its ID is published, so that it is found by any thread which has the ID
+				this._inputs.put(inputId, input);
+				this._inputIds.put(input, inputId);
+			}
+			return inputId;
+		}
+	}
+	
+	/**
+	 * Same as {@link #toFeature(Network, String, String, String)}, but with the feature type given as a template
+	 * ordinal from {@link #toTemplateId(String)}, the output given as an int (e.g., the label ID), whose string form
+	 * is its decimal representation, and the input given as an ID from {@link #toInputId(String)}.<br>
+	 * The features found are kept in a primitive hash table for each thread, so that further calls with the same
+	 * arguments do not create any object. The features are the same as those of the String version, so both
+	 * can be used together, and the String representation of the features (e.g., {@link #getFeatureRep(int)})
+	 * is unchanged.
+	 * @param network
+	 * @param templateId
+	 * @param outputId The output, between {@link Short#MIN_VALUE} and {@link Short#MAX_VALUE}
+	 * @param inputId
+	 * @return
+	 */
+	public int toFeature(Network network, int templateId, int outputId, int inputId){
+		if(this.isFeatureHashing()){
+			// The same hash as the String version, without creating the String of the output
+			return this.hashFeature(stringHash(this._templates.get(templateId)), decimalHash(outputId), stringHash(this._inputs.get(inputId)));
+		}
+		long key = featureKey(templateId, outputId, inputId);
+		int threadId = network != null ? network.getThreadId() : -1;
+		FeatureKeyTable[] tables = this._featureKeyTables;
+		if(threadId >= tables.length-1){
+			// Not a thread known to this parameter, so no table is used
+			return this.toFeature(network, this._templates.get(templateId), Integer.toString(outputId), this._inputs.get(inputId));
+		}
+		FeatureKeyTable table = tables[threadId >= 0 ? threadId : tables.length-1];
+		if(threadId >= 0){
+			int featureId = table.get(key);
+			if(featureId >= 0){
+				return featureId;
+			}
+			featureId = this.toFeature(network, this._templates.get(templateId), Integer.toString(outputId), this._inputs.get(inputId));
+			if(featureId >= 0){
+				table.put(key, featureId);
+			}
+			return featureId;
+		}
+		synchronized(table){
+			int featureId = table.get(key);
+			if(featureId >= 0){
+				return featureId;
+			}
+			featureId = this.toFeature(network, this._templates.get(templateId), Integer.toString(outputId), this._inputs.get(inputId));
+			if(featureId >= 0){
+				table.put(key, featureId);
+			}
+			return featureId;
+		}
+	}
+	
+	/**
+	 * Packs the template ordinal, the output, and the input ID into one key
+	 * @param templateId
+	 * @param outputId
+	 * @param inputId
+	 * @return
+	 */
+	private static long featureKey(int templateId, int outputId, int inputId){
+		if(outputId < Short.MIN_VALUE || outputId > Short.MAX_VALUE){
+			throw new NetworkException("The output "+outputId+" is out of the range of the typed feature keys.");
+		}
+		return ((long)templateId << 48) | ((long)(outputId & 0xFFFF) << 32) | (inputId & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Returns the ID of the feature with the specified hashes of its type, output, and input,
+	 * in feature hashing mode
+	 * @param typeHash
+	 * @param outputHash
+	 * @param inputHash
+	 * @return
+	 */
+	private int hashFeature(long typeHash, long outputHash, long inputHash){
+		long hash = typeHash;
+		hash = hash*0x9e3779b97f4a7c15L + outputHash;
+		hash = hash*0x9e3779b97f4a7c15L + inputHash;
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return (int)(hash >>> (64-this._featureHashBits));
+	}
+	
+	/**
+	 * The 64-bit FNV-1a hash of the characters of the string, since {@link String#hashCode()}
+	 * has too many collisions between short strings
+	 * @param str
+	 * @return
+	 */
+	private static long stringHash(String str){
+		long hash = 0xcbf29ce484222325L;
+		for(int i=0; i<str.length(); i++){
+			hash = (hash ^ str.charAt(i)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+	
+	/**
+	 * Returns the same value as <code>stringHash(Integer.toString(value))</code>, without creating the String
+	 * @param value
+	 * @return
+	 */
+	private static long decimalHash(int value){
+		if(value == Integer.MIN_VALUE){
+			return stringHash(Integer.toString(value));
+		}
+		long hash = 0xcbf29ce484222325L;
+		if(value < 0){
+			hash = (hash ^ '-') * 0x100000001b3L;
+			value = -value;
+		}
+		int divisor = 1;
+		while(value/divisor >= 10){
+			divisor *= 10;
+		}
+		for(; divisor > 0; divisor /= 10){
+			hash = (hash ^ ('0' + (value/divisor)%10)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+	
+	private void initFeatureKeys(){
+		this._templates = new ConcurrentHashMap<Integer, String>();
+		this._templateIds = new HashMap<String, Integer>();
+		this._inputs = new ConcurrentHashMap<Integer, String>();
+		this._inputIds = new ConcurrentHashMap<String, Integer>();
+		this.resetFeatureKeyTables();
+	}
+	
+	/**
+	 * Remove the feature IDs found by {@link #toFeature(Network, int, int, int)}, as the feature IDs
+	 * returned by {@link #toFeature(Network, String, String, String)} are no longer the same
+	 */
+	private void resetFeatureKeyTables(){
+		FeatureKeyTable[] tables = new FeatureKeyTable[NetworkConfig._numThreads+1];
+		for(int i=0; i<tables.length; i++){
+			tables[i] = new FeatureKeyTable();
+		}
+		this._featureKeyTables = tables;
 	}
 	
 	/**
@@ -466,6 +898,10 @@ public class GlobalNetworkParam implements Serializable{
 	 * @return true if the optimization is deemed to be finished, false otherwise
 	 */
 	public synchronized boolean update(){
+		if(this.isCompacted()){
+			throw new NetworkException("This param is compacted, so it can only be used for decoding.");
+		}
+		this.flush();
 		boolean done;
 		if(this.isDiscriminative()){
 			done = this.updateDiscriminative();
@@ -478,86 +914,47 @@ public class GlobalNetworkParam implements Serializable{
 		return done;
 	}
 	
+	/**
+	 * Start the optimization again from the current weights, when the objective function has changed
+	 * (e.g., after the networks are pruned, see {@link NetworkConfig#PRUNE_AFTER_ITERATION}).<br>
+	 * The curvature history of the optimizer and the previous objective value are of the old objective function,
+	 * so they are discarded, as if this was the first iteration.
+	 */
+	public synchronized void restartOptimization(){
+		this._opt = this._optFactory.create(this._weights.length, getFeatureIndex());
+		this._obj_old = Double.NEGATIVE_INFINITY;
+		this.smallChangeCount = 0;
+	}
+	
 	/**
 	 * Update the weights using generative algorithm (e.g., for HMM)
 	 * @return true if the difference between previous and current objective function value
 	 * 		   is less than {@link NetworkConfig#objtol}, false otherwise.
 	 */
 	private boolean updateGenerative(){
-//		HashMap<String, Double> word2count = new HashMap<String, Double>();
+		// The weights of the features with the same type and output are normalized together
+		int numTypeOutputs = this.getFeatureIndex().countTypeOutputs();
+		double[] sums = new double[numTypeOutputs];
+		int[] sizes = new int[numTypeOutputs];
+		for(FeatureIndex.Feature feature: this._featureIndex){
+			sums[feature.typeOutputId] += this.getCount(feature.id);
+			sizes[feature.typeOutputId]++;
+		}
 		
-		Iterator<String> types = this._featureIntMap.keySet().iterator();
-		while(types.hasNext()){
-			String type = types.next();
-			HashMap<String, HashMap<String, Integer>> output2input = this._featureIntMap.get(type);
+		for(FeatureIndex.Feature feature: this._featureIndex){
+			double sum = sums[feature.typeOutputId];
+			int size = sizes[feature.typeOutputId];
+			double value = sum != 0 ? this.getCount(feature.id)/sum : 1.0/size;
+			this.setWeight(feature.id, Math.log(value));
 			
-			Iterator<String> outputs = output2input.keySet().iterator();
-			while(outputs.hasNext()){
-				String output = outputs.next();
-				
-				HashMap<String, Integer> input2feature;
-				Iterator<String> inputs;
-				
-				double sum = 0;
-				input2feature = output2input.get(output);
-				inputs = input2feature.keySet().iterator();
-				while(inputs.hasNext()){
-					String input = inputs.next();
-					int feature = input2feature.get(input);
-					sum += this.getCount(feature);
-					
-//					if(output.indexOf("*n:PlaceName -> ({ ' death valley ' })")!=-1){
-//						System.err.println(Arrays.toString(this.getFeatureRep(feature))+"\t"+Math.exp(this.getWeight(feature)));
-//					}
-					
-//					if(type.equals("emission")){
-//						if(!word2count.containsKey(input)){
-//							word2count.put(input, 0.0);
-//						}
-//						double oldCount = word2count.get(input);
-//						word2count.put(input, oldCount+this.getCount(feature));
-//					}
-				}
-				
-//				if(Math.abs(1-sum)>1E-12){
-//					System.err.println("sum="+sum+"\t"+type+"\t"+output);
-//				}
-				
-				input2feature = output2input.get(output);
-				inputs = input2feature.keySet().iterator();
-				while(inputs.hasNext()){
-					String input = inputs.next();
-					int feature = input2feature.get(input);
-					double value = sum != 0 ? this.getCount(feature)/sum : 1.0/input2feature.size();
-					this.setWeight(feature, Math.log(value));
-					
-//					if(value>1E-15)
-//					{
-//						String s = Arrays.toString(this.getFeatureRep(feature));
-//						if(s.indexOf("transition")!=-1 && s.indexOf("low_point_1")!=-1){
-//							System.err.println(s+"\t"+value);
-//						}
-//					}
-					
-					if(Double.isNaN(Math.log(value))){
-						throw new RuntimeException("x"+value+"\t"+this.getCount(feature)+"/"+sum+"\t"+input2feature.size());
-					}
-				}
+			if(Double.isNaN(Math.log(value))){
+				throw new RuntimeException("x"+value+"\t"+this.getCount(feature.id)+"/"+sum+"\t"+size);
 			}
 		}
 		boolean done = Math.abs(this._obj-this._obj_old) < NetworkConfig.objtol;
 		
 		this._version ++;
 		
-//		System.err.println("Word2count:");
-//		Iterator<String> words = word2count.keySet().iterator();
-//		while(words.hasNext()){
-//			String word = words.next();
-//			double count = word2count.get(word);
-//			System.err.println(word+"\t"+count);
-//		}
-//		System.exit(1);
-		
 		return done;
 	}
 	
@@ -592,7 +989,8 @@ public class GlobalNetworkParam implements Serializable{
     	} catch(ExceptionWithIflag e){
     		throw new NetworkException("Exception with Iflag:"+e.getMessage());
     	}
-    	if(this._opt.name().contains("LBFGS Optimizer")){
+    	boolean isQuasiNewton = this._opt.name().contains("LBFGS Optimizer") || this._opt.name().contains("OWL-QN Optimizer");
+    	if(isQuasiNewton){
 	    	double diff = this.getObj()-this.getObj_old();
 	    	if(diff >= 0 && diff < NetworkConfig.objtol){
 	    		done = true;
@@ -618,6 +1016,10 @@ public class GlobalNetworkParam implements Serializable{
         		this._weights[i] = LBFGS.solution_cache[i];
         	}
     	}
+    	if(done && this._opt instanceof OWLQNOptimizer){
+    		// Same as above, but the optimizer keeps its own copy of the solution
+    		((OWLQNOptimizer)this._opt).restoreBestVariables();
+    	}
     	
 		this._version ++;
 		return done;
@@ -632,6 +1034,8 @@ public class GlobalNetworkParam implements Serializable{
 	 * essentially zeroing the values to be updated with the model gradient and objective value. 
 	 */
 	protected synchronized void resetCountsAndObj(){
+		// Values not yet flushed are discarded too
+		this.flush();
 		
 		double coef = 1.0;
 		if(NetworkConfig.USE_BATCH_SGD){
@@ -652,6 +1056,10 @@ public class GlobalNetworkParam implements Serializable{
 		if(this.isDiscriminative() && this._kappa > 0){
 			this._obj += - coef * this._kappa * MathsVector.square(this._weights);
 		}
+		//the gradient of the L1 term is not defined at zero, so only the optimizer adds it
+		if(this.isDiscriminative() && this._lambda > 0){
+			this._obj += - this._lambda * MathsVector.absSum(this._weights);
+		}
 		//NOTES:
 		//for additional terms such as regularization terms:
 		//always add to _obj the term g(x) you would like to maximize.
@@ -669,22 +1077,53 @@ public class GlobalNetworkParam implements Serializable{
 	}
 	
 	private void writeObject(ObjectOutputStream out) throws IOException{
-		out.writeObject(this._featureIntMap);
+		out.writeObject(this._featureIndex);
 		out.writeObject(this._feature2rep);
 		out.writeObject(this._weights);
 		out.writeInt(this._size);
 		out.writeInt(this._fixedFeaturesSize);
 		out.writeBoolean(this._locked);
+		out.writeInt(this._featureHashBits);
+		out.writeBoolean(this._isCompacted);
 	}
 	
 	@SuppressWarnings("unchecked")
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
-		this._featureIntMap = (HashMap<String, HashMap<String, HashMap<String, Integer>>>)in.readObject();
+		Object featureIndex = in.readObject();
+		if(featureIndex instanceof HashMap){
+			// Models written with the map from type to [a map from output to [a map from input to feature ID]]
+			this._featureIndex = new FeatureIndex();
+			HashMap<String, HashMap<String, HashMap<String, Integer>>> featureIntMap = (HashMap<String, HashMap<String, HashMap<String, Integer>>>)featureIndex;
+			for(String type: featureIntMap.keySet()){
+				HashMap<String, HashMap<String, Integer>> output2input = featureIntMap.get(type);
+				for(String output: output2input.keySet()){
+					HashMap<String, Integer> input2id = output2input.get(output);
+					for(String input: input2id.keySet()){
+						this._featureIndex.getOrPut(type, output, input, input2id.get(input));
+					}
+				}
+			}
+		} else {
+			this._featureIndex = (FeatureIndex)featureIndex;
+		}
 		this._feature2rep = (String[][])in.readObject();
 		this._weights = (double[])in.readObject();
 		this._size = in.readInt();
 		this._fixedFeaturesSize = in.readInt();
 		this._locked = in.readBoolean();
+		try{
+			this._featureHashBits = in.readInt();
+		} catch (IOException e){
+			// Models written before feature hashing
+			this._featureHashBits = -1;
+		}
+		try{
+			this._isCompacted = in.readBoolean();
+		} catch (IOException e){
+			// Models written before the compaction
+			this._isCompacted = false;
+		}
+		this.initFeatureKeys();
 	}
 	
 }
\ No newline at end of file
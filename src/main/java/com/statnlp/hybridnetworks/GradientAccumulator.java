@@ -0,0 +1,214 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.hybridnetworks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.statnlp.hybridnetworks.NetworkConfig.AccumulatorType;
+
+/**
+ * Accumulates the gradient (the counts) and the objective written directly into a {@link GlobalNetworkParam},
+ * which is the case in global mode (e.g., when {@link NetworkConfig#_numThreads} is 1).<br>
+ * The implementation is selected by {@link NetworkConfig#GRADIENT_ACCUMULATOR}, or from the number of threads
+ * when it is null: {@link SingleWriter} for one thread, and {@link Striped} otherwise.
+ * The values added might only be visible in the counts and objective of the parameters after {@link #flush()},
+ * which must be called when no thread is adding values.
+ */
+public abstract class GradientAccumulator {
+	
+	protected GlobalNetworkParam _param;
+	
+	protected GradientAccumulator(GlobalNetworkParam param){
+		this._param = param;
+	}
+	
+	/**
+	 * Create the accumulator for the specified parameters, as selected by {@link NetworkConfig#GRADIENT_ACCUMULATOR}
+	 * @param param
+	 * @return
+	 */
+	public static GradientAccumulator create(GlobalNetworkParam param){
+		AccumulatorType type = NetworkConfig.GRADIENT_ACCUMULATOR;
+		if(type == null){
+			type = NetworkConfig._numThreads == 1 ? AccumulatorType.SINGLE_WRITER : AccumulatorType.STRIPED;
+		}
+		switch(type){
+		case STRIPED:
+			return new Striped(param);
+		case ATOMIC:
+			return new Atomic(param);
+		default:
+			return new SingleWriter(param);
+		}
+	}
+	
+	/**
+	 * Add the value to the count of the feature, which is already negated for discriminative models
+	 * @param feature
+	 * @param value
+	 */
+	public abstract void addCount(int feature, double value);
+	
+	public abstract void addObj(double value);
+	
+	/**
+	 * Add all the values not yet in the counts and objective of the parameters
+	 */
+	public abstract void flush();
+	
+	/**
+	 * Adds to the counts and objective directly, without any locking.
+	 * Only correct when there is one thread adding values at a time.
+	 */
+	public static class SingleWriter extends GradientAccumulator {
+		
+		public SingleWriter(GlobalNetworkParam param){
+			super(param);
+		}
+
+		@Override
+		public void addCount(int feature, double value){
+			this._param._counts[feature] += value;
+		}
+
+		@Override
+		public void addObj(double value){
+			this._param._obj += value;
+		}
+
+		@Override
+		public void flush(){
+		}
+	}
+	
+	/**
+	 * Each thread adds to its own shard, and the shards are added to the counts and objective in {@link #flush()}
+	 */
+	public static class Striped extends GradientAccumulator {
+		
+		private static class Shard {
+			/** Allocated when the thread first adds a count, so that threads only adding the objective are cheap */
+			double[] counts;
+			double obj;
+		}
+		
+		private ThreadLocal<Shard> _shard = new ThreadLocal<Shard>();
+		/** All shards, in the order the threads first added a value */
+		private List<Shard> _shards = new ArrayList<Shard>();
+		
+		public Striped(GlobalNetworkParam param){
+			super(param);
+		}
+		
+		private Shard getShard(){
+			Shard shard = this._shard.get();
+			if(shard == null){
+				shard = new Shard();
+				this._shard.set(shard);
+				synchronized(this._shards){
+					this._shards.add(shard);
+				}
+			}
+			return shard;
+		}
+
+		@Override
+		public void addCount(int feature, double value){
+			Shard shard = this.getShard();
+			if(shard.counts == null){
+				shard.counts = new double[this._param._counts.length];
+			}
+			shard.counts[feature] += value;
+		}
+
+		@Override
+		public void addObj(double value){
+			this.getShard().obj += value;
+		}
+
+		@Override
+		public void flush(){
+			double[] counts = this._param._counts;
+			synchronized(this._shards){
+				for(Shard shard: this._shards){
+					if(shard.counts != null){
+						for(int f=0; f<shard.counts.length; f++){
+							if(shard.counts[f] != 0.0){
+								counts[f] += shard.counts[f];
+								shard.counts[f] = 0.0;
+							}
+						}
+					}
+					this._param._obj += shard.obj;
+					shard.obj = 0.0;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds to a copy of the counts and objective with compare-and-set on the bits of the doubles,
+	 * which is added to the counts and objective in {@link #flush()}
+	 */
+	public static class Atomic extends GradientAccumulator {
+		
+		private AtomicLongArray _counts;
+		private AtomicLong _obj;
+		
+		public Atomic(GlobalNetworkParam param){
+			super(param);
+			this._counts = new AtomicLongArray(param._counts.length);
+			this._obj = new AtomicLong();
+		}
+		
+		private static void add(AtomicLongArray array, int index, double value){
+			long old;
+			do{
+				old = array.get(index);
+			} while(!array.compareAndSet(index, old, Double.doubleToRawLongBits(Double.longBitsToDouble(old)+value)));
+		}
+
+		@Override
+		public void addCount(int feature, double value){
+			add(this._counts, feature, value);
+		}
+
+		@Override
+		public void addObj(double value){
+			long old;
+			do{
+				old = this._obj.get();
+			} while(!this._obj.compareAndSet(old, Double.doubleToRawLongBits(Double.longBitsToDouble(old)+value)));
+		}
+
+		@Override
+		public void flush(){
+			double[] counts = this._param._counts;
+			for(int f=0; f<counts.length; f++){
+				double value = Double.longBitsToDouble(this._counts.getAndSet(f, 0L));
+				if(value != 0.0){
+					counts[f] += value;
+				}
+			}
+			this._param._obj += Double.longBitsToDouble(this._obj.getAndSet(0L));
+		}
+	}
+
+}
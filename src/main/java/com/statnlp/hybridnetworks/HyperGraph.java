@@ -54,6 +54,21 @@ public interface HyperGraph extends Serializable{
 	 */
 	public int[][] getChildren(int k);
 	
+	/**
+	 * Get the children of the hyperedge with the specified index, among the hyperedges of node with index k.
+	 * @param k
+	 * @param children_k_index
+	 * @return
+	 */
+	public int[] getChildren(int k, int children_k_index);
+	
+	/**
+	 * Count the number of hyperedges of node with index k.
+	 * @param k
+	 * @return
+	 */
+	public int countEdges(int k);
+	
 	//check whether the node with index k is removed.
 	public boolean isRemoved(int k);
 	
@@ -0,0 +1,292 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.hybridnetworks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the k best derivations of a network using the lazy k-best algorithm of Huang and Chiang (2005).<br>
+ * Each node keeps the list of its best derivations found so far, and a queue of candidate derivations,
+ * where a derivation is a hyperedge together with the rank of the derivation used at each child.
+ * The queue of a node is filled only when the node is first visited, with the best derivation through
+ * each hyperedge (read from the max scores already computed by {@link Network#max()}), and the
+ * next derivations of a node are only computed when they are requested by its parents.
+ * So the cost of getting the k best derivations of the root is close to that of the 1-best decoding.
+ */
+class KBestDecoder {
+
+	private Network network;
+	/** The derivations of each node, or null if the node has not been visited */
+	private NodeDerivations[] nodes;
+	/** The stack of {@link #lazyKthBest(int, int)}: the nodes waiting for their children, and their number of derivations required */
+	private int[] stackNodes;
+	private int[] stackNumBest;
+
+	/**
+	 * The derivations of a visited node
+	 */
+	private static class NodeDerivations {
+		/** The derivations found so far, best first */
+		final List<Derivation> found = new ArrayList<Derivation>();
+		/** The candidate derivations */
+		final PriorityQueue<Derivation> candidates = new PriorityQueue<Derivation>();
+		/** The derivations that have been put into the candidates, to avoid duplicates */
+		final HashSet<Derivation> seen = new HashSet<Derivation>();
+		/** Whether the successors of the last found derivation have been put into the candidates */
+		boolean hasSuccessors;
+		/** Whether all the derivations have been found */
+		boolean isExhausted;
+	}
+
+	/**
+	 * A derivation at a node
+	 */
+	static class Derivation implements Comparable<Derivation> {
+		/** The index of the hyperedge in the node */
+		int children_k_index;
+		int[] children_k;
+		/** The rank of the derivation used at each child */
+		int[] ranks;
+		/** The score of the hyperedge itself */
+		double edgeScore;
+		/** The score of the whole derivation */
+		double score;
+
+		Derivation(int children_k_index, int[] children_k, int[] ranks, double edgeScore, double score){
+			this.children_k_index = children_k_index;
+			this.children_k = children_k;
+			this.ranks = ranks;
+			this.edgeScore = edgeScore;
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(Derivation o){
+			// Best first, ties are broken by the hyperedge index, the later one first, as in Network#max(int)
+			int result = Double.compare(o.score, this.score);
+			if(result != 0){
+				return result;
+			}
+			return Integer.compare(o.children_k_index, this.children_k_index);
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof Derivation)){
+				return false;
+			}
+			Derivation d = (Derivation)o;
+			return this.children_k_index == d.children_k_index && Arrays.equals(this.ranks, d.ranks);
+		}
+
+		@Override
+		public int hashCode(){
+			return 31*this.children_k_index + Arrays.hashCode(this.ranks);
+		}
+	}
+
+	/**
+	 * Create the decoder of the specified network, whose max scores have been computed
+	 * @param network
+	 */
+	public KBestDecoder(Network network){
+		this.network = network;
+		this.nodes = new NodeDerivations[network.countNodes()];
+		this.stackNodes = new int[network.countNodes()];
+		this.stackNumBest = new int[network.countNodes()];
+	}
+
+	/**
+	 * Returns the k best derivations at node k, best first.<br>
+	 * There might be less than k derivations.
+	 * @param k
+	 * @param numBest
+	 * @return
+	 */
+	public List<Derivation> getKBest(int k, int numBest){
+		this.lazyKthBest(k, numBest);
+		List<Derivation> result = this.nodes[k].found;
+		return result.subList(0, Math.min(numBest, result.size()));
+	}
+
+	/**
+	 * Returns the hyperedge chosen at each node in the specified derivation at node k,
+	 * in the same format as the max paths of the network, with null for the nodes not in the derivation.
+	 * @param k
+	 * @param derivation
+	 * @return
+	 */
+	public int[][] getPaths(int k, Derivation derivation){
+		int numNodes = this.network.countNodes();
+		int[][] paths = new int[numNodes][];
+		Derivation[] chosen = new Derivation[numNodes];
+		// Each node is put on the stack once, when its derivation is chosen
+		int[] stack = new int[numNodes];
+		int size = 0;
+		chosen[k] = derivation;
+		stack[size++] = k;
+		while(size > 0){
+			int node_k = stack[--size];
+			Derivation derivation_k = chosen[node_k];
+			paths[node_k] = derivation_k.children_k;
+			for(int i=0; i<derivation_k.children_k.length; i++){
+				int child_k = derivation_k.children_k[i];
+				// The best derivation of a child is not expanded until it is needed
+				this.lazyKthBest(child_k, derivation_k.ranks[i]+1);
+				Derivation childDerivation = this.nodes[child_k].found.get(derivation_k.ranks[i]);
+				if(chosen[child_k] != null){
+					if(chosen[child_k] != childDerivation){
+						throw new NetworkException("Node "+child_k+" is shared by different derivations, the k-best paths cannot be represented.");
+					}
+					continue;
+				}
+				chosen[child_k] = childDerivation;
+				stack[size++] = child_k;
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Make sure that the first numBest derivations of node k are found, if there are that many.<br>
+	 * The next derivation of a node requires the next derivations of the children of its last derivation,
+	 * so the nodes waiting for their children are kept on an explicit stack instead of recursing
+	 * once per level of the network.
+	 * @param k
+	 * @param numBest
+	 */
+	private void lazyKthBest(int k, int numBest){
+		// Each node on the stack waits for the node above it, one of its children, so a node is on the stack at most once
+		int[] stackNodes = this.stackNodes;
+		int[] stackNumBest = this.stackNumBest;
+		int size = 0;
+		stackNodes[size] = k;
+		stackNumBest[size++] = numBest;
+		while(size > 0){
+			int node_k = stackNodes[size-1];
+			if(this.nodes[node_k] == null){
+				this.initialize(node_k);
+			}
+			NodeDerivations derivations = this.nodes[node_k];
+			if(derivations.found.size() >= stackNumBest[size-1] || derivations.isExhausted){
+				size--;
+				continue;
+			}
+			if(derivations.found.size() > 0 && !derivations.hasSuccessors){
+				Derivation last = derivations.found.get(derivations.found.size()-1);
+				int waitingChild = this.findUnreadyChild(last);
+				if(waitingChild >= 0){
+					stackNodes[size] = last.children_k[waitingChild];
+					stackNumBest[size++] = last.ranks[waitingChild]+2;
+					continue;
+				}
+				this.pushSuccessors(node_k, last);
+				derivations.hasSuccessors = true;
+			}
+			if(derivations.candidates.isEmpty()){
+				derivations.isExhausted = true;
+				continue;
+			}
+			derivations.found.add(derivations.candidates.poll());
+			derivations.hasSuccessors = false;
+		}
+	}
+
+	/**
+	 * Returns the index of a child of the specified derivation whose next derivation (after the one used by the derivation)
+	 * is not found yet, while it might exist, or -1 if there is no such child
+	 * @param derivation
+	 * @return
+	 */
+	private int findUnreadyChild(Derivation derivation){
+		for(int i=0; i<derivation.children_k.length; i++){
+			NodeDerivations child = this.nodes[derivation.children_k[i]];
+			if(child == null || (child.found.size() < derivation.ranks[i]+2 && !child.isExhausted)){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Put the best derivation through each hyperedge of node k into its candidates
+	 * @param k
+	 */
+	private void initialize(int k){
+		if(this.network.isSumNode(k)){
+			throw new NetworkException("The k-best decoding does not support sum nodes.");
+		}
+		this.nodes[k] = new NodeDerivations();
+		if(this.network.isRemoved(k)){
+			return;
+		}
+		double[] max = this.network._max;
+		int numEdges = this.network.countEdges(k);
+		for(int children_k_index=0; children_k_index<numEdges; children_k_index++){
+			if(this.network.isEdgeRemoved(k, children_k_index)){
+				continue;
+			}
+			int[] children_k = this.network.getChildren(k, children_k_index);
+			boolean ignoreflag = false;
+			double score = 0.0;
+			for(int child_k : children_k){
+				if(this.network.isRemoved(child_k) || max[child_k] == Double.NEGATIVE_INFINITY){
+					ignoreflag = true; break;
+				}
+				score += max[child_k];
+			}
+			if(ignoreflag){
+				continue;
+			}
+			double edgeScore = this.network.getEdgeScore(k, children_k, children_k_index);
+			Derivation derivation = new Derivation(children_k_index, children_k, new int[children_k.length], edgeScore, edgeScore+score);
+			this.nodes[k].seen.add(derivation);
+			this.nodes[k].candidates.add(derivation);
+		}
+	}
+
+	/**
+	 * Put the derivations next to the specified one into the candidates of node k,
+	 * which use the same hyperedge, but the next derivation at one of the children.<br>
+	 * The next derivations of the children must have been found already, if they exist.
+	 * @param k
+	 * @param derivation
+	 */
+	private void pushSuccessors(int k, Derivation derivation){
+		int[] children_k = derivation.children_k;
+		for(int i=0; i<children_k.length; i++){
+			int[] ranks = derivation.ranks.clone();
+			ranks[i]++;
+			if(this.nodes[children_k[i]].found.size() <= ranks[i]){
+				continue;
+			}
+			double score = derivation.edgeScore;
+			for(int j=0; j<children_k.length; j++){
+				score += this.nodes[children_k[j]].found.get(ranks[j]).score;
+			}
+			Derivation next = new Derivation(derivation.children_k_index, children_k, ranks, derivation.edgeScore, score);
+			if(this.nodes[k].seen.add(next)){
+				this.nodes[k].candidates.add(next);
+			}
+		}
+	}
+
+}
@@ -17,6 +17,7 @@
 package com.statnlp.hybridnetworks;
 
 import com.statnlp.commons.types.Instance;
+import com.statnlp.hybridnetworks.NetworkConfig.DecodeMode;
 
 public class LocalNetworkDecoderThread extends Thread{
 	
@@ -31,6 +32,12 @@ public class LocalNetworkDecoderThread extends Thread{
 	//the builder.
 	private NetworkCompiler _compiler;
 	private boolean _cacheParam = true;
+	//the decoding algorithm.
+	private DecodeMode _decodeMode = DecodeMode.EXACT;
+	//the number of best outputs for each instance, or 0 for the 1-best decoding.
+	private int _numBest = 0;
+	//the k best outputs of each instance, when _numBest > 0.
+	private Instance[][] _kbest_outputs;
 	
 	//please make sure the threadId is 0-indexed.
 	public LocalNetworkDecoderThread(int threadId, FeatureManager fm, Instance[] instances, NetworkCompiler compiler){
@@ -38,11 +45,20 @@ public class LocalNetworkDecoderThread extends Thread{
 	}
 	
 	public LocalNetworkDecoderThread(int threadId, FeatureManager fm, Instance[] instances, NetworkCompiler compiler, boolean cacheParam){
-		this(threadId, fm, instances, compiler, new LocalNetworkParam(threadId, fm, instances.length), cacheParam);
+		this(threadId, fm, instances, compiler, cacheParam, DecodeMode.EXACT);
+	}
+	
+	public LocalNetworkDecoderThread(int threadId, FeatureManager fm, Instance[] instances, NetworkCompiler compiler, boolean cacheParam, DecodeMode decodeMode){
+		this(threadId, fm, instances, compiler, new LocalNetworkParam(threadId, fm, instances.length), cacheParam, decodeMode);
 	}
 	
 	//please make sure the threadId is 0-indexed.
 	public LocalNetworkDecoderThread(int threadId, FeatureManager fm, Instance[] instances, NetworkCompiler compiler, LocalNetworkParam param, boolean cacheParam){
+		this(threadId, fm, instances, compiler, param, cacheParam, DecodeMode.EXACT);
+	}
+	
+	//please make sure the threadId is 0-indexed.
+	public LocalNetworkDecoderThread(int threadId, FeatureManager fm, Instance[] instances, NetworkCompiler compiler, LocalNetworkParam param, boolean cacheParam, DecodeMode decodeMode){
 		this._threadId = threadId;
 		this._param = param;
 		fm.setLocalNetworkParams(this._threadId, this._param);
@@ -55,6 +71,7 @@ public class LocalNetworkDecoderThread extends Thread{
 		this._instances_input = instances;
 		this._compiler = compiler;
 		this._cacheParam = cacheParam;
+		this._decodeMode = decodeMode;
 	}
 	
 	public LocalNetworkParam getParam(){
@@ -66,12 +83,29 @@ public class LocalNetworkDecoderThread extends Thread{
 		this.max();
 	}
 	
+	/**
+	 * Decode the k best outputs of each instance instead of only the best one
+	 * @param numBest
+	 * @see NetworkCompiler#decompile(Network, int)
+	 */
+	public void setNumBest(int numBest){
+		this._numBest = numBest;
+	}
+	
 	public void max(){
 		long time = System.currentTimeMillis();
 		this._instances_output = new Instance[this._instances_input.length];
+		if(this._numBest > 0){
+			this._kbest_outputs = new Instance[this._instances_input.length][];
+		}
 		for(int k = 0; k<this._instances_input.length; k++){
 //			System.err.println("Thread "+this._threadId+"\t"+k);
-			this._instances_output[k] = this.max(this._instances_input[k], k);
+			if(this._numBest > 0){
+				this._kbest_outputs[k] = this.maxKBest(this._instances_input[k], k);
+				this._instances_output[k] = this._kbest_outputs[k].length > 0 ? this._kbest_outputs[k][0] : null;
+			} else {
+				this._instances_output[k] = this.max(this._instances_input[k], k);
+			}
 		}
 		time = System.currentTimeMillis() - time;
 		System.err.println("Decoding time for thread "+this._threadId+" = "+ time/1000.0 +" secs.");
@@ -83,13 +117,29 @@ public class LocalNetworkDecoderThread extends Thread{
 		if(!_cacheParam){
 			this._param.disableCache();
 		}
-		network.max();
+		network.max(this._decodeMode);
 //		System.err.println("max="+network.getMax());
 		return this._compiler.decompile(network);
 	}
 	
+	public Instance[] maxKBest(Instance instance, int networkId){
+		Network network = this._compiler.compileAndStore(networkId, instance, this._param);
+		if(!_cacheParam){
+			this._param.disableCache();
+		}
+		return this._compiler.decompile(network, this._numBest);
+	}
+	
+	public Instance[] getInputs(){
+		return this._instances_input;
+	}
+	
 	public Instance[] getOutputs(){
 		return this._instances_output;
 	}
 	
+	public Instance[][] getKBestOutputs(){
+		return this._kbest_outputs;
+	}
+	
 }
@@ -156,14 +156,34 @@ public class LocalNetworkLearnerThread extends Thread implements Callable<Void>
 	 * @param it
 	 */
 	private void train(int it){
+		boolean prune = this.shouldPrune(it);
+		int numPruned = 0;
 		for(int i = 0; i< this._instances.length; i++){
 			if(NetworkConfig.USE_BATCH_SGD && !this.chargeInstsIds.contains(this._instances[i].getInstanceId()) && !this.chargeInstsIds.contains(-this._instances[i].getInstanceId()) )
 				continue;
 			Network network = this.getNetwork(i);
 			network.train();
+			if(prune && !network.getInstance().isLabeled() && network.getInstance().size() >= NetworkConfig.PRUNE_MIN_LENGTH){
+				numPruned += network.prune(NetworkConfig.PRUNE_THRESHOLD);
+			}
+		}
+		if(prune){
+			System.out.println("Thread "+this._threadId+" pruned "+numPruned+" hyperedges with posterior below "+NetworkConfig.PRUNE_THRESHOLD);
 		}
 	}
 	
+	/**
+	 * Returns whether the unlabeled networks should be pruned after training in the specified iteration.<br>
+	 * This requires the networks to be cached, so that the pruned hyperedges are kept for later iterations.
+	 * @param it
+	 * @return
+	 */
+	boolean shouldPrune(int it){
+		return it == NetworkConfig.PRUNE_AFTER_ITERATION
+				&& this._cacheNetworks
+				&& NetworkConfig.MODEL_TYPE != NetworkConfig.ModelType.SSVM;
+	}
+	
 	public Network getNetwork(int networkId){
 		if(this._cacheNetworks && this._networks[networkId]!=null)
 			return this._networks[networkId];
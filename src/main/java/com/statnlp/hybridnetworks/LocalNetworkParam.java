@@ -17,9 +17,11 @@
 package com.statnlp.hybridnetworks;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 //one thread should have one such LocalFeatureMap.
 /**
@@ -35,8 +37,6 @@ public class LocalNetworkParam implements Serializable{
 	protected int _threadId;
 	//the feature manager.
 	protected FeatureManager _fm;
-	//the version number.
-	protected int _version;
 	
 	//the partial objective function.
 	protected double _obj;
@@ -51,11 +51,24 @@ public class LocalNetworkParam implements Serializable{
 	protected HashMap<Integer, Integer> _globalFeature2LocalFeature;
 	//check if it is finalized.
 	protected boolean _isFinalized;
+	/**
+	 * The number of times each feature occurs in the hyperedges of the first touch (see {@link FeatureManager#pruneFeatures()}),
+	 * indexed by the local feature
+	 * (or by the global feature in global mode), or null if the features are not pruned (see {@link FeatureManager#pruneFeatures()})
+	 */
+	protected int[] _featureCounts;
+	/** Whether some features were removed by {@link #removeFeatures(int[])}, so that they are -1 when extracted */
+	protected boolean _hasRemovedFeatures;
+	/**
+	 * The new ID of each feature of this thread (local, or global in global mode) at each call to
+	 * {@link #renumberFeatures(int[])} and {@link #removeFeatures(int[])}, or -1 for the removed features,
+	 * for the features kept outside the cache
+	 * @see #mapRenumberedFeatures(FeatureArray, int)
+	 */
+	protected ArrayList<int[]> _featureRenumberings = new ArrayList<int[]>();
 	
-	//the cache that stores the features
-	protected FeatureArray[][][] _cache;
-	//the cache that stores the features
-	protected Double[][][] _costCache;
+	//the cache that stores the features, packed by hyperedge.
+	protected FeatureArena _cache;
 	//check whether the cache is enabled.
 	protected boolean _cacheEnabled = true;
 	
@@ -73,8 +86,10 @@ public class LocalNetworkParam implements Serializable{
 		//this gives you the mapping from global to local features.
 		this._globalFeature2LocalFeature = new HashMap<Integer, Integer>();
 		this._isFinalized = false;
-		this._version = 0;
 		this._globalMode = false;
+		if(fm.isPruningFeatures()){
+			this._featureCounts = new int[1024];
+		}
 		
 		if(!NetworkConfig._CACHE_FEATURES_DURING_TRAINING){
 			this.disableCache();
@@ -120,9 +135,13 @@ public class LocalNetworkParam implements Serializable{
 		return this._fs;
 	}
 	
-	//get the version.
+	/**
+	 * Returns the version of the weights, which changes whenever the weights change
+	 * @return
+	 * @see GlobalNetworkParam#getVersion()
+	 */
 	public int getVersion(){
-		return this._version;
+		return this._fm.getParam_G().getVersion();
 	}
 	
 	//get the id of the thread.
@@ -212,12 +231,39 @@ public class LocalNetworkParam implements Serializable{
 		return this._cacheEnabled;
 	}
 	
+	/**
+	 * Returns whether the extracted features can be cached now.<br>
+	 * Do not cache in the first touch when parallel touch and extract only from labeled is enabled,
+	 * since the local feature indices will change
+	 * @return
+	 */
+	public boolean shouldCache(){
+		return this.isCacheEnabled() && (NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION
+										|| NetworkConfig._numThreads == 1
+										|| !NetworkConfig._BUILD_FEATURES_FROM_LABELED_ONLY
+										|| this._isFinalized);
+	}
+	
+	public FeatureManager getFeatureManager(){
+		return this._fm;
+	}
+	
+	/**
+	 * Returns the cache of the features of this thread, or null if nothing has been cached
+	 * @return
+	 */
+	public FeatureArena getFeatureArena(){
+		return this._cache;
+	}
+	
 	/**
 	 * Extract features from the specified network at current hyperedge, specified by its parent node
 	 * index (parent_k) and its children node indices (children_k).<br>
 	 * The children_k_index represents the index of current hyperedge in the list of hyperedges coming out of
 	 * the parent node.<br>
-	 * Note that a node with no outgoing hyperedge will still be considered here with empty children_k
+	 * Note that a node with no outgoing hyperedge will still be considered here with empty children_k<br>
+	 * The children_k can be null, in which case it will be retrieved from the network only when the 
+	 * features are not in the cache.
 	 * @param network
 	 * @param parent_k
 	 * @param children_k
@@ -225,68 +271,252 @@ public class LocalNetworkParam implements Serializable{
 	 * @return
 	 */
 	public FeatureArray extract(Network network, int parent_k, int[] children_k, int children_k_index){
-		// Do not cache in the first touch when parallel touch and extract only from labeled is enabled,
-		// since the local feature indices will change
-		boolean shouldCache = this.isCacheEnabled() && (NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION
-														|| NetworkConfig._numThreads == 1
-														|| !NetworkConfig._BUILD_FEATURES_FROM_LABELED_ONLY
-														|| this._isFinalized);
+		boolean shouldCache = this.shouldCache();
+		int edgeId = -1;
 		if(shouldCache){
 			if(this._cache == null){
-				this._cache = new FeatureArray[this._numNetworks][][];
+				this._cache = new FeatureArena(this._numNetworks);
 			}
-			if(this._cache[network.getNetworkId()] == null){
-				this._cache[network.getNetworkId()] = new FeatureArray[network.countNodes()][];
-			}
-			if(this._cache[network.getNetworkId()][parent_k] == null){
-				this._cache[network.getNetworkId()][parent_k] = new FeatureArray[network.getChildren(parent_k).length];
-			}
-			if(this._cache[network.getNetworkId()][parent_k][children_k_index] != null){
-				return this._cache[network.getNetworkId()][parent_k][children_k_index];
+			edgeId = network.getEdgeId(parent_k, children_k_index);
+			if(this._cache.contains(network.getNetworkId(), edgeId)){
+				return this._cache.get(network.getNetworkId(), edgeId, !this.isGlobalMode());
 			}
 		}
 		
+		FeatureArray fa = this.extractNew(network, parent_k, children_k, children_k_index);
+		
+		if(shouldCache){
+			this._cache.put(network.getNetworkId(), network.countEdgeIds(), edgeId, fa);
+		}
+		
+		return fa;
+	}
+	
+	private FeatureArray extractNew(Network network, int parent_k, int[] children_k, int children_k_index){
+		if(children_k == null){
+			children_k = network.getChildren(parent_k, children_k_index);
+		}
 		FeatureArray fa = this._fm.extract(network, parent_k, children_k, children_k_index);
 		if(!this.isGlobalMode()){
 			fa = fa.toLocal(this);
 		}
-		
-		if(shouldCache){
-			this._cache[network.getNetworkId()][parent_k][children_k_index] = fa;
+		// In discriminative training, the hyperedges of the labeled networks are also in the unlabeled networks,
+		// unless the first touch extracts only from the labeled networks
+		if(this._featureCounts != null && !this._isFinalized
+				&& (NetworkConfig.TRAIN_MODE_IS_GENERATIVE || NetworkConfig._BUILD_FEATURES_FROM_LABELED_ONLY
+						|| network.getInstance().getInstanceId() < 0)){
+			this.countFeatures(fa);
 		}
-		
 		return fa;
 	}
 	
-	public double cost(Network network, int parent_k, int[] children_k, int children_k_index, NetworkCompiler compiler){
-		// Do not cache in the first touch when parallel touch and extract only from labeled is enabled,
-		// since the local feature indices will change
-		boolean shouldCache = this.isCacheEnabled() && (NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION
-														|| NetworkConfig._numThreads == 1
-														|| !NetworkConfig._BUILD_FEATURES_FROM_LABELED_ONLY
-														|| this._isFinalized);
-		if(shouldCache){
-			if(this._costCache == null){
-				this._costCache = new Double[this._numNetworks][][];
+	private void countFeatures(FeatureArray fa){
+		if(fa == FeatureArray.NEGATIVE_INFINITY){
+			return;
+		}
+		for(FeatureArray segment = fa; segment != null; segment = segment.getNext()){
+			for(int f: segment.getCurrent()){
+				if(f < 0){
+					continue;
+				}
+				if(f >= this._featureCounts.length){
+					this._featureCounts = Arrays.copyOf(this._featureCounts, Math.max(f+1, 2*this._featureCounts.length));
+				}
+				this._featureCounts[f]++;
 			}
-			if(this._costCache[network.getNetworkId()] == null){
-				this._costCache[network.getNetworkId()] = new Double[network.countNodes()][];
+		}
+	}
+	
+	/**
+	 * Add the number of times each global feature occurs in the hyperedges of the first touch of this thread
+	 * to the specified counts.<br>
+	 * This should be called after {@link #finalizeIt()}.
+	 * @param counts
+	 * @see FeatureManager#pruneFeatures()
+	 */
+	public void addFeatureCounts(int[] counts){
+		int[] featureCounts = this._featureCounts;
+		if(featureCounts == null){
+			return;
+		}
+		if(this.isGlobalMode()){
+			for(int f_global=0; f_global<featureCounts.length && f_global<counts.length; f_global++){
+				counts[f_global] += featureCounts[f_global];
 			}
-			if(this._costCache[network.getNetworkId()][parent_k] == null){
-				this._costCache[network.getNetworkId()][parent_k] = new Double[network.getChildren(parent_k).length];
+		} else {
+			for(int f_local=0; f_local<featureCounts.length && f_local<this._fs.length; f_local++){
+				counts[this._fs[f_local]] += featureCounts[f_local];
 			}
-			if(this._costCache[network.getNetworkId()][parent_k][children_k_index] != null){
-				return this._costCache[network.getNetworkId()][parent_k][children_k_index];
+		}
+	}
+	
+	/**
+	 * Change the features of this thread, including the cached features, to the specified new global features,
+	 * where the features with a new ID of -1 are removed. The local features are renumbered accordingly.<br>
+	 * This should be called after {@link #finalizeIt()}.
+	 * @param newIds The new ID of each global feature, or -1 for the removed features
+	 * @see FeatureManager#pruneFeatures()
+	 */
+	public void removeFeatures(int[] newIds){
+		this._featureCounts = null;
+		this._hasRemovedFeatures = true;
+		if(this.isGlobalMode()){
+			this._featureRenumberings.add(newIds);
+			if(this._cache != null){
+				this._cache.mapFeatures(newIds);
 			}
+			return;
 		}
-		
-		double cost = compiler.cost(network, parent_k, children_k);
-		
-		if(shouldCache){
-			this._costCache[network.getNetworkId()][parent_k][children_k_index] = cost;
+		int[] newLocalIds = new int[this._fs.length];
+		int size = 0;
+		for(int f_local=0; f_local<this._fs.length; f_local++){
+			newLocalIds[f_local] = newIds[this._fs[f_local]] >= 0 ? size++ : -1;
 		}
-		
-		return cost;
+		int[] fs = new int[size];
+		for(int f_local=0; f_local<this._fs.length; f_local++){
+			if(newLocalIds[f_local] >= 0){
+				fs[newLocalIds[f_local]] = newIds[this._fs[f_local]];
+			}
+		}
+		this._fs = fs;
+		this._counts = new double[size];
+		if(this._globalFeature2LocalFeature != null){
+			HashMap<Integer, Integer> gf2lf = new HashMap<Integer, Integer>();
+			for(int f_local=0; f_local<fs.length; f_local++){
+				gf2lf.put(fs[f_local], f_local);
+			}
+			this._globalFeature2LocalFeature = gf2lf;
+		}
+		this._featureRenumberings.add(newLocalIds);
+		if(this._cache != null){
+			this._cache.mapFeatures(newLocalIds);
+		}
+		System.err.println("Pruned local param. size:"+size);
+	}
+	
+	/**
+	 * Change the global features of this thread, including the cached features in global mode, to the specified
+	 * final IDs assigned after the first touch (see {@link FeatureManager#finishParallelTouch()}).<br>
+	 * This should be called before {@link #finalizeIt()}.
+	 * @param newIds The final ID of each global feature
+	 */
+	public void renumberFeatures(int[] newIds){
+		if(!this.isGlobalMode()){
+			HashMap<Integer, Integer> gf2lf = new HashMap<Integer, Integer>();
+			for(Map.Entry<Integer, Integer> entry: this._globalFeature2LocalFeature.entrySet()){
+				gf2lf.put(newIds[entry.getKey()], entry.getValue());
+			}
+			this._globalFeature2LocalFeature = gf2lf;
+			return;
+		}
+		// In global mode the features are extracted with their global IDs
+		if(this._featureCounts != null){
+			int[] featureCounts = new int[newIds.length];
+			for(int f_global=0; f_global<this._featureCounts.length && f_global<newIds.length; f_global++){
+				featureCounts[newIds[f_global]] = this._featureCounts[f_global];
+			}
+			this._featureCounts = featureCounts;
+		}
+		this._featureRenumberings.add(newIds);
+		if(this._cache != null){
+			this._cache.mapFeatures(newIds);
+		}
+	}
+	
+	/**
+	 * Returns the number of calls to {@link #renumberFeatures(int[])} and {@link #removeFeatures(int[])},
+	 * so that the feature arrays kept outside the cache can be checked to be up to date
+	 * @return
+	 */
+	public int getFeatureRenumberingCount(){
+		return this._featureRenumberings.size();
+	}
+	
+	/**
+	 * Returns the specified feature array, extracted by this param when {@link #getFeatureRenumberingCount()} was
+	 * the specified count, with its features renumbered as the features of this param, and without the removed features
+	 * @param fa
+	 * @param renumberingCount
+	 * @return
+	 */
+	public FeatureArray mapRenumberedFeatures(FeatureArray fa, int renumberingCount){
+		for(int i=renumberingCount; i<this._featureRenumberings.size(); i++){
+			fa = fa.mapFeatures(this._featureRenumberings.get(i));
+		}
+		return fa;
+	}
+	
+	/**
+	 * Called when the features of all hyperedges of the specified network have been extracted,
+	 * so that the cache can release unused space, or move the features of the network out of memory
+	 * (see {@link FeatureArena#finish(int)}).
+	 * @param network
+	 */
+	public void finishCaching(Network network){
+		if(this._cache != null && this.shouldCache()){
+			this._cache.finish(network.getNetworkId());
+		}
+	}
+	
+	/**
+	 * Returns the score of the features at the specified hyperedge, same as calling 
+	 * {@link FeatureArray#getScore(LocalNetworkParam)} on the result of {@link #extract(Network, int, int[], int)},
+	 * but reads the features directly from the cache when they are cached.
+	 * @param network
+	 * @param parent_k
+	 * @param children_k
+	 * @param children_k_index
+	 * @return
+	 */
+	public double getScore(Network network, int parent_k, int[] children_k, int children_k_index){
+		if(this._cache != null && this.shouldCache()){
+			int edgeId = network.getEdgeId(parent_k, children_k_index);
+			if(this._cache.contains(network.getNetworkId(), edgeId)){
+				return this._cache.getScore(network.getNetworkId(), edgeId, this);
+			}
+		}
+		return this.extract(network, parent_k, children_k, children_k_index).getScore(this);
+	}
+	
+	/**
+	 * Add the count to the features at the specified hyperedge, same as calling 
+	 * {@link FeatureArray#update(LocalNetworkParam, double)} on the result of {@link #extract(Network, int, int[], int)},
+	 * but reads the features directly from the cache when they are cached.
+	 * @param network
+	 * @param parent_k
+	 * @param children_k
+	 * @param children_k_index
+	 * @param count
+	 */
+	public void update(Network network, int parent_k, int[] children_k, int children_k_index, double count){
+		if(this._cache != null && this.shouldCache()){
+			int edgeId = network.getEdgeId(parent_k, children_k_index);
+			if(this._cache.contains(network.getNetworkId(), edgeId)){
+				this._cache.update(network.getNetworkId(), edgeId, this, count);
+				return;
+			}
+		}
+		this.extract(network, parent_k, children_k, children_k_index).update(this, count);
+	}
+	
+	/**
+	 * Returns the cost of the hyperedge, which is precomputed in the network when its labeled network is known
+	 * (see {@link Network#buildCostTable(NetworkCompiler)}), or calculated by the compiler otherwise.
+	 * @param network
+	 * @param parent_k
+	 * @param children_k The children of the hyperedge, or null to get them from the network
+	 * @param children_k_index
+	 * @param compiler
+	 * @return
+	 */
+	public double cost(Network network, int parent_k, int[] children_k, int children_k_index, NetworkCompiler compiler){
+		if(network.hasCostTable()){
+			return network.getCost(parent_k, children_k_index);
+		}
+		if(children_k == null){
+			children_k = network.getChildren(parent_k, children_k_index);
+		}
+		return compiler.cost(network, parent_k, children_k);
 	}
 	
 	/**
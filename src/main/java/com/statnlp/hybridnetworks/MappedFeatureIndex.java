@@ -0,0 +1,276 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.hybridnetworks;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The feature dictionary of a {@link BinaryModelFile}, looked up directly in the mapped file instead of being
+ * read into a {@link FeatureIndex}, so that a model can be used as soon as the file is mapped.<br>
+ * The dictionary is made of three sections:
+ * <ol>
+ * <li>The strings (types, outputs, and inputs) in UTF-8, sorted by their bytes, so that the ID of a string is its rank,
+ * 	   found by binary search</li>
+ * <li>The type-output IDs, keyed by the string IDs of the type and the output</li>
+ * <li>The feature IDs, keyed by the type-output ID and the string ID of the input</li>
+ * </ol>
+ * The keys are kept in open-addressing tables with the same layout as {@link FeatureKeyTable}.<br>
+ * Only absolute reads are done on the buffers, so concurrent lookups are safe.
+ */
+class MappedFeatureIndex {
+
+	/** The number of strings, the offset of each string and the end offset of the last one, then the bytes */
+	private final ByteBuffer _strings;
+	private final int _numStrings;
+	private final KeyTable _typeOutputs;
+	private final KeyTable _features;
+
+	/**
+	 * An open-addressing table of the keys and their IDs, as written by {@link #writeKeys(DataOutputStream, FeatureKeyTable)}
+	 */
+	private static class KeyTable {
+
+		/** The number of slots, then the key at each slot, then the ID at each slot, -1 for empty slots */
+		private final ByteBuffer _buffer;
+		private final int _capacity;
+
+		private KeyTable(ByteBuffer buffer){
+			this._buffer = buffer;
+			this._capacity = buffer.getInt(0);
+		}
+
+		private long keyAt(int slot){
+			return this._buffer.getLong(4+8*slot);
+		}
+
+		private int idAt(int slot){
+			return this._buffer.getInt(4+8*this._capacity+4*slot);
+		}
+
+		private int get(long key){
+			int mask = this._capacity-1;
+			int slot = FeatureKeyTable.hash(key) & mask;
+			int id;
+			while((id = this.idAt(slot)) >= 0){
+				if(this.keyAt(slot) == key){
+					return id;
+				}
+				slot = (slot+1) & mask;
+			}
+			return -1;
+		}
+	}
+
+	public MappedFeatureIndex(ByteBuffer strings, ByteBuffer typeOutputs, ByteBuffer features){
+		this._strings = strings;
+		this._numStrings = strings.getInt(0);
+		this._typeOutputs = new KeyTable(typeOutputs);
+		this._features = new KeyTable(features);
+	}
+
+	/**
+	 * Returns the ID of the specified feature, or -1 if it is not in the dictionary
+	 * @param type
+	 * @param output
+	 * @param input
+	 * @return
+	 */
+	public int get(String type, String output, String input){
+		int typeId = this.findString(type);
+		if(typeId < 0){
+			return -1;
+		}
+		int outputId = this.findString(output);
+		if(outputId < 0){
+			return -1;
+		}
+		int typeOutputId = this._typeOutputs.get(key(typeId, outputId));
+		if(typeOutputId < 0){
+			return -1;
+		}
+		int inputId = this.findString(input);
+		if(inputId < 0){
+			return -1;
+		}
+		return this._features.get(key(typeOutputId, inputId));
+	}
+
+	/**
+	 * Reads the whole dictionary into a {@link FeatureIndex}
+	 * @return
+	 */
+	public FeatureIndex toFeatureIndex(){
+		String[] strings = new String[this._numStrings];
+		for(int stringId=0; stringId<this._numStrings; stringId++){
+			strings[stringId] = this.stringAt(stringId);
+		}
+		String[][] typeOutputs = new String[this._typeOutputs._capacity][];
+		for(int slot=0; slot<this._typeOutputs._capacity; slot++){
+			int typeOutputId = this._typeOutputs.idAt(slot);
+			if(typeOutputId >= 0){
+				long key = this._typeOutputs.keyAt(slot);
+				typeOutputs[typeOutputId] = new String[]{strings[(int)(key >>> 32)], strings[(int)key]};
+			}
+		}
+		FeatureIndex featureIndex = new FeatureIndex();
+		for(int slot=0; slot<this._features._capacity; slot++){
+			int featureId = this._features.idAt(slot);
+			if(featureId >= 0){
+				long key = this._features.keyAt(slot);
+				String[] typeOutput = typeOutputs[(int)(key >>> 32)];
+				featureIndex.getOrPut(typeOutput[0], typeOutput[1], strings[(int)key], featureId);
+			}
+		}
+		return featureIndex;
+	}
+
+	/**
+	 * Returns the ID of the specified string, or -1 if it is not in the string table
+	 * @param str
+	 * @return
+	 */
+	private int findString(String str){
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = this._numStrings-1;
+		while(low <= high){
+			int mid = (low+high) >>> 1;
+			int result = this.compareString(mid, bytes);
+			if(result < 0){
+				low = mid+1;
+			} else if(result > 0){
+				high = mid-1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private int compareString(int stringId, byte[] bytes){
+		int start = this.stringOffset(stringId);
+		int length = this.stringOffset(stringId+1)-start;
+		int minLength = Math.min(length, bytes.length);
+		for(int i=0; i<minLength; i++){
+			int result = (this._strings.get(start+i) & 0xFF) - (bytes[i] & 0xFF);
+			if(result != 0){
+				return result;
+			}
+		}
+		return length-bytes.length;
+	}
+
+	private int stringOffset(int stringId){
+		return 4*(this._numStrings+2)+this._strings.getInt(4+4*stringId);
+	}
+
+	private String stringAt(int stringId){
+		int start = this.stringOffset(stringId);
+		byte[] bytes = new byte[this.stringOffset(stringId+1)-start];
+		for(int i=0; i<bytes.length; i++){
+			bytes[i] = this._strings.get(start+i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static long key(int high, int low){
+		return ((long)high << 32) | (low & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Writes the three sections of the specified dictionary, each preceded by its length in bytes
+	 * @param out
+	 * @param featureIndex
+	 * @throws IOException
+	 */
+	public static void write(DataOutputStream out, FeatureIndex featureIndex) throws IOException{
+		HashMap<String, byte[]> encoded = new HashMap<String, byte[]>();
+		for(FeatureIndex.Feature feature: featureIndex){
+			for(String str: new String[]{feature.type, feature.output, feature.input}){
+				if(!encoded.containsKey(str)){
+					encoded.put(str, str.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+		}
+		String[] strings = encoded.keySet().toArray(new String[encoded.size()]);
+		Arrays.sort(strings, (s1, s2) -> compareBytes(encoded.get(s1), encoded.get(s2)));
+		HashMap<String, Integer> stringIds = new HashMap<String, Integer>();
+		long numBytes = 0;
+		for(int stringId=0; stringId<strings.length; stringId++){
+			stringIds.put(strings[stringId], stringId);
+			numBytes += encoded.get(strings[stringId]).length;
+		}
+		if(4L*(strings.length+2)+numBytes > Integer.MAX_VALUE){
+			throw new NetworkException("The strings of the features are too large for the binary model format.");
+		}
+
+		out.writeLong(4L*(strings.length+2)+numBytes);
+		out.writeInt(strings.length);
+		int offset = 0;
+		for(String str: strings){
+			out.writeInt(offset);
+			offset += encoded.get(str).length;
+		}
+		out.writeInt(offset);
+		for(String str: strings){
+			out.write(encoded.get(str));
+		}
+
+		FeatureKeyTable typeOutputs = new FeatureKeyTable();
+		FeatureKeyTable features = new FeatureKeyTable();
+		for(FeatureIndex.Feature feature: featureIndex){
+			long typeOutputKey = key(stringIds.get(feature.type), stringIds.get(feature.output));
+			int typeOutputId = typeOutputs.get(typeOutputKey);
+			if(typeOutputId < 0){
+				typeOutputId = typeOutputs.size();
+				typeOutputs.put(typeOutputKey, typeOutputId);
+			}
+			features.put(key(typeOutputId, stringIds.get(feature.input)), feature.id);
+		}
+		writeKeys(out, typeOutputs);
+		writeKeys(out, features);
+	}
+
+	private static void writeKeys(DataOutputStream out, FeatureKeyTable keys) throws IOException{
+		int capacity = keys.capacity();
+		out.writeLong(4+12L*capacity);
+		out.writeInt(capacity);
+		for(int slot=0; slot<capacity; slot++){
+			out.writeLong(keys.idAt(slot) >= 0 ? keys.keyAt(slot) : 0L);
+		}
+		for(int slot=0; slot<capacity; slot++){
+			out.writeInt(keys.idAt(slot));
+		}
+	}
+
+	private static int compareBytes(byte[] bytes1, byte[] bytes2){
+		int minLength = Math.min(bytes1.length, bytes2.length);
+		for(int i=0; i<minLength; i++){
+			int result = (bytes1[i] & 0xFF) - (bytes2[i] & 0xFF);
+			if(result != 0){
+				return result;
+			}
+		}
+		return bytes1.length-bytes2.length;
+	}
+
+}
@@ -18,8 +18,11 @@ package com.statnlp.hybridnetworks;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 import com.statnlp.commons.types.Instance;
+import com.statnlp.hybridnetworks.NetworkConfig.DecodeMode;
 import com.statnlp.hybridnetworks.NetworkConfig.ModelType;
 
 /**
@@ -46,6 +49,22 @@ public abstract class Network implements Serializable, HyperGraph{
 	protected static double[][] costSharedArray = new double[NetworkConfig._numThreads][];
 	/** The working array for each thread for storing max paths (for backtracking) */
 	protected static int[][][] maxPathsSharedArrays = new int[NetworkConfig._numThreads][][];
+	/** The working array for each thread for storing the index of the hyperedge in the max paths */
+	protected static int[][] maxEdgesSharedArray = new int[NetworkConfig._numThreads][];
+	/** The working array for each thread for marking the visited nodes */
+	protected static boolean[][] visitedSharedArray = new boolean[NetworkConfig._numThreads][];
+	/** The working array for each thread for the stack of nodes to be visited */
+	protected static int[][] nodeStackSharedArray = new int[NetworkConfig._numThreads][];
+	/** The working array for each thread for storing the score of each hyperedge */
+	protected static double[][][] edgeScoresSharedArrays = new double[NetworkConfig._numThreads][][];
+	/** The working array for each thread for gathering the scores of the hyperedges of one node */
+	protected static double[][] nodeScoresSharedArray = new double[NetworkConfig._numThreads][];
+	/** The working array for each thread for accumulating the outside scores, relative to the current maximum */
+	protected static double[][] outsideSumSharedArray = new double[NetworkConfig._numThreads][];
+	/** The working array for each thread for storing the scaling factor of each layer in scaled inference */
+	protected static double[][] layerScalesSharedArray = new double[NetworkConfig._numThreads][];
+	/** The working array for each thread for storing the cumulative log scaling factor of each layer in scaled inference */
+	protected static double[][] layerLogScalesSharedArray = new double[NetworkConfig._numThreads][];
 	
 	/** The IDs associated with the network (within the scope of the thread). */
 	protected int _networkId;
@@ -66,8 +85,69 @@ public abstract class Network implements Serializable, HyperGraph{
 	protected transient double[] _max;
 	/** Stores the paths associated with the above tree */
 	protected transient int[][] _max_paths;
+	/** 
+	 * At each index, store the index of the hyperedge in {@link #_max_paths}, 
+	 * or -1 if the max path of the node was set without the index
+	 */
+	protected transient int[] _maxEdges;
+	/** The scores of the derivations found by the last call to {@link #getKBestPaths(int)} */
+	protected transient double[] _kBestScores;
+	/**
+	 * At each node index and hyperedge index, store the score of the hyperedge (w*f, plus the cost 
+	 * in softmax-margin), calculated once in the inside pass and reused in the outside and gradient pass
+	 */
+	protected transient double[][] _edgeScores;
+	/** The scores of the hyperedges of the node being processed, to be summed in log space */
+	protected transient double[] _nodeScores;
+	/**
+	 * At each index, store the sum of exp(v-_outside[k]) of all outside scores v received so far by the node,
+	 * while _outside[k] stores the maximum of those, until the node is visited in the outside pass
+	 */
+	protected transient double[] _outsideSum;
 	/** To mark whether a node has been visited in one iteration */
 	protected transient boolean[] _visited;
+	/**
+	 * Whether the last inside pass was done in probability space with per-layer scaling.<br>
+	 * In that case {@link #_inside} and {@link #_outside} store the scaled inside and outside 
+	 * probabilities, and {@link #_edgeScores} stores the scaled potential (and later the marginal) 
+	 * of each hyperedge instead of its score. See {@link #insideScaled()}.
+	 */
+	protected transient boolean _scaled;
+	/** The log of the partition function, when the inside pass is done in scaled probability space */
+	protected transient double _logZ;
+	/** The scaling factor of each layer, from the last scaled inside pass */
+	protected transient double[] _layerScales;
+	/** The sum of the log scaling factors up to each layer, from the last scaled inside pass */
+	protected transient double[] _layerLogScales;
+	/** The layer of each node, or null if this network is not layered by position */
+	private transient int[] _layers;
+	/** Whether {@link #_layers} has been computed */
+	private transient boolean _layersChecked;
+	/** The hyperedges removed by {@link #prune(double)}, indexed by the edge ID, or null if none */
+	protected transient BitSet _removedEdges;
+	/** 
+	 * The hyperedges of this unlabeled network which are also present in the labeled network, indexed by the edge ID,
+	 * or null if not computed. See {@link #buildCostTable(NetworkCompiler)}
+	 */
+	protected transient BitSet _goldEdges;
+	/** The nodes of this unlabeled network which are also present in the labeled network, or null if not computed */
+	protected transient BitSet _goldNodes;
+	/** The cost of each hyperedge, indexed by the edge ID, or null if not computed */
+	protected transient double[] _costs;
+	/** The ID of the first hyperedge of each node, when the network is not in the compressed sparse layout */
+	private transient int[] _edgeIdOffsets;
+	/** The dependency levels of the nodes for the parallel inside pass, see {@link #getInsideWavefront()} */
+	private transient Wavefront _insideWavefront;
+	/** The dependency levels of the nodes for the parallel outside pass, see {@link #getOutsideWavefront()} */
+	private transient Wavefront _outsideWavefront;
+	/** The start of the list of hyperedges having each node as a child in {@link #_parentNodes} and {@link #_parentEdges} */
+	private transient int[] _parentOffsets;
+	/** The parent node of each hyperedge having a node as a child */
+	private transient int[] _parentNodes;
+	/** The index of each hyperedge having a node as a child, among the hyperedges of its parent node */
+	private transient int[] _parentEdges;
+	/** Whether the features of all hyperedges are in the cache, so that they can be read concurrently */
+	private transient boolean _featuresCached;
 	
 	/** The compiler that created this network */
 	protected NetworkCompiler _compiler;
@@ -140,6 +220,74 @@ public abstract class Network implements Serializable, HyperGraph{
 		return maxPathsSharedArrays[this._threadId];
 	}
 	
+	protected int[] getMaxEdgesSharedArray(){
+		if(maxEdgesSharedArray[this._threadId] == null || this.countNodes() > maxEdgesSharedArray[this._threadId].length)
+			maxEdgesSharedArray[this._threadId] = new int[this.countNodes()];
+		return maxEdgesSharedArray[this._threadId];
+	}
+	
+	protected boolean[] getVisitedSharedArray(){
+		if(visitedSharedArray[this._threadId] == null || this.countNodes() > visitedSharedArray[this._threadId].length)
+			visitedSharedArray[this._threadId] = new boolean[this.countNodes()];
+		return visitedSharedArray[this._threadId];
+	}
+	
+	protected int[] getNodeStackSharedArray(){
+		if(nodeStackSharedArray[this._threadId] == null || this.countNodes() > nodeStackSharedArray[this._threadId].length)
+			nodeStackSharedArray[this._threadId] = new int[this.countNodes()];
+		return nodeStackSharedArray[this._threadId];
+	}
+	
+	/**
+	 * Returns the working array for gathering the scores of the hyperedges of one node, 
+	 * with enough space for any node in this network
+	 * @return
+	 */
+	protected double[] getNodeScoresSharedArray(){
+		int maxNumEdges = 1;
+		for(int k=0; k<this.countNodes(); k++){
+			maxNumEdges = Math.max(maxNumEdges, this.countEdges(k));
+		}
+		if(nodeScoresSharedArray[this._threadId] == null || maxNumEdges > nodeScoresSharedArray[this._threadId].length)
+			nodeScoresSharedArray[this._threadId] = new double[maxNumEdges];
+		return nodeScoresSharedArray[this._threadId];
+	}
+	
+	protected double[] getOutsideSumSharedArray(){
+		if(outsideSumSharedArray[this._threadId] == null || this.countNodes() > outsideSumSharedArray[this._threadId].length)
+			outsideSumSharedArray[this._threadId] = new double[this.countNodes()];
+		return outsideSumSharedArray[this._threadId];
+	}
+	
+	protected double[] getLayerScalesSharedArray(){
+		if(layerScalesSharedArray[this._threadId] == null || this.countNodes() > layerScalesSharedArray[this._threadId].length)
+			layerScalesSharedArray[this._threadId] = new double[this.countNodes()];
+		return layerScalesSharedArray[this._threadId];
+	}
+	
+	protected double[] getLayerLogScalesSharedArray(){
+		if(layerLogScalesSharedArray[this._threadId] == null || this.countNodes() > layerLogScalesSharedArray[this._threadId].length)
+			layerLogScalesSharedArray[this._threadId] = new double[this.countNodes()];
+		return layerLogScalesSharedArray[this._threadId];
+	}
+	
+	/**
+	 * Returns the working array for storing hyperedge scores, making sure that each node has
+	 * enough space to store the scores of all its hyperedges.
+	 * @return
+	 */
+	protected double[][] getEdgeScoresSharedArray(){
+		if(edgeScoresSharedArrays[this._threadId] == null || this.countNodes() > edgeScoresSharedArrays[this._threadId].length)
+			edgeScoresSharedArrays[this._threadId] = new double[this.countNodes()][];
+		double[][] edgeScores = edgeScoresSharedArrays[this._threadId];
+		for(int k=0; k<this.countNodes(); k++){
+			int numEdges = Math.max(1, this.countEdges(k));
+			if(edgeScores[k] == null || numEdges > edgeScores[k].length)
+				edgeScores[k] = new double[numEdges];
+		}
+		return edgeScores;
+	}
+	
 	public int getNetworkId(){
 		return this._networkId;
 	}
@@ -212,11 +360,61 @@ public abstract class Network implements Serializable, HyperGraph{
 		this._unlabeledNetwork = network;
 	}
 	
+	@Override
+	public int[] getChildren(int k, int children_k_index){
+		return this.getChildren(k)[children_k_index];
+	}
+	
+	@Override
+	public int countEdges(int k){
+		return this.getChildren(k).length;
+	}
+	
+	/**
+	 * Returns true if the hyperedges of this network are stored in the compressed sparse layout, 
+	 * in which case {@link #getNodeOffsets()}, {@link #getEdgeOffsets()}, and {@link #getChildIndices()} 
+	 * are used directly during inference instead of {@link #getChildren(int)}.
+	 * @return
+	 * @see TableLookupNetwork#finalizeNetwork()
+	 */
+	public boolean isCompressed(){
+		return false;
+	}
+	
+	/**
+	 * In the compressed sparse layout, the hyperedges of node k are those with index from 
+	 * nodeOffsets[k] (inclusive) to nodeOffsets[k+1] (exclusive).
+	 * @return
+	 */
+	protected int[] getNodeOffsets(){
+		return null;
+	}
+	
+	/**
+	 * In the compressed sparse layout, the children of hyperedge e are stored in the child indices
+	 * from edgeOffsets[e] (inclusive) to edgeOffsets[e+1] (exclusive).
+	 * @return
+	 */
+	protected int[] getEdgeOffsets(){
+		return null;
+	}
+	
+	/**
+	 * In the compressed sparse layout, the children of all hyperedges, one after another.
+	 * @return
+	 */
+	protected int[] getChildIndices(){
+		return null;
+	}
+	
 	/**
 	 * Returns the inside score for the root node
 	 * @return
 	 */
 	public double getInside(){
+		if(this._scaled){
+			return this._logZ;
+		}
 		return this._inside[this.countNodes()-1];
 	}
 	
@@ -285,14 +483,59 @@ public abstract class Network implements Serializable, HyperGraph{
 	 */
 	protected void inside(){
 		this._inside = this.getInsideSharedArray();
-		Arrays.fill(this._inside, 0.0);
-		for(int k=0; k<this.countNodes(); k++){
-			this.inside(k);
+		this._edgeScores = this.getEdgeScoresSharedArray();
+		this._scaled = false;
+		boolean parallel = this.useWavefront();
+		if(NetworkConfig.USE_SCALED_INFERENCE && this.getLayers() != null){
+			this._scaled = this.insideScaled(parallel ? this.getInsideWavefront() : null);
+		}
+		if(!this._scaled){
+			// Not layered, or the scaled values overflowed, so fall back to log space
+			this._nodeScores = this.getNodeScoresSharedArray();
+			Arrays.fill(this._inside, 0.0);
+			boolean compressed = this.isCompressed();
+			if(parallel){
+				int maxNumEdges = this._nodeScores.length;
+				Wavefront wavefront = this.getInsideWavefront();
+				wavefront.run(0, wavefront.countLevels(), k -> {
+					double[] nodeScores = Wavefront.getScratch(maxNumEdges);
+					if(compressed){
+						this.insideCompressed(k, nodeScores);
+					} else {
+						this.inside(k, nodeScores);
+					}
+				});
+			} else {
+				for(int k=0; k<this.countNodes(); k++){
+					if(compressed){
+						this.insideCompressed(k);
+					} else {
+						this.inside(k);
+					}
+				}
+			}
 		}
 		
 		if(this.getInside()==Double.NEGATIVE_INFINITY){
 			throw new RuntimeException("Error: network (ID="+_networkId+") has zero inside score");
 		}
+		// All features used in the inside pass are now cached, if caching is enabled
+		this._featuresCached = this._param.shouldCache();
+	}
+	
+	/**
+	 * Returns whether the inside and outside passes should be done in parallel for this network, which is
+	 * when the network has at least {@link NetworkConfig#WAVEFRONT_MIN_NODES} nodes, and the features
+	 * of all its hyperedges are already cached (otherwise the extraction would modify the shared feature
+	 * index concurrently).
+	 * @return
+	 * @see Wavefront
+	 */
+	protected boolean useWavefront(){
+		return NetworkConfig.WAVEFRONT_PARALLELISM > 1
+				&& this.countNodes() >= NetworkConfig.WAVEFRONT_MIN_NODES
+				&& this._featuresCached
+				&& this._param.shouldCache();
 	}
 	
 	/**
@@ -300,9 +543,28 @@ public abstract class Network implements Serializable, HyperGraph{
 	 */
 	protected void outside(){
 		this._outside = this.getOutsideSharedArray();
+		boolean parallel = this.useWavefront();
+		if(this._scaled){
+			if(parallel){
+				this.outsideScaledWavefront();
+			} else {
+				this.outsideScaled();
+			}
+			return;
+		}
+		this._outsideSum = this.getOutsideSumSharedArray();
 		Arrays.fill(this._outside, Double.NEGATIVE_INFINITY);
+		if(parallel){
+			this.outsideWavefront();
+			return;
+		}
+		boolean compressed = this.isCompressed();
 		for(int k=this.countNodes()-1; k>=0; k--){
-			this.outside(k);
+			if(compressed){
+				this.outsideCompressed(k);
+			} else {
+				this.outside(k);
+			}
 		}
 	}
 	
@@ -316,21 +578,89 @@ public abstract class Network implements Serializable, HyperGraph{
 	protected void updateGradient(){
 		if(NetworkConfig.MODEL_TYPE == ModelType.SSVM){
 			// Max is already calculated
-			int rootIdx = this.countNodes()-1;
-			resetVisitedMark();
-			this.updateGradient(rootIdx);
+			this.updateGradientMaxPath();
+		} else if(this._scaled){
+			for(int k=0; k<this.countNodes(); k++){
+				this.updateGradientScaled(k);
+			}
 		} else {
+			boolean compressed = this.isCompressed();
 			for(int k=0; k<this.countNodes(); k++){
-				this.updateGradient(k);
+				if(compressed){
+					this.updateGradientCompressed(k);
+				} else {
+					this.updateGradient(k);
+				}
 			}
 		}			
 	}
 	
-	private void resetVisitedMark(){
-		this._visited = new boolean[countNodes()];
-		for(int i=0; i<this._visited.length; i++){
-			this._visited[i] = false;
+	/**
+	 * Update the gradient of the hyperedges in the max path (for structured SVM), going down from the root
+	 * using the index of the max hyperedge at each node, without recursion.
+	 */
+	private void updateGradientMaxPath(){
+		int numNodes = this.countNodes();
+		this._visited = this.getVisitedSharedArray();
+		Arrays.fill(this._visited, 0, numNodes, false);
+		int[] stack = this.getNodeStackSharedArray();
+		boolean compressed = this.isCompressed();
+		int size = 0;
+		stack[size++] = numNodes-1;
+		this._visited[numNodes-1] = true;
+		while(size > 0){
+			int k = stack[--size];
+			if(this.isRemoved(k)) continue;
+			int children_k_index = this.getMaxEdge(k);
+			if(children_k_index < 0 || this.isEdgeRemoved(k, children_k_index)) continue;
+			int[] children_k;
+			if(compressed){
+				int edge = this.getNodeOffsets()[k]+children_k_index;
+				children_k = this.getChildIndices();
+				int childStart = this.getEdgeOffsets()[edge];
+				int childEnd = this.getEdgeOffsets()[edge+1];
+				if(this.hasRemovedChild(children_k, childStart, childEnd)) continue;
+				this._param.update(this, k, null, children_k_index, this._weight);
+				for(int c = childStart; c < childEnd; c++){
+					if(!this._visited[children_k[c]]){
+						this._visited[children_k[c]] = true;
+						stack[size++] = children_k[c];
+					}
+				}
+			} else {
+				children_k = this.getChildren(k)[children_k_index];
+				if(this.hasRemovedChild(children_k, 0, children_k.length)) continue;
+				this._param.update(this, k, children_k, children_k_index, this._weight);
+				for(int child_k : children_k){
+					if(!this._visited[child_k]){
+						this._visited[child_k] = true;
+						stack[size++] = child_k;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the index of the hyperedge in the max path of node k, or -1 if there is none
+	 * @param k
+	 * @return
+	 */
+	protected int getMaxEdge(int k){
+		if(this._maxEdges != null && this._maxEdges[k] >= 0){
+			return this._maxEdges[k];
 		}
+		// The max path was set without the index (e.g., by a subclass), so find the hyperedge
+		int[] maxChildren = this._max_paths[k];
+		if(maxChildren == null){
+			return -1;
+		}
+		for(int children_k_index = 0; children_k_index < this.countEdges(k); children_k_index++){
+			if(Arrays.equals(this.getChildren(k, children_k_index), maxChildren)){
+				return children_k_index;
+			}
+		}
+		return -1;
 	}
 	
 	protected void updateObjective(){
@@ -347,33 +677,392 @@ public abstract class Network implements Serializable, HyperGraph{
 	 * Goes through each nodes in the network to gather list of features
 	 */
 	public synchronized void touch(){
-		for(int k=0; k<this.countNodes(); k++)
-			this.touch(k);
+		boolean compressed = this.isCompressed();
+		for(int k=0; k<this.countNodes(); k++){
+			if(compressed){
+				this.touchCompressed(k);
+			} else {
+				this.touch(k);
+			}
+		}
+		this._param.finishCaching(this);
 	}
 	
 	/**
 	 * Calculate the maximum score for all nodes
 	 */
 	public void max(){
+		this.maxChart();
+	}
+	
+	/**
+	 * Calculate the maximum score for all nodes in the full network.<br>
+	 * This is what {@link #max()} does, unless {@link #max()} is overridden by a subclass to use a different
+	 * representation (e.g., a dense lattice), while the k-best decoding always uses this full network.
+	 */
+	private void maxChart(){
 		this._max = this.getMaxSharedArray();
 		
 		this._max_paths = this.getMaxPathSharedArray();
+		this._maxEdges = this.getMaxEdgesSharedArray();
+		boolean compressed = this.isCompressed();
 		for(int k=0; k<this.countNodes(); k++){
-			this.max(k);
+			if(compressed){
+				this.maxCompressed(k);
+			} else {
+				this.max(k);
+			}
+		}
+	}
+
+	/**
+	 * Returns the k best derivations of this network, best first, using the lazy k-best algorithm,
+	 * which only expands the next best derivations of a node when they are needed by its parents.<br>
+	 * Each derivation is given as the children of the hyperedge chosen at each node, in the same format as 
+	 * {@link #getMaxPath(int)}, with null for the nodes not in the derivation.
+	 * There might be less than k derivations. The scores of the derivations are given by {@link #getKBestScores()}.<br>
+	 * This replaces the max scores and paths of this network with those of the 1-best derivation.
+	 * @param k
+	 * @return
+	 * @see #setMaxPath(int[][], double)
+	 */
+	public int[][][] getKBestPaths(int k){
+		int root_k = this.countNodes()-1;
+		KBestDecoder decoder = this.createKBestDecoder();
+		List<KBestDecoder.Derivation> derivations = decoder.getKBest(root_k, k);
+		int[][][] result = new int[derivations.size()][][];
+		this._kBestScores = new double[derivations.size()];
+		for(int i=0; i<result.length; i++){
+			result[i] = decoder.getPaths(root_k, derivations.get(i));
+			this._kBestScores[i] = derivations.get(i).score;
+		}
+		return result;
+	}
+	
+	/**
+	 * Calculate the maximum score for all nodes in the full network, and returns the lazy k-best decoder
+	 * of the derivations of this network, from which the derivations can be read one by one
+	 * @return
+	 * @see #getKBestPaths(int)
+	 */
+	KBestDecoder createKBestDecoder(){
+		this.maxChart();
+		return new KBestDecoder(this);
+	}
+	
+	/**
+	 * Returns the scores of the derivations returned by the last call to {@link #getKBestPaths(int)}
+	 * @return
+	 */
+	public double[] getKBestScores(){
+		return this._kBestScores;
+	}
+	
+	/**
+	 * Set the max paths of this network to the specified derivation (one of those returned by 
+	 * {@link #getKBestPaths(int)}) and the max score of the root to the specified score, 
+	 * so that the derivation can be read by {@link NetworkCompiler#decompile(Network)}.<br>
+	 * The max paths of the nodes not in the derivation are kept.
+	 * @param paths
+	 * @param score
+	 */
+	public void setMaxPath(int[][] paths, double score){
+		for(int k=0; k<paths.length; k++){
+			if(paths[k] != null){
+				this._max_paths[k] = paths[k];
+				this._maxEdges[k] = -1;
+			}
 		}
+		this._max[this.countNodes()-1] = score;
 	}
 	
+	/**
+	 * Returns the score of the specified hyperedge alone (w*f plus the cost), without the scores of its children
+	 * @param k
+	 * @param children_k
+	 * @param children_k_index
+	 * @return
+	 */
+	protected double getEdgeScore(int k, int[] children_k, int children_k_index){
+		double score = this._param.getScore(this, k, children_k, children_k_index);
+		try{
+			score += this._param.cost(this, k, children_k, children_k_index, this._compiler);
+		} catch (NullPointerException e){
+			System.err.println("WARNING: Compiler was not specified during network creation, setting cost to 0.0");
+		}
+		return score;
+	}
+
+	/**
+	 * Calculate the maximum score using the specified decoding mode
+	 * @param mode
+	 * @see #maxBeam(int)
+	 * @see #maxAStar()
+	 */
+	public void max(DecodeMode mode){
+		switch(mode){
+		case BEAM:
+			this.maxBeam(NetworkConfig.BEAM_SIZE);
+			break;
+		case ASTAR:
+			this.maxAStar();
+			break;
+		default:
+			this.max();
+		}
+	}
+
+	/**
+	 * Calculate the maximum score keeping only the best beamSize nodes at each position (layer),
+	 * so that the hyperedges from the other nodes are not scored at all.<br>
+	 * This is not exact. If the beam removes all paths to the root, or the network is not layered
+	 * by position (see {@link #getNodePositions()}), the exact max is calculated instead.
+	 * @param beamSize
+	 */
+	protected void maxBeam(int beamSize){
+		int[] layers = this.getLayers();
+		if(layers == null || beamSize <= 0){
+			this.max();
+			return;
+		}
+		this._max = this.getMaxSharedArray();
+		this._max_paths = this.getMaxPathSharedArray();
+		this._maxEdges = this.getMaxEdgesSharedArray();
+		boolean compressed = this.isCompressed();
+		int numNodes = this.countNodes();
+		double[] layerScores = null;
+		int layerStart = 0;
+		while(layerStart < numNodes){
+			int layerEnd = layerStart+1;
+			while(layerEnd < numNodes && layers[layerEnd] == layers[layerStart]){
+				layerEnd++;
+			}
+			for(int k=layerStart; k<layerEnd; k++){
+				if(compressed){
+					this.maxCompressed(k);
+				} else {
+					this.max(k);
+				}
+			}
+
+			// Keep the nodes with score at least the beamSize-th best score in this layer
+			if(layerScores == null || layerScores.length < layerEnd-layerStart){
+				layerScores = new double[layerEnd-layerStart];
+			}
+			int numScores = 0;
+			for(int k=layerStart; k<layerEnd; k++){
+				if(!this.isRoot(k) && this._max[k] > Double.NEGATIVE_INFINITY){
+					layerScores[numScores++] = this._max[k];
+				}
+			}
+			if(numScores > beamSize){
+				Arrays.sort(layerScores, 0, numScores);
+				double threshold = layerScores[numScores-beamSize];
+				for(int k=layerStart; k<layerEnd; k++){
+					if(!this.isRoot(k) && this._max[k] < threshold){
+						this._max[k] = Double.NEGATIVE_INFINITY;
+					}
+				}
+			}
+			layerStart = layerEnd;
+		}
+		if(this.getMax() == Double.NEGATIVE_INFINITY){
+			this.max();
+		}
+	}
+
+	/**
+	 * Calculate the maximum score using A* search over the hypergraph.<br>
+	 * Starting from the hyperedges without children, the nodes are taken from an agenda in the order
+	 * of their max score plus the bound from {@link #getMaxHeuristic()}, and a hyperedge is scored only
+	 * when all its children have been taken. The search stops when the root is taken, which is then
+	 * guaranteed to have the exact max score, since the bound is consistent.<br>
+	 * Only the nodes taken from the agenda have a valid max path. If the network does not provide
+	 * the bound, or contains a sum node, the exact max is calculated instead.
+	 */
+	protected void maxAStar(){
+		double[] heuristic = this.getMaxHeuristic();
+		if(heuristic == null){
+			this.max();
+			return;
+		}
+		int numNodes = this.countNodes();
+		for(int k=0; k<numNodes; k++){
+			if(this.isSumNode(k)){
+				this.max();
+				return;
+			}
+		}
+		this._max = this.getMaxSharedArray();
+		this._max_paths = this.getMaxPathSharedArray();
+		this._maxEdges = this.getMaxEdgesSharedArray();
+		Arrays.fill(this._max, 0, numNodes, Double.NEGATIVE_INFINITY);
+		Arrays.fill(this._maxEdges, 0, numNodes, -1);
+		this.buildParentIndex();
+		int[] numChildrenLeft = new int[this.getEdgeId(numNodes-1, 0)+Math.max(1, this.countEdges(numNodes-1))];
+		boolean[] done = new boolean[numNodes];
+		MaxAgenda agenda = new MaxAgenda(numNodes);
+
+		boolean compressed = this.isCompressed();
+		for(int k=0; k<numNodes; k++){
+			if(this.isRemoved(k)) continue;
+			for(int children_k_index = 0; children_k_index < this.countEdges(k); children_k_index++){
+				int numChildren;
+				if(compressed){
+					int edge = this.getNodeOffsets()[k]+children_k_index;
+					numChildren = this.getEdgeOffsets()[edge+1]-this.getEdgeOffsets()[edge];
+				} else {
+					numChildren = this.getChildren(k)[children_k_index].length;
+				}
+				numChildrenLeft[this.getEdgeId(k, children_k_index)] = numChildren;
+				if(numChildren == 0 && !this.isEdgeRemoved(k, children_k_index)){
+					this.relaxAStar(k, children_k_index, heuristic, agenda);
+				}
+			}
+		}
+
+		while(!agenda.isEmpty()){
+			double priority = agenda.peekPriority();
+			int k = agenda.poll();
+			if(done[k] || priority != this._max[k]+heuristic[k]) continue;
+			done[k] = true;
+			if(this.isRoot(k)) break;
+
+			for(int p = this._parentOffsets[k]; p < this._parentOffsets[k+1]; p++){
+				int parent_k = this._parentNodes[p];
+				int children_k_index = this._parentEdges[p];
+				if(done[parent_k] || this.isRemoved(parent_k) || this.isEdgeRemoved(parent_k, children_k_index)) continue;
+				if(--numChildrenLeft[this.getEdgeId(parent_k, children_k_index)] == 0){
+					this.relaxAStar(parent_k, children_k_index, heuristic, agenda);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Score the specified hyperedge, whose children already have their final max scores, and update
+	 * the max score of node k in the agenda if the hyperedge is better.
+	 * @param k
+	 * @param children_k_index
+	 * @param heuristic
+	 * @param agenda
+	 */
+	private void relaxAStar(int k, int children_k_index, double[] heuristic, MaxAgenda agenda){
+		int[] children_k = this.getChildren(k, children_k_index);
+		double score = this._param.getScore(this, k, children_k, children_k_index);
+		try{
+			score += this._param.cost(this, k, children_k, children_k_index, this._compiler);
+		} catch (NullPointerException e){
+			System.err.println("WARNING: Compiler was not specified during network creation, setting cost to 0.0");
+		}
+		for(int child_k : children_k){
+			score += this._max[child_k];
+		}
+		if(score > this._max[k]){
+			this._max[k] = score;
+			this._max_paths[k] = children_k;
+			this._maxEdges[k] = children_k_index;
+			if(heuristic[k] > Double.NEGATIVE_INFINITY){
+				agenda.add(score+heuristic[k], k);
+			}
+		}
+	}
+
+	/**
+	 * Returns an upper bound of the best score from each node to the root, used as the heuristic in
+	 * {@link #maxAStar()}, or null if not available (the default).<br>
+	 * The bound at the root should be 0, and the bound must be consistent: for each hyperedge, the bound of
+	 * each child should be at least the score of the hyperedge, plus the max scores of the other children,
+	 * plus the bound of the parent.
+	 * @return
+	 */
+	protected double[] getMaxHeuristic(){
+		return null;
+	}
+
+	/**
+	 * A max-heap of nodes by priority for {@link Network#maxAStar()}, where a node may be added
+	 * several times with different priorities
+	 */
+	private static class MaxAgenda {
+
+		private double[] priorities;
+		private int[] nodes;
+		private int size;
+
+		public MaxAgenda(int capacity){
+			this.priorities = new double[Math.max(1, capacity)];
+			this.nodes = new int[Math.max(1, capacity)];
+			this.size = 0;
+		}
+
+		public boolean isEmpty(){
+			return this.size == 0;
+		}
+
+		public double peekPriority(){
+			return this.priorities[0];
+		}
+
+		public void add(double priority, int node){
+			if(this.size == this.nodes.length){
+				this.priorities = Arrays.copyOf(this.priorities, 2*this.size);
+				this.nodes = Arrays.copyOf(this.nodes, 2*this.size);
+			}
+			int i = this.size++;
+			while(i > 0){
+				int parent = (i-1)/2;
+				if(this.priorities[parent] >= priority) break;
+				this.priorities[i] = this.priorities[parent];
+				this.nodes[i] = this.nodes[parent];
+				i = parent;
+			}
+			this.priorities[i] = priority;
+			this.nodes[i] = node;
+		}
+
+		public int poll(){
+			int result = this.nodes[0];
+			this.size--;
+			double priority = this.priorities[this.size];
+			int node = this.nodes[this.size];
+			int i = 0;
+			while(2*i+1 < this.size){
+				int child = 2*i+1;
+				if(child+1 < this.size && this.priorities[child+1] > this.priorities[child]){
+					child++;
+				}
+				if(priority >= this.priorities[child]) break;
+				this.priorities[i] = this.priorities[child];
+				this.nodes[i] = this.nodes[child];
+				i = child;
+			}
+			this.priorities[i] = priority;
+			this.nodes[i] = node;
+			return result;
+		}
+	}
+
 	/**
 	 * Calculate the inside score for the specified node
 	 * @param k
 	 */
 	protected void inside(int k){
+		this.inside(k, this._nodeScores);
+	}
+	
+	/**
+	 * Calculate the inside score for the specified node, using the specified working array to gather 
+	 * the scores of its hyperedges
+	 * @param k
+	 * @param nodeScores
+	 */
+	private void inside(int k, double[] nodeScores){
 		if(this.isRemoved(k)){
 			this._inside[k] = Double.NEGATIVE_INFINITY;
 			return;
 		}
 		
-		double inside = 0.0;
 		int[][] childrenList_k = this.getChildren(k);
 		
 		// If this node has no child edge, assume there is one edge with no child node
@@ -382,32 +1071,8 @@ public abstract class Network implements Serializable, HyperGraph{
 			childrenList_k = new int[1][0];
 		}
 		
-		{
-			int children_k_index = 0;
-			int[] children_k = childrenList_k[children_k_index];
-
-			boolean ignoreflag = false;
-			for(int child_k : children_k){
-				if(this.isRemoved(child_k)){
-					ignoreflag = true;
-				}
-			}
-			if(ignoreflag){
-				inside = Double.NEGATIVE_INFINITY;
-			} else {
-				FeatureArray fa = this._param.extract(this, k, children_k, children_k_index);
-				double score = fa.getScore(this._param);
-				if(NetworkConfig.MODEL_TYPE == ModelType.SOFTMAX_MARGIN){
-					score += this._param.cost(this, k, children_k, children_k_index, this._compiler);
-				}
-				for(int child_k : children_k){
-					score += this._inside[child_k];
-				}
-				inside = score;
-			}
-		}
-		
-		for(int children_k_index = 1; children_k_index < childrenList_k.length; children_k_index++){
+		int numScores = 0;
+		for(int children_k_index = 0; children_k_index < childrenList_k.length; children_k_index++){
 			int[] children_k = childrenList_k[children_k_index];
 
 			boolean ignoreflag = false;
@@ -416,37 +1081,52 @@ public abstract class Network implements Serializable, HyperGraph{
 					ignoreflag = true;
 				}
 			}
-			if(ignoreflag) continue;
+			if(ignoreflag || this.isEdgeRemoved(k, children_k_index)) continue;
 			
-			FeatureArray fa = this._param.extract(this, k, children_k, children_k_index);
-			double score = fa.getScore(this._param);
-			if(NetworkConfig.MODEL_TYPE == ModelType.SOFTMAX_MARGIN){
-				score += this._param.cost(this, k, children_k, children_k_index, this._compiler);
-			}
+			double score = this.edgeScore(k, children_k, children_k_index);
+			this._edgeScores[k][children_k_index] = score;
 			for(int child_k : children_k){
 				score += this._inside[child_k];
 			}
 			
-			inside = sumLog(inside, score);
+			nodeScores[numScores++] = score;
 		}
 		
-		this._inside[k] = inside;
+		this._inside[k] = logSumExp(nodeScores, numScores);
 		
 		if(this._inside[k]==Double.NEGATIVE_INFINITY)
 			this.remove(k);
 	}
 	
 	/**
-	 * Calculate the outside score for the specified node
+	 * Calculate the score of the hyperedge from node k to children_k, which is w*f, plus the cost
+	 * of the hyperedge if the model is softmax-margin.<br>
+	 * This is stored in {@link #_edgeScores} during the inside pass, to be reused in the outside pass and 
+	 * in the gradient calculation.
 	 * @param k
+	 * @param children_k
+	 * @param children_k_index
+	 * @return
 	 */
-	protected void outside(int k){
-		if(this.isRemoved(k)){
+	protected double edgeScore(int k, int[] children_k, int children_k_index){
+		double score = this._param.getScore(this, k, children_k, children_k_index);
+		if(NetworkConfig.MODEL_TYPE == ModelType.SOFTMAX_MARGIN){
+			score += this._param.cost(this, k, children_k, children_k_index, this._compiler);
+		}
+		return score;
+	}
+	
+	/**
+	 * Calculate the outside score for the specified node
+	 * @param k
+	 */
+	protected void outside(int k){
+		if(this.isRemoved(k)){
 			this._outside[k] = Double.NEGATIVE_INFINITY;
 			return;
 		}
 		else
-			this._outside[k] = this.isRoot(k) ? 0.0 : this._outside[k];
+			this._outside[k] = this.isRoot(k) ? 0.0 : this.finalizeOutside(k);
 		
 		if(this._inside[k]==Double.NEGATIVE_INFINITY)
 			this._outside[k] = Double.NEGATIVE_INFINITY;
@@ -460,14 +1140,10 @@ public abstract class Network implements Serializable, HyperGraph{
 				if(this.isRemoved(child_k)){
 					ignoreflag = true; break;
 				}
-			if(ignoreflag)
+			if(ignoreflag || this.isEdgeRemoved(k, children_k_index))
 				continue;
 			
-			FeatureArray fa = this._param.extract(this, k, children_k, children_k_index);
-			double score = fa.getScore(this._param);
-			if(NetworkConfig.MODEL_TYPE == ModelType.SOFTMAX_MARGIN){
-				score += this._param.cost(this, k, children_k, children_k_index, this._compiler);
-			}
+			double score = this._edgeScores[k][children_k_index];
 			score += this._outside[k];
 			for(int child_k : children_k){
 				score += this._inside[child_k];
@@ -477,9 +1153,7 @@ public abstract class Network implements Serializable, HyperGraph{
 				continue;
 			
 			for(int child_k : children_k){
-				double v1 = this._outside[child_k];
-				double v2 = score - this._inside[child_k];
-				this._outside[child_k] = sumLog(v1, v2);
+				this.addOutside(child_k, score - this._inside[child_k]);
 			}
 		}
 		
@@ -497,12 +1171,6 @@ public abstract class Network implements Serializable, HyperGraph{
 			return;
 		
 		int[][] childrenList_k = this.getChildren(k);
-		int[] maxChildren = null;
-		if(NetworkConfig.MODEL_TYPE == ModelType.SSVM){
-			if(this._visited[k]) return;
-			this._visited[k] = true;
-			maxChildren = this.getMaxPath(k); // For Structured SVM
-		}
 		
 		for(int children_k_index = 0; children_k_index<childrenList_k.length; children_k_index++){
 			double count = 0.0;
@@ -515,38 +1183,20 @@ public abstract class Network implements Serializable, HyperGraph{
 					break;
 				}
 			}
-			if(NetworkConfig.MODEL_TYPE == ModelType.SSVM){ // Consider only max path
-				if(!Arrays.equals(children_k, maxChildren)){
-					continue;
-				}
-			}
-			if(ignoreflag){
+			if(ignoreflag || this.isEdgeRemoved(k, children_k_index)){
 				continue;
 			}
 			
-			FeatureArray fa = this._param.extract(this, k, children_k, children_k_index);
-			if(NetworkConfig.MODEL_TYPE == ModelType.SSVM){
-				count = 1;
-			} else {
-				double score = fa.getScore(this._param); // w*f
-				if(NetworkConfig.MODEL_TYPE == ModelType.SOFTMAX_MARGIN){
-					score += this._param.cost(this, k, children_k, children_k_index, this._compiler);
-				}
-				score += this._outside[k];  // beta(s')
-				for(int child_k : children_k){
-					score += this._inside[child_k]; // alpha(s)
-				}
-				double normalization = this.getInside();
-				count = Math.exp(score-normalization); // Divide by normalization term Z
+			double score = this._edgeScores[k][children_k_index]; // w*f
+			score += this._outside[k];  // beta(s')
+			for(int child_k : children_k){
+				score += this._inside[child_k]; // alpha(s)
 			}
+			double normalization = this.getInside();
+			count = Math.exp(score-normalization); // Divide by normalization term Z
 			count *= this._weight;
 			
-			fa.update(this._param, count);
-			if(NetworkConfig.MODEL_TYPE == ModelType.SSVM){
-				for(int child_k: children_k){
-					this.updateGradient(child_k);	
-				}
-			}
+			this._param.update(this, k, children_k, children_k_index, count);
 		}
 	}
 	
@@ -570,6 +1220,9 @@ public abstract class Network implements Serializable, HyperGraph{
 	 * @param k
 	 */
 	protected void max(int k){
+		// The shared arrays may hold the values of another network
+		this._maxEdges[k] = -1;
+		this._max_paths[k] = null;
 		if(this.isRemoved(k)){
 			this._max[k] = Double.NEGATIVE_INFINITY;
 			return;
@@ -592,11 +1245,10 @@ public abstract class Network implements Serializable, HyperGraph{
 				for(int child_k : children_k)
 					if(this.isRemoved(child_k))
 						ignoreflag = true;
-				if(ignoreflag){
+				if(ignoreflag || this.isEdgeRemoved(k, children_k_index)){
 					inside = Double.NEGATIVE_INFINITY;
 				} else {
-					FeatureArray fa = this._param.extract(this, k, children_k, children_k_index);
-					double score = fa.getScore(this._param);
+					double score = this._param.getScore(this, k, children_k, children_k_index);
 					try{
 						score += this._param.cost(this, k, children_k, children_k_index, this._compiler);
 					} catch (NullPointerException e){
@@ -611,6 +1263,7 @@ public abstract class Network implements Serializable, HyperGraph{
 				//if it is a sum node, then any path is the same for such a node.
 				//this is something you need to make sure when constructing such a network.
 				this._max_paths[k] = children_k;
+				this._maxEdges[k] = children_k_index;
 			}
 			
 			for(int children_k_index = 1; children_k_index < childrenList_k.length; children_k_index++){
@@ -620,11 +1273,10 @@ public abstract class Network implements Serializable, HyperGraph{
 				for(int child_k : children_k)
 					if(this.isRemoved(child_k))
 						ignoreflag = true;
-				if(ignoreflag)
+				if(ignoreflag || this.isEdgeRemoved(k, children_k_index))
 					continue;
 				
-				FeatureArray fa = this._param.extract(this, k, children_k, children_k_index);
-				double score = fa.getScore(this._param);
+				double score = this._param.getScore(this, k, children_k, children_k_index);
 				try{
 					score += this._param.cost(this, k, children_k, children_k_index, this._compiler);
 				} catch (NullPointerException e){
@@ -647,14 +1299,14 @@ public abstract class Network implements Serializable, HyperGraph{
 				int[] children_k = childrenList_k[children_k_index];
 				boolean ignoreflag = false;
 				for(int child_k : children_k)
-					if(this.isRemoved(child_k)){
+					// A child with -inf max score cannot be in the best path (e.g., pruned by the beam)
+					if(this.isRemoved(child_k) || this._max[child_k] == Double.NEGATIVE_INFINITY){
 						ignoreflag = true; break;
 					}
-				if(ignoreflag)
+				if(ignoreflag || this.isEdgeRemoved(k, children_k_index))
 					continue;
 				
-				FeatureArray fa = this._param.extract(this, k, children_k, children_k_index);
-				double score = fa.getScore(this._param);
+				double score = this._param.getScore(this, k, children_k, children_k_index);
 				try{
 					score += this._param.cost(this, k, children_k, children_k_index, this._compiler);
 				} catch (NullPointerException e){
@@ -666,11 +1318,1198 @@ public abstract class Network implements Serializable, HyperGraph{
 				if(score >= this._max[k]){
 					this._max[k] = score;
 					this._max_paths[k] = children_k;
+					this._maxEdges[k] = children_k_index;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the hyperedge at the specified index of node k has been removed by {@link #prune(double)}
+	 * @param k
+	 * @param children_k_index
+	 * @return
+	 */
+	protected boolean isEdgeRemoved(int k, int children_k_index){
+		if(this._removedEdges == null){
+			return false;
+		}
+		return this._removedEdges.get(this.getEdgeId(k, children_k_index));
+	}
+	
+	/**
+	 * Returns the ID of the hyperedge at the specified index of node k, which is unique in this network
+	 * @param k
+	 * @param children_k_index
+	 * @return
+	 */
+	int getEdgeId(int k, int children_k_index){
+		if(this.isCompressed()){
+			return this.getNodeOffsets()[k]+children_k_index;
+		}
+		if(this._edgeIdOffsets == null){
+			// A node with no child edge still has one edge with no child node
+			int[] edgeIdOffsets = new int[this.countNodes()+1];
+			for(int node_k=0; node_k<this.countNodes(); node_k++){
+				edgeIdOffsets[node_k+1] = edgeIdOffsets[node_k] + Math.max(1, this.countEdges(node_k));
+			}
+			this._edgeIdOffsets = edgeIdOffsets;
+		}
+		return this._edgeIdOffsets[k]+children_k_index;
+	}
+	
+	/**
+	 * Returns the number of hyperedge IDs in this network, see {@link #getEdgeId(int, int)}
+	 * @return
+	 */
+	int countEdgeIds(){
+		return this.getEdgeId(this.countNodes(), 0);
+	}
+	
+	/**
+	 * Remove the hyperedges whose posterior probability, from the inside-outside computation in the last 
+	 * {@link #train()}, is below the threshold. So this should be called right after {@link #train()},
+	 * before another network in the same thread is trained.<br>
+	 * The hyperedges present in the labeled network are never removed, so that the gold structure 
+	 * is always contained in this network. The removed hyperedges are skipped in all later computations.
+	 * @param threshold
+	 * @return The number of hyperedges removed
+	 */
+	public int prune(double threshold){
+		if(NetworkConfig.MODEL_TYPE == ModelType.SSVM){
+			throw new NetworkException("Pruning requires the inside-outside scores, which are not calculated in "+ModelType.SSVM);
+		}
+		Network labeledNetwork = this.getInstance().isLabeled() ? null : this.getLabeledNetwork();
+		if(this._removedEdges == null){
+			this._removedEdges = new BitSet();
+		}
+		double normalization = this.getInside();
+		int numRemoved = 0;
+		for(int k=0; k<this.countNodes(); k++){
+			if(this.isRemoved(k)) continue;
+			for(int children_k_index = 0; children_k_index < this.countEdges(k); children_k_index++){
+				if(this.isEdgeRemoved(k, children_k_index)) continue;
+				int[] children_k = this.getChildren(k, children_k_index);
+				double marginal = 0.0;
+				if(!this.hasRemovedChild(children_k, 0, children_k.length)){
+					if(this._scaled){
+						// The scaled outside pass stores the marginal of each hyperedge
+						marginal = this._edgeScores[k][children_k_index];
+					} else {
+						double score = this._edgeScores[k][children_k_index] + this._outside[k];
+						for(int child_k : children_k){
+							score += this._inside[child_k];
+						}
+						marginal = Math.exp(score-normalization);
+					}
+				}
+				if(marginal < threshold && (labeledNetwork == null || !this.isGoldEdge(k, children_k))){
+					this._removedEdges.set(this.getEdgeId(k, children_k_index));
+					numRemoved++;
+				}
+			}
+		}
+		return numRemoved;
+	}
+	
+	/**
+	 * Precompute the nodes and hyperedges of this unlabeled network which are also present in its labeled network,
+	 * and then the cost of every hyperedge, so that during training the cost is read from a flat table.<br>
+	 * This is called by {@link NetworkCompiler#compileAndStore(int, Instance, LocalNetworkParam)} once 
+	 * the labeled network is known.
+	 * @param compiler
+	 */
+	public void buildCostTable(NetworkCompiler compiler){
+		Network labeledNetwork = this.getLabeledNetwork();
+		int numNodes = this.countNodes();
+		this._goldNodes = new BitSet(numNodes);
+		this._goldEdges = new BitSet();
+		for(int other_k=0; other_k<labeledNetwork.countNodes(); other_k++){
+			int k = this.getNodeIndex(labeledNetwork.getNode(other_k));
+			if(k < 0) continue;
+			this._goldNodes.set(k);
+			for(int other_index=0; other_index<labeledNetwork.countEdges(other_k); other_index++){
+				int[] otherChildren = labeledNetwork.getChildren(other_k, other_index);
+				int[] children = new int[otherChildren.length];
+				boolean found = true;
+				for(int i=0; i<otherChildren.length; i++){
+					children[i] = this.getNodeIndex(labeledNetwork.getNode(otherChildren[i]));
+					if(children[i] < 0){
+						found = false;
+						break;
+					}
+				}
+				if(!found) continue;
+				for(int children_k_index = 0; children_k_index < this.countEdges(k); children_k_index++){
+					if(Arrays.equals(this.getChildren(k, children_k_index), children)){
+						this._goldEdges.set(this.getEdgeId(k, children_k_index));
+						break;
+					}
+				}
+			}
+		}
+		double[] costs = new double[this.countEdgeIds()];
+		for(int k=0; k<numNodes; k++){
+			for(int children_k_index = 0; children_k_index < this.countEdges(k); children_k_index++){
+				costs[this.getEdgeId(k, children_k_index)] = compiler.cost(this, k, this.getChildren(k, children_k_index));
+			}
+		}
+		this._costs = costs;
+	}
+	
+	/**
+	 * Returns whether the cost of the hyperedges has been precomputed by {@link #buildCostTable(NetworkCompiler)}
+	 * @return
+	 */
+	public boolean hasCostTable(){
+		return this._costs != null;
+	}
+	
+	/**
+	 * Returns the precomputed cost of the hyperedge at the specified index of node k
+	 * @param k
+	 * @param children_k_index
+	 * @return
+	 * @see #buildCostTable(NetworkCompiler)
+	 */
+	public double getCost(int k, int children_k_index){
+		return this._costs[this.getEdgeId(k, children_k_index)];
+	}
+	
+	/**
+	 * Returns whether node k is also present in the labeled network
+	 * @param k
+	 * @return
+	 */
+	public boolean isGoldNode(int k){
+		if(this._goldNodes != null){
+			return this._goldNodes.get(k);
+		}
+		return this.getLabeledNetwork().getNodeIndex(this.getNode(k)) >= 0;
+	}
+	
+	/**
+	 * Returns whether the hyperedge from node k to the children is also present in the labeled network
+	 * @param k
+	 * @param children_k
+	 * @return
+	 */
+	public boolean isGoldEdge(int k, int[] children_k){
+		if(this._goldEdges == null){
+			return this.isInNetwork(this.getLabeledNetwork(), k, children_k);
+		}
+		int edgeStart = this.getEdgeId(k, 0);
+		int edgeEnd = edgeStart+this.countEdges(k);
+		for(int edge = this._goldEdges.nextSetBit(edgeStart); edge >= 0 && edge < edgeEnd; edge = this._goldEdges.nextSetBit(edge+1)){
+			if(Arrays.equals(this.getChildren(k, edge-edgeStart), children_k)){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns whether the hyperedge from node k to the children is also present in the other network
+	 * @param network
+	 * @param k
+	 * @param children_k
+	 * @return
+	 */
+	private boolean isInNetwork(Network network, int k, int[] children_k){
+		if(network == null){
+			return false;
+		}
+		int other_k = network.getNodeIndex(this.getNode(k));
+		if(other_k < 0){
+			return false;
+		}
+		int[] otherChildren = new int[children_k.length];
+		for(int i=0; i<children_k.length; i++){
+			otherChildren[i] = network.getNodeIndex(this.getNode(children_k[i]));
+			if(otherChildren[i] < 0){
+				return false;
+			}
+		}
+		for(int children_k_index = 0; children_k_index < network.countEdges(other_k); children_k_index++){
+			if(Arrays.equals(network.getChildren(other_k, children_k_index), otherChildren)){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Check whether any of the children of the hyperedge, stored in the compressed sparse layout
+	 * from childIndices[childStart] to childIndices[childEnd-1], has been removed.
+	 * @param childIndices
+	 * @param childStart
+	 * @param childEnd
+	 * @return
+	 */
+	private boolean hasRemovedChild(int[] childIndices, int childStart, int childEnd){
+		for(int c = childStart; c < childEnd; c++){
+			if(this.isRemoved(childIndices[c])){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns whether any of the children has -inf max score, in which case the hyperedge cannot be in 
+	 * the best path (e.g., the child was pruned by the beam in {@link #maxBeam(int)})
+	 * @param childIndices
+	 * @param childStart
+	 * @param childEnd
+	 * @return
+	 */
+	private boolean hasUnreachableChild(int[] childIndices, int childStart, int childEnd){
+		for(int c = childStart; c < childEnd; c++){
+			if(this._max[childIndices[c]] == Double.NEGATIVE_INFINITY){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Calculate the inside score for the specified node, reading the hyperedges directly from 
+	 * the compressed sparse layout.
+	 * @param k
+	 * @see #inside(int)
+	 */
+	protected void insideCompressed(int k){
+		this.insideCompressed(k, this._nodeScores);
+	}
+	
+	private void insideCompressed(int k, double[] nodeScores){
+		if(this.isRemoved(k)){
+			this._inside[k] = Double.NEGATIVE_INFINITY;
+			return;
+		}
+		
+		int[] edgeOffsets = this.getEdgeOffsets();
+		int[] childIndices = this.getChildIndices();
+		int edgeStart = this.getNodeOffsets()[k];
+		int numEdges = this.getNodeOffsets()[k+1]-edgeStart;
+		
+		int numScores = 0;
+		for(int children_k_index = 0; children_k_index < numEdges; children_k_index++){
+			int childStart = edgeOffsets[edgeStart+children_k_index];
+			int childEnd = edgeOffsets[edgeStart+children_k_index+1];
+			if(this.hasRemovedChild(childIndices, childStart, childEnd) || this.isEdgeRemoved(k, children_k_index)) continue;
+			
+			// The children are only needed for feature extraction when they are not cached yet
+			double score = this.edgeScore(k, null, children_k_index);
+			this._edgeScores[k][children_k_index] = score;
+			for(int c = childStart; c < childEnd; c++){
+				score += this._inside[childIndices[c]];
+			}
+			
+			nodeScores[numScores++] = score;
+		}
+		
+		this._inside[k] = logSumExp(nodeScores, numScores);
+		
+		if(this._inside[k]==Double.NEGATIVE_INFINITY)
+			this.remove(k);
+	}
+	
+	/**
+	 * Calculate the outside score for the specified node, reading the hyperedges directly from 
+	 * the compressed sparse layout.
+	 * @param k
+	 * @see #outside(int)
+	 */
+	protected void outsideCompressed(int k){
+		if(this.isRemoved(k)){
+			this._outside[k] = Double.NEGATIVE_INFINITY;
+			return;
+		}
+		else
+			this._outside[k] = this.isRoot(k) ? 0.0 : this.finalizeOutside(k);
+		
+		if(this._inside[k]==Double.NEGATIVE_INFINITY)
+			this._outside[k] = Double.NEGATIVE_INFINITY;
+		
+		int[] edgeOffsets = this.getEdgeOffsets();
+		int[] childIndices = this.getChildIndices();
+		int edgeStart = this.getNodeOffsets()[k];
+		int numEdges = this.getNodeOffsets()[k+1]-edgeStart;
+		
+		for(int children_k_index = 0; children_k_index < numEdges; children_k_index++){
+			int childStart = edgeOffsets[edgeStart+children_k_index];
+			int childEnd = edgeOffsets[edgeStart+children_k_index+1];
+			if(this.hasRemovedChild(childIndices, childStart, childEnd) || this.isEdgeRemoved(k, children_k_index))
+				continue;
+			
+			double score = this._edgeScores[k][children_k_index];
+			score += this._outside[k];
+			for(int c = childStart; c < childEnd; c++){
+				score += this._inside[childIndices[c]];
+			}
+			
+			if(score == Double.NEGATIVE_INFINITY)
+				continue;
+			
+			for(int c = childStart; c < childEnd; c++){
+				int child_k = childIndices[c];
+				this.addOutside(child_k, score - this._inside[child_k]);
+			}
+		}
+		
+		if(this._outside[k]==Double.NEGATIVE_INFINITY){
+			this.remove(k);
+		}
+	}
+	
+	/**
+	 * Calculate and update the gradient for features present at the specified node, reading the 
+	 * hyperedges directly from the compressed sparse layout.
+	 * @param k
+	 * @see #updateGradient(int)
+	 */
+	protected void updateGradientCompressed(int k){
+		if(this.isRemoved(k))
+			return;
+		
+		int[] edgeOffsets = this.getEdgeOffsets();
+		int[] childIndices = this.getChildIndices();
+		int edgeStart = this.getNodeOffsets()[k];
+		int numEdges = this.getNodeOffsets()[k+1]-edgeStart;
+		
+		for(int children_k_index = 0; children_k_index < numEdges; children_k_index++){
+			double count = 0.0;
+			int childStart = edgeOffsets[edgeStart+children_k_index];
+			int childEnd = edgeOffsets[edgeStart+children_k_index+1];
+			
+			if(this.hasRemovedChild(childIndices, childStart, childEnd) || this.isEdgeRemoved(k, children_k_index)){
+				continue;
+			}
+			
+			double score = this._edgeScores[k][children_k_index]; // w*f
+			score += this._outside[k];  // beta(s')
+			for(int c = childStart; c < childEnd; c++){
+				score += this._inside[childIndices[c]]; // alpha(s)
+			}
+			double normalization = this.getInside();
+			count = Math.exp(score-normalization); // Divide by normalization term Z
+			count *= this._weight;
+			
+			this._param.update(this, k, null, children_k_index, count);
+		}
+	}
+	
+	/**
+	 * Returns the position of each node in the input, if the network is layered by position, 
+	 * namely the positions are non-decreasing with the node index, and every hyperedge goes from a node 
+	 * to children at the same or earlier positions. Returns null (the default) if there is no such layering.<br>
+	 * When available, the inside-outside computation is done in probability space with one scaling 
+	 * factor per position (see {@link #insideScaled()}), which avoids the exp and log for each hyperedge.
+	 * The layering is verified once per network, and if it is not valid the log-space computation is used.
+	 * @return
+	 */
+	protected int[] getNodePositions(){
+		return null;
+	}
+	
+	/**
+	 * Returns the layer of each node, which is the index of its position among the distinct positions, 
+	 * or null if the network is not layered by position.
+	 * @return
+	 */
+	private int[] getLayers(){
+		if(!this._layersChecked){
+			this._layers = this.computeLayers();
+			this._layersChecked = true;
+		}
+		return this._layers;
+	}
+	
+	private int[] computeLayers(){
+		int[] positions = this.getNodePositions();
+		if(positions == null){
+			return null;
+		}
+		int numNodes = this.countNodes();
+		int[] layers = new int[numNodes];
+		int layer = 0;
+		for(int k=0; k<numNodes; k++){
+			if(k > 0 && positions[k] != positions[k-1]){
+				if(positions[k] < positions[k-1]){
+					return null;
+				}
+				layer++;
+			}
+			layers[k] = layer;
+		}
+		boolean compressed = this.isCompressed();
+		int[] childIndices = this.getChildIndices();
+		int[] edgeOffsets = this.getEdgeOffsets();
+		for(int k=0; k<numNodes; k++){
+			if(compressed){
+				int[] nodeOffsets = this.getNodeOffsets();
+				for(int c = edgeOffsets[nodeOffsets[k]]; c < edgeOffsets[nodeOffsets[k+1]]; c++){
+					int child_k = childIndices[c];
+					if(child_k >= k || layers[child_k] > layers[k]){
+						return null;
+					}
+				}
+			} else {
+				for(int[] children_k : this.getChildren(k)){
+					for(int child_k : children_k){
+						if(child_k >= k || layers[child_k] > layers[k]){
+							return null;
+						}
+					}
+				}
+			}
+		}
+		return layers;
+	}
+	
+	/**
+	 * Calculate the inside probabilities of all nodes in probability space, with one scaling factor 
+	 * per layer (position).<br>
+	 * The scaled inside value alpha[k] of a node at layer p satisfies inside[k] = log(alpha[k]) + C[p], 
+	 * where C[p] is the sum of the log scaling factors up to layer p. Each layer is normalized by its 
+	 * maximum value after all its nodes are calculated, so the values stay in a safe range.<br>
+	 * The potential of each hyperedge, exp(score + sum C[layer of child] - C[p]), requires only 
+	 * one exp, and is stored in {@link #_edgeScores} for the outside pass.
+	 * @return false if a layer overflows or underflows, in which case the log space computation should be used
+	 */
+	protected boolean insideScaled(){
+		return this.insideScaled(null);
+	}
+	
+	/**
+	 * Calculate the scaled inside probabilities as in {@link #insideScaled()}, with the nodes of each layer 
+	 * calculated in parallel level by level using the specified wavefront, if not null.
+	 * @param wavefront
+	 * @return
+	 */
+	private boolean insideScaled(Wavefront wavefront){
+		int[] layers = this.getLayers();
+		this._layerScales = this.getLayerScalesSharedArray();
+		this._layerLogScales = this.getLayerLogScalesSharedArray();
+		int numNodes = this.countNodes();
+		double base = 0.0; // The sum of the log scaling factors up to the previous layer
+		int level = 0;
+		int layerStart = 0;
+		while(layerStart < numNodes){
+			int layer = layers[layerStart];
+			int layerEnd = layerStart+1;
+			while(layerEnd < numNodes && layers[layerEnd] == layer){
+				layerEnd++;
+			}
+			if(wavefront == null){
+				for(int k=layerStart; k<layerEnd; k++){
+					this.insideScaled(k, layers, base);
+				}
+			} else {
+				// The levels are ordered by layer, see getInsideWavefront
+				int levelEnd = level;
+				while(levelEnd < wavefront.countLevels() && layers[wavefront.getFirstNode(levelEnd)] == layer){
+					levelEnd++;
+				}
+				double layerBase = base;
+				wavefront.run(level, levelEnd, k -> this.insideScaled(k, layers, layerBase));
+				level = levelEnd;
+			}
+			double scale = 0.0;
+			for(int i=layerStart; i<layerEnd; i++){
+				scale = Math.max(scale, this._inside[i]);
+			}
+			if(scale == 0.0 || Double.isInfinite(scale) || Double.isNaN(scale)){
+				return false;
+			}
+			for(int i=layerStart; i<layerEnd; i++){
+				this._inside[i] /= scale;
+			}
+			base += Math.log(scale);
+			this._layerScales[layer] = scale;
+			this._layerLogScales[layer] = base;
+			layerStart = layerEnd;
+		}
+		double rootInside = this._inside[numNodes-1];
+		if(rootInside == 0.0){
+			return false;
+		}
+		this._logZ = Math.log(rootInside) + base;
+		return true;
+	}
+	
+	/**
+	 * Calculate the unnormalized scaled inside value of the specified node, relative to the sum of the 
+	 * log scaling factors up to the previous layer (base).<br>
+	 * The children at the same layer are not normalized yet, so they are already relative to the base.
+	 * @param k
+	 * @param layers
+	 * @param base
+	 */
+	private void insideScaled(int k, int[] layers, double base){
+		if(this.isRemoved(k)){
+			this._inside[k] = 0.0;
+			return;
+		}
+		
+		boolean compressed = this.isCompressed();
+		int[][] childrenList_k = null;
+		int[] children_k = null;
+		int edgeStart = 0;
+		int numEdges;
+		if(compressed){
+			children_k = this.getChildIndices();
+			edgeStart = this.getNodeOffsets()[k];
+			numEdges = this.getNodeOffsets()[k+1]-edgeStart;
+		} else {
+			childrenList_k = this.getChildren(k);
+			// Same as in log space, a node with no child edge has one edge with no child node
+			if(childrenList_k.length==0){ 
+				childrenList_k = new int[1][0];
+			}
+			numEdges = childrenList_k.length;
+		}
+		
+		int layer = layers[k];
+		double inside = 0.0;
+		for(int children_k_index = 0; children_k_index < numEdges; children_k_index++){
+			int childStart, childEnd;
+			if(compressed){
+				childStart = this.getEdgeOffsets()[edgeStart+children_k_index];
+				childEnd = this.getEdgeOffsets()[edgeStart+children_k_index+1];
+			} else {
+				children_k = childrenList_k[children_k_index];
+				childStart = 0;
+				childEnd = children_k.length;
+			}
+			
+			this._edgeScores[k][children_k_index] = 0.0;
+			if(this.hasRemovedChild(children_k, childStart, childEnd) || this.isEdgeRemoved(k, children_k_index)) continue;
+			
+			double exponent = this.edgeScore(k, compressed ? null : children_k, children_k_index) - base;
+			double product = 1.0;
+			for(int c = childStart; c < childEnd; c++){
+				int child_k = children_k[c];
+				exponent += layers[child_k] < layer ? this._layerLogScales[layers[child_k]] : base;
+				product *= this._inside[child_k];
+			}
+			double potential = Math.exp(exponent);
+			this._edgeScores[k][children_k_index] = potential;
+			inside += potential * product;
+		}
+		this._inside[k] = inside;
+	}
+	
+	/**
+	 * Calculate the scaled outside values of all nodes, after {@link #insideScaled()}.<br>
+	 * The scaled outside value beta[k] satisfies outside[k] = log(beta[k]) + logZ - C[p], so that 
+	 * alpha[k]*beta[k] is the marginal probability of node k, and no further scaling is required.<br>
+	 * The marginal probability of each hyperedge is stored in {@link #_edgeScores} for the gradient.
+	 */
+	protected void outsideScaled(){
+		int[] layers = this.getLayers();
+		int numNodes = this.countNodes();
+		Arrays.fill(this._outside, 0, numNodes, 0.0);
+		this._outside[numNodes-1] = 1.0/this._inside[numNodes-1];
+		boolean compressed = this.isCompressed();
+		for(int k=numNodes-1; k>=0; k--){
+			if(this.isRemoved(k)) continue;
+			
+			int[][] childrenList_k = null;
+			int[] children_k = null;
+			int edgeStart = 0;
+			int numEdges;
+			if(compressed){
+				children_k = this.getChildIndices();
+				edgeStart = this.getNodeOffsets()[k];
+				numEdges = this.getNodeOffsets()[k+1]-edgeStart;
+			} else {
+				childrenList_k = this.getChildren(k);
+				if(childrenList_k.length==0){ 
+					childrenList_k = new int[1][0];
+				}
+				numEdges = childrenList_k.length;
+			}
+			
+			for(int children_k_index = 0; children_k_index < numEdges; children_k_index++){
+				int childStart, childEnd;
+				if(compressed){
+					childStart = this.getEdgeOffsets()[edgeStart+children_k_index];
+					childEnd = this.getEdgeOffsets()[edgeStart+children_k_index+1];
+				} else {
+					children_k = childrenList_k[children_k_index];
+					childStart = 0;
+					childEnd = children_k.length;
+				}
+				
+				if(this.isEdgeRemoved(k, children_k_index)) continue;
+				
+				double potential = this.scaledPotential(k, children_k_index, children_k, childStart, childEnd, layers);
+				double outside = this._outside[k] * potential;
+				double marginal = outside;
+				for(int c = childStart; c < childEnd; c++){
+					marginal *= this._inside[children_k[c]];
+				}
+				this._edgeScores[k][children_k_index] = marginal;
+				
+				for(int c = childStart; c < childEnd; c++){
+					double value = outside;
+					for(int c2 = childStart; c2 < childEnd; c2++){
+						if(c2 != c){
+							value *= this._inside[children_k[c2]];
+						}
+					}
+					this._outside[children_k[c]] += value;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the scaled potential of the specified hyperedge relative to the layer of node k.<br>
+	 * The potential stored in {@link #_edgeScores} was calculated relative to the previous layer, with the
+	 * children at the same layer unnormalized, so it is adjusted here using the scaling factor of the layer.
+	 * @param k
+	 * @param children_k_index
+	 * @param children_k
+	 * @param childStart
+	 * @param childEnd
+	 * @param layers
+	 * @return
+	 */
+	private double scaledPotential(int k, int children_k_index, int[] children_k, int childStart, int childEnd, int[] layers){
+		int layer = layers[k];
+		double scale = this._layerScales[layer];
+		double potential = this._edgeScores[k][children_k_index];
+		int numSameLayer = 0;
+		for(int c = childStart; c < childEnd; c++){
+			if(layers[children_k[c]] == layer){
+				numSameLayer++;
+			}
+		}
+		if(numSameLayer == 0){
+			potential /= scale;
+		} else {
+			for(int i=1; i<numSameLayer; i++){
+				potential *= scale;
+			}
+		}
+		return potential;
+	}
+	
+	/**
+	 * Calculate the scaled outside values as in {@link #outsideScaled()}, in parallel level by level
+	 * from the root.<br>
+	 * Instead of each node sending its outside value to its children, each node gathers the values from
+	 * the hyperedges where it is a child, so the nodes in the same level can be calculated independently.
+	 * The hyperedge marginals are calculated afterwards, when all outside values are known.
+	 */
+	private void outsideScaledWavefront(){
+		int[] layers = this.getLayers();
+		int numNodes = this.countNodes();
+		Arrays.fill(this._outside, 0, numNodes, 0.0);
+		Wavefront wavefront = this.getOutsideWavefront();
+		wavefront.run(0, wavefront.countLevels(), k -> this.outsideScaledGather(k, layers));
+		Wavefront.runAll(0, numNodes, k -> this.scaledMarginals(k, layers));
+	}
+	
+	/**
+	 * Calculate the scaled outside value of the specified node from the hyperedges where it is a child.
+	 * @param k
+	 * @param layers
+	 */
+	private void outsideScaledGather(int k, int[] layers){
+		if(this.isRemoved(k)) return;
+		
+		if(this.isRoot(k)){
+			this._outside[k] = 1.0/this._inside[k];
+			return;
+		}
+		boolean compressed = this.isCompressed();
+		double outside = 0.0;
+		for(int p = this._parentOffsets[k]; p < this._parentOffsets[k+1]; p++){
+			int parent_k = this._parentNodes[p];
+			int children_k_index = this._parentEdges[p];
+			if(this.isRemoved(parent_k) || this.isEdgeRemoved(parent_k, children_k_index)) continue;
+			
+			int[] children_k;
+			int childStart, childEnd;
+			if(compressed){
+				int edge = this.getNodeOffsets()[parent_k]+children_k_index;
+				children_k = this.getChildIndices();
+				childStart = this.getEdgeOffsets()[edge];
+				childEnd = this.getEdgeOffsets()[edge+1];
+			} else {
+				children_k = this.getChildren(parent_k)[children_k_index];
+				childStart = 0;
+				childEnd = children_k.length;
+			}
+			
+			double value = this._outside[parent_k] * this.scaledPotential(parent_k, children_k_index, children_k, childStart, childEnd, layers);
+			// If node k appears more than once in this hyperedge, each occurrence is a separate entry
+			boolean skipped = false;
+			for(int c = childStart; c < childEnd; c++){
+				if(!skipped && children_k[c] == k){
+					skipped = true;
+				} else {
+					value *= this._inside[children_k[c]];
+				}
+			}
+			outside += value;
+		}
+		this._outside[k] = outside;
+	}
+	
+	/**
+	 * Replace the scaled potential of each hyperedge of the specified node with its marginal probability,
+	 * as done in {@link #outsideScaled()}
+	 * @param k
+	 * @param layers
+	 */
+	private void scaledMarginals(int k, int[] layers){
+		if(this.isRemoved(k)) return;
+		
+		boolean compressed = this.isCompressed();
+		int[][] childrenList_k = null;
+		int[] children_k = null;
+		int edgeStart = 0;
+		int numEdges;
+		if(compressed){
+			children_k = this.getChildIndices();
+			edgeStart = this.getNodeOffsets()[k];
+			numEdges = this.getNodeOffsets()[k+1]-edgeStart;
+		} else {
+			childrenList_k = this.getChildren(k);
+			if(childrenList_k.length==0){
+				childrenList_k = new int[1][0];
+			}
+			numEdges = childrenList_k.length;
+		}
+		
+		for(int children_k_index = 0; children_k_index < numEdges; children_k_index++){
+			int childStart, childEnd;
+			if(compressed){
+				childStart = this.getEdgeOffsets()[edgeStart+children_k_index];
+				childEnd = this.getEdgeOffsets()[edgeStart+children_k_index+1];
+			} else {
+				children_k = childrenList_k[children_k_index];
+				childStart = 0;
+				childEnd = children_k.length;
+			}
+			
+			if(this.isEdgeRemoved(k, children_k_index)) continue;
+			
+			double marginal = this._outside[k] * this.scaledPotential(k, children_k_index, children_k, childStart, childEnd, layers);
+			for(int c = childStart; c < childEnd; c++){
+				marginal *= this._inside[children_k[c]];
+			}
+			this._edgeScores[k][children_k_index] = marginal;
+		}
+	}
+	
+	/**
+	 * Calculate the outside scores in log space in parallel level by level from the root, with each
+	 * node gathering the scores from the hyperedges where it is a child.<br>
+	 * The nodes with zero outside score are removed only at the end, since the gathering reads the inside
+	 * scores of the other children of the hyperedges, which may be in the same level.
+	 */
+	private void outsideWavefront(){
+		Wavefront wavefront = this.getOutsideWavefront();
+		wavefront.run(0, wavefront.countLevels(), k -> this.outsideGather(k));
+		for(int k=0; k<this.countNodes(); k++){
+			if(!this.isRemoved(k) && this._outside[k]==Double.NEGATIVE_INFINITY){
+				this.remove(k);
+			}
+		}
+	}
+	
+	/**
+	 * Calculate the outside score of the specified node in log space from the hyperedges where it is a child.
+	 * @param k
+	 * @see #outside(int)
+	 */
+	private void outsideGather(int k){
+		if(this.isRemoved(k)){
+			this._outside[k] = Double.NEGATIVE_INFINITY;
+			return;
+		}
+		
+		double outside = 0.0;
+		if(!this.isRoot(k)){
+			boolean compressed = this.isCompressed();
+			// The sum is accumulated relative to the maximum, as in addOutside
+			double max = Double.NEGATIVE_INFINITY;
+			double sum = 0.0;
+			for(int p = this._parentOffsets[k]; p < this._parentOffsets[k+1]; p++){
+				int parent_k = this._parentNodes[p];
+				int children_k_index = this._parentEdges[p];
+				if(this.isRemoved(parent_k) || this.isEdgeRemoved(parent_k, children_k_index)) continue;
+				
+				int[] children_k;
+				int childStart, childEnd;
+				if(compressed){
+					int edge = this.getNodeOffsets()[parent_k]+children_k_index;
+					children_k = this.getChildIndices();
+					childStart = this.getEdgeOffsets()[edge];
+					childEnd = this.getEdgeOffsets()[edge+1];
+				} else {
+					children_k = this.getChildren(parent_k)[children_k_index];
+					childStart = 0;
+					childEnd = children_k.length;
+				}
+				if(this.hasRemovedChild(children_k, childStart, childEnd)) continue;
+				
+				double score = this._edgeScores[parent_k][children_k_index];
+				score += this._outside[parent_k];
+				for(int c = childStart; c < childEnd; c++){
+					score += this._inside[children_k[c]];
+				}
+				if(score == Double.NEGATIVE_INFINITY) continue;
+				
+				double v = score - this._inside[k];
+				if(max == Double.POSITIVE_INFINITY){
+					continue;
+				}
+				if(v <= max){
+					sum += FastExp.exp(v-max);
+				} else {
+					sum = max == Double.NEGATIVE_INFINITY ? 1.0 : sum*FastExp.exp(max-v) + 1.0;
+					max = v;
+				}
+			}
+			outside = Double.isInfinite(max) ? max : max + Math.log(sum);
+		}
+		
+		if(this._inside[k]==Double.NEGATIVE_INFINITY)
+			outside = Double.NEGATIVE_INFINITY;
+		this._outside[k] = outside;
+	}
+	
+	/**
+	 * Returns the dependency levels of the nodes for the inside pass, where the children of each node are
+	 * in earlier levels.<br>
+	 * If the network is layered by position, the levels are ordered by layer first, and within a layer
+	 * each node is one level after its children in the same layer, so that each layer can be normalized
+	 * after its levels are done in the scaled inside pass. Otherwise each node is one level after its
+	 * deepest child.
+	 * @return
+	 */
+	private Wavefront getInsideWavefront(){
+		if(this._insideWavefront == null){
+			int numNodes = this.countNodes();
+			int[] layers = this.getLayers();
+			boolean compressed = this.isCompressed();
+			int[] levels = new int[numNodes];
+			for(int k=0; k<numNodes; k++){
+				int level = 0;
+				if(compressed){
+					int[] nodeOffsets = this.getNodeOffsets();
+					int[] edgeOffsets = this.getEdgeOffsets();
+					int[] childIndices = this.getChildIndices();
+					for(int c = edgeOffsets[nodeOffsets[k]]; c < edgeOffsets[nodeOffsets[k+1]]; c++){
+						int child_k = childIndices[c];
+						if(layers == null || layers[child_k] == layers[k]){
+							level = Math.max(level, levels[child_k]+1);
+						}
+					}
+				} else {
+					for(int[] children_k : this.getChildren(k)){
+						for(int child_k : children_k){
+							if(layers == null || layers[child_k] == layers[k]){
+								level = Math.max(level, levels[child_k]+1);
+							}
+						}
+					}
+				}
+				levels[k] = level;
+			}
+			if(layers != null){
+				int[] offsets = new int[numNodes];
+				int offset = 0;
+				int numLevelsInLayer = 0;
+				for(int k=0; k<numNodes; k++){
+					if(k > 0 && layers[k] != layers[k-1]){
+						offset += numLevelsInLayer;
+						numLevelsInLayer = 0;
+					}
+					numLevelsInLayer = Math.max(numLevelsInLayer, levels[k]+1);
+					offsets[k] = offset;
+				}
+				for(int k=0; k<numNodes; k++){
+					levels[k] += offsets[k];
 				}
 			}
+			this._insideWavefront = new Wavefront(levels);
 		}
+		return this._insideWavefront;
+	}
+	
+	/**
+	 * Returns the dependency levels of the nodes for the outside pass, where the root is at level 0 and
+	 * each node is one level after its deepest parent.
+	 * @return
+	 */
+	private Wavefront getOutsideWavefront(){
+		if(this._outsideWavefront == null){
+			this.buildParentIndex();
+			int numNodes = this.countNodes();
+			// The parents always have larger indices than their children
+			int[] levels = new int[numNodes];
+			for(int k=numNodes-1; k>=0; k--){
+				for(int p = this._parentOffsets[k]; p < this._parentOffsets[k+1]; p++){
+					levels[k] = Math.max(levels[k], levels[this._parentNodes[p]]+1);
+				}
+			}
+			this._outsideWavefront = new Wavefront(levels);
+		}
+		return this._outsideWavefront;
 	}
 
+	/**
+	 * Build the list of hyperedges where each node is a child, if not built yet
+	 */
+	private void buildParentIndex(){
+		if(this._parentOffsets != null){
+			return;
+		}
+		int numNodes = this.countNodes();
+		boolean compressed = this.isCompressed();
+		int[] nodeOffsets = this.getNodeOffsets();
+		int[] edgeOffsets = this.getEdgeOffsets();
+		int[] childIndices = this.getChildIndices();
+		int[] parentOffsets = new int[numNodes+1];
+		for(int k=0; k<numNodes; k++){
+			if(compressed){
+				for(int c = edgeOffsets[nodeOffsets[k]]; c < edgeOffsets[nodeOffsets[k+1]]; c++){
+					parentOffsets[childIndices[c]+1]++;
+				}
+			} else {
+				for(int[] children_k : this.getChildren(k)){
+					for(int child_k : children_k){
+						parentOffsets[child_k+1]++;
+					}
+				}
+			}
+		}
+		for(int k=0; k<numNodes; k++){
+			parentOffsets[k+1] += parentOffsets[k];
+		}
+		int[] next = Arrays.copyOf(parentOffsets, numNodes);
+		int[] parentNodes = new int[parentOffsets[numNodes]];
+		int[] parentEdges = new int[parentOffsets[numNodes]];
+		for(int k=0; k<numNodes; k++){
+			if(compressed){
+				for(int children_k_index = 0; children_k_index < nodeOffsets[k+1]-nodeOffsets[k]; children_k_index++){
+					int edge = nodeOffsets[k]+children_k_index;
+					for(int c = edgeOffsets[edge]; c < edgeOffsets[edge+1]; c++){
+						int p = next[childIndices[c]]++;
+						parentNodes[p] = k;
+						parentEdges[p] = children_k_index;
+					}
+				}
+			} else {
+				int[][] childrenList_k = this.getChildren(k);
+				for(int children_k_index = 0; children_k_index < childrenList_k.length; children_k_index++){
+					for(int child_k : childrenList_k[children_k_index]){
+						int p = next[child_k]++;
+						parentNodes[p] = k;
+						parentEdges[p] = children_k_index;
+					}
+				}
+			}
+		}
+		this._parentNodes = parentNodes;
+		this._parentEdges = parentEdges;
+		this._parentOffsets = parentOffsets;
+	}
+	
+	/**
+	 * Update the gradient for features present at the specified node, using the hyperedge marginals 
+	 * calculated in {@link #outsideScaled()}.
+	 * @param k
+	 */
+	protected void updateGradientScaled(int k){
+		if(this.isRemoved(k))
+			return;
+		
+		boolean compressed = this.isCompressed();
+		int[][] childrenList_k = null;
+		int[] childIndices = null;
+		int edgeStart = 0;
+		int numEdges;
+		if(compressed){
+			childIndices = this.getChildIndices();
+			edgeStart = this.getNodeOffsets()[k];
+			numEdges = this.getNodeOffsets()[k+1]-edgeStart;
+		} else {
+			childrenList_k = this.getChildren(k);
+			if(childrenList_k.length==0){ 
+				childrenList_k = new int[1][0];
+			}
+			numEdges = childrenList_k.length;
+		}
+		
+		for(int children_k_index = 0; children_k_index < numEdges; children_k_index++){
+			int[] children_k = null;
+			if(compressed){
+				int childStart = this.getEdgeOffsets()[edgeStart+children_k_index];
+				int childEnd = this.getEdgeOffsets()[edgeStart+children_k_index+1];
+				if(this.hasRemovedChild(childIndices, childStart, childEnd) || this.isEdgeRemoved(k, children_k_index)) continue;
+			} else {
+				children_k = childrenList_k[children_k_index];
+				if(this.hasRemovedChild(children_k, 0, children_k.length) || this.isEdgeRemoved(k, children_k_index)) continue;
+			}
+			
+			double count = this._edgeScores[k][children_k_index] * this._weight;
+			this._param.update(this, k, children_k, children_k_index, count);
+		}
+	}
+	
+	/**
+	 * Gather features from the specified node, reading the hyperedges directly from 
+	 * the compressed sparse layout.
+	 * @param k
+	 * @see #touch(int)
+	 */
+	protected void touchCompressed(int k){
+		if(this.isRemoved(k))
+			return;
+		
+		int numEdges = this.getNodeOffsets()[k+1]-this.getNodeOffsets()[k];
+		for(int children_k_index = 0; children_k_index < numEdges; children_k_index++){
+			this._param.extract(this, k, null, children_k_index);
+		}
+	}
+	
+	/**
+	 * Calculate the maximum score at the specified node, reading the hyperedges directly from 
+	 * the compressed sparse layout.<br>
+	 * Only the children of the best hyperedge are copied into {@link #_max_paths}.
+	 * @param k
+	 * @see #max(int)
+	 */
+	protected void maxCompressed(int k){
+		// The shared arrays may hold the values of another network, as in max(int)
+		this._maxEdges[k] = -1;
+		this._max_paths[k] = null;
+		if(this.isRemoved(k)){
+			this._max[k] = Double.NEGATIVE_INFINITY;
+			return;
+		}
+		
+		int[] edgeOffsets = this.getEdgeOffsets();
+		int[] childIndices = this.getChildIndices();
+		int edgeStart = this.getNodeOffsets()[k];
+		int numEdges = this.getNodeOffsets()[k+1]-edgeStart;
+		
+		boolean isSumNode = this.isSumNode(k);
+		double max = Double.NEGATIVE_INFINITY;
+		int maxIndex = isSumNode ? 0 : -1;
+		for(int children_k_index = 0; children_k_index < numEdges; children_k_index++){
+			int childStart = edgeOffsets[edgeStart+children_k_index];
+			int childEnd = edgeOffsets[edgeStart+children_k_index+1];
+			if(this.hasRemovedChild(childIndices, childStart, childEnd) || this.isEdgeRemoved(k, children_k_index))
+				continue;
+			if(!isSumNode && this.hasUnreachableChild(childIndices, childStart, childEnd))
+				continue;
+			
+			double score = this._param.getScore(this, k, null, children_k_index);
+			try{
+				score += this._param.cost(this, k, null, children_k_index, this._compiler);
+			} catch (NullPointerException e){
+				System.err.println("WARNING: Compiler was not specified during network creation, setting cost to 0.0");
+			}
+			for(int c = childStart; c < childEnd; c++){
+				score += this._max[childIndices[c]];
+			}
+			
+			if(isSumNode){
+				//if it is a sum node, then any path is the same for such a node.
+				//this is something you need to make sure when constructing such a network.
+				max = sumLog(max, score);
+			} else if(score >= max){
+				max = score;
+				maxIndex = children_k_index;
+			}
+		}
+		
+		this._max[k] = max;
+		this._maxEdges[k] = maxIndex;
+		if(maxIndex >= 0){
+			this._max_paths[k] = this.getChildren(k, maxIndex);
+		}
+	}
+
+	/**
+	 * Calculate log(sum(exp(scores[i]))) of the first numScores scores, by first finding the maximum,
+	 * so that only one pass of exponentials and a single logarithm are required.<br>
+	 * The exponential function used is specified by {@link NetworkConfig#EXP_MODE}.
+	 * @param scores
+	 * @param numScores
+	 * @return
+	 */
+	private static double logSumExp(double[] scores, int numScores){
+		if(numScores == 0){
+			return Double.NEGATIVE_INFINITY;
+		}
+		if(numScores == 1){
+			return scores[0];
+		}
+		double max = Double.NEGATIVE_INFINITY;
+		for(int i=0; i<numScores; i++){
+			if(scores[i] > max){
+				max = scores[i];
+			}
+		}
+		if(Double.isInfinite(max)){
+			return max;
+		}
+		double sum = 0.0;
+		for(int i=0; i<numScores; i++){
+			sum += FastExp.exp(scores[i]-max);
+		}
+		return max + Math.log(sum);
+	}
+	
+	/**
+	 * Add the outside score v coming from one of the parents of node k.<br>
+	 * The sum is accumulated relative to the maximum received so far, so that only one exponential 
+	 * is required here, and the logarithm is taken once in {@link #finalizeOutside(int)}.
+	 * @param k
+	 * @param v
+	 */
+	private void addOutside(int k, double v){
+		double max = this._outside[k];
+		if(v == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY){
+			return;
+		}
+		if(v <= max){
+			this._outsideSum[k] += FastExp.exp(v-max);
+		} else {
+			if(max == Double.NEGATIVE_INFINITY){
+				this._outsideSum[k] = 1.0;
+			} else {
+				this._outsideSum[k] = this._outsideSum[k]*FastExp.exp(max-v) + 1.0;
+			}
+			this._outside[k] = v;
+		}
+	}
+	
+	/**
+	 * Returns the outside score of node k from the values accumulated by {@link #addOutside(int, double)}.
+	 * This should be called only after all parents of node k have been visited.
+	 * @param k
+	 * @return
+	 */
+	private double finalizeOutside(int k){
+		double max = this._outside[k];
+		if(Double.isInfinite(max)){
+			return max;
+		}
+		return max + Math.log(this._outsideSum[k]);
+	}
+	
 	private double sumLog(double inside, double score) {
 		double v1 = inside;
 		double v2 = score;
@@ -17,7 +17,9 @@
 package com.statnlp.hybridnetworks;
 
 import java.io.Serializable;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.statnlp.commons.types.Instance;
@@ -77,17 +79,32 @@ public abstract class NetworkCompiler implements Serializable{
 			if(info.unlabeledNetwork != null){
 				info.unlabeledNetwork.setLabeledNetwork(network);
 				network.setUnlabeledNetwork(info.unlabeledNetwork);
+				this.buildCostTable(info.unlabeledNetwork);
 			}
 		} else {
 			info.unlabeledNetwork = network;
 			if(info.labeledNetwork != null){
 				info.labeledNetwork.setUnlabeledNetwork(network);
 				network.setLabeledNetwork(info.labeledNetwork);
+				this.buildCostTable(network);
 			}
 		}
 		return network;
 	}
 	
+	/**
+	 * Precompute the costs of the unlabeled network, now that its labeled network is known.<br>
+	 * Networks with positive instance ID (e.g., during testing) have no cost, so nothing is done for them.
+	 * @param unlabeledNetwork
+	 * @see Network#buildCostTable(NetworkCompiler)
+	 */
+	private void buildCostTable(Network unlabeledNetwork){
+		if(unlabeledNetwork.getInstance().getInstanceId() > 0){
+			return;
+		}
+		unlabeledNetwork.buildCostTable(this);
+	}
+	
 	/**
 	 * Convert an instance into the network representation.<br>
 	 * This process is also called the encoding part (e.g., to create the trellis network 
@@ -110,6 +127,55 @@ public abstract class NetworkCompiler implements Serializable{
 	 */
 	public abstract Instance decompile(Network network);
 
+	/**
+	 * Convert a network into its k best distinct instances, best first, by calling {@link #decompile(Network)}
+	 * on the derivations of the network, best first (see {@link Network#getKBestPaths(int)}).<br>
+	 * Different derivations can be decompiled into the same instance (e.g., when a span with no label can be
+	 * split into several segments), so the derivations are read until k instances with different predictions
+	 * are found, or until there is no more derivation. There might be less than k instances.
+	 * Afterwards the network contains the 1-best derivation.
+	 * @param network
+	 * @param k
+	 * @return
+	 */
+	public Instance[] decompile(Network network, int k){
+		int root_k = network.countNodes()-1;
+		KBestDecoder decoder = network.createKBestDecoder();
+		List<Instance> result = new ArrayList<Instance>();
+		int[][] bestPaths = null;
+		double bestScore = 0.0;
+		for(int rank=0; result.size() < k; rank++){
+			List<KBestDecoder.Derivation> derivations = decoder.getKBest(root_k, rank+1);
+			if(derivations.size() <= rank){
+				break;
+			}
+			KBestDecoder.Derivation derivation = derivations.get(rank);
+			int[][] paths = decoder.getPaths(root_k, derivation);
+			network.setMaxPath(paths, derivation.score);
+			if(rank == 0){
+				bestPaths = paths;
+				bestScore = derivation.score;
+			}
+			Instance instance = this.decompile(network);
+			if(!containsPrediction(result, instance.getPrediction())){
+				result.add(instance);
+			}
+		}
+		if(bestPaths != null){
+			network.setMaxPath(bestPaths, bestScore);
+		}
+		return result.toArray(new Instance[result.size()]);
+	}
+	
+	private static boolean containsPrediction(List<Instance> instances, Object prediction){
+		for(Instance instance: instances){
+			if(Objects.equals(instance.getPrediction(), prediction)){
+				return true;
+			}
+		}
+		return false;
+	}
+
 	
 	/**
 	 * The cost of the structure from leaf nodes up to node <code>k</code>.<br>
@@ -139,10 +205,7 @@ public abstract class NetworkCompiler implements Serializable{
 	 */	
 	public double costAt(Network network, int parent_k, int[] child_k){
 		int size = network.getInstance().size();
-		Network labeledNet = network.getLabeledNetwork();
-		long node = network.getNode(parent_k);
-		int node_k = labeledNet.getNodeIndex(node);
-		if(node_k < 0){
+		if(!network.isGoldNode(parent_k)){
 			double nodeCost = NetworkConfig.NODE_COST;
 			if(NetworkConfig.NORMALIZE_COST){
 				nodeCost /= size;
@@ -155,23 +218,7 @@ public abstract class NetworkCompiler implements Serializable{
 			edgeCost *= NetworkConfig.MARGIN;
 			return nodeCost+edgeCost;
 		}
-		long[] childNodes = new long[child_k.length];
-		for(int i=0; i<child_k.length; i++){
-			childNodes[i] = network.getNode(child_k[i]);
-		}
-		int[][] children_k = labeledNet.getChildren(node_k);
-		boolean edgePresentInLabeled = false;
-		for(int[] children: children_k){
-			long[] childrenNodes = new long[children.length];
-			for(int i=0; i<children.length; i++){
-				childrenNodes[i] = labeledNet.getNode(children[i]);
-			}
-			if(Arrays.equals(childrenNodes, childNodes)){
-				edgePresentInLabeled = true;
-				break;
-			}
-		}
-		if(edgePresentInLabeled || network.isRoot(parent_k)){
+		if(network.isRoot(parent_k) || network.isGoldEdge(parent_k, child_k)){
 			return 0.0;
 		} else {
 			double edgeCost = NetworkConfig.EDGE_COST;
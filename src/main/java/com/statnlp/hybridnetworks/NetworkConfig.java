@@ -16,6 +16,8 @@
  */
 package com.statnlp.hybridnetworks;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 
 public class NetworkConfig {
@@ -26,22 +28,42 @@ public class NetworkConfig {
 		SOFTMAX_MARGIN,
 	}
 	
+	public static enum ExpMode {
+		EXACT,
+		TABLE,
+		POLYNOMIAL,
+	}
+	
+	public static enum DecodeMode {
+		EXACT,
+		BEAM,
+		ASTAR,
+	}
+	
+	public static enum AccumulatorType {
+		SINGLE_WRITER,
+		STRIPED,
+		ATOMIC,
+	}
+	
 	public static Random r = new Random();
 	public static double FEATURE_INIT_WEIGHT = 0;//r.nextDouble();//Math.log(1E-10);//Math.log(1);
 	public static boolean RANDOM_INIT_WEIGHT = true;
 	public static int RANDOM_INIT_FEATURE_SEED = 1234;
 	
 	public static boolean CACHE_FEATURES_AT_CONJUNCTIVE_CELLS = true;
-	public static int PRUNE_MIN_LENGTH = 1000;
-	public static double PRUNE_THRESHOLD = 1000;
+	public static int PRUNE_AFTER_ITERATION = -1;//prune the hyperedges of unlabeled networks with low posterior after this iteration, -1 to disable.
+	public static int PRUNE_MIN_LENGTH = 0;//only prune the networks of instances with at least this size.
+	public static double PRUNE_THRESHOLD = 1E-6;//the minimum posterior probability of a hyperedge to be kept when pruning.
 	public static boolean TRAIN_MODE_IS_GENERATIVE = true;
-	public static boolean CACHE_FEATURE_SCORES = false;
+	public static boolean CACHE_FEATURE_SCORES = true;//keep the score of each cached hyperedge until the weights change (see FeatureArena), using 8 bytes per hyperedge.
 	public static boolean diagco = false;
 	public static int[] iprint = {0,0};
 	public static double eps = 10e-3;
 	public static double xtol = 10e-16;
 	public static int[] iflag = {0};
 	public static double L2_REGULARIZATION_CONSTANT = 0.01;
+	public static double L1_REGULARIZATION_CONSTANT = 0.0;//if positive, the default GlobalNetworkParam is trained with OWL-QN, with L1 (and L2, if also positive) regularization.
 	public static int _FOREST_MAX_HEIGHT = 10000;
 	public static int _FOREST_MAX_WIDTH = 10000;
 	public static int _NETWORK_MAX_DEPTH = 901;
@@ -62,11 +84,25 @@ public class NetworkConfig {
 	public static double NODE_COST = 1.0;
 	public static double EDGE_COST = 0.0;
 	
+	public static ExpMode EXP_MODE = ExpMode.EXACT;//the exponential function used when summing scores in log space, see FastExp.
+	public static boolean USE_COMPRESSED_NETWORK_LAYOUT = false;//store the hyperedges in TableLookupNetwork as flat offset arrays instead of int[][][].
+	public static boolean USE_DENSE_LATTICE = false;//use the dense lattice engine (DenseLattice) for the unlabeled networks of the models that support it.
+	public static boolean USE_SCALED_INFERENCE = true;//use scaled probabilities instead of log space in inside-outside for networks layered by position, see Network.getNodePositions.
+	public static int WAVEFRONT_PARALLELISM = 1;//the number of workers to calculate the inside-outside of one network in parallel, level by level (see Wavefront). 1 to disable.
+	public static int WAVEFRONT_MIN_NODES = 20000;//the minimum number of nodes for a network to be calculated in parallel with WAVEFRONT_PARALLELISM workers.
+	public static int BEAM_SIZE = 8;//the number of nodes kept at each position in beam decoding (DecodeMode.BEAM).
+	
 	public static boolean _CACHE_FEATURES_DURING_TRAINING = true;
-	public static boolean _SEQUENTIAL_FEATURE_EXTRACTION = true ;
+	public static long FEATURE_CACHE_HEAP_BUDGET = -1;//the memory in bytes for the hyperedge data of the feature cache of each thread, beyond which the data of further networks is moved to a memory-mapped file (see FeatureArena). -1 for no limit.
+	public static String FEATURE_CACHE_DIR = null;//the directory of the memory-mapped feature cache files, null for the default temporary directory.
+	public static boolean _SEQUENTIAL_FEATURE_EXTRACTION = false;//whether the threads extract the features of the first touch one after another, instead of all at the same time into one dictionary, with the IDs assigned after the touch (see GlobalNetworkParam#finishParallelTouch).
 	public static boolean _BUILD_FEATURES_FROM_LABELED_ONLY = false;
+	public static int FEATURE_HASH_BITS = -1;//if positive, each feature is hashed into one of 2^FEATURE_HASH_BITS weights, with no feature dictionary (see GlobalNetworkParam#toFeature). -1 to disable.
+	public static int FEATURE_MIN_COUNT = 1;//the number of times a feature must occur in the hyperedges of the training networks (the unlabeled ones in discriminative training) to be kept, the features occurring less are removed before training (see FeatureManager#pruneFeatures). 1 to keep all features.
+	public static Map<String, Integer> FEATURE_MIN_COUNT_BY_TEMPLATE = new HashMap<String, Integer>();//the value of FEATURE_MIN_COUNT for the features of specific templates (see FeatureManager#getFeatureTemplate).
 	
 	public static int _numThreads = 10;
+	public static AccumulatorType GRADIENT_ACCUMULATOR = null;//how the gradient is accumulated in global mode (see GradientAccumulator), null to choose from _numThreads.
 	
 	public static int _maxSpanLen = 2;//the upper-bound of the length of a span.
 	
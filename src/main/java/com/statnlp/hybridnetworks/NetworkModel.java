@@ -24,7 +24,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -32,7 +34,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import com.statnlp.commons.FeatureArrayCache;
 import com.statnlp.commons.types.Instance;
+import com.statnlp.hybridnetworks.NetworkConfig.DecodeMode;
 import com.statnlp.hybridnetworks.NetworkConfig.ModelType;
 
 public abstract class NetworkModel implements Serializable{
@@ -149,6 +153,10 @@ public abstract class NetworkModel implements Serializable{
 			this._learners[threadId].getLocalNetworkParam().finalizeIt();
 		}
 
+		if(this._fm.isPruningFeatures()){
+			printPruningReport(this._fm.pruneFeatures());
+		}
+		
 		//complete the type2int map. only in generative model
 		if(NetworkConfig.TRAIN_MODE_IS_GENERATIVE){
 			this._fm.completeType2Int(); 
@@ -216,10 +224,20 @@ public abstract class NetworkModel implements Serializable{
 				double obj = this._fm.getParam_G().getObj_old();
 				print(String.format("Iteration %d: Obj=%-18.12f Time=%.3fs %.12f Total time: %.3fs", it, multiplier*obj, time/1000.0, obj/obj_old, (System.currentTimeMillis()-startTime)/1000.0), outstreams);
 	//			System.out.println("Iteration "+it+"\tObjective="+obj+"\tTime="+time/1000.0+" seconds."+"\t"+obj/obj_old);
+				if(it == 0 && NetworkConfig._CACHE_FEATURES_DURING_TRAINING){
+					printCacheStatistics();
+					// All features are in the caches now
+					this._fm.getFeatureArrayCache().clear();
+				}
 				if(NetworkConfig.TRAIN_MODE_IS_GENERATIVE && it>1 && obj<obj_old && Math.abs(obj-obj_old)>1E-5){
 					throw new RuntimeException("Error:\n"+obj_old+"\n>\n"+obj);
 				}
 				obj_old = obj;
+				if(!lastIter && !done && this._learners[0].shouldPrune(it)){
+					// The objective function of the pruned networks is not the one optimized so far
+					this._fm.getParam_G().restartOptimization();
+					obj_old = Double.NEGATIVE_INFINITY;
+				}
 				if(lastIter){
 					print("Training completes. The specified number of iterations ("+it+") has passed.", outstreams);
 					break;
@@ -234,6 +252,65 @@ public abstract class NetworkModel implements Serializable{
 		}
 	}
 
+	/**
+	 * Print the number of features removed by {@link FeatureManager#pruneFeatures()} for each feature template
+	 * @param report
+	 */
+	private void printPruningReport(Map<String, int[]> report){
+		int numFeatures = 0;
+		int numRemoved = 0;
+		print("Feature pruning: features removed by template", outstreams);
+		for(String template: report.keySet()){
+			int[] templateReport = report.get(template);
+			print(String.format("  %-28s %9d of %9d (%.2f%%)", template, templateReport[1], templateReport[0], 100.0*templateReport[1]/templateReport[0]), outstreams);
+			numFeatures += templateReport[0];
+			numRemoved += templateReport[1];
+		}
+		print(String.format("Feature pruning: %d of %d features (%.2f%%) removed, %d features left",
+				numRemoved, numFeatures, numFeatures == 0 ? 0.0 : 100.0*numRemoved/numFeatures, numFeatures-numRemoved), outstreams);
+	}
+	
+	/**
+	 * Print the statistics of the feature caches, which are filled in the first iteration
+	 */
+	private void printCacheStatistics(){
+		long numFeatures = 0;
+		long numFactors = 0;
+		long numHyperedges = 0;
+		long numSegments = 0;
+		long numShared = 0;
+		long bytesSaved = 0;
+		long heapBytes = 0;
+		long numSpilled = 0;
+		long spilledBytes = 0;
+		for(LocalNetworkLearnerThread learner: this._learners){
+			FeatureArena arena = learner.getLocalNetworkParam().getFeatureArena();
+			if(arena == null){
+				continue;
+			}
+			numFeatures += arena.size();
+			numFactors += arena.numFactors();
+			numHyperedges += arena.numHyperedges();
+			numSegments += arena.numSegments();
+			numShared += arena.numShared();
+			bytesSaved += arena.bytesSaved();
+			heapBytes += arena.heapBytes();
+			numSpilled += arena.numSpilled();
+			spilledBytes += arena.spilledBytes();
+		}
+		print(String.format("Feature cache: %d features in %d factors for %d hyperedges, %d (%.2f%%) factor occurrences are shared, %.1fKB saved",
+				numFeatures, numFactors, numHyperedges, numShared, numSegments == 0 ? 0.0 : 100.0*numShared/numSegments, bytesSaved/1024.0), outstreams);
+		if(numSpilled > 0){
+			print(String.format("Feature cache: %.1fMB of hyperedge data in memory, %d networks in memory-mapped files of %.1fMB",
+					heapBytes/1048576.0, numSpilled, spilledBytes/1048576.0), outstreams);
+		}
+		FeatureArrayCache interner = this._fm.getFeatureArrayCache();
+		if(interner.numFAs() > 0){
+			print(String.format("Feature array interner: %d distinct feature arrays, %.2f%% hit rate, %.1fKB saved",
+					interner.size(), 100.0*interner.hitRate(), interner.bytesSaved()/1024.0), outstreams);
+		}
+	}
+	
 	private void touch(Instance[][] insts, boolean keepExisting) throws InterruptedException {
 		if(NetworkConfig._SEQUENTIAL_FEATURE_EXTRACTION || NetworkConfig._numThreads == 1){
 			for(int threadId = 0; threadId<this._numThreads; threadId++){
@@ -259,9 +336,9 @@ public abstract class NetworkModel implements Serializable{
 				this._learners[threadId].join();
 				this._learners[threadId].setUnTouch();
 			}
-			if(!keepExisting){
-				this._fm.mergeSubFeaturesToGlobalFeatures();
-			}
+		}
+		if(!keepExisting && this._fm.getParam_G()._touchFeatureIndex != null){
+			this._fm.finishParallelTouch();
 		}
 		if(labeledNetworkByInstanceId == null || unlabeledNetworkByInstanceId == null){
 			labeledNetworkByInstanceId = new Network[this._allInstances.length];
@@ -290,11 +367,79 @@ public abstract class NetworkModel implements Serializable{
 		}
 	}
 	
+	/**
+	 * Removes the features whose absolute weight is at most the specified epsilon (see {@link GlobalNetworkParam#compact(double)}),
+	 * and the decoders, whose cached features have the old feature IDs
+	 * @param epsilon
+	 * @return The number of removed features
+	 */
+	public int compact(double epsilon){
+		int numRemoved = this._fm.getParam_G().compact(epsilon);
+		this._decoders = null;
+		return numRemoved;
+	}
+	
 	public Instance[] decode(Instance[] allInstances) throws InterruptedException {
 		return decode(allInstances, false);
 	}
 	
 	public Instance[] decode(Instance[] allInstances, boolean cacheFeatures) throws InterruptedException{
+		return decode(allInstances, cacheFeatures, DecodeMode.EXACT);
+	}
+	
+	/**
+	 * Decode the instances using the specified decoding algorithm
+	 * @param allInstances
+	 * @param cacheFeatures
+	 * @param decodeMode
+	 * @return
+	 * @throws InterruptedException
+	 * @see Network#max(DecodeMode)
+	 */
+	public Instance[] decode(Instance[] allInstances, boolean cacheFeatures, DecodeMode decodeMode) throws InterruptedException{
+		Instance[] results = new Instance[allInstances.length];
+		this.runDecoders(allInstances, cacheFeatures, decodeMode, 0);
+		
+		int k = 0;
+		for(int threadId = 0; threadId<this._numThreads; threadId++){
+			Instance[] outputs = this._decoders[threadId].getOutputs();
+			for(Instance output : outputs){
+				results[k++] = output;
+			}
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Decode the k best outputs of each instance, best first
+	 * @param allInstances
+	 * @param numBest
+	 * @return The k best outputs of each instance, in the order of the specified instances,
+	 * 		   which might be empty if there is no output for an instance
+	 * @throws InterruptedException
+	 * @see NetworkCompiler#decompile(Network, int)
+	 */
+	public Instance[][] decodeKBest(Instance[] allInstances, int numBest) throws InterruptedException{
+		Instance[][] results = new Instance[allInstances.length][];
+		this.runDecoders(allInstances, false, DecodeMode.EXACT, numBest);
+		
+		IdentityHashMap<Instance, Integer> indices = new IdentityHashMap<Instance, Integer>();
+		for(int k=0; k<allInstances.length; k++){
+			indices.put(allInstances[k], k);
+		}
+		for(int threadId = 0; threadId<this._numThreads; threadId++){
+			Instance[] inputs = this._decoders[threadId].getInputs();
+			Instance[][] outputs = this._decoders[threadId].getKBestOutputs();
+			for(int i=0; i<outputs.length; i++){
+				results[indices.get(inputs[i])] = outputs[i];
+			}
+		}
+		
+		return results;
+	}
+	
+	private void runDecoders(Instance[] allInstances, boolean cacheFeatures, DecodeMode decodeMode, int numBest) throws InterruptedException{
 		
 //		if(NetworkConfig.TRAIN_MODE_IS_GENERATIVE){
 //			this._fm.getParam_G().expandFeaturesForGenerativeModelDuringTesting();
@@ -303,8 +448,6 @@ public abstract class NetworkModel implements Serializable{
 		this._numThreads = NetworkConfig._numThreads;
 		System.err.println("#threads:"+this._numThreads);
 		
-		Instance[] results = new Instance[allInstances.length];
-		
 		//all the instances.
 		this._allInstances = allInstances;
 		
@@ -318,10 +461,11 @@ public abstract class NetworkModel implements Serializable{
 		//distribute the works into different threads.
 		for(int threadId = 0; threadId<this._numThreads; threadId++){
 			if(cacheFeatures && this._decoders[threadId] != null){
-				this._decoders[threadId] = new LocalNetworkDecoderThread(threadId, this._fm, insts[threadId], this._compiler, this._decoders[threadId].getParam(), true);
+				this._decoders[threadId] = new LocalNetworkDecoderThread(threadId, this._fm, insts[threadId], this._compiler, this._decoders[threadId].getParam(), true, decodeMode);
 			} else {
-				this._decoders[threadId] = new LocalNetworkDecoderThread(threadId, this._fm, insts[threadId], this._compiler, true);
+				this._decoders[threadId] = new LocalNetworkDecoderThread(threadId, this._fm, insts[threadId], this._compiler, true, decodeMode);
 			}
+			this._decoders[threadId].setNumBest(numBest);
 		}
 		
 		System.err.println("Okay. Decoding started.");
@@ -335,18 +479,9 @@ public abstract class NetworkModel implements Serializable{
 		}
 		
 		System.err.println("Okay. Decoding done.");
+		this._fm.getFeatureArrayCache().clear();
 		time = System.currentTimeMillis() - time;
 		System.err.println("Overall decoding time = "+ time/1000.0 +" secs.");
-		
-		int k = 0;
-		for(int threadId = 0; threadId<this._numThreads; threadId++){
-			Instance[] outputs = this._decoders[threadId].getOutputs();
-			for(Instance output : outputs){
-				results[k++] = output;
-			}
-		}
-		
-		return results;
 	}
 	
 }
@@ -45,6 +45,13 @@ public abstract class TableLookupNetwork extends Network{
 	protected long[] _nodes;
 	//at each index, store the node's list of children's indices (with respect to _nodes)
 	protected int[][][] _children;
+	//the compressed sparse layout of the children, used instead of _children if the latter is null.
+	//the hyperedges of node k are the ones from _nodeOffsets[k] (inclusive) to _nodeOffsets[k+1] (exclusive)
+	protected int[] _nodeOffsets;
+	//the children of hyperedge e are _childIndices[_edgeOffsets[e]] to _childIndices[_edgeOffsets[e+1]-1]
+	protected int[] _edgeOffsets;
+	//the children's indices (with respect to _nodes) of all hyperedges, one after another
+	protected int[] _childIndices;
 	//will be useful when doing decoding.
 	protected boolean[] _isSumNode;
 	
@@ -205,6 +212,31 @@ public abstract class TableLookupNetwork extends Network{
 		this._children = children;
 	}
 	
+	/**
+	 * Construct a network with the specified nodes and edges in the compressed sparse layout, 
+	 * and with the compiler that created this network<br>
+	 * This is mainly used to create a subgraph of a larger graph by modifying the number of nodes
+	 * by overriding {@link #countNodes()}
+	 * @param networkId
+	 * @param inst
+	 * @param nodes
+	 * @param nodeOffsets
+	 * @param edgeOffsets
+	 * @param childIndices
+	 * @param param
+	 * @param compiler
+	 * @see #getAllNodeOffsets()
+	 * @see #getAllEdgeOffsets()
+	 * @see #getAllChildIndices()
+	 */
+	public TableLookupNetwork(int networkId, Instance inst, long[] nodes, int[] nodeOffsets, int[] edgeOffsets, int[] childIndices, LocalNetworkParam param, NetworkCompiler compiler){
+		super(networkId, inst, param, compiler);
+		this._nodes = nodes;
+		this._nodeOffsets = nodeOffsets;
+		this._edgeOffsets = edgeOffsets;
+		this._childIndices = childIndices;
+	}
+	
 	@Override
 	public long getNode(int k){
 		return this._nodes[k];
@@ -212,9 +244,54 @@ public abstract class TableLookupNetwork extends Network{
 	
 	@Override
 	public int[][] getChildren(int k){
+		if(this._children == null){
+			int numEdges = this._nodeOffsets[k+1]-this._nodeOffsets[k];
+			int[][] children = new int[numEdges][];
+			for(int children_k_index = 0; children_k_index < numEdges; children_k_index++){
+				children[children_k_index] = this.getChildren(k, children_k_index);
+			}
+			return children;
+		}
 		return this._children[k];
 	}
 	
+	@Override
+	public int[] getChildren(int k, int children_k_index){
+		if(this._children == null){
+			int edge = this._nodeOffsets[k]+children_k_index;
+			return Arrays.copyOfRange(this._childIndices, this._edgeOffsets[edge], this._edgeOffsets[edge+1]);
+		}
+		return this._children[k][children_k_index];
+	}
+	
+	@Override
+	public int countEdges(int k){
+		if(this._children == null){
+			return this._nodeOffsets[k+1]-this._nodeOffsets[k];
+		}
+		return this._children[k].length;
+	}
+	
+	@Override
+	public boolean isCompressed(){
+		return this._children == null && this._nodeOffsets != null;
+	}
+	
+	@Override
+	protected int[] getNodeOffsets(){
+		return this._nodeOffsets;
+	}
+	
+	@Override
+	protected int[] getEdgeOffsets(){
+		return this._edgeOffsets;
+	}
+	
+	@Override
+	protected int[] getChildIndices(){
+		return this._childIndices;
+	}
+	
 	public int countTmpNodes_tmp(){
 		return this._children_tmp.size();
 	}
@@ -227,6 +304,18 @@ public abstract class TableLookupNetwork extends Network{
 		return this._children;
 	}
 	
+	public int[] getAllNodeOffsets(){
+		return this._nodeOffsets;
+	}
+	
+	public int[] getAllEdgeOffsets(){
+		return this._edgeOffsets;
+	}
+	
+	public int[] getAllChildIndices(){
+		return this._childIndices;
+	}
+	
 	@Override
 	public int countNodes() {
 		return this._nodes.length;
@@ -346,6 +435,8 @@ public abstract class TableLookupNetwork extends Network{
 	
 	/**
 	 * Finalize this network, by converting the temporary arrays for nodes and edges into the finalized one.<br>
+	 * If {@link NetworkConfig#USE_COMPRESSED_NETWORK_LAYOUT} is true, the edges are stored in the 
+	 * compressed sparse layout instead.<br>
 	 * This method must be called before this network can be used.
 	 */
 	public void finalizeNetwork(){
@@ -364,6 +455,11 @@ public abstract class TableLookupNetwork extends Network{
 		}
 		
 //		this._nodes_tmp = null;
+		if(NetworkConfig.USE_COMPRESSED_NETWORK_LAYOUT){
+			this.finalizeCompressed(nodesValue2IdMap);
+			this._children_tmp = null;
+			return;
+		}
 		this._children = new int[this._nodes.length][][];
 		
 		Iterator<Long> parents = this._children_tmp.keySet().iterator();
@@ -393,6 +489,48 @@ public abstract class TableLookupNetwork extends Network{
 		this._children_tmp = null;
 	}
 	
+	/**
+	 * Convert the temporary edges into the compressed sparse layout.<br>
+	 * Similar to the int[][][] layout, a node with no children will have one hyperedge with no child.
+	 * @param nodesValue2IdMap
+	 */
+	private void finalizeCompressed(HashMap<Long, Integer> nodesValue2IdMap){
+		int numEdges = 0;
+		int numChildren = 0;
+		for(int k = 0; k<this._nodes.length; k++){
+			ArrayList<long[]> childrens = this._children_tmp.get(this._nodes[k]);
+			if(childrens==null){
+				numEdges += 1;
+			} else {
+				numEdges += childrens.size();
+				for(long[] children : childrens){
+					numChildren += children.length;
+				}
+			}
+		}
+		this._nodeOffsets = new int[this._nodes.length+1];
+		this._edgeOffsets = new int[numEdges+1];
+		this._childIndices = new int[numChildren];
+		int edge = 0;
+		int child = 0;
+		for(int k = 0; k<this._nodes.length; k++){
+			this._nodeOffsets[k] = edge;
+			ArrayList<long[]> childrens = this._children_tmp.get(this._nodes[k]);
+			if(childrens==null){
+				this._edgeOffsets[edge++] = child;
+				continue;
+			}
+			for(long[] children : childrens){
+				this._edgeOffsets[edge++] = child;
+				for(int m = 0; m<children.length; m++){
+					this._childIndices[child++] = nodesValue2IdMap.get(children[m]);
+				}
+			}
+		}
+		this._nodeOffsets[this._nodes.length] = edge;
+		this._edgeOffsets[edge] = child;
+	}
+	
 	private void checkLinkValidity(long parent, long[] children){
 		/**/
 		for(long child : children){
@@ -446,7 +584,7 @@ public abstract class TableLookupNetwork extends Network{
 	
 	@Override
 	public boolean isLeaf(int k){
-		int[][] v= this._children[k];
+		int[][] v= this.getChildren(k);
 		if(v.length==0) return false;
 		if(v[0].length==0) return true;
 		return false;
@@ -485,7 +623,7 @@ public abstract class TableLookupNetwork extends Network{
 			sb.append('<');
 			long parent = this._nodes[k];
 			sb.append(Arrays.toString(NetworkIDMapper.toHybridNodeArray(parent)));
-			int[][] childrenList = this._children[k];
+			int[][] childrenList = this.getChildren(k);
 			for(int i = 0; i<childrenList.length; i++){
 				sb.append('\n');
 				sb.append('\t');
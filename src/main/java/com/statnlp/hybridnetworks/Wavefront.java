@@ -0,0 +1,177 @@
+/** Statistical Natural Language Processing System
+    Copyright (C) 2014-2016  Lu, Wei
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.statnlp.hybridnetworks;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The nodes of a network grouped into dependency levels, where the nodes in the same level do not
+ * depend on each other, so that each level can be processed in parallel once the previous levels are done.<br>
+ * The levels are processed in a fork-join pool with {@link NetworkConfig#WAVEFRONT_PARALLELISM} workers,
+ * which is shared by all networks. Levels with few nodes are processed directly in the calling thread.
+ */
+public class Wavefront {
+
+	/** The minimum number of nodes processed by one task */
+	private static final int MIN_TASK_SIZE = 8;
+
+	private static ForkJoinPool pool;
+
+	/** The working array of each worker, see {@link #getScratch(int)} */
+	private static final ThreadLocal<double[]> scratch = new ThreadLocal<double[]>();
+
+	/** The nodes, sorted by level, and by index within the same level */
+	private int[] _levelNodes;
+	/** The start of each level in {@link #_levelNodes}, with one additional entry at the end */
+	private int[] _levelOffsets;
+
+	/**
+	 * The computation done on each node
+	 */
+	public interface NodeVisitor {
+		public void visit(int k);
+	}
+
+	/**
+	 * Group the nodes into levels
+	 * @param levels The level of each node, starting from 0
+	 */
+	public Wavefront(int[] levels){
+		int numLevels = 0;
+		for(int level: levels){
+			numLevels = Math.max(numLevels, level+1);
+		}
+		this._levelOffsets = new int[numLevels+1];
+		for(int level: levels){
+			this._levelOffsets[level+1]++;
+		}
+		for(int level=0; level<numLevels; level++){
+			this._levelOffsets[level+1] += this._levelOffsets[level];
+		}
+		int[] next = new int[numLevels];
+		System.arraycopy(this._levelOffsets, 0, next, 0, numLevels);
+		this._levelNodes = new int[levels.length];
+		for(int k=0; k<levels.length; k++){
+			this._levelNodes[next[levels[k]]++] = k;
+		}
+	}
+
+	public int countLevels(){
+		return this._levelOffsets.length-1;
+	}
+
+	/**
+	 * Returns the node with the smallest index in the specified level
+	 * @param level
+	 * @return
+	 */
+	public int getFirstNode(int level){
+		return this._levelNodes[this._levelOffsets[level]];
+	}
+
+	/**
+	 * Visit all nodes in the levels from fromLevel (inclusive) to toLevel (exclusive), level by level.
+	 * @param fromLevel
+	 * @param toLevel
+	 * @param visitor
+	 */
+	public void run(int fromLevel, int toLevel, NodeVisitor visitor){
+		for(int level=fromLevel; level<toLevel; level++){
+			run(this._levelNodes, this._levelOffsets[level], this._levelOffsets[level+1], visitor);
+		}
+	}
+
+	/**
+	 * Visit all nodes from k=start (inclusive) to k=end (exclusive) in parallel, for computations
+	 * without any dependency between the nodes.
+	 * @param start
+	 * @param end
+	 * @param visitor
+	 */
+	public static void runAll(int start, int end, NodeVisitor visitor){
+		run(null, start, end, visitor);
+	}
+
+	private static void run(int[] nodes, int start, int end, NodeVisitor visitor){
+		if(end-start < 2*MIN_TASK_SIZE){
+			for(int i=start; i<end; i++){
+				visitor.visit(nodes == null ? i : nodes[i]);
+			}
+		} else {
+			getPool().invoke(new VisitTask(nodes, start, end, visitor));
+		}
+	}
+
+	private static synchronized ForkJoinPool getPool(){
+		if(pool == null || pool.getParallelism() != NetworkConfig.WAVEFRONT_PARALLELISM){
+			if(pool != null){
+				pool.shutdown();
+			}
+			pool = new ForkJoinPool(NetworkConfig.WAVEFRONT_PARALLELISM);
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns a working array of at least the specified size, which is private to the current thread
+	 * @param size
+	 * @return
+	 */
+	public static double[] getScratch(int size){
+		double[] result = scratch.get();
+		if(result == null || result.length < size){
+			result = new double[size];
+			scratch.set(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Visit the nodes in a range, splitting the range into halves until it is small enough
+	 */
+	private static class VisitTask extends RecursiveAction {
+
+		private static final long serialVersionUID = -2370718253371924695L;
+
+		private int[] nodes;
+		private int start;
+		private int end;
+		private NodeVisitor visitor;
+
+		public VisitTask(int[] nodes, int start, int end, NodeVisitor visitor){
+			this.nodes = nodes;
+			this.start = start;
+			this.end = end;
+			this.visitor = visitor;
+		}
+
+		@Override
+		protected void compute(){
+			if(this.end-this.start <= MIN_TASK_SIZE){
+				for(int i=this.start; i<this.end; i++){
+					this.visitor.visit(this.nodes == null ? i : this.nodes[i]);
+				}
+				return;
+			}
+			int mid = (this.start+this.end) >>> 1;
+			invokeAll(new VisitTask(this.nodes, this.start, mid, this.visitor),
+					  new VisitTask(this.nodes, mid, this.end, this.visitor));
+		}
+	}
+
+}